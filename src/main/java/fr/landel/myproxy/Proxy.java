@@ -10,13 +10,41 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.dns.DnsCache;
+import fr.landel.myproxy.http.Compression;
+import fr.landel.myproxy.http.Http2Transport;
+import fr.landel.myproxy.http.HttpCache;
+import fr.landel.myproxy.http.ParentRouter;
+import fr.landel.myproxy.http.SingleFlight;
+import fr.landel.myproxy.http.UpstreamFetcher;
+import fr.landel.myproxy.http.UpstreamPool;
+import fr.landel.myproxy.limit.ClientLimiter;
+import fr.landel.myproxy.limit.ConcurrencyLimiter;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.nio.BufferPool;
+import fr.landel.myproxy.nio.Connector;
+import fr.landel.myproxy.nio.DeadlineTimer;
+import fr.landel.myproxy.nio.EventLoopGroup;
+import fr.landel.myproxy.nio.NioServer;
+import fr.landel.myproxy.nio.ServerChannels;
+import fr.landel.myproxy.nio.TlsContext;
+import fr.landel.myproxy.utils.BoundedThreadPerTaskExecutor;
 import fr.landel.myproxy.utils.Logger;
+import fr.landel.myproxy.utils.ThreadUtils;
 
 /**
  * The Proxy creates a Server Socket which will wait for connections on the specified port. Once a connection arrives and a socket is accepted, the
@@ -27,22 +55,37 @@ import fr.landel.myproxy.utils.Logger;
  * to not interrupt the acceptance of socket connections. This allows the administrator to dynamically block web sites in real time.
  * 
  * The Proxy server is also responsible for maintaining cached copies of the any websites that are requested by clients and this includes the HTML
- * markup, images, css and js files associated with each webpage.
+ * markup, images, css and js files associated with each webpage. The cached copies follow the HTTP caching rules ({@link HttpCache}): a fresh
+ * copy is served from the disk, a stale one is revalidated with the origin.
  * 
- * Upon closing the proxy server, the HashMaps which hold cached items and blocked sites are serialized and written to a file and are loaded back in
+ * Upon closing the proxy server, the index of the cached items and the HashMap of blocked sites are serialized and written to a file and are loaded back in
  * when the proxy is started once more, meaning that cached and blocked sites are maintained.
+ * 
+ * With the "nio" I/O mode ("proxy/io-mode"), the connections are accepted and handled by a group of selector event loops ({@link NioServer})
+ * instead of a thread per connection. With the "virtual" thread mode ("proxy/thread-mode", Java 21+), the RequestHandlers and the HTTPS relays run
+ * on virtual threads. With the "selector" tunnel mode ("proxy/tunnel-mode", default), the established HTTPS tunnels are handed over to a group of
+ * event loops and hold no thread. Client connections are persistent (HTTP/1.1 keep-alive and pipelining) in both I/O modes.
  *
  */
 public class Proxy implements Runnable {
 
     private static final Logger LOG = new Logger(Proxy.class);
 
+    /**
+     * Bounds of the pause of an acceptor after an accept failure (ex: too many open files), doubled at each consecutive failure
+     */
+    private static final long MIN_ACCEPT_BACKOFF = 10;
+    private static final long MAX_ACCEPT_BACKOFF = 1_000;
+
     // Main method for the program
     public static void main(String[] args) {
         long start = System.currentTimeMillis();
 
         // Create an instance of Proxy and begin listening for connections
-        Proxy myProxy = new Proxy(3128);
+        Proxy myProxy = new Proxy(Configuration.load());
+
+        // Start dynamic manager on a separate thread.
+        new Thread(myProxy).start(); // Starts overriden run() method at bottom
 
         LOG.info("Started in {}", getTime(System.currentTimeMillis() - start));
 
@@ -51,20 +94,113 @@ public class Proxy implements Runnable {
 
     private ServerSocket serverSocket;
 
+    /**
+     * Channels of the blocking acceptors, bound to the same port with SO_REUSEPORT ("proxy/acceptors"), the first one is the server socket
+     */
+    private List<ServerSocketChannel> serverChannels;
+
+    private NioServer nioServer;
+
+    /**
+     * Bounded executor running the RequestHandlers ("proxy/max-threads" threads, "proxy/accept-queue" pending connections), or
+     * "proxy/max-virtual-threads" virtual threads
+     */
+    private ExecutorService executor;
+
+    /**
+     * Factory of the threads relaying data from client to server when using HTTPS (platform or virtual threads)
+     */
+    static ThreadFactory relayThreadFactory;
+
+    /**
+     * Event loops relaying the HTTPS tunnels in blocking mode, null if the tunnels are relayed by threads
+     */
+    static EventLoopGroup tunnelLoops;
+
+    /**
+     * Cache of the host name resolutions ("proxy/dns")
+     */
+    static DnsCache dnsCache;
+
+    /**
+     * Connector racing the resolved addresses of the origin servers ("proxy/connector")
+     */
+    static Connector connector;
+
+    /**
+     * Router of the requests and tunnels through the parent proxies ("proxy/parents")
+     */
+    static ParentRouter parentRouter;
+
+    /**
+     * Pool of keep-alive connections to the origin servers ("proxy/upstream-pool")
+     */
+    static UpstreamPool upstreamPool;
+
+    /**
+     * Multiplexed HTTP/2 client of the direct origins, null if disabled ("proxy/http2")
+     */
+    static Http2Transport http2Transport;
+
+    /**
+     * Sender of the requests to the origin servers, with the retries and the hedged requests ("proxy/retry", "proxy/retry-budget", "proxy/hedge")
+     */
+    static UpstreamFetcher upstreamFetcher;
+
+    /**
+     * Rate limits of each client address, null without limits ("proxy/client-limits")
+     */
+    static ClientLimiter clientLimiter;
+
+    /**
+     * Adaptive limit of the requests in flight, null if disabled ("proxy/concurrency")
+     */
+    static ConcurrencyLimiter concurrencyLimiter;
+
+    /**
+     * Content codings of the compressible responses, null if disabled ("proxy/compression")
+     */
+    static Compression compression;
+
+    /**
+     * Collapser of the concurrent GET requests of a same URL, null if disabled ("proxy/coalescing")
+     */
+    static SingleFlight singleFlight;
+
+    /**
+     * Deadlines of the connection phases: idle ("proxy/keep-alive-timeout"), request head, request and tunnel ("proxy/timeouts")
+     */
+    static DeadlineTimer deadlines;
+
+    /**
+     * Maximum number of requests served by a persistent client connection ("proxy/keep-alive-max-requests")
+     */
+    static int keepAliveMaxRequests;
+
     /**
      * Semaphore for Proxy and Console Management System.
      */
     private volatile boolean running = true;
 
-    static File outputDir = new File("target");
-    static File cacheDir = new File(outputDir, "cached");
-    static File cachedSites = new File(outputDir, "cachedSites.txt");
-    static File blockedSitesTxtFile = new File(outputDir, "blockedSites.txt");
+    /**
+     * Directory of the cache files ("proxy/cache/directory")
+     */
+    static File cacheDir;
+
+    /**
+     * Index of the cache entries ("proxy/cache/index")
+     */
+    static File cachedSites;
+
+    /**
+     * Blocked sites ("proxy/blocked-sites")
+     */
+    static File blockedSitesTxtFile;
 
     /**
-     * Data structure for constant order lookup of cache items. Key: URL of page/image requested. Value: File in storage associated with this key.
+     * HTTP cache of the GET responses, null if disabled
      */
-    static Map<String, File> cache;
+    static HttpCache cache;
 
     /**
      * Data structure for constant order lookup of blocked sites. Key: URL of page/image requested. Value: URL of page/image requested.
@@ -72,27 +208,31 @@ public class Proxy implements Runnable {
     static Map<String, String> blockedSites;
 
     /**
-     * ArrayList of threads that are currently running and servicing requests. This list is required in order to join all threads on closing of server
+     * Set of handlers that are currently queued or servicing requests. Handlers remove themselves once finished, this set is used to know how many
+     * handlers are still alive on closing of server
      */
-    static List<Thread> servicingThreads;
+    static Set<RequestHandler> servicingHandlers;
 
     /**
      * Create the Proxy Server
      * 
-     * @param port
-     *            Port number to run proxy server from.
+     * @param configuration
+     *            The proxy configuration (port, I/O mode...)
      */
-    public Proxy(int port) {
+    public Proxy(Configuration configuration) {
+        int port = configuration.getInt("proxy/port", 3128);
+        boolean nio = "nio".equalsIgnoreCase(configuration.getString("proxy/io-mode", "blocking"));
+
+        cacheDir = new File(configuration.getString("proxy/cache/directory", "target/cached"));
+        cachedSites = new File(configuration.getString("proxy/cache/index", "target/cachedSites.txt"));
+        blockedSitesTxtFile = new File(configuration.getString("proxy/blocked-sites", "target/blockedSites.txt"));
 
-        // Load in hash map containing previously cached sites and blocked Sites
-        cache = new HashMap<>();
+        // Load in the cache containing previously cached sites and hash map of blocked Sites
+        cache = configuration.getBoolean("proxy/cache/enabled", true) ? new HttpCache(configuration, cacheDir) : null;
         blockedSites = new HashMap<>();
 
-        // Create array list to hold servicing threads
-        servicingThreads = new ArrayList<>();
-
-        // Start dynamic manager on a separate thread.
-        new Thread(this).start(); // Starts overriden run() method at bottom
+        // Create set to hold servicing handlers
+        servicingHandlers = ConcurrentHashMap.newKeySet();
 
         try {
             if (!cacheDir.isDirectory()) {
@@ -104,10 +244,8 @@ public class Proxy implements Runnable {
                 LOG.info("No cached sites found - creating new file");
                 cachedSites.createNewFile();
 
-            } else if (cachedSites.length() > 0) {
-                try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(cachedSites))) {
-                    cache = (Map<String, File>) objectInputStream.readObject();
-                }
+            } else if (cachedSites.length() > 0 && cache != null) {
+                cache.load(cachedSites);
             }
 
             // Load in blocked sites from file
@@ -129,13 +267,58 @@ public class Proxy implements Runnable {
             e.printStackTrace();
         }
 
+        dnsCache = new DnsCache(configuration);
+        connector = new Connector(configuration, dnsCache);
+        parentRouter = new ParentRouter(configuration, connector);
+        upstreamPool = new UpstreamPool(configuration, connector, parentRouter);
+        http2Transport = configuration.getBoolean("proxy/http2/enabled", true) ? new Http2Transport(configuration, parentRouter) : null;
+        upstreamFetcher = new UpstreamFetcher(configuration, upstreamPool, http2Transport);
+        singleFlight = configuration.getBoolean("proxy/coalescing", true) ? new SingleFlight() : null;
+        compression = configuration.getBoolean("proxy/compression/enabled", true) ? new Compression(configuration) : null;
+        ClientLimiter limiter = new ClientLimiter(configuration);
+        clientLimiter = limiter.isEnabled() ? limiter : null;
+        concurrencyLimiter = configuration.getBoolean("proxy/concurrency/enabled", true) ? new ConcurrencyLimiter(configuration) : null;
+
+        deadlines = new DeadlineTimer(configuration);
+        keepAliveMaxRequests = Math.max(1, configuration.getInt("proxy/keep-alive-max-requests", 100));
+
         try {
-            // Create the Server Socket for the Proxy
-            serverSocket = new ServerSocket(port);
+            if (nio) {
+                // Create the non blocking server, one event loop per core by default
+                nioServer = new NioServer(port, configuration.getInt("proxy/event-loops", 0), configuration.getInt("proxy/acceptors", 1), deadlines, keepAliveMaxRequests, connector,
+                        parentRouter, clientLimiter);
+                LOG.info("Waiting for client on port {}...", nioServer.getLocalPort());
+
+                // The TLS listener is enabled by a keystore
+                if (!configuration.getString("proxy/ssl/keystore-file", "").isEmpty()) {
+                    try {
+                        nioServer.listenTls(configuration.getInt("proxy/ssl/port", 3129), new TlsContext(configuration));
+                        LOG.info("Waiting for TLS client on port {}...", nioServer.getTlsPort());
+                    } catch (IOException e) {
+                        LOG.error("Cannot start the TLS listener: {}", e.getMessage());
+                    }
+                }
+
+            } else {
+                // Create the Server Socket for the Proxy, from a channel so the accepted sockets can be handed over to the tunnel loops
+                serverChannels = ServerChannels.open(port, ServerChannels.acceptors(configuration.getInt("proxy/acceptors", 1)), 0);
+                serverSocket = serverChannels.get(0).socket();
 
-            // Set the timeout
-            // serverSocket.setSoTimeout(100000); // debug
-            LOG.info("Waiting for client on port {}...", serverSocket.getLocalPort());
+                executor = createExecutor(configuration);
+
+                if (!"threads".equalsIgnoreCase(configuration.getString("proxy/tunnel-mode", "selector"))) {
+                    tunnelLoops = new EventLoopGroup(configuration.getInt("proxy/event-loops", 0), "myproxy-tunnel");
+                    tunnelLoops.start();
+                }
+
+                // Set the timeout
+                // serverSocket.setSoTimeout(100000); // debug
+                LOG.info("Waiting for client on port {}...", serverSocket.getLocalPort());
+
+                if (!configuration.getString("proxy/ssl/keystore-file", "").isEmpty()) {
+                    LOG.error("The TLS listener requires the nio I/O mode, it's not started");
+                }
+            }
             running = true;
         }
 
@@ -152,43 +335,138 @@ public class Proxy implements Runnable {
         }
     }
 
+    /**
+     * Creates the executor of the RequestHandlers, the connections beyond its capacity are rejected with a 503
+     * 
+     * @param configuration
+     *            The proxy configuration
+     * @return The executor
+     */
+    private static ExecutorService createExecutor(Configuration configuration) {
+        if ("virtual".equalsIgnoreCase(configuration.getString("proxy/thread-mode", "platform"))) {
+            // Must be defined before the first virtual thread is started
+            ThreadUtils.setCarrierThreads(configuration.getInt("proxy/carrier-threads", 0));
+
+            ThreadFactory factory = ThreadUtils.virtualThreadFactory("myproxy-virtual-").orElse(null);
+            if (factory != null) {
+                LOG.info("Request handlers run on virtual threads");
+                relayThreadFactory = factory;
+                return new BoundedThreadPerTaskExecutor(factory, configuration.getInt("proxy/max-virtual-threads", 10_000),
+                        runnable -> ((RequestHandler) runnable).reject());
+            }
+            LOG.error("Virtual threads require Java 21+, platform threads are used");
+        }
+
+        relayThreadFactory = ThreadUtils.platformThreadFactory("myproxy-relay-", false);
+
+        int maxThreads = configuration.getInt("proxy/max-threads", 150);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(configuration.getInt("proxy/accept-queue", maxThreads * 2)),
+                BufferPool.withThreadCaches(ThreadUtils.platformThreadFactory("myproxy-handler-", false)),
+                (runnable, executor) -> ((RequestHandler) runnable).reject());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @return The local port the proxy is listening on
+     */
+    public int getLocalPort() {
+        return nioServer != null ? nioServer.getLocalPort() : serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return The local port of the TLS listener, -1 without TLS listener
+     */
+    public int getTlsPort() {
+        return nioServer != null ? nioServer.getTlsPort() : -1;
+    }
+
     /**
      * Listens to port and accepts new socket connections. Creates a new thread to handle the request and passes it the socket connection and
      * continues listening.
      */
     public void listen() {
 
-        while (running) {
+        if (nioServer != null) {
+            nioServer.start();
             try {
-                // serverSocket.accept() Blocks until a connection is made
-                Socket socket = serverSocket.accept();
-
-                // Create new Thread and pass it Runnable RequestHandler
-                Thread thread = new Thread(new RequestHandler(socket));
+                nioServer.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
 
-                // Key a reference to each thread so they can be joined later if necessary
-                servicingThreads.add(thread);
+        // The other acceptors share the port, the kernel spreads the connections
+        ThreadFactory acceptorFactory = ThreadUtils.platformThreadFactory("myproxy-acceptor-", true);
+        for (ServerSocketChannel serverChannel : serverChannels.subList(1, serverChannels.size())) {
+            acceptorFactory.newThread(() -> accept(serverChannel.socket())).start();
+        }
+        accept(serverSocket);
+    }
 
-                thread.start();
-            } catch (SocketException e) {
-                // Socket exception is triggered by management system to shut down the proxy
-                LOG.error("Server closed");
+    /**
+     * Accepts the connections of a server socket until the proxy is closed. A failure to set up a connection only closes this connection, a
+     * failure to accept (ex: too many open files) pauses the acceptor, the connections wait in the backlog meanwhile.
+     *
+     * @param serverSocket
+     *            the server socket
+     */
+    private void accept(ServerSocket serverSocket) {
+        long backoff = MIN_ACCEPT_BACKOFF;
+        while (running) {
+            Socket socket;
+            try {
+                // serverSocket.accept() Blocks until a connection is made
+                socket = serverSocket.accept();
             } catch (IOException e) {
-                e.printStackTrace();
+                if (!running || serverSocket.isClosed()) {
+                    // Triggered by management system to shut down the proxy
+                    LOG.error("Server closed");
+                    return;
+                }
+                LOG.error("Cannot accept, paused for {} ms: {}", backoff, e.getMessage());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_ACCEPT_BACKOFF);
+                continue;
+            }
+            backoff = MIN_ACCEPT_BACKOFF;
+
+            try {
+                // Create new RequestHandler and queue it on the bounded executor
+                RequestHandler handler = new RequestHandler(socket);
+
+                // Key a reference to each handler so they can be awaited later if necessary
+                servicingHandlers.add(handler);
+
+                executor.execute(handler);
+            } catch (RuntimeException e) {
+                LOG.error("Cannot set up the accepted connection: {}", String.valueOf(e));
+                try {
+                    socket.close();
+                } catch (IOException ce) {
+                    LOG.error(ce, "Cannot close the accepted connection");
+                }
             }
         }
     }
 
     /**
-     * Saves the blocked and cached sites to a file so they can be re loaded at a later time. Also joins all of the RequestHandler threads currently
+     * Saves the blocked and cached sites to a file so they can be re loaded at a later time. Also waits for all of the RequestHandlers currently
      * servicing requests.
      */
-    private void closeServer() {
+    public void closeServer() {
         LOG.info("\nClosing Server...");
         running = false;
         try {
-            try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(new FileOutputStream(cachedSites))) {
-                objectOutputStream.writeObject(cache);
+            if (cache != null) {
+                cache.save(cachedSites);
                 LOG.info("Cached Sites written");
             }
 
@@ -197,19 +475,21 @@ public class Proxy implements Runnable {
                 LOG.info("Blocked Site list saved");
             }
 
-            try {
-                // Close all servicing threads
-                for (Thread thread : servicingThreads) {
-                    if (thread.isAlive()) {
-                        System.out.print("Waiting on " + thread.getId() + " to close..");
-
-                        thread.join();
-
+            if (executor != null) {
+                try {
+                    // Close all servicing handlers
+                    executor.shutdown();
+                    if (!servicingHandlers.isEmpty()) {
+                        LOG.info("Waiting on {} handlers to close..", servicingHandlers.size());
+                    }
+                    if (executor.awaitTermination(30, TimeUnit.SECONDS)) {
                         LOG.info("Closed");
+                    } else {
+                        LOG.info("{} handlers still running", servicingHandlers.size());
                     }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
             }
 
         } catch (IOException e) {
@@ -218,38 +498,23 @@ public class Proxy implements Runnable {
         }
 
         // Close Server Socket
-        try {
-            LOG.info("Terminating Connection");
-            serverSocket.close();
-
-        } catch (IOException e) {
-            LOG.error("Exception closing proxy's server socket");
-            e.printStackTrace();
+        LOG.info("Terminating Connection");
+        if (nioServer != null) {
+            nioServer.close();
+        } else {
+            ServerChannels.close(serverChannels);
         }
-
-    }
-
-    /**
-     * Looks for File in cache
-     * 
-     * @param url
-     *            of requested file
-     * @return File if file is cached, null otherwise
-     */
-    public static File getCachedPage(String url) {
-        return cache.get(url);
-    }
-
-    /**
-     * Adds a new page to the cache
-     * 
-     * @param urlString
-     *            URL of webpage to cache
-     * @param fileToCache
-     *            File Object pointing to File put in cache
-     */
-    public static void addCachedPage(String urlString, File fileToCache) {
-        cache.put(urlString, fileToCache);
+        if (tunnelLoops != null) {
+            tunnelLoops.close();
+        }
+        upstreamFetcher.close();
+        if (http2Transport != null) {
+            http2Transport.close();
+        }
+        upstreamPool.close();
+        parentRouter.close();
+        dnsCache.close();
+        deadlines.close();
     }
 
     /**
@@ -278,7 +543,7 @@ public class Proxy implements Runnable {
         String command;
         while (running) {
             LOG.info(
-                    "Enter new site to block, or type \"blocked\" to see blocked sites, \"cached\" to see cached sites, or \"close\" to close server.");
+                    "Enter new site to block, or type \"blocked\" to see blocked sites, \"cached\" to see cached sites, \"metrics\" to see metrics, or \"close\" to close server.");
             command = scanner.nextLine();
             if ("blocked".equalsIgnoreCase(command)) {
                 LOG.info("\nCurrently Blocked Sites");
@@ -290,8 +555,18 @@ public class Proxy implements Runnable {
 
             else if ("cached".equalsIgnoreCase(command)) {
                 LOG.info("\nCurrently Cached Sites");
-                for (String key : cache.keySet()) {
-                    LOG.info(key);
+                if (cache != null) {
+                    for (String key : cache.getUrls()) {
+                        LOG.info(key);
+                    }
+                }
+                LOG.info("");
+            }
+
+            else if ("metrics".equalsIgnoreCase(command)) {
+                LOG.info("\nMetrics");
+                for (Map.Entry<String, Long> metric : Metrics.snapshot().entrySet()) {
+                    LOG.info("{} = {}", metric.getKey(), metric.getValue());
                 }
                 LOG.info("");
             }
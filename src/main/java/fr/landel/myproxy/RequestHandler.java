@@ -1,44 +1,109 @@
 package fr.landel.myproxy;
 
-import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-
-import javax.imageio.ImageIO;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import fr.landel.myproxy.http.BodyFramer;
+import fr.landel.myproxy.http.ChunkedOutputStream;
+import fr.landel.myproxy.http.Compression;
+import fr.landel.myproxy.http.HttpBodyInputStream;
+import fr.landel.myproxy.http.HttpCache;
+import fr.landel.myproxy.http.HttpHeaders;
+import fr.landel.myproxy.http.HttpRequestHead;
+import fr.landel.myproxy.http.HttpResponseHead;
+import fr.landel.myproxy.http.ParentRouter;
+import fr.landel.myproxy.http.SingleFlight;
+import fr.landel.myproxy.http.UpstreamFetcher;
+import fr.landel.myproxy.limit.ClientLimiter;
+import fr.landel.myproxy.limit.ConcurrencyLimiter;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.nio.BufferPool;
+import fr.landel.myproxy.nio.DeadlineTimer;
+import fr.landel.myproxy.nio.EventLoop;
+import fr.landel.myproxy.nio.FileTransfer;
+import fr.landel.myproxy.nio.Tunnel;
 import fr.landel.myproxy.utils.Logger;
 
+/**
+ * Services the requests of a client connection. The connection is persistent (HTTP/1.1): the requests are read one after the other, pipelined
+ * requests included, each response is framed (Content-Length or chunked) so the connection stays open until the client closes it, the idle
+ * keep-alive timeout ("proxy/keep-alive-timeout") or the maximum number of requests ("proxy/keep-alive-max-requests") is reached.
+ */
 public class RequestHandler implements Runnable {
 
     private static final Logger LOG = new Logger(RequestHandler.class);
 
+    /**
+     * Pre-encoded response sent when the proxy is overloaded
+     */
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.0 503 Service Unavailable\r\n" + "Proxy-agent: ProxyServer/1.0\r\n" + "Retry-After: 1\r\n"
+            + "Content-Length: 0\r\n" + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] CONNECTION_ESTABLISHED = ("HTTP/1.0 200 Connection established\r\n" + "Proxy-Agent: ProxyServer/1.0\r\n" + "\r\n")
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Maximum wait of the response shared by the leader of a flight, and of each of its bytes
+     */
+    private static final int SHARED_RESPONSE_TIMEOUT = 15_000;
+
+    private static final int BUFFER_SIZE = 16_384;
+
+    private static final int STREAM_BUFFER_SIZE = 8_192;
+
+    /**
+     * Headers not relayed from a shared response, in lower case: the connection and framing headers are set for each client
+     */
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "content-length");
+
+    /**
+     * Methods forwarded to the remote servers, the others are answered by 501 (CONNECT opens a tunnel)
+     */
+    private static final Set<String> METHODS = Set.of("GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH");
+
+    /**
+     * Request headers not forwarded, in lower case: the connection, framing and proxy headers are set for the remote server, the host from the
+     * URL
+     */
+    private static final Set<String> NOT_FORWARDED = Set.of("connection", "keep-alive", "proxy-connection", "proxy-authorization",
+            "transfer-encoding", "content-length", "host", "te", "trailer", "upgrade", "expect");
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
     /**
      * Socket connected to client passed by Proxy server
      */
     Socket clientSocket;
 
     /**
-     * Read data client sends to proxy
+     * Read data client sends to proxy (pooled buffer)
      */
-    BufferedReader proxyToClientBr;
+    BufferPool.PooledInputStream proxyToClientIs;
 
     /**
-     * Send data from proxy to client
+     * Send data from proxy to client (pooled buffer)
      */
-    BufferedWriter proxyToClientBw;
+    BufferPool.PooledOutputStream proxyToClientOs;
 
     /**
      * Thread that is used to transmit data read from client to server when using HTTPS Reference to this is required so it can be closed once
@@ -46,65 +111,203 @@ public class RequestHandler implements Runnable {
      */
     private Thread httpsClientToServer;
 
+    /**
+     * Buffer relaying the bodies, reused by all the requests of the connection, given back to the pool with the connection
+     */
+    private final ByteBuffer pooledBuffer = BufferPool.HEAP.acquire(BUFFER_SIZE);
+    private final byte[] buffer = pooledBuffer.array();
+
+    /**
+     * True, if the client speaks HTTP/1.1 (chunked bodies can be sent)
+     */
+    private boolean clientHttp11;
+
+    /**
+     * True, if the connection is kept open after the current response
+     */
+    private boolean keepAlive;
+
+    /**
+     * True, if the head of the current response was sent (an error can then only be reported by closing the connection)
+     */
+    private boolean responseStarted;
+
+    /**
+     * True, if the client socket was handed over to a tunnel loop
+     */
+    private boolean handedOver;
+
+    /**
+     * Content coding accepted by the client for the current response (gzip or deflate), null for none
+     */
+    private String acceptedCoding;
+
+    /**
+     * Limits of the client address, null without limits
+     */
+    private ClientLimiter.Quota quota;
+
+    /**
+     * Start in nanoseconds of the current request admitted by the concurrency limiter, 0 if not admitted
+     */
+    private long admittedAt;
+
     /**
      * Creates a ReuqestHandler object capable of servicing HTTP(S) GET requests
-     * 
+     *
      * @param clientSocket
      *            socket connected to the client
      */
     public RequestHandler(Socket clientSocket) {
         this.clientSocket = clientSocket;
         try {
-            this.clientSocket.setSoTimeout(15_000);
-            proxyToClientBr = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            proxyToClientBw = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
+            // no read timeout, the phases have their deadlines (Proxy.deadlines)
+            proxyToClientIs = BufferPool.bufferedInput(clientSocket.getInputStream(), STREAM_BUFFER_SIZE);
+            proxyToClientOs = BufferPool.bufferedOutput(clientSocket.getOutputStream(), STREAM_BUFFER_SIZE);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Reads and examines the requestString and calls the appropriate method based on the request type.
+     * Serves the requests of the connection until it's closed
      */
     @Override
     public void run() {
+        try {
+            int requests = 0;
+            do {
+                if (requests > 0) {
+                    Metrics.counter("client.keep-alive.requests").increment();
+                }
+                keepAlive = ++requests < Proxy.keepAliveMaxRequests;
+                handleRequest();
+            } while (keepAlive && awaitNextRequest());
+
+        } finally {
+            Proxy.servicingHandlers.remove(this);
+            if (!handedOver) {
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    LOG.error("Error closing client connection: {}", e.getMessage());
+                }
+                if (quota != null) {
+                    quota.release();
+                }
+            }
+            releaseBuffers();
+        }
+    }
+
+    /**
+     * Gives the buffers of the connection back to the pool, once the client socket is closed or handed over: the HTTPS relay thread still reading
+     * is awaited by the release of the stream
+     */
+    private void releaseBuffers() {
+        if (proxyToClientIs != null) {
+            proxyToClientIs.release();
+        }
+        if (proxyToClientOs != null) {
+            proxyToClientOs.release();
+        }
+        BufferPool.HEAP.release(pooledBuffer);
+    }
+
+    /**
+     * Waits for the next request on the persistent connection
+     *
+     * @return true, if a request was started before the keep-alive timeout
+     */
+    private boolean awaitNextRequest() {
+        DeadlineTimer.Deadline idle = null;
+        try {
+            if (proxyToClientIs.available() > 0) {
+                // pipelined request
+                return true;
+            }
+            idle = Proxy.deadlines.start(DeadlineTimer.Phase.IDLE, clientSocket, "idle client connection");
+            proxyToClientIs.mark(1);
+            if (proxyToClientIs.read() < 0) {
+                return false;
+            }
+            proxyToClientIs.reset();
+            return idle.cancel();
+        } catch (IOException e) {
+            // idle timeout or connection closed
+            return false;
+        } finally {
+            if (idle != null) {
+                idle.cancel();
+            }
+        }
+    }
+
+    /**
+     * Reads and examines the request and calls the appropriate method based on the request type.
+     */
+    private void handleRequest() {
 
         // Get Request from client
-        String requestString = null;
+        HttpRequestHead request = null;
+        HttpBodyInputStream requestBody = null;
         String urlString = null;
+        DeadlineTimer.Deadline deadline = null;
 
         final long start = System.currentTimeMillis();
 
+        responseStarted = false;
+
         try {
-            requestString = proxyToClientBr.readLine();
+            deadline = Proxy.deadlines.start(DeadlineTimer.Phase.HEADER, clientSocket, "request head");
+            try {
+                request = HttpRequestHead.read(proxyToClientIs);
+            } catch (IOException e) {
+                keepAlive = false;
+                if (!deadline.isExpired()) {
+                    LOG.error("Invalid request: {}", e.getMessage());
+                    sendStatusToClient("400 Bad Request");
+                }
+                return;
+            } finally {
+                deadline.cancel();
+            }
 
             // Parse out URL
-            if (requestString != null) {
-                LOG.info("Request Received {}", requestString);
-
-                // Get the Request type
-                String request = requestString.substring(0, requestString.indexOf(' '));
-
-                // remove request type and space
-                urlString = requestString.substring(requestString.indexOf(' ') + 1);
-
-                // Remove everything past next space
-                urlString = urlString.substring(0, urlString.indexOf(' '));
+            if (request != null) {
+                LOG.info("Request Received {}", request.getRequestLine());
+                requestBody = request.getBody(proxyToClientIs);
+
+                keepAlive &= request.isKeepAlive();
+                clientHttp11 = "HTTP/1.1".equals(request.getVersion());
+                acceptedCoding = Proxy.compression != null ? Proxy.compression.negotiate(request.getHeaders()) : null;
+
+                urlString = rewrite(request.getTarget());
+                if (quota == null && Proxy.clientLimiter != null) {
+                    // held until the connection is closed or handed over
+                    quota = Proxy.clientLimiter.quota(clientSocket.getInetAddress());
+                }
 
-                // Prepend http:// if necessary to create correct URL
-                if (!urlString.substring(0, 4).equals("http")) {
-                    String temp = "http://";
-                    urlString = temp + urlString;
+                // a tunnel has its own idle deadline
+                if (!request.getMethod().equals("CONNECT")) {
+                    deadline = Proxy.deadlines.start(DeadlineTimer.Phase.REQUEST, clientSocket, request.getRequestLine());
                 }
 
-                if (urlString.indexOf("%3Ctoken%3E") > -1) {
-                    urlString = urlString.replace("%3Ctoken%3E", "1223456");
+                if (quota != null && !quota.tryRequest()) {
+                    LOG.info("Request rate of {} exceeded: {}", clientSocket.getInetAddress().getHostAddress(), urlString);
+                    sendStatusToClient("429 Too Many Requests");
                 }
 
-                if (urlString.indexOf("http://go/") == 0) {
-                    urlString = "http://go.intra.ark.com:8080/" + urlString.substring(10);
+                // Shed at once when overloaded, rather than queueing behind the slow requests
+                else if (!admit()) {
+                    LOG.info("Overloaded, request shed: {}", urlString);
+                    keepAlive = false;
+                    proxyToClientOs.write(SERVICE_UNAVAILABLE);
+                    proxyToClientOs.flush();
+                    responseStarted = true;
+                }
 
-                } else if (urlString.indexOf("http://exe/") == 0) {
+                else if (urlString.indexOf("http://exe/") == 0) {
                     if ("http://exe/favicon.ico".equals(urlString)) {
                         sendFaviconToClient();
 
@@ -115,291 +318,968 @@ public class RequestHandler implements Runnable {
                     } else {
                         send404ToClient();
                     }
-                    return;
+
                 }
 
                 // Check if site is blocked
-                if (Proxy.isBlocked(urlString)) {
+                else if (Proxy.isBlocked(urlString)) {
                     LOG.info("Blocked site requested: {}", urlString);
                     blockedSiteRequested();
-                    return;
                 }
 
                 // Check request type
-                if (request.equals("CONNECT")) {
+                else if (request.getMethod().equals("CONNECT")) {
+                    // The connection becomes a tunnel
+                    keepAlive = false;
                     LOG.info("HTTPS Request for: {}\n", urlString);
                     handleHTTPSRequest(urlString);
                 }
 
+                else if (!METHODS.contains(request.getMethod())) {
+                    // The body framing of an unknown method is unknown too
+                    LOG.info("Method not implemented: {}", request.getRequestLine());
+                    keepAlive = false;
+                    sendStatusToClient("501 Not Implemented");
+                }
+
+                else if (!"GET".equals(request.getMethod())) {
+                    LOG.info("HTTP {} for: {}", request.getMethod(), urlString);
+                    sendForwardedToClient(urlString, request, requestBody);
+                }
+
                 else {
-                    // Check if we have a cached copy
-                    // File file = Proxy.getCachedPage(urlString);
-                    // if (file != null) {
-                    // LOG.info("Cached Copy found for: {}\n", urlString);
-                    // sendCachedPageToClient(file);
-                    //
-                    // } else {
-                    LOG.info("HTTP GET for: {}", urlString);
-                    sendNonCachedToClient(urlString);
-                    // }
+                    // Check if we have a fresh cached copy, a stale one is revalidated
+                    // The personal requests aren't served from the cache
+                    HttpCache.Entry cached = Proxy.cache != null && !HttpCache.isPersonal(request) ? Proxy.cache.get(urlString) : null;
+                    if (cached != null && Proxy.cache.isFresh(cached, request, System.currentTimeMillis())) {
+                        LOG.info("Cached Copy found for: {}\n", urlString);
+                        sendCachedPageToClient(cached);
+
+                    } else {
+                        LOG.info("HTTP GET for: {}", urlString);
+                        sendNonCachedToClient(urlString, request, cached);
+                    }
+                }
+
+                // The body of a request not forwarded is skipped to reach the next request
+                if (keepAlive) {
+                    requestBody.transferTo(OutputStream.nullOutputStream());
                 }
             } else {
-                LOG.error("Request Received is null");
+                keepAlive = false;
             }
         } catch (IOException e) {
-            e.printStackTrace();
-            LOG.error("Error reading request from client, for: {}", requestString);
+            // already logged on timeout
+            if (deadline == null || !deadline.isExpired()) {
+                e.printStackTrace();
+                LOG.error("Error reading request from client, for: {}", request != null ? request.getRequestLine() : null);
+            }
+            keepAlive = false;
 
         } finally {
-            LOG.info("Request '{}' handled in: {}\n", urlString, Proxy.getTime(System.currentTimeMillis() - start));
+            release();
+            if (deadline != null && !deadline.cancel()) {
+                keepAlive = false;
+            }
+            if (request != null) {
+                LOG.info("Request '{}' handled in: {}\n", urlString, Proxy.getTime(System.currentTimeMillis() - start));
+            }
         }
     }
 
-    private void send404ToClient() {
-        try {
-            String response = "HTTP/1.0 404 NOT FOUND \n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-            proxyToClientBw.write(response);
-            proxyToClientBw.flush();
+    /**
+     * Admits the current request in the requests in flight
+     *
+     * @return true, if admitted or without concurrency limit
+     */
+    private boolean admit() {
+        ConcurrencyLimiter limiter = Proxy.concurrencyLimiter;
+        if (limiter == null) {
+            return true;
+        } else if (limiter.tryAcquire()) {
+            admittedAt = System.nanoTime();
+            return true;
+        }
+        return false;
+    }
 
-            // Close Down Resources
-            if (proxyToClientBw != null) {
-                proxyToClientBw.close();
-            }
+    /**
+     * Removes the current request from the requests in flight, its latency is sampled by the concurrency limiter
+     */
+    private void release() {
+        if (admittedAt != 0) {
+            Proxy.concurrencyLimiter.release(Math.max(1, System.nanoTime() - admittedAt));
+            admittedAt = 0;
+        }
+    }
 
+    /**
+     * Called when the handler cannot be queued, sends the pre-encoded 503 and closes the client socket without reading the request
+     */
+    public void reject() {
+        Proxy.servicingHandlers.remove(this);
+        try (Socket socket = clientSocket) {
+            socket.getOutputStream().write(SERVICE_UNAVAILABLE);
         } catch (IOException e) {
-            LOG.error("Error Sending Cached file to client");
-            e.printStackTrace();
+            LOG.error("Error sending 503 to client: {}", e.getMessage());
+        } finally {
+            releaseBuffers();
         }
     }
 
-    private void send200ToClient() {
+    /**
+     * Completes the requested URL and applies the redirections
+     *
+     * @param urlString
+     *            the URL as received in the request line
+     * @return the URL to fetch
+     */
+    public static String rewrite(String urlString) {
+        // Prepend http:// if necessary to create correct URL
+        if (!urlString.startsWith("http")) {
+            String temp = "http://";
+            urlString = temp + urlString;
+        }
+
+        if (urlString.indexOf("%3Ctoken%3E") > -1) {
+            urlString = urlString.replace("%3Ctoken%3E", "1223456");
+        }
+
+        if (urlString.indexOf("http://go/") == 0) {
+            urlString = "http://go.intra.ark.com:8080/" + urlString.substring(10);
+        }
+        return urlString;
+    }
+
+    /**
+     * Sends a response without body
+     *
+     * @param status
+     *            the status code and reason
+     */
+    private void sendStatusToClient(String status) {
         try {
-            String response = "HTTP/1.0 200 OK\n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-            proxyToClientBw.write(response);
-            proxyToClientBw.flush();
+            String response = "HTTP/1.1 " + status + "\r\n" + "Proxy-agent: ProxyServer/1.0\r\n" + "Content-Length: 0\r\n" + connectionHeader()
+                    + "\r\n";
+            proxyToClientOs.write(response.getBytes(StandardCharsets.ISO_8859_1));
+            proxyToClientOs.flush();
+            responseStarted = true;
 
-            // Close Down Resources
-            if (proxyToClientBw != null) {
-                proxyToClientBw.close();
+        } catch (IOException e) {
+            LOG.error("Error sending {} to client", status);
+            keepAlive = false;
+        }
+    }
+
+    /**
+     * Sends the response head of a body, a body of unknown length is chunked on a persistent connection, otherwise it ends with the connection
+     *
+     * @param status
+     *            the status code and reason
+     * @param contentLength
+     *            the body length, -1 if unknown
+     * @return the body stream, to close at the end of the body (the connection isn't closed)
+     * @throws IOException
+     *             if the head cannot be sent
+     */
+    private OutputStream sendBodyHeadToClient(String status, long contentLength) throws IOException {
+        return sendBodyHeadToClient(status, new HttpHeaders().add("Proxy-agent", "ProxyServer/1.0"), contentLength);
+    }
+
+    /**
+     * Sends the response head of a body with the specified headers, the framing and connection headers are added
+     *
+     * @param status
+     *            the status code and reason
+     * @param headers
+     *            the headers, without framing and hop-by-hop headers (completed)
+     * @param contentLength
+     *            the body length, -1 if unknown
+     * @return the body stream, to close at the end of the body (the connection isn't closed)
+     * @throws IOException
+     *             if the head cannot be sent
+     */
+    private OutputStream sendBodyHeadToClient(String status, HttpHeaders headers, long contentLength) throws IOException {
+        boolean chunked = contentLength < 0 && keepAlive && clientHttp11;
+        keepAlive &= contentLength > -1 || chunked;
+
+        if (chunked) {
+            headers.add("Transfer-Encoding", "chunked");
+        } else if (contentLength > -1) {
+            headers.add("Content-Length", String.valueOf(contentLength));
+        }
+        headers.add("Connection", keepAlive ? "keep-alive" : "close");
+
+        StringBuilder response = new StringBuilder(512).append("HTTP/1.1 ").append(status).append("\r\n");
+        proxyToClientOs.write(headers.appendTo(response).toString().getBytes(StandardCharsets.ISO_8859_1));
+        responseStarted = true;
+
+        if (chunked) {
+            return new ChunkedOutputStream(proxyToClientOs);
+        }
+        return new FilterOutputStream(proxyToClientOs) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
             }
 
-        } catch (IOException e) {
-            LOG.error("Error Sending Cached file to client");
-            e.printStackTrace();
+            @Override
+            public void close() throws IOException {
+                out.flush();
+            }
+        };
+    }
+
+    private String connectionHeader() {
+        return keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n";
+    }
+
+    /**
+     * Reports an error of the current request, as a 502 if the response isn't started, otherwise by closing the connection
+     */
+    private void sendErrorToClient() {
+        if (responseStarted) {
+            keepAlive = false;
+        } else {
+            sendStatusToClient("502 Bad Gateway");
         }
     }
 
+    private void send404ToClient() {
+        sendStatusToClient("404 NOT FOUND");
+    }
+
+    private void send200ToClient() {
+        sendStatusToClient("200 OK");
+    }
+
     private void sendFaviconToClient() {
+        sendStatusToClient("200 OK");
+    }
+
+    /**
+     * Sends the specified cached file to the client, or its gzip variant if the client accepts gzip. The stored head is written, then the body is
+     * transferred from the file to the client channel without copy (sendfile), the bytes never enter the heap. Through TLS, the body is copied.
+     *
+     * @param entry
+     *            The cache entry to be sent (can be image/text)
+     */
+    private void sendCachedPageToClient(HttpCache.Entry entry) {
+        File cachedFile = entry.getFile();
         try {
-            String response = "HTTP/1.0 200 OK\n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-            proxyToClientBw.write(response);
-            proxyToClientBw.flush();
+            HttpResponseHead storedHead = entry.getHead();
+            HttpHeaders headers = new HttpHeaders();
+            for (int i = 0; i < storedHead.getHeaders().size(); ++i) {
+                headers.add(storedHead.getHeaders().getName(i), storedHead.getHeaders().getValue(i));
+            }
+            headers.set("Age", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(entry.getAge(System.currentTimeMillis()))));
+            headers.set("Proxy-agent", "ProxyServer/1.0");
+
+            File file = cachedFile;
+            if (Proxy.compression != null) {
+                File variant = Proxy.compression.variant(cachedFile);
+                if (Compression.GZIP.equals(acceptedCoding) && variant.isFile()) {
+                    // precompressed when cached, the encoded representation isn't byte for byte the one of the origin
+                    file = variant;
+                    headers.add("Content-Encoding", Compression.GZIP);
+                    String etag = headers.get("ETag");
+                    if (etag != null && !etag.startsWith("W/")) {
+                        headers.set("ETag", "W/" + etag);
+                    }
+                }
+                if (!headers.containsToken("Vary", "Accept-Encoding")) {
+                    headers.add("Vary", "Accept-Encoding");
+                }
+            }
 
-            // Close Down Resources
-            if (proxyToClientBw != null) {
-                proxyToClientBw.close();
+            try (FileChannel cachedFileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long length = cachedFileChannel.size();
+                // Sends and flushes the head, the body is written under it
+                sendBodyHeadToClient(storedHead.getStatus() + " " + storedHead.getReason(), headers, length).close();
+
+                WritableByteChannel proxyToClientChannel = clientSocket.getChannel();
+                if (proxyToClientChannel == null) {
+                    // TLS client, the body is encrypted by the socket
+                    proxyToClientChannel = Channels.newChannel(proxyToClientOs);
+                }
+                if (quota == null) {
+                    FileTransfer.transfer(cachedFileChannel, 0, length, proxyToClientChannel);
+                } else {
+                    // Slices paid to the rate limit of the client
+                    for (long position = 0; position < length; position += buffer.length) {
+                        int count = (int) Math.min(buffer.length, length - position);
+                        FileTransfer.transfer(cachedFileChannel, position, count, proxyToClientChannel);
+                        throttle(count, proxyToClientOs);
+                    }
+                }
+                proxyToClientOs.flush();
             }
 
         } catch (IOException e) {
-            LOG.error("Error Sending Cached file to client");
-            e.printStackTrace();
+            LOG.error("Error Sending Cached file to client: {}", e.getMessage());
+            sendErrorToClient();
+        }
+    }
+
+    /**
+     * Only the GET requests which aren't personal share their responses (through their cache file), the personal ones may be personalized
+     *
+     * @param request
+     *            the request of the client
+     * @return true, if the response can be shared with concurrent requests of the same URL
+     */
+    private static boolean isShareable(HttpRequestHead request) {
+        return Proxy.singleFlight != null && Proxy.cache != null && !HttpCache.isPersonal(request);
+    }
+
+    /**
+     * @param request
+     *            the request of the client
+     * @return the end-to-end headers of the request, forwarded to the remote server
+     */
+    private static HttpHeaders forwardedHeaders(HttpRequestHead request) {
+        HttpHeaders requestHeaders = request.getHeaders();
+        HttpHeaders headers = new HttpHeaders();
+        for (int i = 0; i < requestHeaders.size(); ++i) {
+            String name = requestHeaders.getName(i);
+            if (!NOT_FORWARDED.contains(name.toLowerCase()) && !requestHeaders.containsToken("Connection", name)) {
+                headers.add(name, requestHeaders.getValue(i));
+            }
         }
+        return headers;
     }
 
     /**
-     * Sends the specified cached file to the client
-     * 
-     * @param cachedFile
-     *            The file to be sent (can be image/text)
+     * Sends the contents of the file specified by the urlString to the client, a stale cache entry is revalidated by a conditional request
+     *
+     * @param urlString
+     *            URL ofthe file requested
+     * @param request
+     *            the request of the client
+     * @param stale
+     *            the stale cache entry of the URL, null if not cached
      */
-    private void sendCachedPageToClient(File cachedFile) {
-        // Read from File containing cached web page
+    private void sendNonCachedToClient(String urlString, HttpRequestHead request, HttpCache.Entry stale) {
+
+        SingleFlight.Flight flight = null;
+        File fileToCache = null;
+        boolean stored = false;
         try {
-            // If file is an image write data to client using buffered image.
-            String fileExtension = cachedFile.getName().substring(cachedFile.getName().lastIndexOf('.'));
-
-            // Response that will be sent to the server
-            String response;
-            if ((fileExtension.contains(".png")) || fileExtension.contains(".jpg") || fileExtension.contains(".jpeg")
-                    || fileExtension.contains(".gif")) {
-                // Read in image from storage
-                BufferedImage image = ImageIO.read(cachedFile);
-
-                if (image == null) {
-                    LOG.info("Image {} was null", cachedFile.getName());
-                    response = "HTTP/1.0 404 NOT FOUND \n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-                    proxyToClientBw.write(response);
-                    proxyToClientBw.flush();
-                } else {
-                    response = "HTTP/1.0 200 OK\n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-                    proxyToClientBw.write(response);
-                    proxyToClientBw.flush();
-                    ImageIO.write(image, fileExtension.substring(1), clientSocket.getOutputStream());
+            if (isShareable(request)) {
+                flight = Proxy.singleFlight.join(urlString);
+                if (!flight.isLeader()) {
+                    try {
+                        if (sendSharedToClient(flight)) {
+                            return;
+                        }
+                    } finally {
+                        flight.close();
+                    }
+                    // the leader didn't share its response
+                    flight = null;
                 }
             }
 
-            // Standard text based file requested
-            else {
-                try (BufferedReader cachedFileBufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(cachedFile)))) {
+            boolean caching = false;
+            HttpResponseHead cachedHead = null;
+            HttpCache.Entry revalidated = null;
+
+            // All files (text, images...) are relayed byte per byte and teed to the cache file
+
+            // Get the response head from the remote server, on a pooled connection (retried and hedged)
+            long requestTime = System.currentTimeMillis();
+            HttpHeaders headers = forwardedHeaders(request);
+            if (stale != null) {
+                // The conditions of the cached response replace the ones of the client
+                HttpHeaders conditions = stale.getConditions();
+                for (int i = 0; i < conditions.size(); ++i) {
+                    headers.set(conditions.getName(i), conditions.getValue(i));
+                }
+            }
+            UpstreamFetcher.Exchange exchange = Proxy.upstreamFetcher.fetch(new URL(urlString), headers);
+            long responseTime = System.currentTimeMillis();
+            boolean reusable = false;
+            boolean filling = false;
+            try {
+                HttpResponseHead responseHead = exchange.getHead();
 
-                    response = "HTTP/1.0 200 OK\n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-                    proxyToClientBw.write(response);
-                    proxyToClientBw.flush();
+                if (stale != null && responseHead.getStatus() == 304) {
+                    // Not modified, the cached body is still valid (a 304 has no body)
+                    revalidated = Proxy.cache.revalidate(urlString, stale, responseHead, requestTime, responseTime);
+                    reusable = responseHead.isKeepAlive();
+                } else {
+                    // Only the storable successful responses are cached (and shared), the body is written without its framing
+                    boolean cacheable = Proxy.cache != null && HttpCache.isStorable(request, responseHead);
+
+                    // A compressible body is decoded to be encoded for the client and for the gzip variant of its cache file
+                    boolean compress = Proxy.compression != null && (acceptedCoding != null || cacheable)
+                            && Proxy.compression.isCandidate(responseHead);
+                    if (cacheable && flight != null) {
+                        // The shared response is filled by its own thread, and the client of the leader follows it as the others: neither its
+                        // failure nor its download rate hold the followers
+                        fileToCache = Proxy.cache.newFile(urlString);
+                        SingleFlight.Flight follower = flight.follow();
+                        try {
+                            Thread filler = fill(urlString, flight, exchange, responseHead, fileToCache, requestTime, responseTime);
+                            filling = true;
+                            flight = null;
+                            fileToCache = null;
+                            try {
+                                sendSharedToClient(follower);
+                            } finally {
+                                // the next requests of the client find the response in the cache
+                                join(filler);
+                            }
+                        } finally {
+                            follower.close();
+                        }
+                    } else if (cacheable) {
+                        // New file named after the URL, the cached entry keeps its own files until replaced by this one
+                        fileToCache = Proxy.cache.newFile(urlString);
+                        try (OutputStream fileToCacheOs = BufferPool.bufferedOutput(Files.newOutputStream(fileToCache.toPath()),
+                                STREAM_BUFFER_SIZE)) {
+                            if (compress) {
+                                HttpBodyInputStream payload = HttpBodyInputStream.of(responseHead, "GET", exchange.getBody());
+                                sendCompressedToClient(responseHead, payload, fileToCacheOs, fileToCache);
+                                reusable = payload.isComplete() && responseHead.isKeepAlive();
+                            } else {
+                                reusable = forwardResponse(responseHead, "GET", exchange.getBody(), fileToCacheOs);
+                            }
+                        }
+                        cachedHead = responseHead;
+                    } else if (compress) {
+                        HttpBodyInputStream payload = HttpBodyInputStream.of(responseHead, "GET", exchange.getBody());
+                        sendCompressedToClient(responseHead, payload, null, null);
+                        reusable = payload.isComplete() && responseHead.isKeepAlive();
+                    } else {
+                        reusable = forwardResponse(responseHead, "GET", exchange.getBody(), null);
+                    }
+                    caching = cacheable && !filling;
 
-                    String line;
-                    while ((line = cachedFileBufferedReader.readLine()) != null) {
-                        proxyToClientBw.write(line);
+                    if (!cacheable && stale != null && responseHead.getStatus() < 500) {
+                        // Superseded by a response not stored, the server errors keep the entry
+                        Proxy.cache.remove(urlString);
                     }
-                    proxyToClientBw.flush();
+                }
+            } finally {
+                if (!filling) {
+                    exchange.release(reusable);
                 }
             }
 
-            // Close Down Resources
-            if (proxyToClientBw != null) {
-                proxyToClientBw.close();
+            if (caching) {
+                // Add to our cache, with its freshness
+                File variantFile = Proxy.compression != null ? Proxy.compression.variant(fileToCache) : null;
+                Proxy.cache.put(urlString, fileToCache, variantFile, cachedHead, requestTime, responseTime);
+                stored = true;
+            } else if (revalidated != null) {
+                LOG.info("Cached Copy revalidated for: {}", urlString);
+                sendCachedPageToClient(revalidated);
             }
+        }
 
+        catch (IOException e) {
+            LOG.error("Couldn't fetch: {}: {}", urlString, e.getMessage());
+            sendErrorToClient();
+
+        } finally {
+            if (flight != null) {
+                flight.close();
+            }
+            if (fileToCache != null && !stored) {
+                deleteCacheFiles(fileToCache);
+            }
+        }
+    }
+
+    /**
+     * Starts the thread filling the shared response from the remote server, at its own pace: it completes the flight, stores the response
+     * in the cache and releases the exchange.
+     *
+     * @param urlString
+     *            URL of the request
+     * @param flight
+     *            the flight led, followed by the client of the leader and closed by the filling thread
+     * @param exchange
+     *            the exchange with the remote server, positioned on the body and released by the filling thread
+     * @param responseHead
+     *            the response head
+     * @param fileToCache
+     *            the cache file, deleted by the filling thread if not stored
+     * @param requestTime
+     *            the time of the request
+     * @param responseTime
+     *            the time of the response
+     * @return the filling thread, started
+     * @throws IOException
+     *             if the response cannot be shared
+     */
+    private static Thread fill(String urlString, SingleFlight.Flight flight, UpstreamFetcher.Exchange exchange,
+            HttpResponseHead responseHead, File fileToCache, long requestTime, long responseTime) throws IOException {
+        OutputStream sharedOs = flight.publish(responseHead, fileToCache);
+        Thread filler = Proxy.relayThreadFactory.newThread(() -> {
+            boolean reusable = false;
+            boolean stored = false;
+            ByteBuffer pooled = BufferPool.HEAP.acquire(BUFFER_SIZE);
+            Path variant = null;
+            OutputStream variantOs = null;
+            try {
+                HttpBodyInputStream payload = HttpBodyInputStream.of(responseHead, "GET", exchange.getBody());
+
+                // The gzip variant of the cache file is written along, if worth it
+                if (Proxy.compression != null && Proxy.compression.isCandidate(responseHead)) {
+                    byte[] sample = payload.readNBytes(Proxy.compression.getSampleSize());
+                    if (Proxy.compression.isWorth(sample, sample.length < Proxy.compression.getSampleSize())) {
+                        variant = Files.createTempFile(fileToCache.getAbsoluteFile().getParentFile().toPath(), "variant-", ".tmp");
+                        variantOs = Proxy.compression.encode(Compression.GZIP,
+                                BufferPool.bufferedOutput(Files.newOutputStream(variant), STREAM_BUFFER_SIZE));
+                        variantOs.write(sample);
+                    }
+                    sharedOs.write(sample);
+                }
+
+                byte[] bytes = pooled.array();
+                int read;
+                while ((read = payload.read(bytes)) > -1) {
+                    sharedOs.write(bytes, 0, read);
+                    if (variantOs != null) {
+                        variantOs.write(bytes, 0, read);
+                    }
+                }
+                flight.complete(fileToCache);
+                reusable = payload.isComplete() && responseHead.isKeepAlive();
+
+                if (variant != null) {
+                    variantOs.close();
+                    HttpCache.replace(variant, Proxy.compression.variant(fileToCache));
+                    variant = null;
+                }
+                File variantFile = Proxy.compression != null ? Proxy.compression.variant(fileToCache) : null;
+                Proxy.cache.put(urlString, fileToCache, variantFile, responseHead, requestTime, responseTime);
+                stored = true;
+
+            } catch (IOException e) {
+                LOG.error("Couldn't fetch: {}: {}", urlString, e.getMessage());
+
+            } finally {
+                exchange.release(reusable);
+                // the followers are cut if not complete
+                flight.close();
+                BufferPool.HEAP.release(pooled);
+                try {
+                    if (variant != null) {
+                        variantOs.close();
+                        Files.deleteIfExists(variant);
+                    }
+                } catch (IOException e) {
+                    LOG.error("Cannot delete the variant file {}: {}", variant, e.getMessage());
+                }
+                if (!stored) {
+                    deleteCacheFiles(fileToCache);
+                }
+            }
+        });
+        filler.start();
+        return filler;
+    }
+
+    /**
+     * Waits for the end of a thread, the interruption is kept
+     */
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deletes the files of a response not stored in the cache
+     */
+    private static void deleteCacheFiles(File fileToCache) {
+        try {
+            Files.deleteIfExists(fileToCache.toPath());
+            if (Proxy.compression != null) {
+                Files.deleteIfExists(Proxy.compression.variant(fileToCache).toPath());
+            }
         } catch (IOException e) {
-            LOG.error("Error Sending Cached file to client");
-            e.printStackTrace();
+            LOG.error("Cannot delete the cache file {}: {}", fileToCache, e.getMessage());
         }
     }
 
     /**
-     * Sends the contents of the file specified by the urlString to the client
-     * 
+     * Forwards a request other than GET to the remote server, with its end-to-end headers and its body, then relays the response. It's neither
+     * cached nor shared, and sent once.
+     *
      * @param urlString
-     *            URL ofthe file requested
+     *            URL of the request
+     * @param request
+     *            the request of the client
+     * @param requestBody
+     *            the request body, read from the client
      */
-    private void sendNonCachedToClient(String urlString) {
+    private void sendForwardedToClient(String urlString, HttpRequestHead request, InputStream requestBody) {
+        HttpHeaders requestHeaders = request.getHeaders();
+        long length;
+        try {
+            length = requestHeaders.containsToken("Transfer-Encoding", "chunked") ? -1 : Math.max(0, BodyFramer.contentLength(requestHeaders));
+        } catch (BodyFramer.MalformedException e) {
+            LOG.error("Invalid request body: {}: {}", urlString, e.getMessage());
+            keepAlive = false;
+            sendStatusToClient("400 Bad Request");
+            return;
+        }
 
+        UpstreamFetcher.Exchange exchange = null;
+        boolean reusable = false;
         try {
+            HttpHeaders headers = forwardedHeaders(request);
+
+            // The client waiting for it before its body, the remote server doesn't get the expectation
+            if (clientHttp11 && requestHeaders.containsToken("Expect", "100-continue")) {
+                proxyToClientOs.write(CONTINUE);
+                proxyToClientOs.flush();
+            }
 
-            // Compute a logical file name as per schema
-            // This allows the files on stored on disk to resemble that of the URL it was taken from
-            int fileExtensionIndex = urlString.lastIndexOf(".");
-            String fileExtension;
+            exchange = Proxy.upstreamFetcher.forward(new URL(urlString), request.getMethod(), headers, throttled(requestBody), length);
+            reusable = forwardResponse(exchange.getHead(), request.getMethod(), exchange.getBody(), null);
 
-            // Get the type of file
-            fileExtension = urlString.substring(fileExtensionIndex, urlString.length());
+        } catch (IOException e) {
+            LOG.error("Couldn't forward: {}: {}", urlString, e.getMessage());
+            // The request body may be partly read
+            keepAlive = false;
+            sendErrorToClient();
 
-            // Get the initial file name
-            String fileName = urlString.substring(0, fileExtensionIndex);
+        } finally {
+            if (exchange != null) {
+                exchange.release(reusable);
+            }
+        }
+    }
 
-            // Trim off http://www. as no need for it in file name
-            fileName = fileName.substring(fileName.indexOf('.') + 1);
+    /**
+     * Sends the response fetched by the leader of the flight, the body is relayed as the leader writes it
+     *
+     * @param flight
+     *            the flight joined as follower
+     * @return false, if the leader doesn't share its response (nothing is sent)
+     * @throws IOException
+     *             if the shared response fails or on write failure
+     */
+    private boolean sendSharedToClient(SingleFlight.Flight flight) throws IOException {
+        HttpResponseHead responseHead = flight.awaitHead(SHARED_RESPONSE_TIMEOUT);
+        if (responseHead == null) {
+            return false;
+        }
+        LOG.info("Response shared for: {}", responseHead.getStatusLine());
 
-            // Remove any illegal characters from file name
-            fileName = fileName.replace("/", "__");
-            fileName = fileName.replace('.', '_');
+        if (acceptedCoding != null && Proxy.compression.isCandidate(responseHead)) {
+            try (InputStream sharedIs = flight.openBody(SHARED_RESPONSE_TIMEOUT)) {
+                sendCompressedToClient(responseHead, sharedIs, null, null);
+            }
+            return true;
+        }
 
-            // Trailing / result in index.html of that directory being fetched
-            if (fileExtension.contains("/")) {
-                fileExtension = fileExtension.replace("/", "__");
-                fileExtension = fileExtension.replace('.', '_');
-                fileExtension += ".html";
+        // The body is relayed without its original framing
+        long contentLength = responseHead.isChunked() ? -1 : responseHead.getContentLength();
+        HttpHeaders headers = new HttpHeaders();
+        for (int i = 0; i < responseHead.getHeaders().size(); ++i) {
+            String name = responseHead.getHeaders().getName(i);
+            if (!HOP_BY_HOP.contains(name.toLowerCase())) {
+                headers.add(name, responseHead.getHeaders().getValue(i));
             }
+        }
 
-            fileName = fileName + fileExtension;
+        try (InputStream sharedIs = flight.openBody(SHARED_RESPONSE_TIMEOUT);
+                OutputStream body = sendBodyHeadToClient(responseHead.getStatus() + " " + responseHead.getReason(), headers, contentLength)) {
+            int read;
+            while ((read = sharedIs.read(buffer)) > -1) {
+                body.write(buffer, 0, read);
+                // the bytes are sent as they arrive
+                body.flush();
+                throttle(read, body);
+            }
+        }
+        return true;
+    }
 
-            // Attempt to create File to cache to
-            boolean caching = false;
+    /**
+     * Sends a response with a compressible body, encoded in the coding accepted by the client if worth it (see {@link Compression}). The cache
+     * file receives the body as is, and its gzip variant is written next to it if worth it: the encoding for a gzip client is shared with the
+     * variant.
+     *
+     * @param responseHead
+     *            the response head
+     * @param payload
+     *            the body, without its framing
+     * @param fileToCacheOs
+     *            the cache file stream (nullable, not cached)
+     * @param fileToCache
+     *            the cache file, names the variant (nullable, not cached)
+     * @throws IOException
+     *             on read or write failure
+     */
+    private void sendCompressedToClient(HttpResponseHead responseHead, InputStream payload, OutputStream fileToCacheOs, File fileToCache)
+            throws IOException {
+        byte[] sample = payload.readNBytes(Proxy.compression.getSampleSize());
+        boolean ended = sample.length < Proxy.compression.getSampleSize();
+        boolean worth = Proxy.compression.isWorth(sample, ended);
+        String coding = worth ? acceptedCoding : null;
+
+        HttpHeaders headers = new HttpHeaders();
+        for (int i = 0; i < responseHead.getHeaders().size(); ++i) {
+            String name = responseHead.getHeaders().getName(i);
+            String value = responseHead.getHeaders().getValue(i);
+            if (coding != null && "etag".equalsIgnoreCase(name) && !value.startsWith("W/")) {
+                // the encoded representation isn't byte for byte the one of the origin
+                value = "W/" + value;
+            }
+            if (!HOP_BY_HOP.contains(name.toLowerCase()) && !"content-encoding".equalsIgnoreCase(name)) {
+                headers.add(name, value);
+            }
+        }
+        if (coding != null) {
+            headers.add("Content-Encoding", coding);
+        }
+        if (!headers.containsToken("Vary", "Accept-Encoding")) {
+            headers.add("Vary", "Accept-Encoding");
+        }
 
-            // Create File to cache
-            File fileToCache = new File(Proxy.cacheDir, fileName);
+        long contentLength = -1;
+        if (coding == null) {
+            contentLength = ended ? sample.length : responseHead.isChunked() ? -1 : responseHead.getContentLength();
+        }
 
-            if (!fileToCache.exists()) {
-                fileToCache.createNewFile();
+        Path variant = null;
+        OutputStream variantOs = null;
+        if (worth && fileToCache != null) {
+            variant = Files.createTempFile(fileToCache.getAbsoluteFile().getParentFile().toPath(), "variant-", ".tmp");
+            variantOs = BufferPool.bufferedOutput(Files.newOutputStream(variant), STREAM_BUFFER_SIZE);
+        }
+        try {
+            OutputStream body = sendBodyHeadToClient(responseHead.getStatus() + " " + responseHead.getReason(), headers, contentLength);
+            OutputStream clientOs;
+            OutputStream variantEncoderOs = null;
+            if (coding == null) {
+                clientOs = body;
+                if (variantOs != null) {
+                    variantEncoderOs = Proxy.compression.encode(Compression.GZIP, variantOs);
+                }
+            } else if (variantOs != null && Compression.GZIP.equals(coding)) {
+                clientOs = Proxy.compression.encode(coding, tee(body, variantOs));
+            } else {
+                clientOs = Proxy.compression.encode(coding, body);
+                if (variantOs != null) {
+                    variantEncoderOs = Proxy.compression.encode(Compression.GZIP, variantOs);
+                }
             }
 
-            // Create Buffered output stream to write to cached copy of file
-            try (BufferedWriter fileToCacheBW = new BufferedWriter(new FileWriter(fileToCache))) {
-                // Check if file is an image
-                if ((fileExtension.contains(".png")) || fileExtension.contains(".jpg") || fileExtension.contains(".jpeg")
-                        || fileExtension.contains(".gif")) {
-                    // Create the URL
-                    URL remoteURL = new URL(urlString);
-                    BufferedImage image = ImageIO.read(remoteURL);
+            byte[] bytes = sample;
+            int read = sample.length;
+            while (read > -1) {
+                clientOs.write(bytes, 0, read);
+                if (fileToCacheOs != null) {
+                    fileToCacheOs.write(bytes, 0, read);
+                }
+                if (variantEncoderOs != null) {
+                    variantEncoderOs.write(bytes, 0, read);
+                }
+                throttle(read, clientOs);
+                bytes = buffer;
+                read = ended ? -1 : payload.read(buffer);
+            }
 
-                    if (image != null) {
-                        // Cache the image to disk
-                        ImageIO.write(image, fileExtension.substring(1), fileToCache);
+            // ends the encodings, the chunked body and the variant
+            clientOs.close();
+            if (variantEncoderOs != null) {
+                variantEncoderOs.close();
+            }
+            proxyToClientOs.flush();
 
-                        // Send response code to client
-                        String line = "HTTP/1.0 200 OK\n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-                        proxyToClientBw.write(line);
-                        proxyToClientBw.flush();
+            if (variant != null) {
+                HttpCache.replace(variant, Proxy.compression.variant(fileToCache));
+                variant = null;
+            }
+        } finally {
+            if (variant != null) {
+                variantOs.close();
+                Files.deleteIfExists(variant);
+            }
+        }
+    }
 
-                        // Send them the image data
-                        ImageIO.write(image, fileExtension.substring(1), clientSocket.getOutputStream());
+    /**
+     * Counts the bytes sent to the client in its download rate, and waits if exceeded
+     *
+     * @param bytes
+     *            the number of bytes
+     * @param clientOs
+     *            the stream to the client, flushed before waiting
+     * @throws IOException
+     *             on flush failure or if interrupted
+     */
+    private void throttle(int bytes, OutputStream clientOs) throws IOException {
+        if (quota != null) {
+            pause(quota.download(bytes), clientOs);
+        }
+    }
 
-                        // No image received from remote server
-                    } else {
-                        LOG.info("Sending 404 to client as image wasn't received from server: {}", fileName);
-                        String error = "HTTP/1.0 404 NOT FOUND\n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-                        proxyToClientBw.write(error);
-                        proxyToClientBw.flush();
-                        return;
-                    }
+    /**
+     * Waits the delay of a rate limit, the bytes already written are sent meanwhile
+     */
+    private static void pause(long delay, OutputStream os) throws IOException {
+        if (delay > 0) {
+            os.flush();
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while throttled", e);
+            }
+        }
+    }
+
+    /**
+     * @return a stream reading the request body, whose bytes are counted in the upload rate of the client: it waits if exceeded, the bytes read
+     *         wait meanwhile in the buffer of the remote server stream
+     */
+    private InputStream throttled(InputStream requestBody) {
+        if (quota == null) {
+            return requestBody;
+        }
+        ClientLimiter.Quota clientQuota = quota;
+        return new FilterInputStream(requestBody) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b > -1) {
+                    pause(clientQuota.upload(1), OutputStream.nullOutputStream());
                 }
+                return b;
+            }
 
-                // File is a text file
-                else {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    pause(clientQuota.upload(read), OutputStream.nullOutputStream());
+                }
+                return read;
+            }
+        };
+    }
 
-                    // Create the URL
-                    URL remoteURL = new URL(urlString);
-                    // Create a connection to remote server
-                    HttpURLConnection proxyToServerCon = (HttpURLConnection) remoteURL.openConnection();
-                    proxyToServerCon.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                    proxyToServerCon.setRequestProperty("Content-Language", "en-US");
-                    proxyToServerCon.setUseCaches(false);
-                    proxyToServerCon.setDoOutput(true);
-
-                    // Create Buffered Reader from remote Server
-                    try (BufferedReader proxyToServerBR = new BufferedReader(new InputStreamReader(proxyToServerCon.getInputStream()))) {
-                        caching = true;
-
-                        // Send success code to client
-                        String line = "HTTP/1.0 200 OK\n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-                        proxyToClientBw.write(line);
-
-                        // Read from input stream between proxy and remote server
-                        while ((line = proxyToServerBR.readLine()) != null) {
-                            // Send on data to client
-                            proxyToClientBw.write(line);
-
-                            // Write to our cached copy of the file
-                            if (caching) {
-                                fileToCacheBW.write(line);
-                            }
-                        }
+    /**
+     * @return a stream writing to both streams, closing both
+     */
+    private static OutputStream tee(OutputStream first, OutputStream second) {
+        return new FilterOutputStream(first) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                second.write(b);
+            }
 
-                        // Ensure all data is sent by this point
-                        proxyToClientBw.flush();
-                    }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                second.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+                second.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    out.close();
+                } finally {
+                    second.close();
                 }
+            }
+        };
+    }
 
-                if (caching) {
-                    // Ensure data written and add to our cached hash maps
-                    fileToCacheBW.flush();
-                    Proxy.addCachedPage(urlString, fileToCache);
+    /**
+     * Relays the response of the remote server unchanged: status, headers (except the hop-by-hop ones), framing and body bytes. The body goes
+     * through the buffer of the handler, without any charset conversion.
+     *
+     * @param responseHead
+     *            the response head read from the remote server
+     * @param method
+     *            the request method, a response to HEAD has no body
+     * @param proxyToServerIs
+     *            the remote server stream, positioned on the body
+     * @param fileToCacheOs
+     *            the cache file stream, receives the body without framing (nullable, not cached)
+     * @return true, if the remote server connection can be reused
+     * @throws IOException
+     *             on read or write failure, or if the response is truncated
+     */
+    private boolean forwardResponse(HttpResponseHead responseHead, String method, InputStream proxyToServerIs, OutputStream fileToCacheOs)
+            throws IOException {
+        BodyFramer framer = BodyFramer.of(responseHead, method);
+
+        // A chunked body is decoded for HTTP/1.0 clients, it then ends with the connection
+        boolean decode = !clientHttp11 && responseHead.hasBody(method) && responseHead.isChunked();
+        keepAlive &= !framer.isUntilClose() && !decode;
+
+        HttpHeaders headers = responseHead.getHeaders();
+        headers.remove("Connection");
+        headers.remove("Keep-Alive");
+        headers.remove("Proxy-Connection");
+        if (decode) {
+            headers.remove("Transfer-Encoding");
+        }
+        headers.add("Connection", keepAlive ? "keep-alive" : "close");
+
+        StringBuilder head = new StringBuilder(512).append("HTTP/1.1 ").append(responseHead.getStatus()).append(' ').append(responseHead.getReason())
+                .append("\r\n");
+        proxyToClientOs.write(headers.appendTo(head).toString().getBytes(StandardCharsets.ISO_8859_1));
+        responseStarted = true;
+
+        BodyFramer.PayloadSink sink = null;
+        if (decode || fileToCacheOs != null) {
+            sink = (bytes, offset, length) -> {
+                if (decode) {
+                    proxyToClientOs.write(bytes, offset, length);
                 }
+                if (fileToCacheOs != null) {
+                    fileToCacheOs.write(bytes, offset, length);
+                }
+            };
+        }
+
+        boolean aligned = true;
+        while (!framer.isComplete()) {
+            int read = proxyToServerIs.read(buffer);
+            if (read < 0) {
+                if (framer.endOfStream()) {
+                    break;
+                }
+                throw new IOException("Connection closed by the server before the end of the response");
             }
 
-            if (proxyToClientBw != null) {
-                proxyToClientBw.close();
+            int count = framer.advance(buffer, 0, read, sink);
+            if (!decode) {
+                proxyToClientOs.write(buffer, 0, count);
             }
+            throttle(read, proxyToClientOs);
+            // Bytes after the response, the connection is out of sync
+            aligned = count == read;
         }
+        proxyToClientOs.flush();
 
-        catch (IOException e) {
-            LOG.error("Couldn't cache: {}", urlString);
-            e.printStackTrace();
-        }
+        return aligned && responseHead.isKeepAlive() && !framer.isUntilClose();
     }
 
     /**
      * Handles HTTPS requests between client and remote server
-     * 
+     *
      * @param urlString
      *            desired file to be transmitted over https
      */
@@ -411,78 +1291,110 @@ public class RequestHandler implements Runnable {
         int port = Integer.valueOf(pieces[1]);
 
         try {
-            // Only first line of HTTPS request has been read at this point (CONNECT *)
-            // Read (and throw away) the rest of the initial data on the stream
-            for (int i = 0; i < 5; i++) {
-                proxyToClientBr.readLine();
-            }
+            // The whole request head has been read at this point, the bytes already buffered belong to the tunnel
 
-            // Get actual IP associated with this URL through DNS
-            InetAddress address = InetAddress.getByName(url);
+            // Open a connection to the remote server, on the first of its addresses to answer, or a tunnel through the parent proxy
+            SocketChannel proxyToServerChannel = Proxy.parentRouter.openTunnel(url, port).getChannel();
+
+            // The lifetime of the tunnel depends on the client, only its opening is accounted as in flight
+            release();
+
+            // Hand the tunnel over to the event loops, the handler thread is released
+            if (Proxy.tunnelLoops != null && clientSocket.getChannel() != null) {
+                tunnelOnLoop(proxyToServerChannel, urlString);
+                return;
+            }
 
-            // Open a socket to the remote server
-            try (Socket proxyToServerSocket = new Socket(address, port)) {
-                proxyToServerSocket.setSoTimeout(30_000);
+            try (Socket proxyToServerSocket = proxyToServerChannel.socket()) {
+                // Both sides are closed once the tunnel is idle, whatever the blocked direction
+                DeadlineTimer.Deadline idle = Proxy.deadlines.start(DeadlineTimer.Phase.TUNNEL, () -> {
+                    proxyToServerChannel.close();
+                    clientSocket.close();
+                }, "CONNECT " + urlString);
 
                 // Send Connection established to the client
-                String line = "HTTP/1.0 200 Connection established\r\n" + "Proxy-Agent: ProxyServer/1.0\r\n" + "\r\n";
-                proxyToClientBw.write(line);
-                proxyToClientBw.flush();
+                proxyToClientOs.write(CONNECTION_ESTABLISHED);
+                proxyToClientOs.flush();
+                responseStarted = true;
 
                 // Client and Remote will both start sending data to proxy at this point
                 // Proxy needs to asynchronously read data from each party and send it to the other party
 
-                // Create a Buffered Writer betwen proxy and remote
-                try (BufferedWriter proxyToServerBW = new BufferedWriter(new OutputStreamWriter(proxyToServerSocket.getOutputStream()))) {
-
-                    // Create Buffered Reader from proxy and remote
-                    try (BufferedReader proxyToServerBR = new BufferedReader(new InputStreamReader(proxyToServerSocket.getInputStream()))) {
-
-                        // Create a new thread to listen to client and transmit to server
-                        ClientToServerHttpsTransmit clientToServerHttps = new ClientToServerHttpsTransmit(clientSocket.getInputStream(),
-                                proxyToServerSocket.getOutputStream());
-
-                        httpsClientToServer = new Thread(clientToServerHttps);
-                        httpsClientToServer.start();
-
-                        // Listen to remote server and relay to client
-                        try {
-                            byte[] buffer = new byte[4096];
-                            int read;
-                            do {
-                                read = proxyToServerSocket.getInputStream().read(buffer);
-                                if (read > 0) {
-                                    clientSocket.getOutputStream().write(buffer, 0, read);
-                                    if (proxyToServerSocket.getInputStream().available() < 1) {
-                                        clientSocket.getOutputStream().flush();
-                                    }
-                                }
-                            } while (read >= 0);
-                        } catch (SocketTimeoutException e) {
-
-                        } catch (IOException e) {
-                            e.printStackTrace();
+                // Create a new thread to listen to client and transmit to server
+                ClientToServerHttpsTransmit clientToServerHttps = new ClientToServerHttpsTransmit(proxyToClientIs,
+                        proxyToServerSocket.getOutputStream(), idle);
+
+                httpsClientToServer = Proxy.relayThreadFactory.newThread(clientToServerHttps);
+                httpsClientToServer.start();
+
+                // Listen to remote server and relay to client, through the buffer of the handler
+                try {
+                    int read;
+                    do {
+                        read = proxyToServerSocket.getInputStream().read(buffer);
+                        if (read > 0) {
+                            idle.touch();
+                            clientSocket.getOutputStream().write(buffer, 0, read);
+                            if (proxyToServerSocket.getInputStream().available() < 1) {
+                                clientSocket.getOutputStream().flush();
+                            }
+                            throttle(read, clientSocket.getOutputStream());
                         }
-
+                    } while (read >= 0);
+                } catch (IOException e) {
+                    // already logged on timeout
+                    if (!idle.isExpired()) {
+                        LOG.error("Error relaying HTTPS from {}: {}", urlString, e.getMessage());
                     }
+                } finally {
+                    idle.cancel();
                 }
             }
 
-            if (proxyToClientBw != null) {
-                proxyToClientBw.close();
-            }
-
+        } catch (ParentRouter.RefusedException e) {
+            // The authentication requested by the parent isn't addressed to the client
+            LOG.error("HTTPS tunnel to {} refused: {}", urlString, e.getMessage());
+            sendStatusToClient(e.getStatus() == 407 ? "502 Bad Gateway" : e.getStatus() + " " + e.getReason());
         } catch (SocketTimeoutException e) {
-            String line = "HTTP/1.0 504 Timeout Occured after 10s\n" + "User-Agent: ProxyServer/1.0\n" + "\r\n";
-            try {
-                proxyToClientBw.write(line);
-                proxyToClientBw.flush();
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
-            }
+            LOG.error("HTTPS tunnel to {} timed out: {}", urlString, e.getMessage());
+            sendStatusToClient("504 Gateway Timeout");
         } catch (Exception e) {
             LOG.error("Error on HTTPS: {}", urlString);
             e.printStackTrace();
+            sendErrorToClient();
+        }
+    }
+
+    /**
+     * Hands the HTTPS tunnel over to one of the tunnel loops, which relays both directions without any thread
+     *
+     * @param proxyToServerChannel
+     *            channel connected to the remote server
+     * @param urlString
+     *            desired file to be transmitted over https
+     * @throws IOException
+     *             if the channels cannot be switched to non blocking mode
+     */
+    private void tunnelOnLoop(SocketChannel proxyToServerChannel, String urlString) throws IOException {
+        try {
+            // Bytes sent by the client after the request head and already buffered
+            byte[] pending = proxyToClientIs.readNBytes(proxyToClientIs.available());
+
+            SocketChannel proxyToClientChannel = clientSocket.getChannel();
+            proxyToServerChannel.configureBlocking(false);
+            proxyToClientChannel.configureBlocking(false);
+
+            // Connection established is sent to the client by the tunnel
+            EventLoop loop = Proxy.tunnelLoops.next();
+            Tunnel tunnel = new Tunnel(loop, proxyToClientChannel, null, proxyToServerChannel, ByteBuffer.wrap(CONNECTION_ESTABLISHED),
+                    pending.length > 0 ? ByteBuffer.wrap(pending) : null, "CONNECT " + urlString, System.currentTimeMillis(),
+                    Proxy.deadlines.getTimeout(DeadlineTimer.Phase.TUNNEL), quota);
+            handedOver = true;
+            responseStarted = true;
+            loop.execute(tunnel::start);
+        } catch (IOException e) {
+            proxyToServerChannel.close();
+            throw e;
         }
     }
 
@@ -494,40 +1406,51 @@ public class RequestHandler implements Runnable {
 
         InputStream proxyToClientIS;
         OutputStream proxyToServerOS;
+        DeadlineTimer.Deadline idle;
 
         /**
          * Creates Object to Listen to Client and Transmit that data to the server
-         * 
+         *
          * @param proxyToClientIS
          *            Stream that proxy uses to receive data from client
          * @param proxyToServerOS
          *            Stream that proxy uses to transmit data to remote server
+         * @param idle
+         *            Idle deadline of the tunnel, postponed by each read
          */
-        public ClientToServerHttpsTransmit(InputStream proxyToClientIS, OutputStream proxyToServerOS) {
+        public ClientToServerHttpsTransmit(InputStream proxyToClientIS, OutputStream proxyToServerOS, DeadlineTimer.Deadline idle) {
             this.proxyToClientIS = proxyToClientIS;
             this.proxyToServerOS = proxyToServerOS;
+            this.idle = idle;
         }
 
         @Override
         public void run() {
+            ByteBuffer pooled = BufferPool.HEAP.acquire(BUFFER_SIZE);
             try {
                 // Read byte by byte from client and send directly to server
-                byte[] buffer = new byte[20480];
+                byte[] buffer = pooled.array();
                 int read;
                 do {
                     read = proxyToClientIS.read(buffer);
                     if (read > 0) {
+                        idle.touch();
                         proxyToServerOS.write(buffer, 0, read);
                         if (proxyToClientIS.available() < 1) {
                             proxyToServerOS.flush();
                         }
+                        if (quota != null) {
+                            pause(quota.upload(read), proxyToServerOS);
+                        }
                     }
                 } while (read >= 0);
-            } catch (SocketTimeoutException ste) {
-                // TODO: handle exception
             } catch (IOException e) {
-                LOG.error("Proxy to client HTTPS read timed out");
-                e.printStackTrace();
+                // both sides are closed on timeout or at the end of the other direction
+                if (!idle.isExpired()) {
+                    LOG.error("Error relaying HTTPS from client: {}", e.getMessage());
+                }
+            } finally {
+                BufferPool.HEAP.release(pooled);
             }
         }
     }
@@ -536,14 +1459,6 @@ public class RequestHandler implements Runnable {
      * This method is called when user requests a page that is blocked by the proxy. Sends an access forbidden message back to the client
      */
     private void blockedSiteRequested() {
-        try {
-            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-            String line = "HTTP/1.0 403 Access Forbidden \n" + "User-Agent: ProxyServer/1.0\n" + "\r\n";
-            bufferedWriter.write(line);
-            bufferedWriter.flush();
-        } catch (IOException e) {
-            LOG.error("Error writing to client when requested a blocked site");
-            e.printStackTrace();
-        }
+        sendStatusToClient("403 Access Forbidden");
     }
 }
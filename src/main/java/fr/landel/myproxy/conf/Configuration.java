@@ -0,0 +1,183 @@
+package fr.landel.myproxy.conf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+
+import fr.landel.myproxy.utils.IOUtils;
+import fr.landel.myproxy.utils.InternalException;
+import fr.landel.myproxy.utils.Logger;
+import fr.landel.myproxy.utils.json.JsonNode;
+import fr.landel.myproxy.utils.json.JsonObject;
+import fr.landel.myproxy.utils.json.JsonParser;
+import fr.landel.myproxy.utils.json.JsonType;
+
+/**
+ * Read only view of the JSON configuration. Values are accessed through a slash separated path (ex: "proxy/port"), missing or mistyped values
+ * fallback on the given default.
+ */
+public class Configuration {
+
+    private static final Logger LOG = new Logger(Configuration.class);
+
+    /**
+     * System property to override the configuration path
+     */
+    public static final String PATH_PROPERTY = "myproxy.configuration";
+
+    private static final Path DEFAULT_PATH = Paths.get("src/main/resources/configuration.json");
+    private static final String CLASSPATH_RESOURCE = "/configuration.json";
+
+    private static final char SEPARATOR = '/';
+
+    private final JsonNode root;
+
+    /**
+     * Constructor
+     *
+     * @param root
+     *            the root JSON node (nullable, all defaults are used if {@code null})
+     * @category constructor
+     */
+    public Configuration(final JsonNode root) {
+        this.root = root;
+    }
+
+    /**
+     * Loads the configuration from the path defined by the system property {@link #PATH_PROPERTY}, from "src/main/resources/configuration.json" or
+     * from the classpath. If nothing can be loaded, an empty configuration is returned.
+     *
+     * @return the configuration
+     */
+    public static Configuration load() {
+        final String property = System.getProperty(PATH_PROPERTY);
+        final Path path = property != null ? Paths.get(property) : DEFAULT_PATH;
+
+        try {
+            if (Files.isRegularFile(path)) {
+                return load(path);
+            }
+
+            try (InputStream is = Configuration.class.getResourceAsStream(CLASSPATH_RESOURCE)) {
+                if (is != null) {
+                    return new Configuration(JsonParser.load(is.readAllBytes()).orElse(null));
+                }
+            }
+        } catch (InternalException | IOException e) {
+            LOG.error(e, "Cannot load configuration, defaults are used");
+        }
+
+        LOG.info("No configuration found, defaults are used");
+        return new Configuration(null);
+    }
+
+    /**
+     * Loads the configuration from the specified path
+     *
+     * @param path
+     *            the JSON file path
+     * @return the configuration
+     * @throws InternalException
+     *             if the file cannot be read
+     */
+    public static Configuration load(final Path path) throws InternalException {
+        final String json = IOUtils.load(path);
+        return new Configuration(JsonParser.load(json.getBytes(StandardCharsets.UTF_8)).orElse(null));
+    }
+
+    /**
+     * Gets the JSON object at the specified path
+     *
+     * @param path
+     *            the slash separated path
+     * @return the object if found
+     */
+    public Optional<JsonObject<? extends Serializable>> get(final String path) {
+        JsonNode node = this.root;
+        int start = 0;
+        int end;
+        while (node != null) {
+            end = path.indexOf(SEPARATOR, start);
+            final JsonObject<? extends Serializable> object = node.getChildren().get(end > -1 ? path.substring(start, end) : path.substring(start));
+            if (object == null || end < 0) {
+                return Optional.ofNullable(object);
+            } else if (JsonType.NODE.equals(object.getType())) {
+                node = (JsonNode) object.getValue();
+                start = end + 1;
+            } else {
+                node = null;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Gets the node at the specified path
+     *
+     * @param path
+     *            the slash separated path
+     * @return the node if found
+     */
+    public Optional<JsonNode> getNode(final String path) {
+        return this.get(path).filter(o -> JsonType.NODE.equals(o.getType())).map(o -> (JsonNode) o.getValue());
+    }
+
+    public String getString(final String path, final String def) {
+        return this.get(path).filter(o -> JsonType.STRING.equals(o.getType())).map(o -> (String) o.getValue()).orElse(def);
+    }
+
+    public long getLong(final String path, final long def) {
+        return this.get(path).filter(o -> JsonType.LONG.equals(o.getType())).map(o -> (Long) o.getValue()).orElse(def);
+    }
+
+    public int getInt(final String path, final int def) {
+        return (int) this.getLong(path, def);
+    }
+
+    public double getDouble(final String path, final double def) {
+        final Optional<JsonObject<? extends Serializable>> object = this.get(path);
+        if (object.isPresent() && JsonType.DOUBLE.equals(object.get().getType())) {
+            return (Double) object.get().getValue();
+        } else if (object.isPresent() && JsonType.LONG.equals(object.get().getType())) {
+            return (Long) object.get().getValue();
+        }
+        return def;
+    }
+
+    public boolean getBoolean(final String path, final boolean def) {
+        return this.get(path).filter(o -> JsonType.BOOLEAN.equals(o.getType())).map(o -> (Boolean) o.getValue()).orElse(def);
+    }
+
+    /**
+     * Gets a duration, defined as an ISO-8601 string (ex: "PT30S") or as a number of milliseconds
+     *
+     * @param path
+     *            the slash separated path
+     * @param def
+     *            the default duration
+     * @return the duration
+     */
+    public Duration getDuration(final String path, final Duration def) {
+        final Optional<JsonObject<? extends Serializable>> object = this.get(path);
+        if (object.isPresent()) {
+            final Object value = object.get().getValue();
+            if (value instanceof Long) {
+                return Duration.ofMillis((Long) value);
+            } else if (value instanceof String) {
+                try {
+                    return Duration.parse((String) value);
+                } catch (DateTimeParseException e) {
+                    LOG.error("Invalid duration for '{}': {}", path, value);
+                }
+            }
+        }
+        return def;
+    }
+}
@@ -0,0 +1,261 @@
+package fr.landel.myproxy.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.utils.Logger;
+import fr.landel.myproxy.utils.ThreadUtils;
+
+/**
+ * Asynchronous cache of the host name resolutions. The lookups are run by a small pool of resolver threads, so neither the handlers nor the event
+ * loops wait on a slow DNS server, and the concurrent lookups of the same host share the same pending resolution. The addresses are kept for
+ * "ttl" and the failures for "negative-ttl". A hot entry (requested during the last "refresh-ahead" before its expiration) is resolved again in
+ * background while the current addresses are still served, so the requests never wait for its renewal.
+ * <p>
+ * The IP literals are converted without lookup.
+ * </p>
+ */
+public class DnsCache {
+
+    private static final Logger LOG = new Logger(DnsCache.class);
+
+    private static final String METRICS = "dns.";
+
+    private final long ttl;
+    private final long negativeTtl;
+    private final long refreshAhead;
+    private final int maxEntries;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final ExecutorService resolvers;
+
+    private final LongAdder hits = Metrics.counter(METRICS + "hits");
+    private final LongAdder misses = Metrics.counter(METRICS + "misses");
+    private final LongAdder coalesced = Metrics.counter(METRICS + "coalesced");
+    private final LongAdder failures = Metrics.counter(METRICS + "failures");
+    private final LongAdder refreshes = Metrics.counter(METRICS + "refreshes");
+    private final LongAdder lookupCount = new LongAdder();
+    private final LongAdder lookupTotal = new LongAdder();
+    private final LongAccumulator lookupMax = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Resolution of a host, pending or done
+     */
+    private static final class Entry {
+
+        private final CompletableFuture<InetAddress[]> future = new CompletableFuture<>();
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        /**
+         * Expiration time (nano time), set before the completion of the future
+         */
+        private volatile long expires = Long.MAX_VALUE;
+
+        private boolean isUsable(final long now) {
+            return !this.future.isDone() || now - this.expires < 0;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/dns")
+     * @category constructor
+     */
+    public DnsCache(final Configuration configuration) {
+        this.ttl = configuration.getDuration("proxy/dns/ttl", Duration.ofSeconds(60)).toNanos();
+        this.negativeTtl = configuration.getDuration("proxy/dns/negative-ttl", Duration.ofSeconds(10)).toNanos();
+        this.refreshAhead = Math.min(this.ttl / 2, configuration.getDuration("proxy/dns/refresh-ahead", Duration.ofSeconds(10)).toNanos());
+        this.maxEntries = Math.max(16, configuration.getInt("proxy/dns/max-entries", 10_000));
+
+        this.resolvers = Executors.newFixedThreadPool(Math.max(1, configuration.getInt("proxy/dns/threads", 4)),
+                ThreadUtils.platformThreadFactory("myproxy-resolver-", true));
+
+        Metrics.gauge(METRICS + "hit-rate-percent", () -> Metrics.percent(this.hits.sum(), this.hits.sum() + this.misses.sum()));
+        Metrics.gauge(METRICS + "lookup-avg-micros", () -> this.lookupCount.sum() > 0 ? this.lookupTotal.sum() / this.lookupCount.sum() / 1_000 : 0);
+        Metrics.gauge(METRICS + "lookup-max-micros", () -> this.lookupMax.get() / 1_000);
+        Metrics.gauge(METRICS + "entries", this.entries::size);
+    }
+
+    /**
+     * Resolves a host without blocking
+     *
+     * @param host
+     *            the host name or IP literal
+     * @return the future addresses (at least one), completed with an {@link UnknownHostException} if the host cannot be resolved
+     */
+    public CompletableFuture<InetAddress[]> resolveAsync(final String host) {
+        if (isLiteral(host)) {
+            try {
+                return CompletableFuture.completedFuture(new InetAddress[] {InetAddress.getByName(host)});
+            } catch (UnknownHostException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        final String key = host.toLowerCase(Locale.ROOT);
+        final long now = System.nanoTime();
+
+        final Entry entry = this.entries.get(key);
+        if (entry != null && entry.isUsable(now)) {
+            return this.use(key, entry, now);
+        }
+
+        final Entry created = new Entry();
+        final Entry current = this.entries.compute(key, (k, old) -> old != null && old.isUsable(now) ? old : created);
+        if (current != created) {
+            return this.use(key, current, now);
+        }
+
+        this.misses.increment();
+        if (this.entries.size() > this.maxEntries) {
+            this.purge(now);
+        }
+        this.lookup(key, created, false);
+        return created.future;
+    }
+
+    /**
+     * Resolves a host, waits for the lookup if the host isn't cached
+     *
+     * @param host
+     *            the host name or IP literal
+     * @return the first address
+     * @throws UnknownHostException
+     *             if the host cannot be resolved
+     */
+    public InetAddress resolve(final String host) throws UnknownHostException {
+        return this.resolveAll(host)[0];
+    }
+
+    /**
+     * Resolves a host, waits for the lookup if the host isn't cached
+     *
+     * @param host
+     *            the host name or IP literal
+     * @return all the addresses (at least one), in the resolver order
+     * @throws UnknownHostException
+     *             if the host cannot be resolved
+     */
+    public InetAddress[] resolveAll(final String host) throws UnknownHostException {
+        try {
+            return this.resolveAsync(host).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) e.getCause();
+            }
+            throw new UnknownHostException(host + ": " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host + ": interrupted");
+        }
+    }
+
+    private CompletableFuture<InetAddress[]> use(final String key, final Entry entry, final long now) {
+        if (!entry.future.isDone()) {
+            this.coalesced.increment();
+        } else {
+            this.hits.increment();
+            final boolean expiring = now - (entry.expires - this.refreshAhead) >= 0;
+            if (expiring && !entry.future.isCompletedExceptionally() && entry.refreshing.compareAndSet(false, true)) {
+                // hot entry about to expire, renewed in background
+                this.lookup(key, entry, true);
+            }
+        }
+        return entry.future;
+    }
+
+    private void lookup(final String key, final Entry entry, final boolean refresh) {
+        final Entry target = refresh ? new Entry() : entry;
+        try {
+            this.resolvers.execute(() -> {
+                final long start = System.nanoTime();
+                try {
+                    final InetAddress[] addresses = InetAddress.getAllByName(key);
+                    this.record(start);
+                    target.expires = start + this.ttl;
+                    target.future.complete(addresses);
+                    if (refresh) {
+                        this.refreshes.increment();
+                        this.entries.replace(key, entry, target);
+                    }
+                } catch (UnknownHostException | RuntimeException e) {
+                    this.record(start);
+                    this.failures.increment();
+                    if (refresh) {
+                        // the current addresses are kept until their expiration
+                        entry.refreshing.set(false);
+                    } else {
+                        LOG.error("Unknown host: {}", key);
+                        target.expires = start + this.negativeTtl;
+                        target.future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected, closed cache
+            if (!refresh) {
+                this.entries.remove(key, entry);
+                entry.future.completeExceptionally(new UnknownHostException(key + ": resolver closed"));
+            }
+        }
+    }
+
+    private void record(final long start) {
+        final long duration = System.nanoTime() - start;
+        this.lookupCount.increment();
+        this.lookupTotal.add(duration);
+        this.lookupMax.accumulate(duration);
+    }
+
+    /**
+     * Removes the expired entries, then other resolved entries if the cache is still full
+     */
+    private void purge(final long now) {
+        this.entries.values().removeIf(entry -> !entry.isUsable(now));
+        final Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.entries.size() > this.maxEntries && iterator.hasNext()) {
+            if (iterator.next().future.isDone()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static boolean isLiteral(final String host) {
+        if (host.indexOf(':') > -1) {
+            // IPv6
+            return true;
+        }
+        for (int i = 0; i < host.length(); ++i) {
+            final char c = host.charAt(i);
+            if ((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+        return !host.isEmpty();
+    }
+
+    /**
+     * Stops the resolver threads, the pending lookups are abandoned
+     */
+    public void close() {
+        this.resolvers.shutdownNow();
+    }
+}
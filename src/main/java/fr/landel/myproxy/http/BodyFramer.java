@@ -0,0 +1,350 @@
+package fr.landel.myproxy.http;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Incremental delimiter of a raw HTTP/1.x message body. The bytes are given as they are received, the framer tells how many of them belong to the
+ * body and when the body is complete, without copying nor decoding them (the chunked framing is kept). Used to relay a message unchanged and to
+ * know when the next message starts on a persistent connection. The payload (the body without the chunked framing) can be given to a
+ * {@link PayloadSink} at the same time, to store or decode it.
+ */
+public class BodyFramer {
+
+    /**
+     * Receiver of the payload bytes
+     */
+    @FunctionalInterface
+    public interface PayloadSink {
+
+        /**
+         * @param bytes
+         *            the buffer
+         * @param offset
+         *            the offset of the payload bytes
+         * @param length
+         *            the number of payload bytes
+         * @throws IOException
+         *             on write failure
+         */
+        void accept(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Framing which cannot be delimited safely (invalid length, oversized chunk size): the message cannot be relayed nor the connection
+     * reused
+     */
+    public static class MalformedException extends IOException {
+
+        private static final long serialVersionUID = 4829310573916240337L;
+
+        /**
+         * Constructor
+         *
+         * @param message
+         *            the detail message
+         * @category constructor
+         */
+        public MalformedException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Max number of hexadecimal digits of a chunk size, 15 digits (60 bits) cannot overflow the long
+     */
+    private static final int MAX_SIZE_DIGITS = 15;
+
+    /**
+     * Max number of decimal digits of a Content-Length
+     */
+    private static final int MAX_LENGTH_DIGITS = 18;
+
+    private enum State {
+        FIXED,
+        CHUNK_SIZE,
+        CHUNK_EXTENSION,
+        CHUNK_DATA,
+        CHUNK_DATA_END,
+        TRAILER_START,
+        TRAILER,
+        UNTIL_CLOSE,
+        DONE
+    }
+
+    private State state;
+
+    private long remaining;
+
+    private int sizeDigits;
+
+    /**
+     * Constructor
+     *
+     * @param state
+     *            the initial state
+     * @param remaining
+     *            the fixed length
+     * @category constructor
+     */
+    private BodyFramer(final State state, final long remaining) {
+        this.state = state;
+        this.remaining = remaining;
+        if (State.FIXED.equals(state) && remaining == 0) {
+            this.state = State.DONE;
+        }
+    }
+
+    /**
+     * @param length
+     *            the Content-Length
+     * @return a framer of a body with a known length
+     */
+    public static BodyFramer fixed(final long length) {
+        return new BodyFramer(State.FIXED, length);
+    }
+
+    /**
+     * @return a framer of a body with chunked transfer coding
+     */
+    public static BodyFramer chunked() {
+        return new BodyFramer(State.CHUNK_SIZE, 0);
+    }
+
+    /**
+     * @return a framer of a body delimited by the end of the connection
+     */
+    public static BodyFramer untilClose() {
+        return new BodyFramer(State.UNTIL_CLOSE, 0);
+    }
+
+    /**
+     * @return a framer of a message without body
+     */
+    public static BodyFramer none() {
+        return new BodyFramer(State.DONE, 0);
+    }
+
+    /**
+     * Gets the framer of a response body
+     *
+     * @param head
+     *            the response head
+     * @param method
+     *            the request method
+     * @return the framer
+     * @throws MalformedException
+     *             if the Content-Length is invalid
+     */
+    public static BodyFramer of(final HttpResponseHead head, final String method) throws MalformedException {
+        if (!head.hasBody(method)) {
+            return none();
+        }
+        return of(head.getHeaders(), true);
+    }
+
+    /**
+     * Gets the framer of a message body from its headers
+     *
+     * @param headers
+     *            the message headers
+     * @param response
+     *            true for a response (without length, the body ends with the connection), false for a request (without length, there is no body)
+     * @return the framer
+     * @throws MalformedException
+     *             if the Content-Length is invalid
+     */
+    public static BodyFramer of(final HttpHeaders headers, final boolean response) throws MalformedException {
+        if (headers.containsToken("Transfer-Encoding", "chunked")) {
+            return chunked();
+        }
+        final long length = contentLength(headers);
+        if (length > -1) {
+            return fixed(length);
+        }
+        return response ? untilClose() : none();
+    }
+
+    /**
+     * Parses the Content-Length of a message. The header may be repeated or be a list (RFC 9110, 8.6) if all the values are equal, other
+     * values make the message length unknown and the message must be rejected (RFC 9112, 6.3)
+     *
+     * @param headers
+     *            the message headers
+     * @return the length, -1 if absent
+     * @throws MalformedException
+     *             if a value is not a decimal number or if the values differ
+     */
+    public static long contentLength(final HttpHeaders headers) throws MalformedException {
+        long length = -1;
+        for (int i = 0; i < headers.size(); ++i) {
+            if ("Content-Length".equalsIgnoreCase(headers.getName(i))) {
+                for (String value : headers.getValue(i).split(",", -1)) {
+                    final long parsed = parseLength(value.trim());
+                    if (length > -1 && parsed != length) {
+                        throw new MalformedException("Conflicting Content-Length: " + length + ", " + parsed);
+                    }
+                    length = parsed;
+                }
+            }
+        }
+        return length;
+    }
+
+    private static long parseLength(final String value) throws MalformedException {
+        if (value.isEmpty() || value.length() > MAX_LENGTH_DIGITS) {
+            throw new MalformedException("Invalid Content-Length: " + value);
+        }
+        long length = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                // also rejects the signs accepted by Long.parseLong
+                throw new MalformedException("Invalid Content-Length: " + value);
+            }
+            length = length * 10 + (c - '0');
+        }
+        return length;
+    }
+
+    /**
+     * Consumes the received bytes
+     *
+     * @param bytes
+     *            the buffer
+     * @param offset
+     *            the offset of the received bytes
+     * @param length
+     *            the number of received bytes
+     * @return the number of bytes which belong to the body, the next ones belong to the next message
+     * @throws MalformedException
+     *             if a chunk size is too large
+     */
+    public int advance(final byte[] bytes, final int offset, final int length) throws MalformedException {
+        try {
+            return this.advance(bytes, offset, length, null);
+        } catch (MalformedException e) {
+            throw e;
+        } catch (IOException e) {
+            // cannot happen without sink
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Consumes the received bytes and gives the payload to the sink
+     *
+     * @param bytes
+     *            the buffer
+     * @param offset
+     *            the offset of the received bytes
+     * @param length
+     *            the number of received bytes
+     * @param sink
+     *            the receiver of the payload bytes (nullable)
+     * @return the number of bytes which belong to the body, the next ones belong to the next message
+     * @throws IOException
+     *             if the sink fails, {@link MalformedException} if a chunk size is too large
+     */
+    public int advance(final byte[] bytes, final int offset, final int length, final PayloadSink sink) throws IOException {
+        int i = offset;
+        final int end = offset + length;
+        while (i < end) {
+            switch (this.state) {
+            case DONE:
+                return i - offset;
+            case UNTIL_CLOSE:
+                if (sink != null) {
+                    sink.accept(bytes, i, end - i);
+                }
+                return length;
+            case FIXED:
+            case CHUNK_DATA:
+                final int count = (int) Math.min(this.remaining, end - i);
+                if (sink != null) {
+                    sink.accept(bytes, i, count);
+                }
+                i += count;
+                this.remaining -= count;
+                if (this.remaining == 0) {
+                    this.state = State.FIXED.equals(this.state) ? State.DONE : State.CHUNK_DATA_END;
+                }
+                break;
+            case CHUNK_SIZE:
+                final int digit = Character.digit(bytes[i++], 16);
+                if (digit > -1) {
+                    if (++this.sizeDigits > MAX_SIZE_DIGITS) {
+                        throw new MalformedException("Chunk size too large: more than " + MAX_SIZE_DIGITS + " digits");
+                    }
+                    this.remaining = (this.remaining << 4) + digit;
+                } else if (bytes[i - 1] == '\n') {
+                    this.endChunkSize();
+                } else {
+                    this.state = State.CHUNK_EXTENSION;
+                }
+                break;
+            case CHUNK_EXTENSION:
+                if (bytes[i++] == '\n') {
+                    this.endChunkSize();
+                }
+                break;
+            case CHUNK_DATA_END:
+                if (bytes[i++] == '\n') {
+                    this.state = State.CHUNK_SIZE;
+                }
+                break;
+            case TRAILER_START:
+                final byte b = bytes[i++];
+                if (b == '\n') {
+                    this.state = State.DONE;
+                } else if (b != '\r') {
+                    this.state = State.TRAILER;
+                }
+                break;
+            case TRAILER:
+                if (bytes[i++] == '\n') {
+                    this.state = State.TRAILER_START;
+                }
+                break;
+            default:
+                throw new IllegalStateException(String.valueOf(this.state));
+            }
+        }
+        return i - offset;
+    }
+
+    private void endChunkSize() {
+        if (this.sizeDigits == 0) {
+            // empty line (lenient), waits for the size
+            return;
+        }
+        this.sizeDigits = 0;
+        this.state = this.remaining == 0 ? State.TRAILER_START : State.CHUNK_DATA;
+    }
+
+    /**
+     * Notifies the end of the connection
+     *
+     * @return true, if the body is complete (delimited by the connection or already complete)
+     */
+    public boolean endOfStream() {
+        if (State.UNTIL_CLOSE.equals(this.state)) {
+            this.state = State.DONE;
+        }
+        return this.isComplete();
+    }
+
+    /**
+     * @return true, if the whole body was consumed
+     */
+    public boolean isComplete() {
+        return State.DONE.equals(this.state);
+    }
+
+    /**
+     * @return true, if the body ends with the connection (the connection cannot be reused)
+     */
+    public boolean isUntilClose() {
+        return State.UNTIL_CLOSE.equals(this.state);
+    }
+}
@@ -0,0 +1,78 @@
+package fr.landel.myproxy.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Body with chunked transfer coding, the chunks are decoded
+ */
+public class ChunkedInputStream extends HttpBodyInputStream {
+
+    private long chunkRemaining;
+
+    private boolean complete;
+
+    /**
+     * Constructor
+     *
+     * @param in
+     *            the connection input stream, should be buffered
+     * @category constructor
+     */
+    public ChunkedInputStream(final InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (this.complete) {
+            return -1;
+        }
+        if (this.chunkRemaining == 0) {
+            this.chunkRemaining = this.readChunkSize();
+            if (this.chunkRemaining == 0) {
+                // trailers
+                HttpHeaders.read(this.in);
+                this.complete = true;
+                return -1;
+            }
+        }
+
+        final int read = this.in.read(b, off, (int) Math.min(len, this.chunkRemaining));
+        if (read < 0) {
+            throw new IOException("Connection closed in chunk");
+        }
+        this.chunkRemaining -= read;
+        if (this.chunkRemaining == 0 && !"".equals(HttpUtils.readLine(this.in))) {
+            throw new IOException("Invalid chunk end");
+        }
+        return read;
+    }
+
+    private long readChunkSize() throws IOException {
+        final String line = HttpUtils.readLine(this.in);
+        if (line == null) {
+            throw new IOException("Connection closed before chunk size");
+        }
+        final int extension = line.indexOf(';');
+        try {
+            final long size = Long.parseLong((extension > -1 ? line.substring(0, extension) : line).trim(), 16);
+            if (size < 0) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            return size;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: " + line);
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.complete ? 0 : (int) Math.min(this.in.available(), this.chunkRemaining);
+    }
+
+    @Override
+    public boolean isComplete() {
+        return this.complete;
+    }
+}
@@ -0,0 +1,55 @@
+package fr.landel.myproxy.http;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes a body with the chunked transfer coding, each write is sent as a chunk. {@link #close()} writes the last chunk without closing the
+ * connection.
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+
+    private static final byte[] CRLF = HttpUtils.CRLF.getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LAST_CHUNK = ("0" + HttpUtils.CRLF + HttpUtils.CRLF).getBytes(StandardCharsets.ISO_8859_1);
+
+    private boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param out
+     *            the connection output stream, should be buffered
+     * @category constructor
+     */
+    public ChunkedOutputStream(final OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        this.write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        } else if (len > 0) {
+            this.out.write(Integer.toHexString(len).getBytes(StandardCharsets.ISO_8859_1));
+            this.out.write(CRLF);
+            this.out.write(b, off, len);
+            this.out.write(CRLF);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!this.closed) {
+            this.closed = true;
+            this.out.write(LAST_CHUNK);
+            this.out.flush();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package fr.landel.myproxy.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import fr.landel.myproxy.nio.BufferPool;
+
+/**
+ * Encodes a decoded body with the chunked transfer coding as it's read, each read of the source becomes a chunk and its end the last chunk. Used to
+ * relay a body of unknown length on a persistent HTTP/1.1 connection. The chunk buffer is pooled, it's released on close.
+ */
+public class ChunkingInputStream extends FilterInputStream {
+
+    private static final byte[] LAST_CHUNK = ("0" + HttpUtils.CRLF + HttpUtils.CRLF).getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Maximum size of a chunk with its framing (size line and CRLF)
+     */
+    private static final int MAX_CHUNK = 16_384;
+
+    private final ByteBuffer pooled = BufferPool.HEAP.acquire(MAX_CHUNK);
+    private final byte[] chunk = this.pooled.array();
+    private boolean closed;
+    private int position;
+    private int limit;
+    private boolean ended;
+
+    /**
+     * Constructor
+     *
+     * @param in
+     *            the decoded body
+     * @category constructor
+     */
+    public ChunkingInputStream(final InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        } else if (this.position == this.limit && !this.fill()) {
+            return -1;
+        }
+        final int count = Math.min(len, this.limit - this.position);
+        System.arraycopy(this.chunk, this.position, b, off, count);
+        this.position += count;
+        return count;
+    }
+
+    private boolean fill() throws IOException {
+        if (this.ended) {
+            return false;
+        }
+        // room for the size line (at most 4 hexadecimal digits) and the CRLFs
+        final int read = this.in.read(this.chunk, 6, MAX_CHUNK - 8);
+        if (read < 0) {
+            this.ended = true;
+            System.arraycopy(LAST_CHUNK, 0, this.chunk, 0, LAST_CHUNK.length);
+            this.position = 0;
+            this.limit = LAST_CHUNK.length;
+            return true;
+        }
+        final byte[] size = (Integer.toHexString(read) + HttpUtils.CRLF).getBytes(StandardCharsets.ISO_8859_1);
+        this.position = 6 - size.length;
+        System.arraycopy(size, 0, this.chunk, this.position, size.length);
+        this.chunk[6 + read] = '\r';
+        this.chunk[6 + read + 1] = '\n';
+        this.limit = 6 + read + 2;
+        return true;
+    }
+
+    @Override
+    public int available() {
+        return this.limit - this.position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!this.closed) {
+                this.closed = true;
+                BufferPool.HEAP.release(this.pooled);
+            }
+        }
+    }
+}
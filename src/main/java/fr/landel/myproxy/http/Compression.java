@@ -0,0 +1,253 @@
+package fr.landel.myproxy.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+
+/**
+ * Content codings of the responses: the compressible types ("compression/types") are encoded in gzip or deflate for the clients accepting it,
+ * and a gzip variant of each compressible cache file is kept next to it ({@link #variant(File)}) to serve the cache hits without compressing
+ * again.
+ * <p>
+ * Compressing isn't always worth its CPU: a body below "min-size" bytes is sent as is, like a body whose first bytes (the sample) don't shrink
+ * below "max-ratio" at the fastest level (already compressed data), and nothing is compressed while the load average per core is above "max-load".
+ * </p>
+ */
+public class Compression {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final String METRICS = "compression.";
+
+    private static final String DEFAULT_TYPES = "text/html,text/plain,text/css,text/xml,text/javascript,application/javascript,application/json,"
+            + "application/xml,image/svg+xml";
+
+    /**
+     * Size of the sample of the body checked before encoding
+     */
+    private static final int SAMPLE_SIZE = 4_096;
+
+    private static final int BUFFER_SIZE = 8_192;
+
+    private static final long LOAD_CHECK_PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    private final int level;
+    private final int minSize;
+    private final double maxRatio;
+    private final double maxLoad;
+    private final Set<String> types;
+
+    private final OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+    private volatile boolean overloaded;
+    private volatile long loadCheck = System.nanoTime() - LOAD_CHECK_PERIOD;
+
+    private final LongAdder encoded = Metrics.counter(METRICS + "encoded");
+    private final LongAdder skippedSmall = Metrics.counter(METRICS + "skipped.small");
+    private final LongAdder skippedIncompressible = Metrics.counter(METRICS + "skipped.incompressible");
+    private final LongAdder skippedLoad = Metrics.counter(METRICS + "skipped.load");
+
+    /**
+     * Constructor
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/compression")
+     * @category constructor
+     */
+    public Compression(final Configuration configuration) {
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, configuration.getInt("proxy/compression/level", 6)));
+        this.minSize = Math.max(0, configuration.getInt("proxy/compression/min-size", 1_024));
+        this.maxRatio = configuration.getDouble("proxy/compression/max-ratio", 0.9);
+        this.maxLoad = configuration.getDouble("proxy/compression/max-load", 1.5);
+        this.types = Stream.of(configuration.getString("proxy/compression/types", DEFAULT_TYPES).split(",")).map(String::trim)
+                .filter(type -> !type.isEmpty()).map(type -> type.toLowerCase(Locale.ROOT)).collect(Collectors.toSet());
+    }
+
+    /**
+     * Selects the coding of the response in the "Accept-Encoding" header of the request, gzip is preferred to deflate at equal quality
+     *
+     * @param requestHeaders
+     *            the request headers
+     * @return {@link #GZIP}, {@link #DEFLATE} or null if the client doesn't accept any of them
+     */
+    public String negotiate(final HttpHeaders requestHeaders) {
+        final String accept = requestHeaders.get("Accept-Encoding");
+        if (accept == null) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String element : accept.split(",")) {
+            final String[] parameters = element.split(";");
+            final String coding = parameters[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parameters.length; ++i) {
+                final String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                gzip = quality;
+            } else if (DEFLATE.equals(coding)) {
+                deflate = quality;
+            } else if ("*".equals(coding)) {
+                any = quality;
+            }
+        }
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        } else if (deflate > 0) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Checks the head of a response to a GET request: body of a compressible type, not encoded yet, without "no-transform" and not known to be
+     * smaller than "min-size"
+     *
+     * @param head
+     *            the response head
+     * @return true, if the body may be compressed (its sample is still to check)
+     */
+    public boolean isCandidate(final HttpResponseHead head) {
+        final HttpHeaders headers = head.getHeaders();
+        final String encoding = headers.get("Content-Encoding");
+        final String type = headers.get("Content-Type");
+        if (!head.hasBody("GET") || type == null || (encoding != null && !"identity".equalsIgnoreCase(encoding.trim()))
+                || headers.containsToken("Cache-Control", "no-transform")) {
+            return false;
+        }
+        final int parameters = type.indexOf(';');
+        if (!this.types.contains((parameters > -1 ? type.substring(0, parameters) : type).trim().toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+        final long length = head.isChunked() ? -1 : head.getContentLength();
+        if (length > -1 && length < this.minSize) {
+            this.skippedSmall.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bytes of the body to read before {@link #isWorth(byte[], boolean)}
+     */
+    public int getSampleSize() {
+        return Math.max(this.minSize, SAMPLE_SIZE);
+    }
+
+    /**
+     * Checks the first bytes of a candidate body and the load of the machine
+     *
+     * @param sample
+     *            the first bytes of the body, up to {@link #getSampleSize()}
+     * @param ended
+     *            true, if the sample is the whole body
+     * @return true, if the body is worth compressing
+     */
+    public boolean isWorth(final byte[] sample, final boolean ended) {
+        if (ended && sample.length < this.minSize) {
+            this.skippedSmall.increment();
+            return false;
+        } else if (this.isOverloaded()) {
+            this.skippedLoad.increment();
+            return false;
+        }
+
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            final byte[] output = new byte[sample.length];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < output.length) {
+                compressed += deflater.deflate(output, compressed, output.length - compressed);
+            }
+            if (!deflater.finished() || compressed > sample.length * this.maxRatio) {
+                this.skippedIncompressible.increment();
+                return false;
+            }
+        } finally {
+            deflater.end();
+        }
+        this.encoded.increment();
+        return true;
+    }
+
+    /**
+     * The load average is read at most once per second
+     */
+    private boolean isOverloaded() {
+        final long now = System.nanoTime();
+        if (now - this.loadCheck >= LOAD_CHECK_PERIOD) {
+            this.loadCheck = now;
+            // negative if not available
+            final double load = this.system.getSystemLoadAverage();
+            this.overloaded = load / this.system.getAvailableProcessors() > this.maxLoad;
+        }
+        return this.overloaded;
+    }
+
+    /**
+     * Encodes a body, the returned stream has to be closed to end the encoding, which closes the specified stream
+     *
+     * @param coding
+     *            {@link #GZIP} or {@link #DEFLATE} (zlib format, as HTTP defines it)
+     * @param out
+     *            the stream of the encoded body
+     * @return the stream of the body to encode
+     * @throws IOException
+     *             if the gzip header cannot be written
+     */
+    public OutputStream encode(final String coding, final OutputStream out) throws IOException {
+        if (GZIP.equals(coding)) {
+            return new GZIPOutputStream(out, BUFFER_SIZE) {
+                {
+                    this.def.setLevel(Compression.this.level);
+                }
+            };
+        }
+        return new DeflaterOutputStream(out, new Deflater(this.level), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    this.def.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * @param cacheFile
+     *            a cache file
+     * @return the file of its gzip variant, may not exist
+     */
+    public File variant(final File cacheFile) {
+        return new File(cacheFile.getParentFile(), cacheFile.getName() + ".gz");
+    }
+}
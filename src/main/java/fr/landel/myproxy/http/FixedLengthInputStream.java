@@ -0,0 +1,49 @@
+package fr.landel.myproxy.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Body delimited by its Content-Length
+ */
+public class FixedLengthInputStream extends HttpBodyInputStream {
+
+    private long remaining;
+
+    /**
+     * Constructor
+     *
+     * @param in
+     *            the connection input stream
+     * @param length
+     *            the body length
+     * @category constructor
+     */
+    public FixedLengthInputStream(final InputStream in, final long length) {
+        super(in);
+        this.remaining = length;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (this.remaining == 0) {
+            return -1;
+        }
+        final int read = this.in.read(b, off, (int) Math.min(len, this.remaining));
+        if (read < 0) {
+            throw new IOException("Connection closed with " + this.remaining + " bytes of body remaining");
+        }
+        this.remaining -= read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(this.in.available(), this.remaining);
+    }
+
+    @Override
+    public boolean isComplete() {
+        return this.remaining == 0;
+    }
+}
@@ -0,0 +1,256 @@
+package fr.landel.myproxy.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.utils.Logger;
+import fr.landel.myproxy.utils.ThreadUtils;
+
+/**
+ * Sends the GET requests of the origins reached directly over HTTP/2, with the {@link HttpClient} of the JDK: all the concurrent requests to an
+ * origin are multiplexed on a single connection. The https origins negotiate h2 with ALPN, the http ones with an h2c upgrade of their first request
+ * ("http2/cleartext", few servers support it).
+ * <p>
+ * An origin answering in HTTP/1.1 (or failing in HTTP/2) falls back to the {@link UpstreamPool} for "http2/fallback-ttl". The flow control windows
+ * bound the bytes buffered per stream and per connection until the client reads them: a stream window smaller than the default of the JDK (16MB)
+ * keeps a slow client from making the proxy buffer its whole response, the connection window lets the other streams go on meanwhile.
+ * </p>
+ */
+public class Http2Transport {
+
+    private static final Logger LOG = new Logger(Http2Transport.class);
+
+    private static final String METRICS = "upstream.http2.";
+
+    /**
+     * Headers of the connection, the body is decoded
+     */
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "te",
+            "trailer");
+
+    private final boolean cleartext;
+    private final long fallbackTtl;
+    private final Duration readTimeout;
+    private final ParentRouter router;
+
+    private final ExecutorService executor;
+    private final HttpClient client;
+
+    /**
+     * Origins served by the {@link UpstreamPool}, with the end of their fallback ({@link System#nanoTime()} time base)
+     */
+    private final Map<String, Long> fallbacks = new ConcurrentHashMap<>();
+
+    private final LongAdder requests = Metrics.counter(METRICS + "requests");
+    private final LongAdder fallen = Metrics.counter(METRICS + "fallbacks");
+
+    /**
+     * Response head received over HTTP/2, with its body
+     */
+    public static final class Response {
+
+        private final HttpResponseHead head;
+        private final InputStream body;
+
+        private Response(final HttpResponseHead head, final InputStream body) {
+            this.head = head;
+            this.body = body;
+        }
+
+        /**
+         * @return the head, in HTTP/1.1 form: without hop-by-hop headers and chunked if the length is unknown
+         */
+        public HttpResponseHead getHead() {
+            return this.head;
+        }
+
+        /**
+         * @return the body, framed as its head says
+         */
+        public InputStream getBody() {
+            return this.body;
+        }
+    }
+
+    /**
+     * Constructor, the flow control settings are global to the JDK client
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/http2")
+     * @param router
+     *            the router to the parent proxies, the origins reached through a parent are never sent to HTTP/2
+     * @category constructor
+     */
+    public Http2Transport(final Configuration configuration, final ParentRouter router) {
+        this.router = router;
+        this.cleartext = configuration.getBoolean("proxy/http2/cleartext", false);
+        this.fallbackTtl = configuration.getDuration("proxy/http2/fallback-ttl", Duration.ofHours(1)).toNanos();
+        this.readTimeout = Duration.ofMillis(configuration.getInt("proxy/timeout", 30_000));
+
+        // read by the client for each new connection
+        System.setProperty("jdk.httpclient.windowsize", String.valueOf(configuration.getInt("proxy/http2/stream-window", 1_048_576)));
+        System.setProperty("jdk.httpclient.connectionWindowSize", String.valueOf(configuration.getInt("proxy/http2/connection-window", 16_777_216)));
+        System.setProperty("jdk.httpclient.maxframesize", String.valueOf(configuration.getInt("proxy/http2/max-frame-size", 65_536)));
+        System.setProperty("jdk.httpclient.enablepush", "0");
+
+        this.executor = Executors.newCachedThreadPool(ThreadUtils.platformThreadFactory("myproxy-http2-", true));
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(configuration.getDuration("proxy/upstream-pool/connect-timeout", Duration.ofSeconds(10))).executor(this.executor)
+                .build();
+    }
+
+    /**
+     * @param url
+     *            the requested URL
+     * @return true, if the request is sent over HTTP/2: direct origin, not fallen back
+     */
+    public boolean accepts(final URL url) {
+        final boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+        if (!secure && (!this.cleartext || !"http".equalsIgnoreCase(url.getProtocol()))) {
+            return false;
+        }
+        final Long until = this.fallbacks.get(origin(url));
+        if (until != null) {
+            if (System.nanoTime() - until < 0) {
+                return false;
+            }
+            this.fallbacks.remove(origin(url), until);
+        }
+        return this.router.isDirect(url.getHost(), secure);
+    }
+
+    /**
+     * Sends the GET request, the origin falls back to HTTP/1.1 if it doesn't answer in HTTP/2
+     *
+     * @param url
+     *            the requested URL
+     * @param headers
+     *            the additional request headers (nullable)
+     * @return the response, its body has to be closed
+     * @throws IOException
+     *             if no response is received
+     */
+    public Response fetch(final URL url, final HttpHeaders headers) throws IOException {
+        this.requests.increment();
+        final HttpResponse<InputStream> response;
+        try {
+            final HttpRequest.Builder builder = HttpRequest.newBuilder(url.toURI()).GET().timeout(this.readTimeout);
+            for (int i = 0; headers != null && i < headers.size(); ++i) {
+                try {
+                    builder.header(headers.getName(i), headers.getValue(i));
+                } catch (IllegalArgumentException e) {
+                    // restricted by the HTTP client (ex: Via, Date), set by it or not sent
+                }
+            }
+            final HttpRequest request = builder.build();
+            response = this.client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (ConnectException | UnknownHostException | HttpTimeoutException e) {
+            // not related to the protocol
+            throw e;
+        } catch (IOException e) {
+            this.fallback(url, e.getMessage());
+            throw e;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Invalid URL " + url + ": " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + url, e);
+        }
+        if (response.version() != HttpClient.Version.HTTP_2) {
+            this.fallback(url, "answered in " + response.version());
+        }
+        return toResponse(response);
+    }
+
+    private void fallback(final URL url, final String reason) {
+        if (this.fallbacks.put(origin(url), System.nanoTime() + this.fallbackTtl) == null) {
+            this.fallen.increment();
+            LOG.info("HTTP/1.1 fallback for {}: {}", origin(url), reason);
+        }
+    }
+
+    private static Response toResponse(final HttpResponse<InputStream> response) {
+        final HttpHeaders headers = new HttpHeaders();
+        for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+            final String name = header.getKey();
+            if (!name.startsWith(":") && !HOP_BY_HOP.contains(name.toLowerCase())) {
+                for (String value : header.getValue()) {
+                    headers.add(name, value);
+                }
+            }
+        }
+        HttpResponseHead head = new HttpResponseHead("HTTP/1.1", response.statusCode(), reason(response.statusCode()), headers);
+
+        InputStream body = response.body();
+        if (head.hasBody("GET") && head.getContentLength() < 0) {
+            headers.add("Transfer-Encoding", "chunked");
+            head = new HttpResponseHead("HTTP/1.1", response.statusCode(), reason(response.statusCode()), headers);
+            body = new ChunkingInputStream(body);
+        }
+        return new Response(head, body);
+    }
+
+    /**
+     * HTTP/2 has no reason phrase
+     */
+    private static String reason(final int status) {
+        switch (status) {
+        case 200:
+            return "OK";
+        case 206:
+            return "Partial Content";
+        case 301:
+            return "Moved Permanently";
+        case 302:
+            return "Found";
+        case 304:
+            return "Not Modified";
+        case 400:
+            return "Bad Request";
+        case 403:
+            return "Forbidden";
+        case 404:
+            return "Not Found";
+        case 500:
+            return "Internal Server Error";
+        case 502:
+            return "Bad Gateway";
+        case 503:
+            return "Service Unavailable";
+        case 504:
+            return "Gateway Timeout";
+        default:
+            return "";
+        }
+    }
+
+    private static String origin(final URL url) {
+        final int port = url.getPort() > -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+    }
+
+    /**
+     * Stops the threads of the client, its connections are closed once idle
+     */
+    public void close() {
+        this.executor.shutdownNow();
+    }
+}
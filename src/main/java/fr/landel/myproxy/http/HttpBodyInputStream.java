@@ -0,0 +1,80 @@
+package fr.landel.myproxy.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Body of a HTTP message, the stream ends with the message (not with the connection), so the connection can be reused once the body is complete.
+ * Closing this stream doesn't close the connection.
+ */
+public abstract class HttpBodyInputStream extends FilterInputStream {
+
+    protected HttpBodyInputStream(final InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Gets the body stream following the response framing
+     * 
+     * @param head
+     *            the response head
+     * @param method
+     *            the request method
+     * @param in
+     *            the connection input stream, positioned after the head
+     * @return the body stream
+     */
+    public static HttpBodyInputStream of(final HttpResponseHead head, final String method, final InputStream in) {
+        if (!head.hasBody(method)) {
+            return new FixedLengthInputStream(in, 0);
+        } else if (head.isChunked()) {
+            return new ChunkedInputStream(in);
+        } else if (head.getContentLength() > -1) {
+            return new FixedLengthInputStream(in, head.getContentLength());
+        }
+        return new UntilCloseInputStream(in);
+    }
+
+    /**
+     * @return true, if the whole body was read and the connection is positioned on the next message
+     */
+    public abstract boolean isComplete();
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // the connection is released by its owner
+    }
+
+    /**
+     * Body delimited by the end of the connection
+     */
+    private static class UntilCloseInputStream extends HttpBodyInputStream {
+
+        private UntilCloseInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            return this.in.read(b, off, len);
+        }
+
+        @Override
+        public boolean isComplete() {
+            // the connection cannot be reused
+            return false;
+        }
+    }
+}
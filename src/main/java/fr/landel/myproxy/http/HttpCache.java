@@ -0,0 +1,734 @@
+package fr.landel.myproxy.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.utils.Logger;
+
+/**
+ * Shared HTTP cache of the GET responses ("proxy/cache"), following the freshness rules of RFC 9111. Each entry is a cache file (the body
+ * without its framing) and its stored response head, kept in the entry; the index of the entries is saved on close.
+ * <p>
+ * Each stored response gets a new cache file ({@link #newFile(String)}), never rewritten: the entry of the URL is switched at once to the new
+ * file and its head, so a concurrent hit serves the former body with the former head or the new body with the new head. The replaced files
+ * are deleted after a delay, long enough for the hits which got the former entry to open them.
+ * </p>
+ * <p>
+ * The cache files (bodies and gzip variants) are bounded to "max-size" bytes: beyond, the least recently used entries are removed.
+ * </p>
+ * <p>
+ * A response is fresh for its "s-maxage", its "max-age" or until its "Expires"; without them, for a fraction ("heuristic-fraction") of the time
+ * elapsed since its "Last-Modified", at most "heuristic-max". Its age includes the "Age" given by the upstream caches and the time spent in
+ * transit. A stale entry (or one the client wants validated) is revalidated by a conditional request, with its "ETag" and its "Last-Modified":
+ * a 304 refreshes its head and its freshness, the body isn't downloaded again.
+ * </p>
+ * <p>
+ * The responses "no-store" or "private", the requests "no-store", the authorized requests (unless the response is explicitly shareable) and the
+ * responses varying on another request header than Accept-Encoding (the variants aren't keyed) aren't stored.
+ * </p>
+ */
+public class HttpCache {
+
+    private static final Logger LOG = new Logger(HttpCache.class);
+
+    private static final String METRICS = "cache.";
+
+    /**
+     * Headers not stored, nor updated by a 304: the framing and hop-by-hop headers
+     */
+    private static final Set<String> NOT_STORED = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "content-length");
+
+    private static final int MAX_NAME_LENGTH = 100;
+
+    /**
+     * Delay before the deletion of the files of a replaced or removed entry
+     */
+    private static final long RETIRED_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Once "max-size" is exceeded, entries are removed down to this ratio of it, so the next responses don't remove one entry each
+     */
+    private static final double EVICTION_RATIO = 0.9;
+
+    private final File directory;
+    private final double heuristicFraction;
+    private final long heuristicMax;
+    private final long maxSize;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Bytes of the cache files of the entries
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Files of the replaced and removed entries, by removal time
+     */
+    private final Queue<Retired> retired = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hits = Metrics.counter(METRICS + "hits");
+    private final LongAdder stale = Metrics.counter(METRICS + "stale");
+    private final LongAdder misses = Metrics.counter(METRICS + "misses");
+    private final LongAdder revalidated = Metrics.counter(METRICS + "revalidated");
+    private final LongAdder stored = Metrics.counter(METRICS + "stored");
+    private final LongAdder evictions = Metrics.counter(METRICS + "evictions");
+
+    /**
+     * Cached response: its files, its head, its age and freshness, its validators
+     */
+    public static final class Entry implements Serializable {
+
+        private static final long serialVersionUID = 2L;
+
+        private final File file;
+
+        /**
+         * Gzip variant of the file, null without variant
+         */
+        private final File variant;
+
+        /**
+         * Bytes of the file and its variant
+         */
+        private final long size;
+
+        /**
+         * Stored response head (status line and headers)
+         */
+        private final String head;
+
+        /**
+         * Time of the response (epoch milliseconds)
+         */
+        private final long responseTime;
+
+        /**
+         * Age of the response when received (milliseconds)
+         */
+        private final long initialAge;
+
+        /**
+         * Freshness lifetime (milliseconds), 0 to revalidate at each request
+         */
+        private final long lifetime;
+
+        private final String etag;
+        private final String lastModified;
+
+        /**
+         * Time of the last hit or store (epoch milliseconds), the order of the evictions
+         */
+        private volatile long lastAccess;
+
+        private Entry(final File file, final File variant, final String head, final long responseTime, final long initialAge, final long lifetime,
+                final String etag, final String lastModified) {
+            this.file = file;
+            this.variant = variant;
+            this.size = file.length() + (variant != null ? variant.length() : 0);
+            this.head = head;
+            this.lastAccess = System.currentTimeMillis();
+            this.responseTime = responseTime;
+            this.initialAge = initialAge;
+            this.lifetime = lifetime;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the cache file, the body of the response
+         */
+        public File getFile() {
+            return this.file;
+        }
+
+        /**
+         * @return the stored response head, without framing headers
+         * @throws IOException
+         *             if the head is invalid
+         */
+        public HttpResponseHead getHead() throws IOException {
+            try (InputStream headIs = new ByteArrayInputStream(this.head.getBytes(StandardCharsets.ISO_8859_1))) {
+                return HttpResponseHead.read(headIs);
+            }
+        }
+
+        /**
+         * @param now
+         *            the current time (epoch milliseconds)
+         * @return the current age (milliseconds)
+         */
+        public long getAge(final long now) {
+            return this.initialAge + Math.max(0, now - this.responseTime);
+        }
+
+        /**
+         * @return the freshness lifetime (milliseconds)
+         */
+        public long getLifetime() {
+            return this.lifetime;
+        }
+
+        /**
+         * @param now
+         *            the current time (epoch milliseconds)
+         * @return true, if the entry can be served without revalidation
+         */
+        public boolean isFresh(final long now) {
+            return this.getAge(now) < this.lifetime;
+        }
+
+        /**
+         * @return the conditions of a revalidation request (If-None-Match and If-Modified-Since, empty without validators)
+         */
+        public HttpHeaders getConditions() {
+            final HttpHeaders conditions = new HttpHeaders();
+            if (this.etag != null) {
+                conditions.add("If-None-Match", this.etag);
+            }
+            if (this.lastModified != null) {
+                conditions.add("If-Modified-Since", this.lastModified);
+            }
+            return conditions;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/cache")
+     * @param directory
+     *            the directory of the cache files
+     * @category constructor
+     */
+    public HttpCache(final Configuration configuration, final File directory) {
+        this.directory = directory;
+        this.heuristicFraction = Math.max(0, configuration.getDouble("proxy/cache/heuristic-fraction", 0.1));
+        this.heuristicMax = configuration.getDuration("proxy/cache/heuristic-max", Duration.ofHours(24)).toMillis();
+        this.maxSize = configuration.getLong("proxy/cache/max-size", 1L << 30);
+
+        Metrics.gauge(METRICS + "hit-rate-percent", () -> Metrics.percent(this.hits.sum(), this.hits.sum() + this.stale.sum() + this.misses.sum()));
+        Metrics.gauge(METRICS + "entries", this.entries::size);
+        Metrics.gauge(METRICS + "size-bytes", this.size::get);
+    }
+
+    /**
+     * Creates a new cache file for a response of a URL: a readable form of the URL, completed by its hash so the distinct URLs never share a
+     * file, and by a unique suffix so each response has its own file
+     *
+     * @param url
+     *            the URL
+     * @return the empty cache file, to give to {@link #put(String, File, File, HttpResponseHead, long, long)} or to delete
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    public File newFile(final String url) throws IOException {
+        String name = url.replaceFirst("^[A-Za-z]+://(www\\.)?", "").replaceAll("[^A-Za-z0-9._-]", "_");
+        if (name.length() > MAX_NAME_LENGTH) {
+            name = name.substring(0, MAX_NAME_LENGTH);
+        }
+        return Files.createTempFile(this.directory.toPath(), name + '-' + hash(url) + '-', "").toFile();
+    }
+
+    private static String hash(final String url) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder hex = new StringBuilder(16);
+            for (int i = 0; i < 8; ++i) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param url
+     *            the URL
+     * @return the entry of the URL (fresh or not), null if not cached
+     */
+    public Entry get(final String url) {
+        final Entry entry = this.entries.get(url);
+        if (entry == null) {
+            this.misses.increment();
+        } else if (!entry.file.isFile()) {
+            // removed from the disk
+            if (this.entries.remove(url, entry)) {
+                this.size.addAndGet(-entry.size);
+            }
+            this.misses.increment();
+            return null;
+        } else {
+            entry.lastAccess = System.currentTimeMillis();
+        }
+        return entry;
+    }
+
+    /**
+     * @return the URLs cached (view)
+     */
+    public Set<String> getUrls() {
+        return Collections.unmodifiableSet(this.entries.keySet());
+    }
+
+    /**
+     * Checks if an entry satisfies a request without revalidation, counted as hit or stale
+     *
+     * @param entry
+     *            the entry
+     * @param request
+     *            the request of the client ("no-cache", "max-age" and "min-fresh" are honored)
+     * @param now
+     *            the current time (epoch milliseconds)
+     * @return true, if the entry can be served
+     */
+    public boolean isFresh(final Entry entry, final HttpRequestHead request, final long now) {
+        final Map<String, String> directives = directives(request.getHeaders());
+        boolean fresh;
+        if (directives.containsKey("no-cache") || (directives.isEmpty() && request.getHeaders().containsToken("Pragma", "no-cache"))) {
+            fresh = false;
+        } else {
+            long lifetime = entry.lifetime;
+            final long maxAge = seconds(directives.get("max-age"));
+            if (maxAge > -1) {
+                // an age of max-age seconds is still accepted
+                lifetime = Math.min(lifetime, maxAge * 1_000 + 1);
+            }
+            final long minFresh = seconds(directives.get("min-fresh"));
+            fresh = entry.getAge(now) + Math.max(0, minFresh) * 1_000 < lifetime;
+        }
+
+        if (fresh) {
+            this.hits.increment();
+        } else {
+            this.stale.increment();
+        }
+        return fresh;
+    }
+
+    /**
+     * A personal request (with credentials or cookies) may get a personalized response: it isn't served from the cache, its response is only
+     * stored if explicitly shareable
+     *
+     * @param request
+     *            the request of the client
+     * @return true, if the request carries credentials or cookies
+     */
+    public static boolean isPersonal(final HttpRequestHead request) {
+        return request.getHeaders().contains("Authorization") || request.getHeaders().contains("Cookie");
+    }
+
+    /**
+     * @param request
+     *            the request of the client
+     * @param response
+     *            the response of the origin
+     * @return true, if the response can be stored
+     */
+    public static boolean isStorable(final HttpRequestHead request, final HttpResponseHead response) {
+        if (!"GET".equals(request.getMethod()) || response.getStatus() != 200) {
+            return false;
+        }
+        final Map<String, String> requestDirectives = directives(request.getHeaders());
+        final Map<String, String> responseDirectives = directives(response.getHeaders());
+        if (requestDirectives.containsKey("no-store") || responseDirectives.containsKey("no-store") || responseDirectives.containsKey("private")) {
+            return false;
+        } else if (isPersonal(request) && !responseDirectives.containsKey("public")
+                && !responseDirectives.containsKey("s-maxage") && !responseDirectives.containsKey("must-revalidate")) {
+            return false;
+        }
+
+        final HttpHeaders headers = response.getHeaders();
+        for (int i = 0; i < headers.size(); ++i) {
+            if ("Vary".equalsIgnoreCase(headers.getName(i))) {
+                for (String field : headers.getValue(i).split(",")) {
+                    final String name = field.trim();
+                    if (!name.isEmpty() && !"Accept-Encoding".equalsIgnoreCase(name)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores a response whose body is already written to its cache file, the previous entry of the URL is replaced
+     *
+     * @param url
+     *            the URL
+     * @param file
+     *            the cache file, from {@link #newFile(String)}
+     * @param variant
+     *            the gzip variant of the file (nullable, ignored if it doesn't exist)
+     * @param head
+     *            the response head
+     * @param requestTime
+     *            the time of the request (epoch milliseconds)
+     * @param responseTime
+     *            the time of the response (epoch milliseconds)
+     * @return the entry
+     */
+    public Entry put(final String url, final File file, final File variant, final HttpResponseHead head, final long requestTime,
+            final long responseTime) {
+        final HttpHeaders headers = new HttpHeaders();
+        for (int i = 0; i < head.getHeaders().size(); ++i) {
+            if (!NOT_STORED.contains(head.getHeaders().getName(i).toLowerCase(Locale.ROOT))) {
+                headers.add(head.getHeaders().getName(i), head.getHeaders().getValue(i));
+            }
+        }
+        final HttpResponseHead storedHead = new HttpResponseHead(head.getVersion(), head.getStatus(), head.getReason(), headers);
+
+        final Entry entry = this.entry(file, variant != null && variant.isFile() ? variant : null, storedHead, requestTime, responseTime);
+        this.size.addAndGet(entry.size);
+        final Entry previous = this.entries.put(url, entry);
+        if (previous != null) {
+            this.size.addAndGet(-previous.size);
+            this.retire(previous);
+        }
+        this.stored.increment();
+
+        if (this.size.get() > this.maxSize) {
+            this.evict();
+        }
+        this.purge(false);
+        return entry;
+    }
+
+    /**
+     * Refreshes an entry validated by a 304: the headers of the 304 replace the stored ones
+     *
+     * @param url
+     *            the URL
+     * @param entry
+     *            the stale entry
+     * @param notModified
+     *            the 304 response head
+     * @param requestTime
+     *            the time of the conditional request (epoch milliseconds)
+     * @param responseTime
+     *            the time of the 304 (epoch milliseconds)
+     * @return the refreshed entry, not stored if the entry was replaced in the meantime
+     * @throws IOException
+     *             if the stored head is invalid
+     */
+    public Entry revalidate(final String url, final Entry entry, final HttpResponseHead notModified, final long requestTime,
+            final long responseTime) throws IOException {
+        final HttpResponseHead storedHead = entry.getHead();
+        final HttpHeaders updates = notModified.getHeaders();
+
+        final HttpHeaders headers = new HttpHeaders();
+        for (int i = 0; i < storedHead.getHeaders().size(); ++i) {
+            if (!updates.contains(storedHead.getHeaders().getName(i))) {
+                headers.add(storedHead.getHeaders().getName(i), storedHead.getHeaders().getValue(i));
+            }
+        }
+        for (int i = 0; i < updates.size(); ++i) {
+            if (!NOT_STORED.contains(updates.getName(i).toLowerCase(Locale.ROOT))) {
+                headers.add(updates.getName(i), updates.getValue(i));
+            }
+        }
+        final HttpResponseHead head = new HttpResponseHead(storedHead.getVersion(), storedHead.getStatus(), storedHead.getReason(), headers);
+
+        // same files, same size
+        final Entry refreshed = this.entry(entry.file, entry.variant, head, requestTime, responseTime);
+        this.entries.replace(url, entry, refreshed);
+        this.revalidated.increment();
+        return refreshed;
+    }
+
+    /**
+     * Removes the entry of a URL, its files are deleted after a delay
+     *
+     * @param url
+     *            the URL
+     */
+    public void remove(final String url) {
+        final Entry entry = this.entries.remove(url);
+        if (entry != null) {
+            this.size.addAndGet(-entry.size);
+            this.retire(entry);
+        }
+        this.purge(false);
+    }
+
+    /**
+     * Removes the least recently used entries, down to {@link #EVICTION_RATIO} of "max-size"
+     */
+    private synchronized void evict() {
+        final long target = (long) (this.maxSize * EVICTION_RATIO);
+        if (this.size.get() <= target) {
+            return;
+        }
+        final List<Map.Entry<String, Entry>> candidates = new ArrayList<>(this.entries.entrySet());
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.getValue().lastAccess));
+        for (int i = 0; i < candidates.size() && this.size.get() > target; ++i) {
+            final Map.Entry<String, Entry> candidate = candidates.get(i);
+            if (this.entries.remove(candidate.getKey(), candidate.getValue())) {
+                this.size.addAndGet(-candidate.getValue().size);
+                this.retire(candidate.getValue());
+                this.evictions.increment();
+            }
+        }
+    }
+
+    private void retire(final Entry entry) {
+        this.retired.add(new Retired(entry, System.currentTimeMillis()));
+    }
+
+    /**
+     * Deletes the files of the entries retired since {@link #RETIRED_DELAY}
+     *
+     * @param all
+     *            true to delete all of them, once no hit can read them anymore
+     */
+    private void purge(final boolean all) {
+        final long limit = System.currentTimeMillis() - RETIRED_DELAY;
+        Retired first;
+        while ((first = this.retired.peek()) != null && (all || first.time < limit)) {
+            if (this.retired.remove(first)) {
+                try {
+                    Files.deleteIfExists(first.entry.file.toPath());
+                    if (first.entry.variant != null) {
+                        Files.deleteIfExists(first.entry.variant.toPath());
+                    }
+                } catch (IOException e) {
+                    LOG.error("Cannot delete the cache file {}: {}", first.entry.file, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Files of a replaced or removed entry
+     */
+    private static final class Retired {
+
+        private final Entry entry;
+        private final long time;
+
+        private Retired(final Entry entry, final long time) {
+            this.entry = entry;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Computes the age and the freshness of a response (RFC 9111, 4.2)
+     */
+    private Entry entry(final File file, final File variant, final HttpResponseHead head, final long requestTime, final long responseTime) {
+        final HttpHeaders headers = head.getHeaders();
+        final long date = parseDate(headers.get("Date"), responseTime);
+        final long age = seconds(headers.get("Age"));
+
+        final long apparentAge = Math.max(0, responseTime - date);
+        final long correctedAge = Math.max(0, age) * 1_000 + Math.max(0, responseTime - requestTime);
+
+        final String text = headers.appendTo(new StringBuilder(512).append(head.getStatusLine()).append(HttpUtils.CRLF)).toString();
+        return new Entry(file, variant, text, responseTime, Math.max(apparentAge, correctedAge), this.lifetime(headers, date),
+                headers.get("ETag"), headers.get("Last-Modified"));
+    }
+
+    /**
+     * @return the freshness lifetime of a response (milliseconds)
+     */
+    long lifetime(final HttpHeaders headers, final long date) {
+        final Map<String, String> directives = directives(headers);
+        if (directives.containsKey("no-cache")) {
+            return 0;
+        }
+
+        // shared cache: s-maxage first
+        long seconds = seconds(directives.get("s-maxage"));
+        if (seconds < 0) {
+            seconds = seconds(directives.get("max-age"));
+        }
+        if (seconds > -1) {
+            return seconds * 1_000;
+        }
+
+        final String expires = headers.get("Expires");
+        if (expires != null) {
+            // an invalid date (ex: "0") is in the past
+            return Math.max(0, parseDate(expires, date) - date);
+        }
+
+        final long lastModified = parseDate(headers.get("Last-Modified"), date);
+        if (lastModified < date) {
+            return Math.min(this.heuristicMax, (long) ((date - lastModified) * this.heuristicFraction));
+        }
+        return 0;
+    }
+
+    /**
+     * Parses the Cache-Control directives
+     *
+     * @param headers
+     *            the headers
+     * @return the directives by lower case name, the value unquoted (empty without value)
+     */
+    static Map<String, String> directives(final HttpHeaders headers) {
+        final Map<String, String> directives = new HashMap<>();
+        for (int i = 0; i < headers.size(); ++i) {
+            if (!"Cache-Control".equalsIgnoreCase(headers.getName(i))) {
+                continue;
+            }
+            final String value = headers.getValue(i);
+            int start = 0;
+            boolean quoted = false;
+            for (int j = 0; j <= value.length(); ++j) {
+                if (j == value.length() || (value.charAt(j) == ',' && !quoted)) {
+                    final String directive = value.substring(start, j).trim();
+                    final int equals = directive.indexOf('=');
+                    if (equals > 0) {
+                        directives.putIfAbsent(directive.substring(0, equals).trim().toLowerCase(Locale.ROOT),
+                                directive.substring(equals + 1).trim().replace("\"", ""));
+                    } else if (!directive.isEmpty()) {
+                        directives.putIfAbsent(directive.toLowerCase(Locale.ROOT), "");
+                    }
+                    start = j + 1;
+                } else if (value.charAt(j) == '"') {
+                    quoted = !quoted;
+                }
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * @return the delta-seconds, -1 if absent or invalid
+     */
+    private static long seconds(final String value) {
+        if (value == null || value.isEmpty()) {
+            return -1;
+        }
+        for (int i = 0; i < value.length(); ++i) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return -1;
+            }
+        }
+        // beyond 2^31 seconds, the value is capped (RFC 9111, 1.2.2)
+        return value.length() > 10 ? Integer.MAX_VALUE : Math.min(Integer.MAX_VALUE, Long.parseLong(value));
+    }
+
+    /**
+     * @return the HTTP date (epoch milliseconds), the default value if absent or invalid
+     */
+    private static long parseDate(final String value, final long defaultValue) {
+        if (value != null) {
+            try {
+                return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                // obsolete or invalid format
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Moves a file over another one atomically where supported, a reader of the replaced file keeps reading its former content
+     *
+     * @param source
+     *            the new file
+     * @param target
+     *            the replaced file
+     * @throws IOException
+     *             if the file cannot be moved
+     */
+    public static void replace(final Path source, final File target) throws IOException {
+        try {
+            Files.move(source, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Loads the index of the entries saved by {@link #save(File)}, the entries whose file is missing are dropped
+     *
+     * @param file
+     *            the index file
+     * @throws IOException
+     *             if the index cannot be read
+     */
+    public void load(final File file) throws IOException {
+        int dropped = 0;
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(file))) {
+            final Object index = objectInputStream.readObject();
+            if (index instanceof Map) {
+                for (Map.Entry<?, ?> saved : ((Map<?, ?>) index).entrySet()) {
+                    // a former index maps the URLs to their files, without freshness
+                    if (saved.getKey() instanceof String && saved.getValue() instanceof Entry && ((Entry) saved.getValue()).file.isFile()) {
+                        final Entry entry = (Entry) saved.getValue();
+                        final Entry previous = this.entries.put((String) saved.getKey(), entry);
+                        this.size.addAndGet(entry.size - (previous != null ? previous.size : 0));
+                    } else {
+                        ++dropped;
+                    }
+                }
+            }
+        } catch (InvalidClassException e) {
+            // index of a former version, its entries are dropped
+            LOG.error("Cache index of a former version dropped: {}", e.getMessage());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Invalid cache index: " + file, e);
+        }
+        LOG.info("{} cached entries loaded, {} dropped", this.entries.size(), dropped);
+        if (this.size.get() > this.maxSize) {
+            this.evict();
+        }
+    }
+
+    /**
+     * Saves the index of the entries
+     *
+     * @param file
+     *            the index file
+     * @throws IOException
+     *             if the index cannot be written
+     */
+    public void save(final File file) throws IOException {
+        this.purge(true);
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(new FileOutputStream(file))) {
+            objectOutputStream.writeObject(new HashMap<>(this.entries));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package fr.landel.myproxy.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered list of HTTP header fields, names are compared ignoring case
+ */
+public class HttpHeaders {
+
+    private static final int MAX_HEADERS = 256;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+
+    /**
+     * Reads the header fields until the empty line
+     *
+     * @param is
+     *            the input stream, should be buffered
+     * @return the headers
+     * @throws IOException
+     *             on read failure or invalid header
+     */
+    public static HttpHeaders read(final InputStream is) throws IOException {
+        final HttpHeaders headers = new HttpHeaders();
+        String line;
+        while ((line = HttpUtils.readLine(is)) != null && !line.isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon < 1) {
+                throw new IOException("Invalid header line: " + line);
+            } else if (headers.size() == MAX_HEADERS) {
+                throw new IOException("Too many headers");
+            }
+            headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+        if (line == null) {
+            throw new IOException("Unexpected end of stream in headers");
+        }
+        return headers;
+    }
+
+    public int size() {
+        return this.names.size();
+    }
+
+    public String getName(final int index) {
+        return this.names.get(index);
+    }
+
+    public String getValue(final int index) {
+        return this.values.get(index);
+    }
+
+    public HttpHeaders add(final String name, final String value) {
+        this.names.add(name);
+        this.values.add(value);
+        return this;
+    }
+
+    /**
+     * Replaces all the values of the header
+     *
+     * @param name
+     *            the header name
+     * @param value
+     *            the new value
+     * @return this
+     */
+    public HttpHeaders set(final String name, final String value) {
+        this.remove(name);
+        return this.add(name, value);
+    }
+
+    /**
+     * @param name
+     *            the header name
+     * @return the first value, null if absent
+     */
+    public String get(final String name) {
+        for (int i = 0; i < this.names.size(); ++i) {
+            if (this.names.get(i).equalsIgnoreCase(name)) {
+                return this.values.get(i);
+            }
+        }
+        return null;
+    }
+
+    public boolean contains(final String name) {
+        return this.get(name) != null;
+    }
+
+    /**
+     * @param name
+     *            the header name
+     * @param token
+     *            the searched token
+     * @return true, if one of the values of the header contains the token
+     */
+    public boolean containsToken(final String name, final String token) {
+        for (int i = 0; i < this.names.size(); ++i) {
+            if (this.names.get(i).equalsIgnoreCase(name) && HttpUtils.containsToken(this.values.get(i), token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param name
+     *            the header name
+     * @return true, if removed
+     */
+    public boolean remove(final String name) {
+        boolean removed = false;
+        for (int i = this.names.size() - 1; i >= 0; --i) {
+            if (this.names.get(i).equalsIgnoreCase(name)) {
+                this.names.remove(i);
+                this.values.remove(i);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Appends the header lines and the empty line
+     *
+     * @param builder
+     *            the output
+     * @return the output
+     */
+    public StringBuilder appendTo(final StringBuilder builder) {
+        for (int i = 0; i < this.names.size(); ++i) {
+            builder.append(this.names.get(i)).append(": ").append(this.values.get(i)).append(HttpUtils.CRLF);
+        }
+        return builder.append(HttpUtils.CRLF);
+    }
+
+    @Override
+    public String toString() {
+        return this.appendTo(new StringBuilder()).toString();
+    }
+}
@@ -0,0 +1,135 @@
+package fr.landel.myproxy.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Request line and header fields of a HTTP/1.x request
+ */
+public class HttpRequestHead {
+
+    private static final int INITIAL_HEAD_SIZE = 1_024;
+    private static final int MAX_HEAD_SIZE = 65_536;
+
+    private final String method;
+    private final String target;
+    private final String version;
+    private final HttpHeaders headers;
+
+    /**
+     * Constructor
+     *
+     * @param method
+     *            the method (ex: "GET")
+     * @param target
+     *            the request target (absolute URL or authority for CONNECT)
+     * @param version
+     *            the HTTP version (ex: "HTTP/1.1")
+     * @param headers
+     *            the header fields
+     * @category constructor
+     */
+    public HttpRequestHead(final String method, final String target, final String version, final HttpHeaders headers) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headers = headers;
+    }
+
+    /**
+     * Reads the request head, the empty lines before the request line are ignored
+     *
+     * @param is
+     *            the input stream, should be buffered
+     * @return the head, null if the stream ends before the request
+     * @throws IOException
+     *             on read failure or invalid request head
+     */
+    public static HttpRequestHead read(final InputStream is) throws IOException {
+        final HttpRequestParser parser = new HttpRequestParser();
+        ByteBuffer buffer = ByteBuffer.allocate(INITIAL_HEAD_SIZE);
+
+        // byte per byte, to not read beyond the head (the body or the pipelined requests stay in the stream)
+        int length = 0;
+        int b;
+        do {
+            if ((b = is.read()) < 0) {
+                if (!parser.isStarted()) {
+                    return null;
+                }
+                throw new IOException("Unexpected end of stream in request head");
+            } else if (length == buffer.capacity()) {
+                if (length == MAX_HEAD_SIZE) {
+                    throw new IOException("Request head too large");
+                }
+                buffer = ByteBuffer.allocate(length * 2).put(buffer.array(), 0, length);
+            }
+            buffer.put(length++, (byte) b);
+        } while (!parser.parse(buffer, length));
+
+        final HttpHeaders headers = new HttpHeaders();
+        for (int i = 0; i < parser.getHeaderCount(); ++i) {
+            headers.add(HttpRequestParser.getString(buffer, parser.getNameStart(i), parser.getNameEnd(i)),
+                    HttpRequestParser.getString(buffer, parser.getValueStart(i), parser.getValueEnd(i)));
+        }
+
+        return new HttpRequestHead(HttpRequestParser.getString(buffer, parser.getMethodStart(), parser.getMethodEnd()),
+                HttpRequestParser.getString(buffer, parser.getTargetStart(), parser.getTargetEnd()),
+                HttpRequestParser.getString(buffer, parser.getVersionStart(), parser.getVersionEnd()), headers);
+    }
+
+    public String getMethod() {
+        return this.method;
+    }
+
+    public String getTarget() {
+        return this.target;
+    }
+
+    public String getVersion() {
+        return this.version;
+    }
+
+    public HttpHeaders getHeaders() {
+        return this.headers;
+    }
+
+    /**
+     * @return true, if the client wants to keep the connection open after the response (HTTP/1.1 without "close")
+     */
+    public boolean isKeepAlive() {
+        return "HTTP/1.1".equals(this.version) && !this.headers.containsToken("Connection", "close")
+                && !this.headers.containsToken("Proxy-Connection", "close");
+    }
+
+    /**
+     * Gets the request body stream
+     *
+     * @param in
+     *            the connection input stream, positioned after the head
+     * @return the body stream (empty if the request has no body)
+     */
+    public HttpBodyInputStream getBody(final InputStream in) {
+        if (this.headers.containsToken("Transfer-Encoding", "chunked")) {
+            return new ChunkedInputStream(in);
+        }
+        final String length = this.headers.get("Content-Length");
+        long contentLength = 0;
+        if (length != null) {
+            try {
+                contentLength = Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                contentLength = 0;
+            }
+        }
+        return new FixedLengthInputStream(in, contentLength);
+    }
+
+    /**
+     * @return the request line without terminator
+     */
+    public String getRequestLine() {
+        return this.method + ' ' + this.target + ' ' + this.version;
+    }
+}
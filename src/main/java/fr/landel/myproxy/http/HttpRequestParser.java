@@ -0,0 +1,561 @@
+package fr.landel.myproxy.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental parser of a HTTP/1.x request head (request line and header fields), working directly on the received bytes. The bytes can be given
+ * in several parts (partial reads): each call to {@link #parse(ByteBuffer, int)} continues where the previous one stopped, until the empty line
+ * ending the head.
+ * <p>
+ * No string is created: the method, the target, the version and the header names and values are reported as ranges of absolute indexes in the
+ * buffer (start inclusive, end exclusive, the optional white spaces around the values are excluded). The ranges are valid as long as the head
+ * bytes are not moved in the buffer. The parser allocates nothing on the common path (the header table only grows beyond
+ * {@value #INITIAL_HEADERS} headers) and can be reused after {@link #reset()}.
+ * </p>
+ * <p>
+ * The empty lines before the request line are ignored, the lines can be ended by CRLF or by a bare LF and the obsolete line folding is rejected.
+ * </p>
+ */
+public class HttpRequestParser {
+
+    private static final int INITIAL_HEADERS = 32;
+    private static final int MAX_HEADERS = 256;
+
+    // header table: 4 indexes per header
+    private static final int NAME_START = 0;
+    private static final int NAME_END = 1;
+    private static final int VALUE_START = 2;
+    private static final int VALUE_END = 3;
+
+    private static final int CR = '\r';
+    private static final int LF = '\n';
+    private static final int SP = ' ';
+    private static final int HT = '\t';
+
+    private enum State {
+        LINE_START,
+        METHOD,
+        TARGET_START,
+        TARGET,
+        VERSION,
+        LINE_LF,
+        FIELD_START,
+        NAME,
+        VALUE_START,
+        VALUE,
+        FIELD_LF,
+        HEAD_LF,
+        DONE
+    }
+
+    /**
+     * Token characters (RFC 7230), for the method and the header names
+     */
+    private static final boolean[] TCHAR = new boolean[128];
+
+    static {
+        for (int c = '0'; c <= '9'; ++c) {
+            TCHAR[c] = true;
+        }
+        for (int c = 'A'; c <= 'Z'; ++c) {
+            TCHAR[c] = true;
+            TCHAR[c + 'a' - 'A'] = true;
+        }
+        for (char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+            TCHAR[c] = true;
+        }
+    }
+
+    private State state;
+    private int start;
+    private int position;
+
+    private int methodStart;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    private int versionEnd;
+    private int majorVersion;
+    private int minorVersion;
+
+    private int[] headers = new int[INITIAL_HEADERS * 4];
+    private int headerCount;
+    private int lastNonWhitespace;
+
+    /**
+     * Constructor, the head is expected at the start of the buffer
+     *
+     * @category constructor
+     */
+    public HttpRequestParser() {
+        this.reset();
+    }
+
+    /**
+     * Prepares the parser for the next head, expected at the start of the buffer
+     *
+     * @return this
+     */
+    public HttpRequestParser reset() {
+        return this.reset(0);
+    }
+
+    /**
+     * Prepares the parser for the next head
+     *
+     * @param start
+     *            the index of the first byte of the head in the buffer
+     * @return this
+     */
+    public HttpRequestParser reset(final int start) {
+        this.state = State.LINE_START;
+        this.start = start;
+        this.position = start;
+        this.headerCount = 0;
+        return this;
+    }
+
+    /**
+     * Parses the bytes received since the previous call
+     *
+     * @param buffer
+     *            the buffer holding the head from the start index (read with absolute gets, its position and limit are not used)
+     * @param limit
+     *            the index after the last received byte
+     * @return true, if the head is complete ({@link #getHeadEnd()} is then the index of the first byte after the head)
+     * @throws IOException
+     *             if the request line or a header field is invalid
+     */
+    @SuppressWarnings("fallthrough")
+    public boolean parse(final ByteBuffer buffer, final int limit) throws IOException {
+        int i = this.position;
+        State s = this.state;
+
+        for (; i < limit && s != State.DONE; ++i) {
+            final int b = buffer.get(i) & 0xFF;
+
+            switch (s) {
+            case LINE_START:
+                if (b == CR || b == LF) {
+                    // empty lines before the request line
+                    this.start = i + 1;
+                } else if (isToken(b)) {
+                    this.methodStart = i;
+                    s = State.METHOD;
+                } else {
+                    throw invalid("request line", buffer, i);
+                }
+                break;
+            case METHOD:
+                if (b == SP) {
+                    this.methodEnd = i;
+                    s = State.TARGET_START;
+                } else if (!isToken(b)) {
+                    throw invalid("request method", buffer, i);
+                }
+                break;
+            case TARGET_START:
+                if (!isVisible(b)) {
+                    throw invalid("request target", buffer, i);
+                }
+                this.targetStart = i;
+                s = State.TARGET;
+                break;
+            case TARGET:
+                if (b == SP) {
+                    this.targetEnd = i;
+                    this.versionStart = i + 1;
+                    s = State.VERSION;
+                } else if (!isVisible(b)) {
+                    throw invalid("request target", buffer, i);
+                }
+                break;
+            case VERSION:
+                if (b == CR || b == LF) {
+                    this.versionEnd = i;
+                    this.checkVersion(buffer);
+                    s = b == CR ? State.LINE_LF : State.FIELD_START;
+                } else if (i - this.versionStart == 8) {
+                    throw invalid("HTTP version", buffer, i);
+                }
+                break;
+            case LINE_LF:
+            case FIELD_LF:
+                if (b != LF) {
+                    throw invalid("line end", buffer, i);
+                }
+                s = State.FIELD_START;
+                break;
+            case FIELD_START:
+                if (b == CR) {
+                    s = State.HEAD_LF;
+                } else if (b == LF) {
+                    s = State.DONE;
+                } else if (isToken(b)) {
+                    this.addHeader(i);
+                    s = State.NAME;
+                } else {
+                    // includes the obsolete line folding (space or tab at line start)
+                    throw invalid("header field", buffer, i);
+                }
+                break;
+            case NAME:
+                if (b == ':') {
+                    this.headers[(this.headerCount - 1) * 4 + NAME_END] = i;
+                    s = State.VALUE_START;
+                } else if (!isToken(b)) {
+                    throw invalid("header name", buffer, i);
+                }
+                break;
+            case VALUE_START:
+                if (b == SP || b == HT) {
+                    break;
+                }
+                this.headers[(this.headerCount - 1) * 4 + VALUE_START] = i;
+                this.lastNonWhitespace = i - 1;
+                s = State.VALUE;
+                // falls through, the value starts with this byte
+            case VALUE:
+                if (b == CR || b == LF) {
+                    // the trailing white spaces are excluded (empty value if none was found)
+                    this.headers[(this.headerCount - 1) * 4 + VALUE_END] = this.lastNonWhitespace + 1;
+                    s = b == CR ? State.FIELD_LF : State.FIELD_START;
+                } else if (b < SP && b != HT || b == 0x7F) {
+                    throw invalid("header value", buffer, i);
+                } else if (b != SP && b != HT) {
+                    this.lastNonWhitespace = i;
+                }
+                break;
+            case HEAD_LF:
+                if (b != LF) {
+                    throw invalid("head end", buffer, i);
+                }
+                s = State.DONE;
+                break;
+            default:
+                break;
+            }
+        }
+
+        this.position = i;
+        this.state = s;
+        return s == State.DONE;
+    }
+
+    private void checkVersion(final ByteBuffer buffer) throws IOException {
+        final int v = this.versionStart;
+        if (this.versionEnd - v != 8 || buffer.get(v) != 'H' || buffer.get(v + 1) != 'T' || buffer.get(v + 2) != 'T' || buffer.get(v + 3) != 'P'
+                || buffer.get(v + 4) != '/' || !isDigit(buffer.get(v + 5)) || buffer.get(v + 6) != '.' || !isDigit(buffer.get(v + 7))) {
+            throw invalid("HTTP version", buffer, this.versionEnd);
+        }
+        this.majorVersion = buffer.get(v + 5) - '0';
+        this.minorVersion = buffer.get(v + 7) - '0';
+    }
+
+    private void addHeader(final int nameStart) throws IOException {
+        final int offset = this.headerCount * 4;
+        if (offset == this.headers.length) {
+            if (this.headerCount == MAX_HEADERS) {
+                throw new IOException("Too many headers");
+            }
+            this.headers = Arrays.copyOf(this.headers, offset * 2);
+        }
+        this.headers[offset + NAME_START] = nameStart;
+        ++this.headerCount;
+    }
+
+    private IOException invalid(final String element, final ByteBuffer buffer, final int index) {
+        final int end = Math.min(index + 1, this.start + HttpUtils.MAX_LINE_LENGTH);
+        return new IOException("Invalid " + element + ": " + getString(buffer, this.start, end).trim());
+    }
+
+    private static boolean isToken(final int b) {
+        return b < 128 && TCHAR[b];
+    }
+
+    private static boolean isVisible(final int b) {
+        return b > SP && b != 0x7F;
+    }
+
+    private static boolean isDigit(final byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * @return true, if the request line has started (false while only empty lines were received)
+     */
+    public boolean isStarted() {
+        return this.state != State.LINE_START;
+    }
+
+    /**
+     * @return true, if the head is complete
+     */
+    public boolean isComplete() {
+        return this.state == State.DONE;
+    }
+
+    /**
+     * @return the index of the first byte of the request line (after the ignored empty lines)
+     */
+    public int getHeadStart() {
+        return this.methodStart;
+    }
+
+    /**
+     * @return the index after the head (the body or the next request starts here), once complete
+     */
+    public int getHeadEnd() {
+        return this.position;
+    }
+
+    public int getMethodStart() {
+        return this.methodStart;
+    }
+
+    public int getMethodEnd() {
+        return this.methodEnd;
+    }
+
+    public int getTargetStart() {
+        return this.targetStart;
+    }
+
+    public int getTargetEnd() {
+        return this.targetEnd;
+    }
+
+    public int getVersionStart() {
+        return this.versionStart;
+    }
+
+    public int getVersionEnd() {
+        return this.versionEnd;
+    }
+
+    public int getMajorVersion() {
+        return this.majorVersion;
+    }
+
+    public int getMinorVersion() {
+        return this.minorVersion;
+    }
+
+    public int getHeaderCount() {
+        return this.headerCount;
+    }
+
+    public int getNameStart(final int index) {
+        return this.headers[index * 4 + NAME_START];
+    }
+
+    public int getNameEnd(final int index) {
+        return this.headers[index * 4 + NAME_END];
+    }
+
+    public int getValueStart(final int index) {
+        return this.headers[index * 4 + VALUE_START];
+    }
+
+    public int getValueEnd(final int index) {
+        return this.headers[index * 4 + VALUE_END];
+    }
+
+    /**
+     * Checks the method
+     *
+     * @param buffer
+     *            the parsed buffer
+     * @param method
+     *            the expected method (ex: "CONNECT", case sensitive)
+     * @return true, if equal
+     */
+    public boolean isMethod(final ByteBuffer buffer, final String method) {
+        final int length = this.methodEnd - this.methodStart;
+        if (length != method.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (buffer.get(this.methodStart + i) != method.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds a header
+     *
+     * @param buffer
+     *            the parsed buffer
+     * @param name
+     *            the header name (case insensitive)
+     * @param from
+     *            the index of the first header to check
+     * @return the index of the header, -1 if absent
+     */
+    public int indexOf(final ByteBuffer buffer, final String name, final int from) {
+        for (int i = from; i < this.headerCount; ++i) {
+            if (equalsIgnoreCase(buffer, this.getNameStart(i), this.getNameEnd(i), name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks if a header is a comma separated list which contains the token, all the headers with this name are checked
+     *
+     * @param buffer
+     *            the parsed buffer
+     * @param name
+     *            the header name (case insensitive)
+     * @param token
+     *            the token (case insensitive)
+     * @return true, if found
+     */
+    public boolean containsToken(final ByteBuffer buffer, final String name, final String token) {
+        for (int i = this.indexOf(buffer, name, 0); i > -1; i = this.indexOf(buffer, name, i + 1)) {
+            int end = this.getValueStart(i);
+            final int valueEnd = this.getValueEnd(i);
+            while (end <= valueEnd) {
+                int itemStart = end;
+                while (end < valueEnd && buffer.get(end) != ',') {
+                    ++end;
+                }
+                int itemEnd = end;
+                while (itemStart < itemEnd && isWhitespace(buffer.get(itemStart))) {
+                    ++itemStart;
+                }
+                while (itemEnd > itemStart && isWhitespace(buffer.get(itemEnd - 1))) {
+                    --itemEnd;
+                }
+                if (equalsIgnoreCase(buffer, itemStart, itemEnd, token)) {
+                    return true;
+                }
+                ++end;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param buffer
+     *            the parsed buffer
+     * @return true, if the client wants to keep the connection open after the response (HTTP/1.1 without "close")
+     */
+    public boolean isKeepAlive(final ByteBuffer buffer) {
+        return this.majorVersion == 1 && this.minorVersion == 1 && !this.containsToken(buffer, "Connection", "close")
+                && !this.containsToken(buffer, "Proxy-Connection", "close");
+    }
+
+    /**
+     * @param buffer
+     *            the parsed buffer
+     * @return true, if the body has the chunked transfer coding
+     */
+    public boolean isChunked(final ByteBuffer buffer) {
+        return this.containsToken(buffer, "Transfer-Encoding", "chunked");
+    }
+
+    /**
+     * Parses the "Content-Length" header
+     *
+     * @param buffer
+     *            the parsed buffer
+     * @return the length, -1 if absent
+     * @throws IOException
+     *             if the value is not a valid length, or if the header is repeated with another value
+     */
+    public long getContentLength(final ByteBuffer buffer) throws IOException {
+        int index = this.indexOf(buffer, "Content-Length", 0);
+        if (index < 0) {
+            return -1;
+        }
+        final long length = this.parseContentLength(buffer, index);
+        while ((index = this.indexOf(buffer, "Content-Length", index + 1)) > -1) {
+            if (this.parseContentLength(buffer, index) != length) {
+                throw new IOException("Conflicting Content-Length headers");
+            }
+        }
+        return length;
+    }
+
+    private long parseContentLength(final ByteBuffer buffer, final int index) throws IOException {
+        final int start = this.getValueStart(index);
+        final int end = this.getValueEnd(index);
+        if (start == end || end - start > 18) {
+            throw new IOException("Invalid Content-Length: " + getString(buffer, start, end));
+        }
+        long length = 0;
+        for (int i = start; i < end; ++i) {
+            final byte b = buffer.get(i);
+            if (!isDigit(b)) {
+                throw new IOException("Invalid Content-Length: " + getString(buffer, start, end));
+            }
+            length = length * 10 + (b - '0');
+        }
+        return length;
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == SP || b == HT;
+    }
+
+    /**
+     * Compares a range of bytes to an ASCII string, ignoring case
+     *
+     * @param buffer
+     *            the buffer
+     * @param start
+     *            the range start
+     * @param end
+     *            the range end (exclusive)
+     * @param value
+     *            the ASCII string
+     * @return true, if equal
+     */
+    public static boolean equalsIgnoreCase(final ByteBuffer buffer, final int start, final int end, final String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = start; i < end; ++i) {
+            final int b = buffer.get(i);
+            final int c = value.charAt(i - start);
+            if (b != c) {
+                final int lower = b | 0x20;
+                if (lower != (c | 0x20) || lower < 'a' || lower > 'z') {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a range of bytes (ISO-8859-1), to use only when a string is really needed
+     *
+     * @param buffer
+     *            the buffer
+     * @param start
+     *            the range start
+     * @param end
+     *            the range end (exclusive)
+     * @return the string
+     */
+    public static String getString(final ByteBuffer buffer, final int start, final int end) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, end - start, ISO_8859_1);
+        }
+        final byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; ++i) {
+            bytes[i - start] = buffer.get(i);
+        }
+        return new String(bytes, ISO_8859_1);
+    }
+}
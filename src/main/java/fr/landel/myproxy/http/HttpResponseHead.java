@@ -0,0 +1,126 @@
+package fr.landel.myproxy.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Status line and header fields of a HTTP/1.x response
+ */
+public class HttpResponseHead {
+
+    private final String version;
+    private final int status;
+    private final String reason;
+    private final HttpHeaders headers;
+
+    /**
+     * Constructor
+     *
+     * @param version
+     *            the HTTP version (ex: "HTTP/1.1")
+     * @param status
+     *            the status code
+     * @param reason
+     *            the reason phrase
+     * @param headers
+     *            the header fields
+     * @category constructor
+     */
+    public HttpResponseHead(final String version, final int status, final String reason, final HttpHeaders headers) {
+        this.version = version;
+        this.status = status;
+        this.reason = reason;
+        this.headers = headers;
+    }
+
+    /**
+     * Reads the response head, the interim responses (1xx, except 101) are skipped
+     *
+     * @param is
+     *            the input stream, should be buffered
+     * @return the head
+     * @throws IOException
+     *             on read failure or invalid status line
+     */
+    public static HttpResponseHead read(final InputStream is) throws IOException {
+        HttpResponseHead head;
+        do {
+            final String line = HttpUtils.readLine(is);
+            if (line == null) {
+                throw new IOException("Connection closed by the server");
+            }
+
+            final int first = line.indexOf(' ');
+            if (first < 0 || !line.startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + line);
+            }
+            final int second = line.indexOf(' ', first + 1);
+            final int status;
+            try {
+                status = Integer.parseInt(second > -1 ? line.substring(first + 1, second) : line.substring(first + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + line);
+            }
+
+            head = new HttpResponseHead(line.substring(0, first), status, second > -1 ? line.substring(second + 1) : "", HttpHeaders.read(is));
+        } while (head.status >= 100 && head.status < 200 && head.status != 101);
+        return head;
+    }
+
+    public String getVersion() {
+        return this.version;
+    }
+
+    public int getStatus() {
+        return this.status;
+    }
+
+    public String getReason() {
+        return this.reason;
+    }
+
+    public HttpHeaders getHeaders() {
+        return this.headers;
+    }
+
+    /**
+     * @return true, if the server keeps the connection open after this response
+     */
+    public boolean isKeepAlive() {
+        if ("HTTP/1.0".equals(this.version)) {
+            return this.headers.containsToken("Connection", "keep-alive");
+        }
+        return !this.headers.containsToken("Connection", "close");
+    }
+
+    public boolean isChunked() {
+        return this.headers.containsToken("Transfer-Encoding", "chunked");
+    }
+
+    /**
+     * @return the content length, -1 if not defined or invalid
+     */
+    public long getContentLength() {
+        try {
+            return BodyFramer.contentLength(this.headers);
+        } catch (BodyFramer.MalformedException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param method
+     *            the request method
+     * @return true, if the response has a body
+     */
+    public boolean hasBody(final String method) {
+        return !"HEAD".equals(method) && this.status >= 200 && this.status != 204 && this.status != 304;
+    }
+
+    /**
+     * @return the status line without terminator
+     */
+    public String getStatusLine() {
+        return this.version + ' ' + this.status + ' ' + this.reason;
+    }
+}
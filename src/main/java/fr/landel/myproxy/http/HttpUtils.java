@@ -0,0 +1,76 @@
+package fr.landel.myproxy.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public final class HttpUtils {
+
+    public static final String CRLF = "\r\n";
+
+    /**
+     * Maximum length of a status, request or header line
+     */
+    public static final int MAX_LINE_LENGTH = 16_384;
+
+    private HttpUtils() {
+        throw new UnsupportedOperationException("utility class, not implemented");
+    }
+
+    /**
+     * Reads a line terminated by LF (CR is removed), bytes are decoded as ISO-8859-1
+     * 
+     * @param is
+     *            The input stream, should be buffered
+     * @return The line without terminator, null if the stream ends before any byte
+     * @throws IOException
+     *             On read failure, if the line is too long or if the stream ends in the line
+     */
+    public static String readLine(final InputStream is) throws IOException {
+        final StringBuilder builder = new StringBuilder(64);
+        int b;
+        while ((b = is.read()) != '\n') {
+            if (b < 0) {
+                if (builder.length() == 0) {
+                    return null;
+                }
+                throw new IOException("Unexpected end of stream in line: " + builder);
+            } else if (builder.length() == MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+            builder.append((char) b);
+        }
+        final int len = builder.length();
+        if (len > 0 && builder.charAt(len - 1) == '\r') {
+            builder.setLength(len - 1);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Checks if a comma separated header value contains the token (case insensitive)
+     * 
+     * @param value
+     *            The header value (nullable)
+     * @param token
+     *            The token
+     * @return true, if found
+     */
+    public static boolean containsToken(final String value, final String token) {
+        if (value == null) {
+            return false;
+        }
+        int start = 0;
+        int end;
+        while (start <= value.length()) {
+            end = value.indexOf(',', start);
+            if (end < 0) {
+                end = value.length();
+            }
+            if (value.substring(start, end).trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,69 @@
+package fr.landel.myproxy.http;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of the last responses of an origin, in a ring of fixed size. The percentiles are read from a sorted copy of the ring, renewed every
+ * {@value #SORT_EVERY} samples, so reading them doesn't sort.
+ */
+public class LatencyWindow {
+
+    private static final int SORT_EVERY = 16;
+
+    private final long[] samples;
+    private int next;
+    private int count;
+    private int unsorted;
+
+    private volatile long[] sorted = new long[0];
+
+    /**
+     * Constructor
+     *
+     * @param size
+     *            the number of samples kept
+     * @category constructor
+     */
+    public LatencyWindow(final int size) {
+        this.samples = new long[Math.max(1, size)];
+    }
+
+    /**
+     * Adds a sample, the oldest one is replaced when the ring is full
+     *
+     * @param nanos
+     *            the latency in nanoseconds
+     */
+    public synchronized void record(final long nanos) {
+        this.samples[this.next] = nanos;
+        this.next = (this.next + 1) % this.samples.length;
+        this.count = Math.min(this.count + 1, this.samples.length);
+        if (++this.unsorted >= SORT_EVERY || this.sorted.length < SORT_EVERY) {
+            final long[] copy = Arrays.copyOf(this.samples, this.count);
+            Arrays.sort(copy);
+            this.sorted = copy;
+            this.unsorted = 0;
+        }
+    }
+
+    /**
+     * @return the number of samples of the last sorted copy
+     */
+    public int getCount() {
+        return this.sorted.length;
+    }
+
+    /**
+     * @param percentile
+     *            the percentile (0.95 for the 95th percentile)
+     * @return the latency in nanoseconds, -1 without sample
+     */
+    public long getPercentile(final double percentile) {
+        final long[] values = this.sorted;
+        if (values.length == 0) {
+            return -1;
+        }
+        final int index = (int) Math.ceil(percentile * values.length) - 1;
+        return values[Math.max(0, Math.min(values.length - 1, index))];
+    }
+}
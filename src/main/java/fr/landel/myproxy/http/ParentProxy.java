@@ -0,0 +1,262 @@
+package fr.landel.myproxy.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Parent (enterprise) proxy, with its credentials, its state (available or down until a retry time) and its warm connections: connections opened
+ * in advance and kept idle, so a new tunnel or request only waits for the exchange with the parent, not for the TCP handshake.
+ */
+public class ParentProxy {
+
+    /**
+     * Direct connection to the origin server, in a list of parents to try ("corp, DIRECT")
+     */
+    public static final ParentProxy DIRECT = new ParentProxy("DIRECT", null, 0, null, null);
+
+    private final String id;
+    private final String host;
+    private final int port;
+
+    /**
+     * "Proxy-Authorization" header line (Basic), null without credentials
+     */
+    private final byte[] authorization;
+
+    private final ConcurrentLinkedDeque<Warm> warm = new ConcurrentLinkedDeque<>();
+
+    private final AtomicBoolean refilling = new AtomicBoolean();
+
+    /**
+     * Nano time until which the parent is considered down, 0 if available
+     */
+    private volatile long downUntil;
+
+    private static final class Warm {
+
+        private final SocketChannel channel;
+        private final long created = System.nanoTime();
+
+        private Warm(final SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param id
+     *            the identifier, used by the routes
+     * @param host
+     *            the host of the parent proxy
+     * @param port
+     *            the port of the parent proxy
+     * @param username
+     *            the user (nullable or empty, no credentials)
+     * @param password
+     *            the password (nullable)
+     * @category constructor
+     */
+    public ParentProxy(final String id, final String host, final int port, final String username, final String password) {
+        this.id = id;
+        this.host = host;
+        this.port = port;
+        if (username != null && !username.isEmpty()) {
+            final String credentials = username + ':' + (password != null ? password : "");
+            this.authorization = ("Proxy-Authorization: Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(UTF_8)) + HttpUtils.CRLF)
+                    .getBytes(ISO_8859_1);
+        } else {
+            this.authorization = null;
+        }
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public String getHost() {
+        return this.host;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * @return true, if this is the direct connection ({@link #DIRECT})
+     */
+    public boolean isDirect() {
+        return this == DIRECT;
+    }
+
+    /**
+     * @return the "Proxy-Authorization" header line (with CRLF), null without credentials
+     */
+    public byte[] getAuthorization() {
+        return this.authorization;
+    }
+
+    /**
+     * Builds the request opening a tunnel through the parent
+     *
+     * @param authority
+     *            the target ("host:port")
+     * @return the CONNECT request head
+     */
+    public byte[] connectRequest(final String authority) {
+        final byte[] line = ("CONNECT " + authority + " HTTP/1.1\r\n" + "Host: " + authority + HttpUtils.CRLF).getBytes(ISO_8859_1);
+        final int length = line.length + (this.authorization != null ? this.authorization.length : 0) + 2;
+        final ByteBuffer request = ByteBuffer.allocate(length).put(line);
+        if (this.authorization != null) {
+            request.put(this.authorization);
+        }
+        return request.put((byte) '\r').put((byte) '\n').array();
+    }
+
+    /**
+     * @param now
+     *            the current nano time
+     * @return true, if the parent isn't down or if its retry time is reached
+     */
+    public boolean isAvailable(final long now) {
+        final long until = this.downUntil;
+        return until == 0 || now - until >= 0;
+    }
+
+    /**
+     * @return true, if the parent was marked down (even if its retry time is reached)
+     */
+    public boolean isDown() {
+        return this.downUntil != 0;
+    }
+
+    /**
+     * Marks the parent down, its warm connections are closed
+     *
+     * @param until
+     *            the nano time of the next attempt
+     * @return true, if the parent was available
+     */
+    boolean markDown(final long until) {
+        final boolean wasUp = this.downUntil == 0;
+        this.downUntil = until == 0 ? 1 : until;
+        this.closeWarm();
+        return wasUp;
+    }
+
+    /**
+     * Marks the parent available
+     *
+     * @return true, if the parent was down
+     */
+    boolean markUp() {
+        final boolean wasDown = this.downUntil != 0;
+        this.downUntil = 0;
+        return wasDown;
+    }
+
+    /**
+     * Takes the most recent healthy warm connection
+     *
+     * @return the connection in blocking mode, null if none
+     */
+    SocketChannel pollWarm() {
+        Warm warm;
+        while ((warm = this.warm.pollFirst()) != null) {
+            if (isHealthy(warm.channel)) {
+                return warm.channel;
+            }
+            closeQuietly(warm.channel);
+        }
+        return null;
+    }
+
+    void offerWarm(final SocketChannel channel) {
+        this.warm.offerFirst(new Warm(channel));
+    }
+
+    /**
+     * @return true, if the caller is the only one refilling the warm connections (to end with {@link #endRefill()})
+     */
+    boolean startRefill() {
+        return this.refilling.compareAndSet(false, true);
+    }
+
+    void endRefill() {
+        this.refilling.set(false);
+    }
+
+    int getWarmCount() {
+        return this.warm.size();
+    }
+
+    /**
+     * Closes the warm connections opened before the limit or no longer healthy
+     *
+     * @param limit
+     *            the nano time limit
+     */
+    void evictWarm(final long limit) {
+        // each connection is taken out before its check, so a connection in use is never touched (the order is kept)
+        for (int i = this.warm.size(); i > 0; --i) {
+            final Warm warm = this.warm.pollLast();
+            if (warm == null) {
+                break;
+            } else if (warm.created - limit < 0 || !isHealthy(warm.channel)) {
+                closeQuietly(warm.channel);
+            } else {
+                this.warm.offerFirst(warm);
+            }
+        }
+    }
+
+    void closeWarm() {
+        Warm warm;
+        while ((warm = this.warm.pollFirst()) != null) {
+            closeQuietly(warm.channel);
+        }
+    }
+
+    /**
+     * Checks that an idle connection isn't closed and hasn't received unsolicited data
+     */
+    private static boolean isHealthy(final SocketChannel channel) {
+        if (!channel.isOpen()) {
+            return false;
+        }
+        try {
+            channel.configureBlocking(false);
+            try {
+                // 0: nothing to read, -1: closed by the parent, >0: unsolicited data
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (this.isDirect()) {
+            return this.id;
+        }
+        return this.id + " (" + this.host + ':' + this.port + ')';
+    }
+}
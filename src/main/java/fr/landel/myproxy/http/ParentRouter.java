@@ -0,0 +1,593 @@
+package fr.landel.myproxy.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.nio.Connector;
+import fr.landel.myproxy.pac.PacResolver;
+import fr.landel.myproxy.utils.Logger;
+import fr.landel.myproxy.utils.ThreadUtils;
+
+/**
+ * Routes the requests and the tunnels to the origin servers, directly or through the parent proxies ("proxy/parents"). A route maps a host pattern
+ * (the host itself, "*.domain" for its sub-domains or "*" for all) to the ordered list of the parents to use ("corp1, corp2") or to "DIRECT"; the
+ * most specific pattern matching the host applies. The hosts without route are routed by the PAC file if configured ("proxy/pac", see
+ * {@link PacResolver}), otherwise reached directly. "DIRECT" can also end a list of parents ("corp1, DIRECT"), to connect directly when the
+ * parents are down.
+ * <p>
+ * A parent failing to connect or to answer the CONNECT request within "connect-timeout" is marked down for "retry-after" and the next parent of the
+ * route is tried. The down parents are only used when all the parents of the route are down. Each available parent keeps "warm-connections"
+ * connections opened in advance (closed after "warm-idle-timeout"), so a tunnel doesn't wait for the TCP handshake with the parent.
+ * </p>
+ */
+public class ParentRouter {
+
+    private static final Logger LOG = new Logger(ParentRouter.class);
+
+    private static final String METRICS = "parent.";
+
+    private static final String DIRECT = "DIRECT";
+
+    private final Connector connector;
+
+    private final Map<String, ParentProxy> parents = new LinkedHashMap<>();
+    private final Map<String, List<ParentProxy>> routes = new LinkedHashMap<>();
+
+    /**
+     * Parents returned by the PAC script and not configured, by authority
+     */
+    private final Map<String, ParentProxy> pacParents = new ConcurrentHashMap<>();
+    private final String pacUsername;
+    private final String pacPassword;
+
+    /**
+     * Null without PAC file
+     */
+    private final PacResolver pac;
+
+    private final int connectTimeout;
+    private final long retryAfter;
+    private final int warmConnections;
+    private final long warmIdleTimeout;
+
+    /**
+     * Runs the exchanges with the parents for the non blocking connections and refills the warm connections, null without parent
+     */
+    private final ExecutorService handshakes;
+    private final ScheduledExecutorService maintenance;
+
+    private final LongAdder tunnels = Metrics.counter(METRICS + "tunnels");
+    private final LongAdder warmHits = Metrics.counter(METRICS + "warm-hits");
+    private final LongAdder warmMisses = Metrics.counter(METRICS + "warm-misses");
+    private final LongAdder failovers = Metrics.counter(METRICS + "failovers");
+    private final LongAdder failures = Metrics.counter(METRICS + "failures");
+    private final LongAdder refused = Metrics.counter(METRICS + "refused");
+
+    /**
+     * Connection to the origin server or to the parent proxy serving it
+     */
+    public static final class Hop {
+
+        private final ParentProxy parent;
+        private final SocketChannel channel;
+
+        private Hop(final ParentProxy parent, final SocketChannel channel) {
+            this.parent = parent;
+            this.channel = channel;
+        }
+
+        /**
+         * @return the parent proxy, null if connected to the origin server (directly or through a tunnel)
+         */
+        public ParentProxy getParent() {
+            return this.parent;
+        }
+
+        /**
+         * @return the connected channel, in blocking mode
+         */
+        public SocketChannel getChannel() {
+            return this.channel;
+        }
+    }
+
+    /**
+     * Refusal of a parent proxy to open a tunnel (non 2xx response), the parent is working, so there is no failover
+     */
+    public static class RefusedException extends IOException {
+
+        private static final long serialVersionUID = -2318043977623958140L;
+
+        private final int status;
+        private final String reason;
+
+        /**
+         * Constructor
+         *
+         * @param parent
+         *            the parent proxy
+         * @param head
+         *            the response of the parent
+         * @category constructor
+         */
+        public RefusedException(final ParentProxy parent, final HttpResponseHead head) {
+            super("Refused by " + parent + ": " + head.getStatusLine());
+            this.status = head.getStatus();
+            this.reason = head.getReason();
+        }
+
+        /**
+         * @return the status of the parent response
+         */
+        public int getStatus() {
+            return this.status;
+        }
+
+        /**
+         * @return the reason phrase of the parent response
+         */
+        public String getReason() {
+            return this.reason;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Exchange {
+
+        void run(ParentProxy parent, SocketChannel channel) throws IOException;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/parents" and "proxy/pac")
+     * @param connector
+     *            the connector to the origin servers and to the parents
+     * @category constructor
+     */
+    public ParentRouter(final Configuration configuration, final Connector connector) {
+        this.connector = connector;
+        this.connectTimeout = (int) configuration.getDuration("proxy/parents/connect-timeout", Duration.ofSeconds(5)).toMillis();
+        this.retryAfter = configuration.getDuration("proxy/parents/retry-after", Duration.ofSeconds(30)).toNanos();
+        this.warmConnections = Math.max(0, configuration.getInt("proxy/parents/warm-connections", 2));
+        this.warmIdleTimeout = configuration.getDuration("proxy/parents/warm-idle-timeout", Duration.ofSeconds(30)).toNanos();
+
+        configuration.getNode("proxy/parents/proxies").ifPresent(node -> node.getChildren().keySet().forEach(id -> {
+            final String path = "proxy/parents/proxies/" + id + "/";
+            final String host = configuration.getString(path + "host", null);
+            if (host == null || host.isEmpty()) {
+                LOG.error("Parent proxy '{}' ignored, no host", id);
+            } else {
+                this.parents.put(id, new ParentProxy(id, host, configuration.getInt(path + "port", 8080), configuration.getString(path + "username", null),
+                        configuration.getString(path + "password", null)));
+            }
+        }));
+
+        configuration.getNode("proxy/parents/routes").ifPresent(node -> node.getChildren().keySet().forEach(pattern -> {
+            final List<ParentProxy> route = new ArrayList<>();
+            for (String id : configuration.getString("proxy/parents/routes/" + pattern, DIRECT).split(",")) {
+                final ParentProxy parent = this.parents.get(id.trim());
+                if (parent != null) {
+                    route.add(parent);
+                } else if (DIRECT.equalsIgnoreCase(id.trim())) {
+                    route.add(ParentProxy.DIRECT);
+                } else {
+                    LOG.error("Unknown parent proxy '{}' in route '{}'", id.trim(), pattern);
+                }
+            }
+            if (route.stream().allMatch(ParentProxy::isDirect)) {
+                // only direct: no parent
+                route.clear();
+            }
+            this.routes.put(pattern.toLowerCase(Locale.ROOT), Collections.unmodifiableList(route));
+        }));
+
+        this.pacUsername = configuration.getString("proxy/pac/username", null);
+        this.pacPassword = configuration.getString("proxy/pac/password", null);
+        final String pacUrl = configuration.getString("proxy/pac/url", "");
+        this.pac = pacUrl.isEmpty() ? null : new PacResolver(configuration, connector.getDnsCache(), this::pacParent);
+
+        if (!this.hasParents()) {
+            this.handshakes = null;
+            this.maintenance = null;
+        } else {
+            LOG.info("Parent proxies: {}, routes: {}, PAC: {}", this.parents.values(), this.routes.keySet(), pacUrl);
+            this.handshakes = Executors.newCachedThreadPool(ThreadUtils.platformThreadFactory("myproxy-parent-", true));
+            this.maintenance = Executors.newSingleThreadScheduledExecutor(ThreadUtils.platformThreadFactory("myproxy-parent-maintenance-", true));
+            final long period = Math.max(1_000, Math.min(TimeUnit.NANOSECONDS.toMillis(this.warmIdleTimeout), TimeUnit.NANOSECONDS.toMillis(this.retryAfter)) / 2);
+            this.maintenance.scheduleWithFixedDelay(this::maintain, 0, period, TimeUnit.MILLISECONDS);
+
+            Metrics.gauge(METRICS + "warm", () -> this.allParents().stream().mapToLong(ParentProxy::getWarmCount).sum());
+            Metrics.gauge(METRICS + "down", () -> this.allParents().stream().filter(ParentProxy::isDown).count());
+        }
+    }
+
+    /**
+     * Gives the parent of an authority returned by the PAC script: the configured parent with the same host and port (and its credentials), or a
+     * parent created once with the PAC credentials
+     */
+    private ParentProxy pacParent(final String authority) {
+        for (ParentProxy parent : this.parents.values()) {
+            if (authority.equalsIgnoreCase(parent.getHost() + ':' + parent.getPort())) {
+                return parent;
+            }
+        }
+        return this.pacParents.computeIfAbsent(authority, key -> {
+            final int colon = key.lastIndexOf(':');
+            int port;
+            try {
+                port = Integer.parseInt(key.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                port = 80;
+            }
+            return new ParentProxy(key, key.substring(0, colon), port, this.pacUsername, this.pacPassword);
+        });
+    }
+
+    private List<ParentProxy> allParents() {
+        if (this.pacParents.isEmpty()) {
+            return new ArrayList<>(this.parents.values());
+        }
+        final List<ParentProxy> all = new ArrayList<>(this.parents.values());
+        all.addAll(this.pacParents.values());
+        return all;
+    }
+
+    /**
+     * Selects the parents of a host, the PAC script is evaluated if needed (may block on DNS lookups)
+     *
+     * @param host
+     *            the origin host
+     * @param secure
+     *            true for a tunnel (HTTPS), the PAC script may give other parents
+     * @return the parents to try in order (the available ones first, {@link ParentProxy#DIRECT} for a direct connection), empty if the host is
+     *         reached directly
+     */
+    public List<ParentProxy> select(final String host, final boolean secure) {
+        final List<ParentProxy> route = this.candidates(host.toLowerCase(Locale.ROOT), secure);
+        if (route.size() < 2) {
+            return route;
+        }
+        final long now = System.nanoTime();
+        final List<ParentProxy> available = new ArrayList<>(route.size());
+        final List<ParentProxy> down = new ArrayList<>(0);
+        for (ParentProxy parent : route) {
+            (parent.isAvailable(now) ? available : down).add(parent);
+        }
+        available.addAll(down);
+        return available;
+    }
+
+    private List<ParentProxy> candidates(final String host, final boolean secure) {
+        if (!this.routes.isEmpty()) {
+            final List<ParentProxy> route = this.route(host);
+            if (route != null) {
+                return route;
+            }
+        }
+        return this.pac != null ? this.pac.resolve(host, secure) : Collections.emptyList();
+    }
+
+    /**
+     * Checks without blocking if a host is reached directly, the PAC script isn't evaluated
+     *
+     * @param host
+     *            the origin host
+     * @param secure
+     *            true for a tunnel (HTTPS)
+     * @return true, if the host is known to be reached without parent (false if the PAC decision isn't taken yet)
+     */
+    public boolean isDirect(final String host, final boolean secure) {
+        final String lower = host.toLowerCase(Locale.ROOT);
+        if (!this.routes.isEmpty()) {
+            final List<ParentProxy> route = this.route(lower);
+            if (route != null) {
+                return route.isEmpty();
+            }
+        }
+        if (this.pac == null) {
+            return true;
+        }
+        final List<ParentProxy> cached = this.pac.getCached(lower, secure);
+        return cached != null && cached.isEmpty();
+    }
+
+    /**
+     * @return the route of the most specific pattern matching the host, null if none
+     */
+    private List<ParentProxy> route(final String host) {
+        List<ParentProxy> route = this.routes.get(host);
+        if (route == null) {
+            int length = -1;
+            for (Map.Entry<String, List<ParentProxy>> entry : this.routes.entrySet()) {
+                final String pattern = entry.getKey();
+                if (pattern.length() > length && matches(pattern, host)) {
+                    length = pattern.length();
+                    route = entry.getValue();
+                }
+            }
+        }
+        return route;
+    }
+
+    private static boolean matches(final String pattern, final String host) {
+        if ("*".equals(pattern)) {
+            return true;
+        } else if (pattern.startsWith("*.")) {
+            return host.endsWith(pattern.substring(1));
+        }
+        return pattern.equals(host);
+    }
+
+    /**
+     * Opens a connection to the parent serving the host (to send requests in absolute form) or to the host itself
+     *
+     * @param host
+     *            the origin host
+     * @param port
+     *            the origin port
+     * @return the connection, in blocking mode
+     * @throws IOException
+     *             if neither the parents nor the host can be reached
+     */
+    public Hop connect(final String host, final int port) throws IOException {
+        final List<ParentProxy> candidates = this.select(host, false);
+        if (candidates.isEmpty()) {
+            return new Hop(null, this.connector.connect(host, port));
+        }
+        return this.failover(host, port, candidates, (parent, channel) -> {
+            // the requests are sent by the caller
+        });
+    }
+
+    /**
+     * Opens a tunnel to the host, through a parent (CONNECT request) or directly
+     *
+     * @param host
+     *            the origin host
+     * @param port
+     *            the origin port
+     * @return the tunnel, in blocking mode (the parent of the hop is null, the tunnel is transparent)
+     * @throws IOException
+     *             if neither the parents nor the host can be reached, {@link RefusedException} if the parent refuses the tunnel
+     */
+    public Hop openTunnel(final String host, final int port) throws IOException {
+        final List<ParentProxy> candidates = this.select(host, true);
+        if (candidates.isEmpty()) {
+            return new Hop(null, this.connector.connect(host, port));
+        }
+        final Hop hop = this.failover(host, port, candidates, (parent, channel) -> this.handshake(parent, channel, host + ':' + port));
+        if (hop.parent != null) {
+            this.tunnels.increment();
+        }
+        return new Hop(null, hop.channel);
+    }
+
+    /**
+     * Same as {@link #connect(String, int)}, the exchanges with a parent are run outside of the calling thread
+     *
+     * @param host
+     *            the origin host
+     * @param port
+     *            the origin port
+     * @return the future connection, in blocking mode
+     */
+    public CompletableFuture<Hop> connectAsync(final String host, final int port) {
+        return this.async(() -> this.connect(host, port));
+    }
+
+    /**
+     * Same as {@link #openTunnel(String, int)}, the exchanges with a parent are run outside of the calling thread
+     *
+     * @param host
+     *            the origin host
+     * @param port
+     *            the origin port
+     * @return the future tunnel, in blocking mode
+     */
+    public CompletableFuture<Hop> openTunnelAsync(final String host, final int port) {
+        return this.async(() -> this.openTunnel(host, port));
+    }
+
+    @FunctionalInterface
+    private interface HopSupplier {
+
+        Hop get() throws IOException;
+    }
+
+    private CompletableFuture<Hop> async(final HopSupplier supplier) {
+        final CompletableFuture<Hop> future = new CompletableFuture<>();
+        try {
+            this.handshakes.execute(() -> {
+                try {
+                    future.complete(supplier.get());
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected, closed router
+            future.completeExceptionally(new IOException("Parent router closed"));
+        }
+        return future;
+    }
+
+    private Hop failover(final String host, final int port, final List<ParentProxy> candidates, final Exchange exchange) throws IOException {
+        IOException last = null;
+        for (ParentProxy parent : candidates) {
+            if (last != null) {
+                this.failovers.increment();
+                LOG.info("Failover to parent proxy {}", parent);
+            }
+            if (parent.isDirect()) {
+                try {
+                    return new Hop(null, this.connector.connect(host, port));
+                } catch (IOException e) {
+                    last = e;
+                    continue;
+                }
+            }
+            try {
+                final Hop hop = this.exchange(parent, exchange);
+                if (parent.markUp()) {
+                    LOG.info("Parent proxy {} is up", parent);
+                }
+                return hop;
+            } catch (RefusedException e) {
+                this.refused.increment();
+                throw e;
+            } catch (IOException e) {
+                this.markDown(parent, e);
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    /**
+     * Runs the exchange on a warm connection to the parent, or on a new one if none is available or if the warm one was closed by the parent in
+     * the meantime
+     */
+    private Hop exchange(final ParentProxy parent, final Exchange exchange) throws IOException {
+        final SocketChannel warm = parent.pollWarm();
+        if (this.warmConnections > 0) {
+            this.refillAsync(parent);
+        }
+        if (warm != null) {
+            this.warmHits.increment();
+            try {
+                exchange.run(parent, warm);
+                return new Hop(parent, warm);
+            } catch (RefusedException | SocketTimeoutException e) {
+                ParentProxy.closeQuietly(warm);
+                throw e;
+            } catch (IOException e) {
+                ParentProxy.closeQuietly(warm);
+            }
+        } else {
+            this.warmMisses.increment();
+        }
+
+        final SocketChannel channel = this.connector.connect(parent.getHost(), parent.getPort(), this.connectTimeout);
+        try {
+            exchange.run(parent, channel);
+        } catch (IOException e) {
+            ParentProxy.closeQuietly(channel);
+            throw e;
+        }
+        return new Hop(parent, channel);
+    }
+
+    private void refillAsync(final ParentProxy parent) {
+        try {
+            this.handshakes.execute(() -> this.refill(parent));
+        } catch (RuntimeException e) {
+            // rejected, closed router
+        }
+    }
+
+    /**
+     * Sends the CONNECT request and reads the response of the parent, byte per byte so the first bytes of the tunnel stay in the channel
+     */
+    private void handshake(final ParentProxy parent, final SocketChannel channel, final String authority) throws IOException {
+        final OutputStream os = channel.socket().getOutputStream();
+        os.write(parent.connectRequest(authority));
+        os.flush();
+
+        channel.socket().setSoTimeout(this.connectTimeout);
+        final HttpResponseHead head;
+        try {
+            head = HttpResponseHead.read(channel.socket().getInputStream());
+        } catch (SocketTimeoutException e) {
+            throw new SocketTimeoutException("No response from parent proxy " + parent + " after " + this.connectTimeout + "ms");
+        }
+        channel.socket().setSoTimeout(0);
+
+        if (head.getStatus() < 200 || head.getStatus() > 299) {
+            throw new RefusedException(parent, head);
+        }
+    }
+
+    private void markDown(final ParentProxy parent, final IOException e) {
+        this.failures.increment();
+        if (parent.markDown(System.nanoTime() + this.retryAfter)) {
+            LOG.error("Parent proxy {} is down: {}", parent, e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the missing warm connections of an available parent
+     */
+    private void refill(final ParentProxy parent) {
+        if (!parent.startRefill()) {
+            return;
+        }
+        try {
+            while (parent.isAvailable(System.nanoTime()) && parent.getWarmCount() < this.warmConnections) {
+                try {
+                    parent.offerWarm(this.connector.connect(parent.getHost(), parent.getPort(), this.connectTimeout));
+                    if (parent.markUp()) {
+                        LOG.info("Parent proxy {} is up", parent);
+                    }
+                } catch (IOException e) {
+                    this.markDown(parent, e);
+                }
+            }
+        } finally {
+            parent.endRefill();
+        }
+    }
+
+    /**
+     * Closes the expired warm connections, refills them and probes the down parents once their retry time is reached
+     */
+    private void maintain() {
+        final long limit = System.nanoTime() - this.warmIdleTimeout;
+        for (ParentProxy parent : this.allParents()) {
+            parent.evictWarm(limit);
+            if (this.warmConnections > 0) {
+                this.refill(parent);
+            }
+        }
+    }
+
+    /**
+     * @return true, if at least one parent proxy or a PAC file is configured
+     */
+    public boolean hasParents() {
+        return !this.parents.isEmpty() || this.pac != null;
+    }
+
+    /**
+     * Stops the threads and closes the warm connections
+     */
+    public void close() {
+        if (this.maintenance != null) {
+            this.maintenance.shutdownNow();
+            this.handshakes.shutdownNow();
+        }
+        if (this.pac != null) {
+            this.pac.close();
+        }
+        this.allParents().forEach(ParentProxy::closeWarm);
+    }
+}
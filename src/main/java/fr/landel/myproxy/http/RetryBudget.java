@@ -0,0 +1,100 @@
+package fr.landel.myproxy.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.landel.myproxy.conf.Configuration;
+
+/**
+ * Budget shared by all the retries (and hedged requests), so they cannot multiply the load of failing origins: each request deposits "ratio" of
+ * a retry, each retry withdraws a whole one. A reserve of "min-per-second" retries is added over time, so the retries of a low traffic stay
+ * possible. The unused budget is capped to "burst" retries.
+ */
+public class RetryBudget {
+
+    /**
+     * A retry, in thousandths
+     */
+    private static final long RETRY = 1_000;
+
+    private final long deposit;
+    private final long reservePerSecond;
+    private final long max;
+
+    private final AtomicLong balance;
+    private final AtomicLong lastRefill = new AtomicLong(System.nanoTime());
+
+    /**
+     * Constructor
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/retry-budget")
+     * @category constructor
+     */
+    public RetryBudget(final Configuration configuration) {
+        this(configuration.getDouble("proxy/retry-budget/ratio", 0.2), configuration.getInt("proxy/retry-budget/min-per-second", 10),
+                configuration.getInt("proxy/retry-budget/burst", 100));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ratio
+     *            the retries allowed by request (0.2: one retry every five requests)
+     * @param minPerSecond
+     *            the retries allowed by second whatever the traffic
+     * @param burst
+     *            the maximum number of retries saved
+     * @category constructor
+     */
+    public RetryBudget(final double ratio, final int minPerSecond, final int burst) {
+        this.deposit = Math.max(0, Math.round(ratio * RETRY));
+        this.reservePerSecond = Math.max(0, minPerSecond) * RETRY;
+        this.max = Math.max(1, burst) * RETRY;
+        this.balance = new AtomicLong(Math.min(this.max, this.reservePerSecond));
+    }
+
+    /**
+     * Deposits the share of a new request
+     */
+    public void deposit() {
+        if (this.deposit > 0) {
+            this.balance.accumulateAndGet(this.deposit, (balance, deposit) -> Math.min(this.max, balance + deposit));
+        }
+    }
+
+    /**
+     * Withdraws a retry
+     *
+     * @return true, if the retry is allowed
+     */
+    public boolean tryWithdraw() {
+        this.refill();
+        long balance;
+        do {
+            balance = this.balance.get();
+            if (balance < RETRY) {
+                return false;
+            }
+        } while (!this.balance.compareAndSet(balance, balance - RETRY));
+        return true;
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        final long last = this.lastRefill.get();
+        // the elapsed time is bounded, the budget is full long before
+        final long amount = Math.min(now - last, TimeUnit.HOURS.toNanos(1)) * this.reservePerSecond / TimeUnit.SECONDS.toNanos(1);
+        if (amount > 0 && this.lastRefill.compareAndSet(last, now)) {
+            this.balance.accumulateAndGet(amount, (balance, deposit) -> Math.min(this.max, balance + deposit));
+        }
+    }
+
+    /**
+     * @return the number of retries currently allowed
+     */
+    public long getBalance() {
+        this.refill();
+        return this.balance.get() / RETRY;
+    }
+}
@@ -0,0 +1,335 @@
+package fr.landel.myproxy.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.utils.Logger;
+
+/**
+ * Collapses the concurrent fetches of a same URL: the first request becomes the leader of a {@link Flight} and fetches the response, the
+ * requests joining the flight before the end of the leader are followers. The leader writes the body (without framing) to a temporary file
+ * and the followers read it from there as it grows, so the origin is requested once. The complete file is then moved to its cache file, which
+ * is written once and never truncated under a reader.
+ * <p>
+ * Only the responses the leader caches are shared, otherwise the flight is abandoned and the followers fetch on their own.
+ * </p>
+ */
+public class SingleFlight {
+
+    private static final Logger LOG = new Logger(SingleFlight.class);
+
+    private static final String METRICS = "coalescing.";
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder leaders = Metrics.counter(METRICS + "leaders");
+    private final LongAdder followers = Metrics.counter(METRICS + "followers");
+    private final LongAdder abandoned = Metrics.counter(METRICS + "abandoned");
+
+    private enum State {
+        PENDING,
+        STREAMING,
+        COMPLETE,
+        ABANDONED,
+        FAILED
+    }
+
+    @FunctionalInterface
+    private interface Condition {
+
+        boolean isMet();
+    }
+
+    /**
+     * Fetch shared by the concurrent requests of a URL, each request gets its own instance: the one of the leader holds the shared state
+     */
+    public final class Flight {
+
+        private final String key;
+        private final boolean leader;
+
+        /**
+         * The flight of the leader
+         */
+        private final Flight shared;
+
+        private boolean closed;
+
+        // guarded by the flight of the leader
+        private State state = State.PENDING;
+        private HttpResponseHead head;
+        private Path temporary;
+        private FileChannel channel;
+        private long written;
+        private int references = 1;
+
+        private Flight(final String key) {
+            this.key = key;
+            this.leader = true;
+            this.shared = this;
+        }
+
+        private Flight(final Flight flight) {
+            this.key = flight.key;
+            this.leader = false;
+            this.shared = flight;
+        }
+
+        /**
+         * @return true, if this request fetches the response
+         */
+        public boolean isLeader() {
+            return this.leader;
+        }
+
+        /**
+         * Follows the flight for the client of the leader, so that the body it reads stays open after the close of the leader. The returned
+         * flight has to be closed at the end of the request.
+         *
+         * @return the flight, as follower
+         */
+        public Flight follow() {
+            synchronized (this.shared) {
+                ++this.shared.references;
+            }
+            return new Flight(this.shared);
+        }
+
+        /**
+         * Shares the response of the leader, the body written to the returned stream becomes readable by the followers
+         *
+         * @param head
+         *            the response head, copied before any change
+         * @param cacheFile
+         *            the cache file, its directory receives the temporary file
+         * @return the stream of the body, its close doesn't end the flight
+         * @throws IOException
+         *             if the temporary file cannot be created
+         */
+        public OutputStream publish(final HttpResponseHead head, final File cacheFile) throws IOException {
+            final Path path = Files.createTempFile(cacheFile.getAbsoluteFile().getParentFile().toPath(), "flight-", ".tmp");
+            final FileChannel opened = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            final HttpHeaders headers = new HttpHeaders();
+            for (int i = 0; i < head.getHeaders().size(); ++i) {
+                headers.add(head.getHeaders().getName(i), head.getHeaders().getValue(i));
+            }
+            synchronized (this) {
+                this.head = new HttpResponseHead(head.getVersion(), head.getStatus(), head.getReason(), headers);
+                this.temporary = path;
+                this.channel = opened;
+                this.state = State.STREAMING;
+                this.notifyAll();
+            }
+            return new OutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    this.write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    while (buffer.hasRemaining()) {
+                        opened.write(buffer);
+                    }
+                    Flight.this.progress(len);
+                }
+            };
+        }
+
+        private synchronized void progress(final long length) {
+            this.written += length;
+            this.notifyAll();
+        }
+
+        /**
+         * Marks the body as fully written and moves it to the cache file, to call before {@link #close()}
+         *
+         * @param cacheFile
+         *            the cache file, replaced
+         * @throws IOException
+         *             if the cache file cannot be replaced (the followers still get the body)
+         */
+        public void complete(final File cacheFile) throws IOException {
+            final Path path;
+            synchronized (this) {
+                if (this.state != State.STREAMING) {
+                    return;
+                }
+                this.state = State.COMPLETE;
+                this.notifyAll();
+                path = this.temporary;
+            }
+            try {
+                Files.move(path, cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(path, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        /**
+         * Ends the request in the flight. For the leader, the next requests of the URL start a new flight and a flight not completed is abandoned
+         * if it wasn't published (the followers fetch on their own), otherwise it fails (the followers stop their responses).
+         */
+        public void close() {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            if (this.leader) {
+                SingleFlight.this.flights.remove(this.key, this);
+                synchronized (this) {
+                    if (this.state == State.PENDING) {
+                        this.state = State.ABANDONED;
+                        SingleFlight.this.abandoned.increment();
+                    } else if (this.state == State.STREAMING) {
+                        this.state = State.FAILED;
+                    }
+                    this.notifyAll();
+                }
+            }
+            this.shared.release();
+        }
+
+        private void release() {
+            final FileChannel opened;
+            final Path path;
+            synchronized (this) {
+                if (--this.references > 0 || this.channel == null) {
+                    return;
+                }
+                opened = this.channel;
+                path = this.state == State.COMPLETE ? null : this.temporary;
+            }
+            try {
+                opened.close();
+                if (path != null) {
+                    Files.deleteIfExists(path);
+                }
+            } catch (IOException e) {
+                LOG.error("Error closing the shared response of {}: {}", this.key, e.getMessage());
+            }
+        }
+
+        /**
+         * Waits for the response of the leader
+         *
+         * @param timeoutMs
+         *            the maximum wait in milliseconds
+         * @return the response head, null if the leader doesn't share its response
+         * @throws IOException
+         *             on timeout or interruption
+         */
+        public HttpResponseHead awaitHead(final int timeoutMs) throws IOException {
+            final Flight flight = this.shared;
+            synchronized (flight) {
+                flight.await(() -> flight.state != State.PENDING, timeoutMs);
+                return flight.state == State.ABANDONED ? null : flight.head;
+            }
+        }
+
+        /**
+         * Opens the body written by the leader, its reads block until more bytes are written or the body ends. The stream stays usable until the
+         * flight is closed.
+         *
+         * @param timeoutMs
+         *            the maximum wait of a read in milliseconds
+         * @return the body stream
+         */
+        public InputStream openBody(final int timeoutMs) {
+            final Flight flight = this.shared;
+            return new InputStream() {
+
+                private long position;
+
+                @Override
+                public int read() throws IOException {
+                    final byte[] b = new byte[1];
+                    return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    final long available;
+                    final FileChannel opened;
+                    synchronized (flight) {
+                        flight.await(() -> flight.written > this.position || flight.state != State.STREAMING, timeoutMs);
+                        if (flight.state == State.FAILED) {
+                            throw new IOException("Shared response failed");
+                        }
+                        available = flight.written - this.position;
+                        opened = flight.channel;
+                    }
+                    if (available <= 0) {
+                        return -1;
+                    }
+                    final int read = opened.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available)), this.position);
+                    if (read > 0) {
+                        this.position += read;
+                    }
+                    return read;
+                }
+            };
+        }
+
+        // called in the monitor of the flight
+        private void await(final Condition condition, final int timeoutMs) throws IOException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (!condition.isMet()) {
+                final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new IOException("Timeout waiting for the shared response of " + this.key);
+                }
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the shared response of " + this.key, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Joins the flight of the key, or starts it. The flight has to be closed at the end of the request.
+     *
+     * @param key
+     *            the URL
+     * @return the flight, led by the caller if {@link Flight#isLeader()}
+     */
+    public Flight join(final String key) {
+        final Flight[] joined = new Flight[1];
+        this.flights.compute(key, (k, current) -> {
+            if (current == null) {
+                joined[0] = new Flight(key);
+                return joined[0];
+            }
+            // the leader is still mapped, so it hasn't released its reference
+            synchronized (current) {
+                ++current.references;
+            }
+            joined[0] = new Flight(current);
+            return current;
+        });
+        if (joined[0].isLeader()) {
+            this.leaders.increment();
+        } else {
+            this.followers.increment();
+        }
+        return joined[0];
+    }
+}
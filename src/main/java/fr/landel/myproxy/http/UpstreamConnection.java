@@ -0,0 +1,181 @@
+package fr.landel.myproxy.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import fr.landel.myproxy.nio.BufferPool;
+
+/**
+ * Connection to an origin server, owned by the {@link UpstreamPool}. The socket is created from a channel, so the health can be checked without
+ * blocking. Its stream buffers come from the {@link BufferPool}, they are released on close.
+ */
+public class UpstreamConnection implements Closeable {
+
+    private static final int BUFFER_SIZE = 16_384;
+
+    private final String origin;
+    private final ParentProxy parent;
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final BufferPool.PooledInputStream input;
+    private final BufferPool.PooledOutputStream output;
+
+    private volatile long lastUsed;
+
+    private int requests;
+
+    /**
+     * Constructor
+     *
+     * @param origin
+     *            the origin key ("scheme://host:port")
+     * @param secure
+     *            true, to layer TLS over the socket
+     * @param host
+     *            the host name (for TLS)
+     * @param channel
+     *            the connected channel, in blocking mode
+     * @param readTimeout
+     *            the read timeout in milliseconds
+     * @param parent
+     *            the parent proxy receiving the requests, null if the channel is connected to the origin (directly or through a tunnel)
+     * @throws IOException
+     *             if the TLS layer cannot be created (the channel is then closed)
+     * @category constructor
+     */
+    public UpstreamConnection(final String origin, final boolean secure, final String host, final SocketChannel channel, final int readTimeout,
+            final ParentProxy parent) throws IOException {
+        this.origin = origin;
+        this.parent = parent;
+        this.channel = channel;
+        try {
+            this.channel.socket().setTcpNoDelay(true);
+            this.channel.socket().setKeepAlive(true);
+
+            if (secure) {
+                this.socket = ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(this.channel.socket(), host, this.channel.socket().getPort(), true);
+            } else {
+                this.socket = this.channel.socket();
+            }
+            this.socket.setSoTimeout(readTimeout);
+
+            final InputStream is = this.socket.getInputStream();
+            final OutputStream os = this.socket.getOutputStream();
+            this.input = BufferPool.bufferedInput(is, BUFFER_SIZE);
+            this.output = BufferPool.bufferedOutput(os, BUFFER_SIZE);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.lastUsed = System.nanoTime();
+    }
+
+    public String getOrigin() {
+        return this.origin;
+    }
+
+    /**
+     * @return the parent proxy receiving the requests (in absolute form, with its credentials), null if connected to the origin
+     */
+    public ParentProxy getParent() {
+        return this.parent;
+    }
+
+    public InputStream getInputStream() {
+        return this.input;
+    }
+
+    public OutputStream getOutputStream() {
+        return this.output;
+    }
+
+    /**
+     * Waits for the first byte of the response, without consuming it
+     *
+     * @param timeout
+     *            the maximum wait in milliseconds
+     * @return true, if a byte or the end of the stream is available, false on timeout
+     * @throws IOException
+     *             on read failure
+     */
+    public boolean awaitResponse(final int timeout) throws IOException {
+        final int readTimeout = this.socket.getSoTimeout();
+        this.socket.setSoTimeout(Math.max(1, timeout));
+        try {
+            this.input.mark(1);
+            this.input.read();
+            this.input.reset();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            this.socket.setSoTimeout(readTimeout);
+        }
+    }
+
+    /**
+     * @return the number of requests sent on this connection
+     */
+    public int getRequests() {
+        return this.requests;
+    }
+
+    void markUsed() {
+        ++this.requests;
+        this.lastUsed = System.nanoTime();
+    }
+
+    long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    /**
+     * Checks that an idle connection is still usable: not closed by the server and without unsolicited data
+     *
+     * @return true, if the connection can be reused
+     */
+    boolean isHealthy() {
+        if (!this.channel.isOpen()) {
+            return false;
+        }
+        try {
+            if (this.input.available() > 0) {
+                // unsolicited data, the connection is out of sync
+                return false;
+            }
+            this.channel.configureBlocking(false);
+            try {
+                // 0: nothing to read, -1: closed by server, >0: unsolicited data or TLS close_notify
+                return this.channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                this.channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        this.input.release();
+        this.output.release();
+    }
+}
@@ -0,0 +1,475 @@
+package fr.landel.myproxy.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.utils.Logger;
+import fr.landel.myproxy.utils.ThreadUtils;
+
+/**
+ * Sends the requests to the origin servers (through the {@link UpstreamPool}) until a response head is received. A GET is idempotent, so a
+ * request failing before its response (connection closed, timeout...) or answered by 502, 503 or 504 is retried up to "retry" times, after a
+ * jittered exponential backoff ("retry-backoff"). All the retries are limited by the {@link RetryBudget}.
+ * <p>
+ * With "hedge/enabled", a request still without response after the "hedge/percentile" of the last latencies of its origin is sent a second time
+ * on another connection: the first response wins, the other request is aborted. A hedged request is paid from the retry budget too.
+ * </p>
+ * <p>
+ * The origins accepted by the {@link Http2Transport} are first requested over HTTP/2, their requests are multiplexed and not hedged.
+ * </p>
+ * <p>
+ * The other methods are forwarded once with their body ({@link #forward(URL, String, HttpHeaders, InputStream, long)}), over HTTP/1.1.
+ * </p>
+ */
+public class UpstreamFetcher {
+
+    private static final Logger LOG = new Logger(UpstreamFetcher.class);
+
+    private static final String METRICS = "upstream.";
+
+    private final UpstreamPool pool;
+    private final Http2Transport http2;
+    private final RetryBudget budget;
+
+    private final int retries;
+    private final long backoff;
+
+    private final boolean hedge;
+    private final double hedgePercentile;
+    private final int hedgeMinSamples;
+    private final long hedgeMinDelay;
+
+    /**
+     * Runs the competing attempts of the hedged requests, null without hedging
+     */
+    private final ExecutorService hedges;
+
+    private final LongAdder retried = Metrics.counter(METRICS + "retries");
+    private final LongAdder exhausted = Metrics.counter(METRICS + "retry-budget-exhausted");
+    private final LongAdder hedged = Metrics.counter(METRICS + "hedges");
+    private final LongAdder hedgeWins = Metrics.counter(METRICS + "hedge-wins");
+
+    /**
+     * Response head received from an origin, with its connection
+     */
+    public final class Exchange {
+
+        private final UpstreamConnection connection;
+        private final HttpResponseHead head;
+        private final InputStream body;
+
+        private Exchange(final UpstreamConnection connection, final HttpResponseHead head) {
+            this(connection, head, connection.getInputStream());
+        }
+
+        private Exchange(final UpstreamConnection connection, final HttpResponseHead head, final InputStream body) {
+            this.connection = connection;
+            this.head = head;
+            this.body = body;
+        }
+
+        /**
+         * @return the connection, positioned on the response body, or null if the response was received over HTTP/2
+         */
+        public UpstreamConnection getConnection() {
+            return this.connection;
+        }
+
+        public HttpResponseHead getHead() {
+            return this.head;
+        }
+
+        /**
+         * @return the response body, framed as its head says
+         */
+        public InputStream getBody() {
+            return this.body;
+        }
+
+        /**
+         * Gives back the connection to the pool, or ends the HTTP/2 stream
+         *
+         * @param reusable
+         *            true, if the response was fully read and the server keeps the connection open
+         */
+        public void release(final boolean reusable) {
+            if (this.connection != null) {
+                UpstreamFetcher.this.pool.release(this.connection, reusable);
+            } else {
+                try {
+                    // resets the stream if the body wasn't fully read
+                    this.body.close();
+                } catch (IOException e) {
+                    LOG.error(e, "Cannot close the HTTP/2 stream");
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Attempt {
+
+        Exchange run() throws IOException;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/retry", "proxy/retry-backoff", "proxy/retry-budget" and "proxy/hedge")
+     * @param pool
+     *            the pool of connections to the origins
+     * @param http2
+     *            the HTTP/2 client of the direct origins, null if disabled
+     * @category constructor
+     */
+    public UpstreamFetcher(final Configuration configuration, final UpstreamPool pool, final Http2Transport http2) {
+        this.pool = pool;
+        this.http2 = http2;
+        this.budget = new RetryBudget(configuration);
+        this.retries = Math.max(0, configuration.getInt("proxy/retry", 3));
+        this.backoff = configuration.getDuration("proxy/retry-backoff", Duration.ofMillis(50)).toNanos();
+        this.hedge = configuration.getBoolean("proxy/hedge/enabled", false);
+        this.hedgePercentile = configuration.getDouble("proxy/hedge/percentile", 0.95);
+        this.hedgeMinSamples = Math.max(1, configuration.getInt("proxy/hedge/min-samples", 20));
+        this.hedgeMinDelay = configuration.getDuration("proxy/hedge/min-delay", Duration.ofMillis(10)).toNanos();
+        this.hedges = this.hedge ? Executors.newCachedThreadPool(ThreadUtils.platformThreadFactory("myproxy-hedge-", true)) : null;
+
+        Metrics.gauge(METRICS + "retry-budget", this.budget::getBalance);
+    }
+
+    /**
+     * Sends the GET request of the URL, retried and hedged, until a response head is received
+     *
+     * @param url
+     *            the requested URL
+     * @return the response, to give back with {@link Exchange#release(boolean)} once its body is read
+     * @throws IOException
+     *             if no response can be received
+     */
+    public Exchange fetch(final URL url) throws IOException {
+        return this.fetch(url, null);
+    }
+
+    /**
+     * Sends the GET request of the URL with additional headers (ex: the end-to-end headers of the client, the conditions of a revalidation),
+     * retried and hedged, until a response head is received
+     *
+     * @param url
+     *            the requested URL
+     * @param headers
+     *            the additional request headers, without connection nor framing headers (nullable)
+     * @return the response, to give back with {@link Exchange#release(boolean)} once its body is read
+     * @throws IOException
+     *             if no response can be received
+     */
+    public Exchange fetch(final URL url, final HttpHeaders headers) throws IOException {
+        this.budget.deposit();
+        for (int attempt = 0;; ++attempt) {
+            Exchange exchange = null;
+            IOException failure = null;
+            try {
+                exchange = this.attempt(url, headers);
+                final int status = exchange.head.getStatus();
+                if (status != 502 && status != 503 && status != 504) {
+                    return exchange;
+                }
+            } catch (UnknownHostException | ParentRouter.RefusedException e) {
+                // not transient
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            if (attempt >= this.retries) {
+                return this.giveUp(exchange, failure);
+            } else if (!this.budget.tryWithdraw()) {
+                this.exhausted.increment();
+                return this.giveUp(exchange, failure);
+            }
+
+            final String reason;
+            if (exchange != null) {
+                // the response is discarded with its connection
+                reason = exchange.head.getStatusLine();
+                exchange.release(false);
+            } else {
+                reason = failure.getMessage();
+            }
+            this.retried.increment();
+            LOG.info("Retry {}/{} of {}: {}", attempt + 1, this.retries, url, reason);
+            this.sleep(attempt);
+        }
+    }
+
+    private Exchange giveUp(final Exchange exchange, final IOException failure) throws IOException {
+        if (exchange != null) {
+            return exchange;
+        }
+        throw failure;
+    }
+
+    /**
+     * Full jitter: a random wait up to the backoff doubled at each attempt
+     */
+    private void sleep(final int attempt) throws IOException {
+        final long max = this.backoff << Math.min(attempt, 10);
+        if (max <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong(max));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted before retry", e);
+        }
+    }
+
+    /**
+     * Sends the request once, hedged if its origin is slower than usual
+     */
+    private Exchange attempt(final URL url, final HttpHeaders headers) throws IOException {
+        if (this.http2 != null && this.http2.accepts(url)) {
+            final Http2Transport.Response response = this.http2.fetch(url, headers);
+            return new Exchange(null, response.getHead(), response.getBody());
+        }
+        final long delay = this.hedge ? this.pool.getLatency(url, this.hedgePercentile, this.hedgeMinSamples) : -1;
+        final UpstreamConnection connection = this.pool.acquire(url);
+        final long start = System.nanoTime();
+        try {
+            send(connection, url, headers);
+            if (delay < 0 || connection.awaitResponse((int) TimeUnit.NANOSECONDS.toMillis(Math.max(delay, this.hedgeMinDelay)))
+                    || !this.budget.tryWithdraw()) {
+                return this.read(connection, start);
+            }
+        } catch (IOException | RuntimeException e) {
+            this.pool.release(connection, false);
+            throw e;
+        }
+        // the race owns the connection
+        return this.race(url, headers, connection, () -> this.read(connection, start));
+    }
+
+    /**
+     * Sends a request once with its body, until its response head is received. It's neither retried nor hedged: the method may not be
+     * idempotent and the body is read once.
+     *
+     * @param url
+     *            the requested URL
+     * @param method
+     *            the request method
+     * @param headers
+     *            the end-to-end request headers, without framing (completed by the framing of the body)
+     * @param body
+     *            the request body, without framing
+     * @param length
+     *            the body length, -1 if unknown (the body is chunked)
+     * @return the response, to give back with {@link Exchange#release(boolean)} once its body is read
+     * @throws IOException
+     *             if the request cannot be sent or if no response is received
+     */
+    public Exchange forward(final URL url, final String method, final HttpHeaders headers, final InputStream body, final long length)
+            throws IOException {
+        if (length < 0) {
+            headers.set("Transfer-Encoding", "chunked");
+        } else if (length > 0) {
+            headers.set("Content-Length", String.valueOf(length));
+        }
+        final UpstreamConnection connection = this.pool.acquire(url);
+        final long start = System.nanoTime();
+        try {
+            send(connection, method, url, headers);
+            if (length < 0) {
+                final OutputStream chunkedOs = new ChunkedOutputStream(connection.getOutputStream());
+                body.transferTo(chunkedOs);
+                // writes the last chunk
+                chunkedOs.close();
+            } else if (body.transferTo(connection.getOutputStream()) != length) {
+                throw new IOException("Request body truncated, " + length + " bytes expected");
+            }
+            connection.getOutputStream().flush();
+            return this.read(connection, start);
+        } catch (IOException | RuntimeException e) {
+            this.pool.release(connection, false);
+            throw e;
+        }
+    }
+
+    private Exchange read(final UpstreamConnection connection, final long start) throws IOException {
+        final HttpResponseHead head = HttpResponseHead.read(connection.getInputStream());
+        this.pool.recordLatency(connection, System.nanoTime() - start);
+        return new Exchange(connection, head);
+    }
+
+    /**
+     * Races the pending request against a second one, the loser is aborted by closing its connection
+     *
+     * @throws IOException
+     *             if both requests fail (the failure of the first one)
+     */
+    private Exchange race(final URL url, final HttpHeaders headers, final UpstreamConnection first, final Attempt primary) throws IOException {
+        this.hedged.increment();
+        final CompletableFuture<Exchange> winner = new CompletableFuture<>();
+        final AtomicReference<UpstreamConnection> second = new AtomicReference<>();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicReference<IOException> firstFailure = new AtomicReference<>();
+
+        this.run(first, primary, winner, failures, firstFailure);
+        this.run(null, () -> {
+            if (winner.isDone()) {
+                throw new IOException("Hedged request not needed");
+            }
+            final UpstreamConnection connection = this.pool.acquire(url);
+            second.set(connection);
+            try {
+                if (winner.isDone()) {
+                    throw new IOException("Hedged request not needed");
+                }
+                final long start = System.nanoTime();
+                send(connection, url, headers);
+                return this.read(connection, start);
+            } catch (IOException | RuntimeException e) {
+                this.pool.release(connection, false);
+                throw e;
+            }
+        }, winner, failures, firstFailure);
+
+        final Exchange exchange;
+        try {
+            exchange = winner.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeQuietly(first);
+            closeQuietly(second.get());
+            throw new IOException("Interrupted while waiting for " + url, e);
+        } catch (ExecutionException e) {
+            throw firstFailure.get() != null ? firstFailure.get() : new IOException(e.getCause());
+        }
+
+        // unblocks the loser, it then gives back its connection
+        if (exchange.connection == first) {
+            closeQuietly(second.get());
+        } else {
+            this.hedgeWins.increment();
+            closeQuietly(first);
+        }
+        return exchange;
+    }
+
+    private void run(final UpstreamConnection owned, final Attempt attempt, final CompletableFuture<Exchange> winner, final AtomicInteger failures,
+            final AtomicReference<IOException> firstFailure) {
+        try {
+            this.hedges.execute(() -> {
+                try {
+                    final Exchange exchange = attempt.run();
+                    if (!winner.complete(exchange)) {
+                        exchange.release(false);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (owned != null) {
+                        // the primary attempt owns the connection of the first request
+                        this.pool.release(owned, false);
+                        firstFailure.compareAndSet(null, e instanceof IOException ? (IOException) e : new IOException(e));
+                    }
+                    if (failures.incrementAndGet() == 2) {
+                        winner.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected, closed fetcher
+            if (owned != null) {
+                this.pool.release(owned, false);
+            }
+            if (failures.incrementAndGet() == 2) {
+                winner.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static void closeQuietly(final UpstreamConnection connection) {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Sends the GET request, the connection is kept alive
+     *
+     * @param connection
+     *            the connection to the origin or to the parent
+     * @param url
+     *            the requested URL
+     * @param headers
+     *            the additional request headers (nullable)
+     * @throws IOException
+     *             if the request cannot be sent
+     */
+    static void send(final UpstreamConnection connection, final URL url, final HttpHeaders headers) throws IOException {
+        send(connection, "GET", url, headers);
+    }
+
+    /**
+     * Sends the request head, the connection is kept alive. A connection to a parent proxy gets the target in absolute form and the credentials
+     * of the parent.
+     *
+     * @param connection
+     *            the connection to the origin or to the parent
+     * @param method
+     *            the request method
+     * @param url
+     *            the requested URL
+     * @param headers
+     *            the additional request headers (nullable)
+     * @throws IOException
+     *             if the request cannot be sent
+     */
+    static void send(final UpstreamConnection connection, final String method, final URL url, final HttpHeaders headers) throws IOException {
+        final String file = url.getFile().isEmpty() ? "/" : url.getFile();
+        final String host = url.getPort() > -1 ? url.getHost() + ":" + url.getPort() : url.getHost();
+
+        final ParentProxy parent = connection.getParent();
+        final String target = parent != null ? url.getProtocol() + "://" + host + file : file;
+
+        final OutputStream os = connection.getOutputStream();
+        os.write((method + " " + target + " HTTP/1.1\r\n" + "Host: " + host + "\r\n" + "Content-Language: en-US\r\n" + "Connection: keep-alive\r\n")
+                .getBytes(ISO_8859_1));
+        if (parent != null && parent.getAuthorization() != null) {
+            os.write(parent.getAuthorization());
+        }
+        if (headers != null) {
+            // ends with the empty line
+            os.write(headers.appendTo(new StringBuilder()).toString().getBytes(ISO_8859_1));
+        } else {
+            os.write('\r');
+            os.write('\n');
+        }
+        os.flush();
+    }
+
+    /**
+     * Stops the hedging threads
+     */
+    public void close() {
+        if (this.hedges != null) {
+            this.hedges.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package fr.landel.myproxy.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.nio.Connector;
+import fr.landel.myproxy.utils.Logger;
+import fr.landel.myproxy.utils.ThreadUtils;
+
+/**
+ * Pool of keep-alive connections to the origin servers. Each origin ("scheme://host:port") has at most "max-per-host" leased connections, the
+ * requests beyond wait up to "max-wait". Idle connections are reused last in first out (the warmest first), checked before reuse and closed after
+ * "idle-timeout". The origins served by parent proxies are reached through the {@link ParentRouter}. The latencies of the last responses of each
+ * origin are kept, to hedge the slow requests. The origins without waiting, leased nor idle connection since "idle-timeout" are forgotten.
+ */
+public class UpstreamPool {
+
+    private static final Logger LOG = new Logger(UpstreamPool.class);
+
+    private static final String METRICS = "upstream.pool.";
+
+    private static final int LATENCY_SAMPLES = 128;
+
+    private final int maxPerHost;
+    private final long idleTimeout;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long maxWait;
+
+    private final Connector connector;
+    private final ParentRouter router;
+
+    private final Map<String, HostPool> hosts = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService evictor;
+
+    private final LongAdder hits = Metrics.counter(METRICS + "hits");
+    private final LongAdder misses = Metrics.counter(METRICS + "misses");
+    private final LongAdder evictions = Metrics.counter(METRICS + "evictions");
+    private final LongAdder unhealthy = Metrics.counter(METRICS + "unhealthy");
+    private final LongAdder timeouts = Metrics.counter(METRICS + "wait-timeouts");
+    private final LongAdder waitCount = new LongAdder();
+    private final LongAdder waitTotal = new LongAdder();
+    private final LongAccumulator waitMax = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Constructor
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/upstream-pool")
+     * @param connector
+     *            the connector to the origin servers
+     * @param router
+     *            the router to the parent proxies
+     * @category constructor
+     */
+    public UpstreamPool(final Configuration configuration, final Connector connector, final ParentRouter router) {
+        this.connector = connector;
+        this.router = router;
+        this.maxPerHost = Math.max(1, configuration.getInt("proxy/upstream-pool/max-per-host", 8));
+        this.idleTimeout = configuration.getDuration("proxy/upstream-pool/idle-timeout", Duration.ofSeconds(60)).toNanos();
+        this.connectTimeout = (int) configuration.getDuration("proxy/upstream-pool/connect-timeout", Duration.ofSeconds(10)).toMillis();
+        this.readTimeout = configuration.getInt("proxy/timeout", 30_000);
+        this.maxWait = configuration.getDuration("proxy/upstream-pool/max-wait", Duration.ofSeconds(5)).toNanos();
+
+        Metrics.gauge(METRICS + "hit-rate-percent", () -> Metrics.percent(this.hits.sum(), this.hits.sum() + this.misses.sum()));
+        Metrics.gauge(METRICS + "wait-avg-micros", () -> this.waitCount.sum() > 0 ? this.waitTotal.sum() / this.waitCount.sum() / 1_000 : 0);
+        Metrics.gauge(METRICS + "wait-max-micros", () -> this.waitMax.get() / 1_000);
+        Metrics.gauge(METRICS + "hosts", this.hosts::size);
+        Metrics.gauge(METRICS + "idle", () -> this.hosts.values().stream().mapToLong(h -> h.idle.size()).sum());
+        Metrics.gauge(METRICS + "leased",
+                () -> this.hosts.values().stream().mapToLong(h -> this.maxPerHost - h.permits.availablePermits()).sum());
+
+        final long period = Math.max(1_000, TimeUnit.NANOSECONDS.toMillis(this.idleTimeout) / 2);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(ThreadUtils.platformThreadFactory("myproxy-upstream-evictor-", true));
+        this.evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets a connection to the origin of the URL, an idle connection if available, otherwise a new one
+     *
+     * @param url
+     *            the requested URL (http or https)
+     * @return the connection, to give back with {@link #release(UpstreamConnection, boolean)}
+     * @throws IOException
+     *             if no connection can be leased before "max-wait" or if the server cannot be reached
+     */
+    public UpstreamConnection acquire(final URL url) throws IOException {
+        final boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+        final int port = url.getPort() > -1 ? url.getPort() : url.getDefaultPort();
+        final String origin = origin(url);
+
+        // registered in the map lock, the evictor cannot remove the pool until the release
+        final HostPool pool = this.hosts.compute(origin, (key, current) -> {
+            final HostPool host = current != null ? current : new HostPool(this.maxPerHost);
+            host.users.incrementAndGet();
+            return host;
+        });
+
+        final long start = System.nanoTime();
+        try {
+            if (!pool.permits.tryAcquire(this.maxWait, TimeUnit.NANOSECONDS)) {
+                this.timeouts.increment();
+                pool.users.decrementAndGet();
+                throw new IOException("No connection available to " + origin + " after " + TimeUnit.NANOSECONDS.toMillis(this.maxWait) + "ms");
+            }
+        } catch (InterruptedException e) {
+            pool.users.decrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting a connection to " + origin, e);
+        }
+        final long wait = System.nanoTime() - start;
+        this.waitCount.increment();
+        this.waitTotal.add(wait);
+        this.waitMax.accumulate(wait);
+
+        try {
+            UpstreamConnection connection;
+            while ((connection = pool.idle.pollFirst()) != null) {
+                if (connection.isHealthy()) {
+                    this.hits.increment();
+                    connection.markUsed();
+                    return connection;
+                }
+                this.unhealthy.increment();
+                connection.close();
+            }
+
+            this.misses.increment();
+            if (this.router.isDirect(url.getHost(), secure)) {
+                connection = new UpstreamConnection(origin, secure, url.getHost(), this.connector.connect(url.getHost(), port, this.connectTimeout),
+                        this.readTimeout, null);
+            } else {
+                // the TLS connections go through a tunnel, the others send their requests to the parent
+                final ParentRouter.Hop hop = secure ? this.router.openTunnel(url.getHost(), port) : this.router.connect(url.getHost(), port);
+                connection = new UpstreamConnection(origin, secure, url.getHost(), hop.getChannel(), this.readTimeout, hop.getParent());
+            }
+            connection.markUsed();
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            pool.release();
+            throw e;
+        }
+    }
+
+    private static String origin(final URL url) {
+        final int port = url.getPort() > -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+    }
+
+    /**
+     * Records the latency of a response (time to its head)
+     *
+     * @param connection
+     *            the connection of the response
+     * @param nanos
+     *            the latency in nanoseconds
+     */
+    public void recordLatency(final UpstreamConnection connection, final long nanos) {
+        final HostPool pool = this.hosts.get(connection.getOrigin());
+        if (pool != null) {
+            pool.latency.record(nanos);
+        }
+    }
+
+    /**
+     * Gives a percentile of the last latencies of the origin
+     *
+     * @param url
+     *            the requested URL
+     * @param percentile
+     *            the percentile (0.95 for the 95th percentile)
+     * @param minSamples
+     *            the minimum number of samples
+     * @return the latency in nanoseconds, -1 if the origin has less samples
+     */
+    public long getLatency(final URL url, final double percentile, final int minSamples) {
+        final HostPool pool = this.hosts.get(origin(url));
+        if (pool == null || pool.latency.getCount() < minSamples) {
+            return -1;
+        }
+        return pool.latency.getPercentile(percentile);
+    }
+
+    /**
+     * Gives back a connection
+     *
+     * @param connection
+     *            the leased connection
+     * @param reusable
+     *            true, if the response was fully read and the server keeps the connection open, otherwise the connection is closed
+     */
+    public void release(final UpstreamConnection connection, final boolean reusable) {
+        final HostPool pool = this.hosts.get(connection.getOrigin());
+        if (reusable && pool != null && pool.idle.size() < this.maxPerHost) {
+            connection.markUsed();
+            pool.idle.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+        if (pool != null) {
+            pool.release();
+        }
+    }
+
+    /**
+     * Closes the idle connections unused since "idle-timeout" and removes the origins left without connection
+     */
+    void evict() {
+        final long now = System.nanoTime();
+        for (Map.Entry<String, HostPool> entry : this.hosts.entrySet()) {
+            final HostPool pool = entry.getValue();
+            final Iterator<UpstreamConnection> iterator = pool.idle.descendingIterator();
+            while (iterator.hasNext()) {
+                final UpstreamConnection connection = iterator.next();
+                if (now - connection.getLastUsed() > this.idleTimeout && pool.idle.remove(connection)) {
+                    this.evictions.increment();
+                    connection.close();
+                }
+            }
+            // checked in the map lock, as the registration of the users
+            this.hosts.computeIfPresent(entry.getKey(), (key, current) -> current.isUnused(now, this.idleTimeout) ? null : current);
+        }
+    }
+
+    /**
+     * @return the number of known origins
+     */
+    int getHostCount() {
+        return this.hosts.size();
+    }
+
+    /**
+     * Stops the evictor and closes the idle connections
+     */
+    public void close() {
+        this.evictor.shutdownNow();
+        int closed = 0;
+        for (HostPool pool : this.hosts.values()) {
+            UpstreamConnection connection;
+            while ((connection = pool.idle.pollFirst()) != null) {
+                connection.close();
+                ++closed;
+            }
+        }
+        LOG.info("Upstream pool closed ({} idle connections)", closed);
+    }
+
+    private static class HostPool {
+
+        private final Semaphore permits;
+
+        private final ConcurrentLinkedDeque<UpstreamConnection> idle = new ConcurrentLinkedDeque<>();
+
+        private final LatencyWindow latency = new LatencyWindow(LATENCY_SAMPLES);
+
+        // threads waiting for or leasing a connection
+        private final AtomicInteger users = new AtomicInteger();
+
+        private volatile long lastUsed = System.nanoTime();
+
+        private HostPool(final int maxPerHost) {
+            this.permits = new Semaphore(maxPerHost, true);
+        }
+
+        private void release() {
+            this.lastUsed = System.nanoTime();
+            this.users.decrementAndGet();
+            this.permits.release();
+        }
+
+        private boolean isUnused(final long now, final long idleTimeout) {
+            return this.users.get() == 0 && this.idle.isEmpty() && now - this.lastUsed > idleTimeout;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package fr.landel.myproxy.limit;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+
+/**
+ * Limits of each client address ("proxy/client-limits"): the bytes per second received from the client ("upload-rate") and sent to it
+ * ("download-rate"), both with a burst of "bytes-burst", and the requests per second ("requests-rate", with a burst of "requests-burst"). A rate
+ * of 0 is unlimited. All the connections of an address share its {@link Quota}, each one holds it until closed ({@link Quota#release()}).
+ * <p>
+ * The buckets refill lazily, no thread runs for them: the quotas held by no connection and whose buckets are all full are dropped by a sweep
+ * run at most once per minute by a lookup, they would be recreated identical. A quota still held is kept, so all the connections of an address
+ * keep sharing the same buckets.
+ * </p>
+ */
+public class ClientLimiter {
+
+    private static final String METRICS = "client.limits.";
+
+    private static final long SWEEP_PERIOD = TimeUnit.MINUTES.toNanos(1);
+
+    private final long uploadRate;
+    private final long downloadRate;
+    private final long bytesBurst;
+    private final long requestsRate;
+    private final long requestsBurst;
+
+    private final Map<InetAddress, Quota> quotas = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    private final LongAdder rejected = Metrics.counter(METRICS + "rejected-requests");
+    private final LongAdder throttled = Metrics.counter(METRICS + "throttled");
+
+    /**
+     * Buckets of a client address, a null bucket is unlimited
+     */
+    public final class Quota {
+
+        private final TokenBucket upload;
+        private final TokenBucket download;
+        private final TokenBucket requests;
+
+        /**
+         * Connections holding the quota, only incremented under the lock of its map entry
+         */
+        private final AtomicInteger holders = new AtomicInteger();
+
+        private Quota() {
+            final ClientLimiter limiter = ClientLimiter.this;
+            this.upload = limiter.uploadRate > 0 ? new TokenBucket(limiter.uploadRate, limiter.bytesBurst) : null;
+            this.download = limiter.downloadRate > 0 ? new TokenBucket(limiter.downloadRate, limiter.bytesBurst) : null;
+            this.requests = limiter.requestsRate > 0 ? new TokenBucket(limiter.requestsRate, limiter.requestsBurst) : null;
+        }
+
+        /**
+         * Counts a new request
+         *
+         * @return false, if the client exceeds its request rate (the request is rejected)
+         */
+        public boolean tryRequest() {
+            if (this.requests == null || this.requests.tryAcquire(1)) {
+                return true;
+            }
+            ClientLimiter.this.rejected.increment();
+            return false;
+        }
+
+        /**
+         * Counts the bytes received from the client
+         *
+         * @param bytes
+         *            the number of bytes read
+         * @return the delay in nanoseconds before the next read, 0 for none
+         */
+        public long upload(final long bytes) {
+            return this.upload != null ? ClientLimiter.this.delay(this.upload.consume(bytes)) : 0;
+        }
+
+        /**
+         * Counts the bytes sent to the client
+         *
+         * @param bytes
+         *            the number of bytes read for the client
+         * @return the delay in nanoseconds before the next read, 0 for none
+         */
+        public long download(final long bytes) {
+            return this.download != null ? ClientLimiter.this.delay(this.download.consume(bytes)) : 0;
+        }
+
+        /**
+         * Releases the quota held by a connection, once closed
+         */
+        public void release() {
+            this.holders.decrementAndGet();
+        }
+
+        private boolean isIdle() {
+            return this.holders.get() <= 0 && (this.upload == null || this.upload.isFull()) && (this.download == null || this.download.isFull())
+                    && (this.requests == null || this.requests.isFull());
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/client-limits")
+     * @category constructor
+     */
+    public ClientLimiter(final Configuration configuration) {
+        this.uploadRate = Math.max(0, configuration.getLong("proxy/client-limits/upload-rate", 0));
+        this.downloadRate = Math.max(0, configuration.getLong("proxy/client-limits/download-rate", 0));
+        this.bytesBurst = Math.max(1, configuration.getLong("proxy/client-limits/bytes-burst", 1_048_576));
+        this.requestsRate = Math.max(0, configuration.getLong("proxy/client-limits/requests-rate", 0));
+        this.requestsBurst = Math.max(1, configuration.getLong("proxy/client-limits/requests-burst", 50));
+
+        Metrics.gauge(METRICS + "clients", this.quotas::size);
+    }
+
+    /**
+     * @return true, if at least one limit is set
+     */
+    public boolean isEnabled() {
+        return this.uploadRate > 0 || this.downloadRate > 0 || this.requestsRate > 0;
+    }
+
+    /**
+     * Gets the quota of a client address, held by the connection until released
+     *
+     * @param address
+     *            the client address
+     * @return the quota, shared by the connections of the address, to release with {@link Quota#release()} once the connection is closed
+     */
+    public Quota quota(final InetAddress address) {
+        final long now = System.nanoTime();
+        final long last = this.lastSweep.get();
+        if (now - last >= SWEEP_PERIOD && this.lastSweep.compareAndSet(last, now)) {
+            this.sweep();
+        }
+        // held under the lock of the entry, so the sweep cannot drop it meanwhile
+        return this.quotas.compute(address, (key, quota) -> {
+            final Quota held = quota != null ? quota : new Quota();
+            held.holders.incrementAndGet();
+            return held;
+        });
+    }
+
+    /**
+     * Drops the quotas held by no connection and whose buckets are full
+     */
+    void sweep() {
+        for (InetAddress address : this.quotas.keySet()) {
+            this.quotas.computeIfPresent(address, (key, quota) -> quota.isIdle() ? null : quota);
+        }
+    }
+
+    /**
+     * @return the number of quotas kept
+     */
+    int size() {
+        return this.quotas.size();
+    }
+
+    private long delay(final long delay) {
+        if (delay > 0) {
+            this.throttled.increment();
+        }
+        return delay;
+    }
+}
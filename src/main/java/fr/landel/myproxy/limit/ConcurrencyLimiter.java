@@ -0,0 +1,160 @@
+package fr.landel.myproxy.limit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+
+/**
+ * Adaptive limit of the requests in flight ("proxy/concurrency"), with the gradient algorithm: the latency of each request is averaged over a
+ * short window (the current queueing) and a long one (the usual latency). While the short average stays close to the long one, the limit grows by
+ * its square root at each sample (the queue allowed); once it rises above "tolerance" times the long average, the limit is reduced in the same
+ * ratio (halved at most per sample). The new limit is smoothed ("smoothing") and bounded by "min-limit" and "max-limit".
+ * <p>
+ * The limit only grows while at least half of it is used, so an idle proxy doesn't grow it without evidence. Once the latency recovers (the short
+ * average falls below half of the long one, still raised by a past slowdown), the long average decays toward the short one, so a new queueing
+ * is measured against the current latency. A request beyond the limit is shed at once, the client can retry later, instead of queueing behind
+ * the slow ones.
+ * </p>
+ */
+public class ConcurrencyLimiter {
+
+    private static final String METRICS = "concurrency.";
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double smoothing;
+    private final double shortFactor;
+    private final double longFactor;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Current limit, updated under the lock of the limiter, read without
+     */
+    private volatile double limit;
+
+    private double shortRtt;
+    private double longRtt;
+
+    private final LongAdder shed = Metrics.counter(METRICS + "shed");
+
+    /**
+     * Constructor
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/concurrency")
+     * @category constructor
+     */
+    public ConcurrencyLimiter(final Configuration configuration) {
+        this(configuration.getInt("proxy/concurrency/initial-limit", 50), configuration.getInt("proxy/concurrency/min-limit", 10),
+                configuration.getInt("proxy/concurrency/max-limit", 1_000), configuration.getDouble("proxy/concurrency/tolerance", 1.5),
+                configuration.getDouble("proxy/concurrency/smoothing", 0.2), configuration.getInt("proxy/concurrency/short-window", 10),
+                configuration.getInt("proxy/concurrency/long-window", 600));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param initialLimit
+     *            the limit before the first samples
+     * @param minLimit
+     *            the lowest limit
+     * @param maxLimit
+     *            the highest limit
+     * @param tolerance
+     *            the ratio of the short latency to the long one tolerated before reducing the limit
+     * @param smoothing
+     *            the weight of each new limit (1 to apply it at once)
+     * @param shortWindow
+     *            the number of samples of the short average
+     * @param longWindow
+     *            the number of samples of the long average
+     * @category constructor
+     */
+    public ConcurrencyLimiter(final int initialLimit, final int minLimit, final int maxLimit, final double tolerance, final double smoothing,
+            final int shortWindow, final int longWindow) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.tolerance = Math.max(1, tolerance);
+        this.smoothing = Math.max(0.01, Math.min(1, smoothing));
+        this.shortFactor = 2.0 / (Math.max(1, shortWindow) + 1);
+        this.longFactor = 2.0 / (Math.max(1, longWindow) + 1);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+
+        Metrics.gauge(METRICS + "limit", this::getLimit);
+        Metrics.gauge(METRICS + "in-flight", this.inFlight::get);
+    }
+
+    /**
+     * Admits a request if the limit allows it
+     *
+     * @return true, if admitted: {@link #release(long)} must then be called once
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            final int current = this.inFlight.get();
+            if (current >= (int) this.limit) {
+                this.shed.increment();
+                return false;
+            } else if (this.inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ends an admitted request
+     *
+     * @param rtt
+     *            its latency in nanoseconds, 0 or less for no sample (the request wasn't representative)
+     */
+    public void release(final long rtt) {
+        final int inFlight = this.inFlight.getAndDecrement();
+        if (rtt > 0) {
+            this.sample(rtt, inFlight);
+        }
+    }
+
+    private synchronized void sample(final long rtt, final int inFlight) {
+        if (this.longRtt == 0) {
+            this.shortRtt = rtt;
+            this.longRtt = rtt;
+            return;
+        }
+        this.shortRtt += (rtt - this.shortRtt) * this.shortFactor;
+        this.longRtt += (rtt - this.longRtt) * this.longFactor;
+
+        // recovery: the long average, raised by a past slowdown, catches up with the short one faster
+        if (this.longRtt / this.shortRtt > 2) {
+            this.longRtt *= 0.95;
+        }
+
+        final double current = this.limit;
+        if (inFlight < current / 2) {
+            // not enough load to judge the limit
+            return;
+        }
+
+        final double gradient = Math.max(0.5, Math.min(1, this.tolerance * this.longRtt / this.shortRtt));
+        final double target = current * gradient + Math.sqrt(current);
+        final double next = current * (1 - this.smoothing) + target * this.smoothing;
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, next));
+    }
+
+    /**
+     * @return the current limit
+     */
+    public int getLimit() {
+        return (int) this.limit;
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+}
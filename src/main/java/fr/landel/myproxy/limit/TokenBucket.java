@@ -0,0 +1,104 @@
+package fr.landel.myproxy.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket refilled lazily: its whole state is the time at which it holds no token (the theoretical arrival time of GCRA), the
+ * tokens available at a given time are derived from it, so nothing runs between two uses. A consumption moves this time forward by the cost of
+ * the tokens, with a single compare-and-set.
+ * <p>
+ * The bytes are shaped with {@link #consume(long)}: the bytes already read are always taken, the bucket may then be in debt and the caller waits
+ * the returned delay before the next read. The requests are limited with {@link #tryAcquire(long)}, which takes nothing if the tokens are
+ * missing.
+ * </p>
+ */
+public class TokenBucket {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long rate;
+    private final long capacity;
+
+    /**
+     * Time at which the bucket is empty, it's full from this time plus the capacity duration
+     */
+    private final AtomicLong emptyAt;
+
+    /**
+     * Constructor, the bucket starts full
+     *
+     * @param rate
+     *            the tokens added per second
+     * @param burst
+     *            the maximum number of tokens saved
+     * @category constructor
+     */
+    public TokenBucket(final long rate, final long burst) {
+        if (rate < 1) {
+            throw new IllegalArgumentException("The rate must be positive: " + rate);
+        }
+        this.rate = rate;
+        this.capacity = this.cost(Math.max(1, burst));
+        this.emptyAt = new AtomicLong(System.nanoTime() - this.capacity);
+    }
+
+    private long cost(final long tokens) {
+        return tokens * SECOND / this.rate;
+    }
+
+    /**
+     * Takes the tokens if they are all available
+     *
+     * @param tokens
+     *            the number of tokens
+     * @return true, if the tokens were taken
+     */
+    public boolean tryAcquire(final long tokens) {
+        final long now = System.nanoTime();
+        final long cost = this.cost(tokens);
+        while (true) {
+            final long current = this.emptyAt.get();
+            final long next = Math.max(current, now - this.capacity) + cost;
+            if (next - now > 0) {
+                return false;
+            } else if (this.emptyAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the tokens, even if the bucket goes into debt
+     *
+     * @param tokens
+     *            the number of tokens
+     * @return the delay in nanoseconds before the debt is paid back, 0 if the tokens were available
+     */
+    public long consume(final long tokens) {
+        final long now = System.nanoTime();
+        final long cost = this.cost(tokens);
+        while (true) {
+            final long current = this.emptyAt.get();
+            final long next = Math.max(current, now - this.capacity) + cost;
+            if (this.emptyAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now);
+            }
+        }
+    }
+
+    /**
+     * @return true, if the bucket is full: it's then identical to a new bucket
+     */
+    public boolean isFull() {
+        return System.nanoTime() - this.emptyAt.get() >= this.capacity;
+    }
+
+    /**
+     * @return the number of tokens available, negative for a debt
+     */
+    public long getAvailable() {
+        final long elapsed = Math.min(this.capacity, System.nanoTime() - this.emptyAt.get());
+        return elapsed * this.rate / SECOND;
+    }
+}
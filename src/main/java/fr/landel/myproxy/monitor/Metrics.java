@@ -0,0 +1,73 @@
+package fr.landel.myproxy.monitor;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the proxy metrics: counters, incremented on the data path without contention, and gauges, computed on read. The metrics are
+ * displayed by the "metrics" command of the management console.
+ */
+public final class Metrics {
+
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    private Metrics() {
+        throw new UnsupportedOperationException("utility class, not implemented");
+    }
+
+    /**
+     * Gets or creates a counter
+     * 
+     * @param name
+     *            The counter name (dot separated)
+     * @return The counter
+     */
+    public static LongAdder counter(final String name) {
+        return COUNTERS.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Registers a gauge, replaces the previous one with the same name
+     * 
+     * @param name
+     *            The gauge name (dot separated)
+     * @param supplier
+     *            The supplier of the current value
+     */
+    public static void gauge(final String name, final LongSupplier supplier) {
+        GAUGES.put(name, supplier);
+    }
+
+    /**
+     * @return The current values of all metrics, sorted by name
+     */
+    public static SortedMap<String, Long> snapshot() {
+        final SortedMap<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : COUNTERS.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> entry : GAUGES.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Computes a ratio in percent
+     * 
+     * @param part
+     *            The part
+     * @param total
+     *            The total
+     * @return The ratio, 0 if total is 0
+     */
+    public static long percent(final long part, final long total) {
+        return total > 0 ? part * 100 / total : 0;
+    }
+}
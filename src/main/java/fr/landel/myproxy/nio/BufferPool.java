@@ -0,0 +1,667 @@
+package fr.landel.myproxy.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.utils.Logger;
+
+/**
+ * Pool of the I/O buffers, shared by the handlers, the relays, the tunnels and the cache: heap buffers ({@link #HEAP}, for the blocking streams
+ * and the parsers, which need their array) and direct buffers ({@link #DIRECT}, for the channels). The sizes are rounded up to a size class (4K to
+ * 64K, powers of two), a larger buffer is allocated and left to the garbage collector.
+ * <p>
+ * A released buffer is first kept in the cache of the releasing thread (a few buffers per class), then in the shared queue of its class, beyond
+ * the maximum of the queue it's left to the garbage collector. The thread caches are only used by the threads started with
+ * {@link #withThreadCaches(Runnable)} (the loops and the pooled handler threads), their cache is given back to the shared queues when they end,
+ * so a pooled thread can time out without losing buffers.
+ * </p>
+ * <p>
+ * With the leak detection (system property "myproxy.buffers.leak-detection", set by the tests), each buffer acquired is tracked with the stack of
+ * its acquisition until released: the buffers never released are reported by {@link #getLeaks()}, a buffer released twice fails.
+ * </p>
+ */
+public class BufferPool {
+
+    private static final Logger LOG = new Logger(BufferPool.class);
+
+    /**
+     * System property enabling the leak detection
+     */
+    public static final String LEAK_DETECTION_PROPERTY = "myproxy.buffers.leak-detection";
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 16;
+
+    /**
+     * Largest pooled buffer
+     */
+    public static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+    private static final int THREAD_CACHE_SIZE = 8;
+
+    /**
+     * Heap buffers, their array starts at offset 0
+     */
+    public static final BufferPool HEAP = new BufferPool("heap", false, 1_024);
+
+    /**
+     * Direct buffers
+     */
+    public static final BufferPool DIRECT = new BufferPool("direct", true, 1_024);
+
+    private final String name;
+    private final boolean direct;
+    private final int maxPooled;
+
+    private final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    /**
+     * Cache of the current thread, null outside {@link #withThreadCache(Runnable)}
+     */
+    private final ThreadLocal<ByteBuffer[][]> threadCaches = new ThreadLocal<>();
+
+    private final LongAdder cached = new LongAdder();
+    private final LongAdder inUse = new LongAdder();
+    private final LongAdder misses;
+    private final LongAdder oversized;
+
+    /**
+     * Stacks of the acquisitions of the buffers not released, null without leak detection
+     */
+    private final Map<ByteBuffer, Throwable> outstanding;
+
+    /**
+     * Shared queue of a size class
+     */
+    private final class SizeClass {
+
+        private final int size;
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        private SizeClass(final int size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name
+     *            the name of the pool in the metrics
+     * @param direct
+     *            true for direct buffers
+     * @param maxPooled
+     *            the maximum number of idle buffers kept in the shared queue of each class
+     * @category constructor
+     */
+    public BufferPool(final String name, final boolean direct, final int maxPooled) {
+        this.name = name;
+        this.direct = direct;
+        this.maxPooled = maxPooled;
+        for (int i = 0; i < this.classes.length; ++i) {
+            this.classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+        }
+        this.outstanding = Boolean.getBoolean(LEAK_DETECTION_PROPERTY) ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+
+        final String metrics = "buffers." + name + ".";
+        this.misses = Metrics.counter(metrics + "misses");
+        this.oversized = Metrics.counter(metrics + "oversized");
+        Metrics.gauge(metrics + "pooled", this::getPooled);
+        Metrics.gauge(metrics + "in-use", this.inUse::sum);
+    }
+
+    private static int classIndex(final int size) {
+        final int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1);
+        return Math.max(0, shift - MIN_SHIFT);
+    }
+
+    /**
+     * Acquires a buffer, to release once unused
+     *
+     * @param size
+     *            the minimum capacity
+     * @return a cleared buffer, of the capacity of the size class
+     */
+    public ByteBuffer acquire(final int size) {
+        ByteBuffer buffer = null;
+        if (size > MAX_SIZE) {
+            this.oversized.increment();
+            buffer = this.allocate(size);
+        } else {
+            final int index = classIndex(size);
+            final ByteBuffer[][] cache = this.threadCaches.get();
+            if (cache != null) {
+                final ByteBuffer[] stack = cache[index];
+                for (int i = stack.length - 1; buffer == null && i >= 0; --i) {
+                    if (stack[i] != null) {
+                        buffer = stack[i];
+                        stack[i] = null;
+                        this.cached.decrement();
+                    }
+                }
+            }
+            if (buffer == null) {
+                final SizeClass sizeClass = this.classes[index];
+                buffer = sizeClass.buffers.poll();
+                if (buffer != null) {
+                    sizeClass.pooled.decrementAndGet();
+                } else {
+                    this.misses.increment();
+                    buffer = this.allocate(sizeClass.size);
+                }
+            }
+        }
+
+        this.inUse.increment();
+        if (this.outstanding != null) {
+            this.outstanding.put(buffer, new Throwable("Buffer acquired by " + Thread.currentThread().getName()));
+        }
+        return buffer;
+    }
+
+    private ByteBuffer allocate(final int size) {
+        return this.direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Gives back a buffer, it must not be used anymore by the caller
+     *
+     * @param buffer
+     *            the buffer acquired from this pool (nullable)
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        } else if (this.outstanding != null && this.outstanding.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not acquired from the " + this.name + " pool");
+        }
+        this.inUse.decrement();
+
+        final int capacity = buffer.capacity();
+        if (capacity > MAX_SIZE || capacity < 1 << MIN_SHIFT || Integer.bitCount(capacity) != 1 || buffer.isDirect() != this.direct) {
+            // oversized or foreign buffer
+            return;
+        }
+        buffer.clear();
+        final int index = classIndex(capacity);
+
+        final ByteBuffer[][] cache = this.threadCaches.get();
+        if (cache != null) {
+            final ByteBuffer[] stack = cache[index];
+            for (int i = 0; i < stack.length; ++i) {
+                if (stack[i] == null) {
+                    stack[i] = buffer;
+                    this.cached.increment();
+                    return;
+                }
+            }
+        }
+
+        this.offer(index, buffer);
+    }
+
+    private void offer(final int index, final ByteBuffer buffer) {
+        final SizeClass sizeClass = this.classes[index];
+        if (sizeClass.pooled.incrementAndGet() <= this.maxPooled) {
+            sizeClass.buffers.offer(buffer);
+        } else {
+            sizeClass.pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wraps a task to run it with a cache of this pool in the current thread, the cached buffers are given to the shared queues when the task ends
+     *
+     * @param task
+     *            the task, the whole life of a thread
+     * @return the wrapping task
+     */
+    public Runnable withThreadCache(final Runnable task) {
+        return () -> {
+            this.threadCaches.set(new ByteBuffer[this.classes.length][THREAD_CACHE_SIZE]);
+            try {
+                task.run();
+            } finally {
+                this.drainThreadCache();
+            }
+        };
+    }
+
+    private void drainThreadCache() {
+        final ByteBuffer[][] cache = this.threadCaches.get();
+        this.threadCaches.remove();
+        for (int index = 0; index < cache.length; ++index) {
+            for (ByteBuffer buffer : cache[index]) {
+                if (buffer != null) {
+                    this.cached.decrement();
+                    this.offer(index, buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps a task to run it with caches of the {@link #HEAP} and {@link #DIRECT} pools in the current thread
+     *
+     * @param task
+     *            the task, the whole life of a thread
+     * @return the wrapping task
+     */
+    public static Runnable withThreadCaches(final Runnable task) {
+        return HEAP.withThreadCache(DIRECT.withThreadCache(task));
+    }
+
+    /**
+     * Wraps a thread factory, the threads run with caches of the {@link #HEAP} and {@link #DIRECT} pools
+     *
+     * @param factory
+     *            the thread factory
+     * @return the wrapping factory
+     */
+    public static ThreadFactory withThreadCaches(final ThreadFactory factory) {
+        return runnable -> factory.newThread(withThreadCaches(runnable));
+    }
+
+    /**
+     * @return the number of idle buffers, in the thread caches and the shared queues
+     */
+    public long getPooled() {
+        long pooled = this.cached.sum();
+        for (SizeClass sizeClass : this.classes) {
+            pooled += sizeClass.pooled.get();
+        }
+        return pooled;
+    }
+
+    /**
+     * @return the number of buffers acquired and not released
+     */
+    public long getInUse() {
+        return this.inUse.sum();
+    }
+
+    /**
+     * @return the stacks of the acquisitions of the buffers not released (empty without leak detection)
+     */
+    public List<Throwable> getLeaks() {
+        if (this.outstanding == null) {
+            return Collections.emptyList();
+        }
+        synchronized (this.outstanding) {
+            return new ArrayList<>(this.outstanding.values());
+        }
+    }
+
+    /**
+     * Logs the buffers not released (with leak detection)
+     *
+     * @return the number of buffers not released
+     */
+    public int reportLeaks() {
+        final List<Throwable> leaks = this.getLeaks();
+        for (Throwable leak : leaks) {
+            LOG.error(leak, "Buffer of the {} pool not released", this.name);
+        }
+        return leaks.size();
+    }
+
+    /**
+     * Creates a buffered input stream whose buffer comes from the heap pool
+     *
+     * @param is
+     *            the input stream
+     * @param size
+     *            the buffer size
+     * @return the buffered stream, its buffer is released by {@link PooledInputStream#release()} or on close
+     */
+    public static PooledInputStream bufferedInput(final InputStream is, final int size) {
+        return new PooledInputStream(is, HEAP.acquire(size));
+    }
+
+    /**
+     * Creates a buffered output stream whose buffer comes from the heap pool
+     *
+     * @param os
+     *            the output stream
+     * @param size
+     *            the buffer size
+     * @return the buffered stream, its buffer is released by {@link PooledOutputStream#release()} or on close
+     */
+    public static PooledOutputStream bufferedOutput(final OutputStream os, final int size) {
+        return new PooledOutputStream(os, HEAP.acquire(size));
+    }
+
+    /**
+     * Buffered input stream reading through a pooled buffer. It doesn't extend {@link java.io.BufferedInputStream}, whose subclasses are guarded
+     * by their monitor: a virtual thread blocked in a read would be pinned to its carrier. It's guarded by a lock instead.
+     */
+    public static class PooledInputStream extends InputStream {
+
+        private final InputStream in;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private ByteBuffer pooled;
+        private byte[] buf;
+        private int pos;
+        private int count;
+        private int markPos = -1;
+        private int markLimit;
+
+        private PooledInputStream(final InputStream in, final ByteBuffer pooled) {
+            this.in = in;
+            this.pooled = pooled;
+            this.buf = pooled.array();
+        }
+
+        private void ensureOpen() throws IOException {
+            if (this.buf == null) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        /**
+         * Reads more bytes in the buffer, the marked bytes are kept while within the mark limit and the buffer
+         */
+        private void fill() throws IOException {
+            if (this.markPos < 0 || this.pos - this.markPos >= this.markLimit) {
+                this.markPos = -1;
+                this.pos = 0;
+            } else if (this.markPos > 0) {
+                System.arraycopy(this.buf, this.markPos, this.buf, 0, this.pos - this.markPos);
+                this.pos -= this.markPos;
+                this.markPos = 0;
+            } else if (this.pos >= this.buf.length) {
+                // mark beyond the buffer
+                this.markPos = -1;
+                this.pos = 0;
+            }
+            this.count = this.pos;
+            final int read = this.in.read(this.buf, this.pos, this.buf.length - this.pos);
+            if (read > 0) {
+                this.count += read;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            this.lock.lock();
+            try {
+                this.ensureOpen();
+                if (this.pos >= this.count) {
+                    this.fill();
+                    if (this.pos >= this.count) {
+                        return -1;
+                    }
+                }
+                return this.buf[this.pos++] & 0xFF;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            this.lock.lock();
+            try {
+                this.ensureOpen();
+                Objects.checkFromIndexSize(off, len, b.length);
+                if (len == 0) {
+                    return 0;
+                }
+                if (this.pos >= this.count) {
+                    if (len >= this.buf.length && this.markPos < 0) {
+                        // nothing to keep, the buffer would only add a copy
+                        return this.in.read(b, off, len);
+                    }
+                    this.fill();
+                    if (this.pos >= this.count) {
+                        return -1;
+                    }
+                }
+                final int read = Math.min(len, this.count - this.pos);
+                System.arraycopy(this.buf, this.pos, b, off, read);
+                this.pos += read;
+                return read;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            this.lock.lock();
+            try {
+                this.ensureOpen();
+                if (n <= 0) {
+                    return 0;
+                }
+                if (this.pos >= this.count) {
+                    if (this.markPos < 0) {
+                        return this.in.skip(n);
+                    }
+                    this.fill();
+                    if (this.pos >= this.count) {
+                        return 0;
+                    }
+                }
+                final int skipped = (int) Math.min(n, this.count - this.pos);
+                this.pos += skipped;
+                return skipped;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            this.lock.lock();
+            try {
+                this.ensureOpen();
+                final int buffered = this.count - this.pos;
+                final int available = this.in.available();
+                return buffered > Integer.MAX_VALUE - available ? Integer.MAX_VALUE : buffered + available;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Marks the current position, the mark is kept for at most the buffer size
+         */
+        @Override
+        public void mark(final int readlimit) {
+            this.lock.lock();
+            try {
+                this.markLimit = readlimit;
+                this.markPos = this.pos;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public void reset() throws IOException {
+            this.lock.lock();
+            try {
+                this.ensureOpen();
+                if (this.markPos < 0) {
+                    throw new IOException("Resetting to invalid mark");
+                }
+                this.pos = this.markPos;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        /**
+         * Gives the buffer back to the pool, without closing the stream: it's then seen as closed. A read in progress is awaited.
+         */
+        public void release() {
+            this.lock.lock();
+            try {
+                this.buf = null;
+                HEAP.release(this.pooled);
+                this.pooled = null;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Closes the stream without waiting for a read in progress (ended by the close), then releases the buffer
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                this.in.close();
+            } finally {
+                this.release();
+            }
+        }
+    }
+
+    /**
+     * Buffered output stream writing through a pooled buffer. Like {@link PooledInputStream}, it's guarded by a lock rather than by the monitor
+     * of {@link java.io.BufferedOutputStream}.
+     */
+    public static class PooledOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private ByteBuffer pooled;
+        private byte[] buf;
+        private int count;
+        private boolean closed;
+
+        private PooledOutputStream(final OutputStream out, final ByteBuffer pooled) {
+            this.out = out;
+            this.pooled = pooled;
+            this.buf = pooled.array();
+        }
+
+        private void ensureOpen() throws IOException {
+            if (this.buf == null) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (this.count > 0) {
+                this.out.write(this.buf, 0, this.count);
+                this.count = 0;
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.lock.lock();
+            try {
+                this.ensureOpen();
+                if (this.count >= this.buf.length) {
+                    this.flushBuffer();
+                }
+                this.buf[this.count++] = (byte) b;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            this.lock.lock();
+            try {
+                this.ensureOpen();
+                Objects.checkFromIndexSize(off, len, b.length);
+                if (len >= this.buf.length) {
+                    // written directly, after the buffered bytes
+                    this.flushBuffer();
+                    this.out.write(b, off, len);
+                    return;
+                }
+                if (len > this.buf.length - this.count) {
+                    this.flushBuffer();
+                }
+                System.arraycopy(b, off, this.buf, this.count, len);
+                this.count += len;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.lock.lock();
+            try {
+                if (this.buf != null) {
+                    this.flushBuffer();
+                }
+                this.out.flush();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Gives the buffer back to the pool, without flushing nor closing the stream: it cannot be written anymore. A write in progress is
+         * awaited.
+         */
+        public void release() {
+            this.lock.lock();
+            try {
+                this.buf = null;
+                this.count = 0;
+                HEAP.release(this.pooled);
+                this.pooled = null;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Flushes and closes the stream, then releases the buffer. Only the first call has effect.
+         */
+        @Override
+        public void close() throws IOException {
+            this.lock.lock();
+            try {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+            } finally {
+                this.lock.unlock();
+            }
+            try {
+                this.flush();
+            } finally {
+                try {
+                    this.out.close();
+                } finally {
+                    this.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package fr.landel.myproxy.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Attachment of the keys registered in an {@link EventLoop}. All methods are called from the event loop thread.
+ */
+public interface ChannelHandler {
+
+    /**
+     * Called when the key is selected
+     * 
+     * @param key
+     *            the selected key
+     * @throws IOException
+     *             on I/O failure, the handler is then closed by the loop
+     */
+    void handle(SelectionKey key) throws IOException;
+
+    /**
+     * Releases all the resources of the handler
+     */
+    void close();
+}
@@ -0,0 +1,458 @@
+package fr.landel.myproxy.nio;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.dns.DnsCache;
+import fr.landel.myproxy.monitor.Metrics;
+
+/**
+ * Opens the connections to the origin servers on all the resolved addresses, Happy Eyeballs style (RFC 8305): the addresses are ordered by
+ * alternating the families (starting with the family of the first resolved address), an attempt is started every "attempt-delay" or as soon as the
+ * previous one fails, and the first connected socket wins (the other attempts are closed). A dead address therefore costs "attempt-delay" instead of
+ * the system connect timeout, the whole connection is bounded by "timeout".
+ * <p>
+ * The connections are available in blocking mode (handlers and upstream pool) or driven by an {@link EventLoop} (non blocking connections).
+ * </p>
+ */
+public class Connector {
+
+    private static final String METRICS = "connect.";
+
+    private final DnsCache dnsCache;
+
+    private final long timeout;
+    private final long attemptDelay;
+
+    private final LongAdder attempts = Metrics.counter(METRICS + "attempts");
+    private final LongAdder attemptFailures = Metrics.counter(METRICS + "attempt-failures");
+    private final LongAdder wonIpv4 = Metrics.counter(METRICS + "won.ipv4");
+    private final LongAdder wonIpv6 = Metrics.counter(METRICS + "won.ipv6");
+    private final LongAdder wonFallback = Metrics.counter(METRICS + "won.fallback");
+
+    /**
+     * Receiver of a non blocking connection, called from the loop thread
+     */
+    public interface Callback {
+
+        /**
+         * @param channel
+         *            the connected channel, non blocking and still registered in the loop (to register again with the new handler)
+         */
+        void connected(SocketChannel channel);
+
+        /**
+         * @param e
+         *            the cause (unknown host, all the attempts failed or timeout)
+         */
+        void failed(IOException e);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/connector")
+     * @param dnsCache
+     *            the cache resolving the hosts
+     * @category constructor
+     */
+    public Connector(final Configuration configuration, final DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+        this.timeout = configuration.getDuration("proxy/connector/timeout", Duration.ofSeconds(10)).toNanos();
+        this.attemptDelay = Math.max(TimeUnit.MILLISECONDS.toNanos(10),
+                configuration.getDuration("proxy/connector/attempt-delay", Duration.ofMillis(250)).toNanos());
+    }
+
+    /**
+     * @return the cache resolving the hosts
+     */
+    public DnsCache getDnsCache() {
+        return this.dnsCache;
+    }
+
+    /**
+     * Connects in blocking mode within the configured timeout
+     *
+     * @param host
+     *            the host name or IP literal
+     * @param port
+     *            the port
+     * @return the connected channel, in blocking mode
+     * @throws IOException
+     *             if the host is unknown, if all the attempts failed ({@link ConnectException}) or on timeout ({@link SocketTimeoutException})
+     */
+    public SocketChannel connect(final String host, final int port) throws IOException {
+        return this.connect(host, port, TimeUnit.NANOSECONDS.toMillis(this.timeout));
+    }
+
+    /**
+     * Connects in blocking mode
+     *
+     * @param host
+     *            the host name or IP literal
+     * @param port
+     *            the port
+     * @param timeout
+     *            the connection timeout in milliseconds
+     * @return the connected channel, in blocking mode
+     * @throws IOException
+     *             if the host is unknown, if all the attempts failed ({@link ConnectException}) or on timeout ({@link SocketTimeoutException})
+     */
+    public SocketChannel connect(final String host, final int port, final long timeout) throws IOException {
+        final long start = System.nanoTime();
+        final InetAddress[] addresses = this.dnsCache.resolveAll(host);
+        return this.connect(addresses, port, timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Connects in blocking mode to resolved addresses
+     *
+     * @param addresses
+     *            the addresses of the host
+     * @param port
+     *            the port
+     * @param timeout
+     *            the connection timeout in milliseconds
+     * @return the connected channel, in blocking mode
+     * @throws IOException
+     *             if all the attempts failed ({@link ConnectException}) or on timeout ({@link SocketTimeoutException})
+     */
+    public SocketChannel connect(final InetAddress[] addresses, final int port, final long timeout) throws IOException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        final SocketChannel channel;
+        try (Selector selector = Selector.open()) {
+            channel = this.race(selector, interleave(addresses), port, deadline);
+        }
+        // deregistered by the closing of the selector
+        channel.configureBlocking(true);
+        return channel;
+    }
+
+    private SocketChannel race(final Selector selector, final InetAddress[] addresses, final int port, final long deadline) throws IOException {
+        final List<SocketChannel> pending = new ArrayList<>(addresses.length);
+        IOException last = null;
+        int next = 0;
+        long nextAttempt = System.nanoTime();
+        try {
+            while (true) {
+                final long now = System.nanoTime();
+                if (now - deadline >= 0) {
+                    DeadlineTimer.Phase.CONNECT.expired();
+                    throw new SocketTimeoutException("Connect timed out after " + next + " address(es)");
+                } else if (next < addresses.length && (now - nextAttempt >= 0 || pending.isEmpty())) {
+                    final SocketChannel channel = this.open(addresses[next], port);
+                    try {
+                        if (channel.connect(new InetSocketAddress(addresses[next], port))) {
+                            this.won(addresses[next], next);
+                            return channel;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT, next);
+                        pending.add(channel);
+                    } catch (IOException e) {
+                        this.attemptFailures.increment();
+                        close(channel);
+                        last = e;
+                    }
+                    ++next;
+                    nextAttempt = now + this.attemptDelay;
+                    continue;
+                }
+
+                if (pending.isEmpty()) {
+                    throw last != null ? last : new ConnectException("No address to connect to");
+                }
+
+                final long wait = (next < addresses.length && nextAttempt - deadline < 0 ? nextAttempt : deadline) - now;
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    final SocketChannel channel = (SocketChannel) key.channel();
+                    final int index = (Integer) key.attachment();
+                    try {
+                        if (channel.finishConnect()) {
+                            pending.remove(channel);
+                            this.won(addresses[index], index);
+                            return channel;
+                        }
+                    } catch (IOException e) {
+                        this.attemptFailures.increment();
+                        pending.remove(channel);
+                        close(channel);
+                        last = e;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (SocketChannel channel : pending) {
+                close(channel);
+            }
+        }
+    }
+
+    /**
+     * Connects without blocking, the attempts are driven by the loop
+     *
+     * @param loop
+     *            the loop of the caller
+     * @param host
+     *            the host name or IP literal
+     * @param port
+     *            the port
+     * @param callback
+     *            the receiver of the connection, called from the loop thread
+     */
+    public void connect(final EventLoop loop, final String host, final int port, final Callback callback) {
+        this.dnsCache.resolveAsync(host).whenComplete((addresses, e) -> loop.execute(() -> {
+            if (e == null) {
+                new Race(loop, interleave(addresses), port, callback).start();
+            } else {
+                final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                callback.failed(cause instanceof IOException ? (IOException) cause : new IOException(cause));
+            }
+        }));
+    }
+
+    private SocketChannel open(final InetAddress address, final int port) throws IOException {
+        this.attempts.increment();
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            close(channel);
+            throw e;
+        }
+        return channel;
+    }
+
+    private void won(final InetAddress address, final int index) {
+        if (address instanceof Inet6Address) {
+            this.wonIpv6.increment();
+        } else {
+            this.wonIpv4.increment();
+        }
+        if (index > 0) {
+            this.wonFallback.increment();
+        }
+    }
+
+    /**
+     * Orders the addresses by alternating the families, starting with the family of the first address
+     *
+     * @param addresses
+     *            the resolved addresses
+     * @return the ordered addresses
+     */
+    static InetAddress[] interleave(final InetAddress[] addresses) {
+        if (addresses.length < 3) {
+            return addresses;
+        }
+        final boolean firstIpv6 = addresses[0] instanceof Inet6Address;
+        final List<InetAddress> first = new ArrayList<>(addresses.length);
+        final List<InetAddress> second = new ArrayList<>(addresses.length);
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstIpv6 ? first : second).add(address);
+        }
+        final InetAddress[] ordered = new InetAddress[addresses.length];
+        int index = 0;
+        for (int i = 0; index < ordered.length; ++i) {
+            if (i < first.size()) {
+                ordered[index++] = first.get(i);
+            }
+            if (i < second.size()) {
+                ordered[index++] = second.get(i);
+            }
+        }
+        return ordered;
+    }
+
+    private static void close(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignored, the attempt is abandoned
+        }
+    }
+
+    /**
+     * Attempts of a non blocking connection, driven by the loop
+     */
+    private final class Race {
+
+        private final EventLoop loop;
+        private final InetAddress[] addresses;
+        private final int port;
+        private final Callback callback;
+
+        private final List<SocketChannel> pending = new ArrayList<>();
+        private int next;
+        private IOException last;
+        private boolean done;
+
+        private TimerWheel.Timeout attemptTask;
+        private TimerWheel.Timeout deadlineTask;
+
+        private Race(final EventLoop loop, final InetAddress[] addresses, final int port, final Callback callback) {
+            this.loop = loop;
+            this.addresses = addresses;
+            this.port = port;
+            this.callback = callback;
+        }
+
+        private void start() {
+            this.deadlineTask = this.loop.schedule(this::timeout, Connector.this.timeout, TimeUnit.NANOSECONDS);
+            this.attempt();
+        }
+
+        private void attempt() {
+            this.attemptTask = null;
+            while (!this.done && this.next < this.addresses.length) {
+                final int index = this.next++;
+                final InetAddress address = this.addresses[index];
+                SocketChannel channel = null;
+                try {
+                    channel = Connector.this.open(address, this.port);
+                    if (channel.connect(new InetSocketAddress(address, this.port))) {
+                        this.win(channel, index);
+                        return;
+                    }
+                    this.loop.register(channel, SelectionKey.OP_CONNECT, new Attempt(this, index));
+                    this.pending.add(channel);
+                    if (this.next < this.addresses.length) {
+                        this.attemptTask = this.loop.schedule(this::attempt, Connector.this.attemptDelay, TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                } catch (IOException e) {
+                    // next address at once
+                    Connector.this.attemptFailures.increment();
+                    if (channel != null) {
+                        close(channel);
+                    }
+                    this.last = e;
+                }
+            }
+            this.checkFailed();
+        }
+
+        private void finish(final SelectionKey key, final int index) {
+            final SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                if (channel.finishConnect()) {
+                    this.pending.remove(channel);
+                    key.interestOps(0);
+                    this.win(channel, index);
+                }
+            } catch (IOException e) {
+                Connector.this.attemptFailures.increment();
+                this.pending.remove(channel);
+                close(channel);
+                this.last = e;
+                if (this.pending.isEmpty()) {
+                    // no need to wait for the next attempt
+                    if (this.attemptTask != null) {
+                        this.attemptTask.cancel();
+                    }
+                    this.attempt();
+                }
+            }
+        }
+
+        private void win(final SocketChannel channel, final int index) {
+            this.done = true;
+            this.cancelTasks();
+            this.closePending();
+            Connector.this.won(this.addresses[index], index);
+            this.callback.connected(channel);
+        }
+
+        private void checkFailed() {
+            if (!this.done && this.pending.isEmpty() && this.next >= this.addresses.length) {
+                this.done = true;
+                this.cancelTasks();
+                this.callback.failed(this.last != null ? this.last : new ConnectException("No address to connect to"));
+            }
+        }
+
+        private void timeout() {
+            if (!this.done) {
+                this.done = true;
+                this.deadlineTask = null;
+                this.cancelTasks();
+                this.closePending();
+                DeadlineTimer.Phase.CONNECT.expired();
+                this.callback.failed(new SocketTimeoutException("Connect timed out after " + this.next + " address(es)"));
+            }
+        }
+
+        private void cancelTasks() {
+            if (this.attemptTask != null) {
+                this.attemptTask.cancel();
+                this.attemptTask = null;
+            }
+            if (this.deadlineTask != null) {
+                this.deadlineTask.cancel();
+                this.deadlineTask = null;
+            }
+        }
+
+        private void closePending() {
+            for (SocketChannel channel : this.pending) {
+                close(channel);
+            }
+            this.pending.clear();
+        }
+
+        private void abort() {
+            if (!this.done) {
+                this.done = true;
+                this.cancelTasks();
+                this.closePending();
+                this.callback.failed(this.last != null ? this.last : new ConnectException("Connection aborted"));
+            }
+        }
+    }
+
+    /**
+     * Key attachment of one attempt of a race
+     */
+    private static final class Attempt implements ChannelHandler {
+
+        private final Race race;
+        private final int index;
+
+        private Attempt(final Race race, final int index) {
+            this.race = race;
+            this.index = index;
+        }
+
+        @Override
+        public void handle(final SelectionKey key) {
+            if (key.isConnectable()) {
+                this.race.finish(key, this.index);
+            }
+        }
+
+        @Override
+        public void close() {
+            this.race.abort();
+        }
+    }
+}
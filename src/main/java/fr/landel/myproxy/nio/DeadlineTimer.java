@@ -0,0 +1,262 @@
+package fr.landel.myproxy.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.utils.Logger;
+
+/**
+ * Deadlines of the blocking connections, tracked by a single thread in a {@link TimerWheel}: an expired deadline closes its connection, which
+ * unblocks the thread reading or writing it. Starting, touching and cancelling a deadline cost O(1) from any thread (the wheel is only updated by
+ * the timer thread, at each tick), so the sockets don't need any read timeout.
+ * <p>
+ * The timeouts of each phase are configured in "proxy/timeouts", the idle one is the "proxy/keep-alive-timeout". Each expiration is counted by
+ * phase ("timeouts.idle", "timeouts.header"...), the event loops count theirs the same way.
+ * </p>
+ */
+public class DeadlineTimer implements Closeable {
+
+    private static final Logger LOG = new Logger(DeadlineTimer.class);
+
+    private static final int BUCKETS = 512;
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * Phases of a connection with a deadline
+     */
+    public enum Phase {
+        /**
+         * Persistent connection waiting for its next request
+         */
+        IDLE("idle"),
+        /**
+         * Request head started and not complete
+         */
+        HEADER("header"),
+        /**
+         * Connection to an origin server or a parent proxy (counted by the {@link Connector}, which has its own deadline)
+         */
+        CONNECT("connect"),
+        /**
+         * Request from its head to the end of its response
+         */
+        REQUEST("request"),
+        /**
+         * CONNECT tunnel without any byte relayed
+         */
+        TUNNEL("tunnel");
+
+        private final String id;
+        private final LongAdder expirations;
+
+        Phase(final String id) {
+            this.id = id;
+            this.expirations = Metrics.counter("timeouts." + id);
+        }
+
+        /**
+         * Counts an expiration of the phase
+         */
+        public void expired() {
+            this.expirations.increment();
+        }
+
+        @Override
+        public String toString() {
+            return this.id;
+        }
+    }
+
+    private final long tick;
+    private final long[] timeouts = new long[Phase.values().length];
+
+    private final Queue<Deadline> started = new ConcurrentLinkedQueue<>();
+    private final Queue<Deadline> cancelled = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean threadStarted = new AtomicBoolean();
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Deadline of a connection phase
+     */
+    public final class Deadline {
+
+        private final Phase phase;
+        private final long timeout;
+        private final Closeable target;
+        private final String name;
+
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private volatile long lastActivity = System.nanoTime();
+
+        // only accessed by the timer thread
+        private TimerWheel.Timeout scheduled;
+
+        private Deadline(final Phase phase, final long timeout, final Closeable target, final String name) {
+            this.phase = phase;
+            this.timeout = timeout;
+            this.target = target;
+            this.name = name;
+        }
+
+        /**
+         * Postpones the deadline, from the last activity of the connection
+         */
+        public void touch() {
+            this.lastActivity = System.nanoTime();
+        }
+
+        /**
+         * Cancels the deadline, at the end of its phase
+         *
+         * @return false, if the deadline expired before
+         */
+        public boolean cancel() {
+            if (this.state.compareAndSet(PENDING, CANCELLED)) {
+                DeadlineTimer.this.cancelled.add(this);
+                return true;
+            }
+            return this.state.get() != EXPIRED;
+        }
+
+        /**
+         * @return true, if the deadline expired: the connection was closed by the timer
+         */
+        public boolean isExpired() {
+            return this.state.get() == EXPIRED;
+        }
+
+        public Phase getPhase() {
+            return this.phase;
+        }
+
+        /**
+         * @return the timeout in milliseconds
+         */
+        public long getTimeout() {
+            return TimeUnit.NANOSECONDS.toMillis(this.timeout);
+        }
+
+        // timer thread
+        private void schedule(final TimerWheel wheel) {
+            this.scheduled = wheel.schedule(() -> this.expire(wheel), this.lastActivity + this.timeout);
+        }
+
+        // timer thread
+        private void expire(final TimerWheel wheel) {
+            this.scheduled = null;
+            if (this.state.get() != PENDING) {
+                return;
+            } else if (System.nanoTime() - this.lastActivity < this.timeout) {
+                // touched in the meantime
+                this.schedule(wheel);
+            } else if (this.state.compareAndSet(PENDING, EXPIRED)) {
+                this.phase.expired();
+                LOG.info("{} timeout after {}ms, closing: {}", this.phase, this.getTimeout(), this.name);
+                try {
+                    this.target.close();
+                } catch (IOException e) {
+                    LOG.error("Error closing {}: {}", this.name, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor, the thread is started with the first deadline
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/timeouts" and "proxy/keep-alive-timeout")
+     * @category constructor
+     */
+    public DeadlineTimer(final Configuration configuration) {
+        this.tick = configuration.getDuration("proxy/timeouts/tick", Duration.ofMillis(100)).toNanos();
+        this.timeouts[Phase.IDLE.ordinal()] = configuration.getDuration("proxy/keep-alive-timeout", Duration.ofSeconds(15)).toNanos();
+        this.timeouts[Phase.HEADER.ordinal()] = configuration.getDuration("proxy/timeouts/header", Duration.ofSeconds(15)).toNanos();
+        this.timeouts[Phase.CONNECT.ordinal()] = configuration.getDuration("proxy/connector/timeout", Duration.ofSeconds(10)).toNanos();
+        this.timeouts[Phase.REQUEST.ordinal()] = configuration.getDuration("proxy/timeouts/request", Duration.ofMinutes(10)).toNanos();
+        this.timeouts[Phase.TUNNEL.ordinal()] = configuration.getDuration("proxy/timeouts/tunnel-idle", Duration.ofMinutes(5)).toNanos();
+    }
+
+    /**
+     * @param phase
+     *            the phase
+     * @return the configured timeout of the phase in milliseconds
+     */
+    public long getTimeout(final Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(this.timeouts[phase.ordinal()]);
+    }
+
+    /**
+     * Starts the deadline of a phase, with its configured timeout (never expires if 0)
+     *
+     * @param phase
+     *            the phase
+     * @param target
+     *            the connection closed on expiration
+     * @param name
+     *            the connection name for the logs
+     * @return the deadline, to cancel at the end of the phase
+     */
+    public Deadline start(final Phase phase, final Closeable target, final String name) {
+        final Deadline deadline = new Deadline(phase, this.timeouts[phase.ordinal()], target, name);
+        if (!this.threadStarted.get() && this.threadStarted.compareAndSet(false, true)) {
+            final Thread timer = new Thread(this::run, "myproxy-deadlines");
+            timer.setDaemon(true);
+            timer.start();
+            this.thread = timer;
+        }
+        this.started.add(deadline);
+        return deadline;
+    }
+
+    private void run() {
+        final TimerWheel wheel = new TimerWheel(this.tick, BUCKETS);
+        while (this.running) {
+            LockSupport.parkNanos(this.tick);
+
+            Deadline deadline;
+            while ((deadline = this.started.poll()) != null) {
+                if (deadline.state.get() == PENDING && deadline.timeout > 0) {
+                    deadline.schedule(wheel);
+                }
+            }
+            while ((deadline = this.cancelled.poll()) != null) {
+                if (deadline.scheduled != null) {
+                    deadline.scheduled.cancel();
+                    deadline.scheduled = null;
+                }
+            }
+            try {
+                wheel.expire(System.nanoTime());
+            } catch (RuntimeException e) {
+                LOG.error(e, "Deadline failure");
+            }
+        }
+    }
+
+    /**
+     * Stops the timer thread, the pending deadlines never expire
+     */
+    @Override
+    public void close() {
+        this.running = false;
+        if (this.thread != null) {
+            LockSupport.unpark(this.thread);
+        }
+    }
+}
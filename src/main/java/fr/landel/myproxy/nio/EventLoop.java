@@ -0,0 +1,224 @@
+package fr.landel.myproxy.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import fr.landel.myproxy.utils.Logger;
+
+/**
+ * Single threaded selector loop. Channels are registered with a {@link ChannelHandler} as attachment, the handler is called each time its key is
+ * selected. Tasks submitted from other threads are run by the loop between two selections, so handlers never need any synchronization. Delayed
+ * tasks (timeouts) are run by the loop once their deadline is reached, they are kept in a {@link TimerWheel} so the idle and connect timeouts of
+ * many connections cost O(1) each. The short delays (throttling pauses, connection attempts) go to a wheel of fine ticks, the longer ones (phase
+ * deadlines) to a wheel of coarse ticks, so a deadline of several seconds isn't visited at each revolution of the fine wheel.
+ */
+public class EventLoop implements Runnable, Closeable {
+
+    private static final Logger LOG = new Logger(EventLoop.class);
+
+    /**
+     * Precision of the short delays, the select timeouts are in milliseconds anyway
+     */
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Precision of the delays longer than a revolution of the fine wheel
+     */
+    private static final long COARSE_TICK = TimeUnit.MILLISECONDS.toNanos(64);
+
+    private static final int BUCKETS = 1_024;
+
+    private final Selector selector;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Delayed tasks, only accessed by the loop thread
+     */
+    private final TimerWheel scheduled = new TimerWheel(TICK, BUCKETS);
+    private final TimerWheel coarse = new TimerWheel(COARSE_TICK, BUCKETS);
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    /**
+     * Constructor
+     *
+     * @param name
+     *            the thread name
+     * @throws IOException
+     *             if the selector cannot be opened
+     * @category constructor
+     */
+    public EventLoop(final String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(BufferPool.withThreadCaches(this), name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * @return true, if the current thread is the loop thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Runs the task in the loop thread
+     *
+     * @param task
+     *            the task to run
+     */
+    public void execute(final Runnable task) {
+        this.tasks.add(task);
+        if (!this.inEventLoop()) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task in the loop thread after the delay, must be called from the loop thread
+     *
+     * @param task
+     *            the task to run
+     * @param delay
+     *            the delay
+     * @param unit
+     *            the delay unit
+     * @return the scheduled task, to cancel it from the loop thread
+     */
+    public TimerWheel.Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        final long nanos = unit.toNanos(delay);
+        return (nanos < TICK * BUCKETS ? this.scheduled : this.coarse).schedule(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error(e, "Scheduled task failure in {}", this.thread.getName());
+            }
+        }, System.nanoTime() + nanos);
+    }
+
+    /**
+     * Registers the channel in the loop selector, must be called from the loop thread
+     *
+     * @param channel
+     *            the non blocking channel
+     * @param ops
+     *            the interest operations
+     * @param handler
+     *            the handler of the channel events
+     * @return the key
+     * @throws ClosedChannelException
+     *             if the channel is closed
+     */
+    public SelectionKey register(final SelectableChannel channel, final int ops, final ChannelHandler handler) throws ClosedChannelException {
+        return channel.register(this.selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                // tasks queued by the loop itself don't wake the selector up
+                if (this.tasks.isEmpty()) {
+                    final long timeout = this.nextTimeout();
+                    if (timeout > 0) {
+                        this.selector.select(timeout);
+                    } else if (timeout == 0) {
+                        this.selector.select();
+                    } else {
+                        this.selector.selectNow();
+                    }
+                } else {
+                    this.selector.selectNow();
+                }
+            } catch (IOException e) {
+                LOG.error(e, "Selector failure in {}", this.thread.getName());
+                break;
+            }
+
+            this.runTasks();
+            final long now = System.nanoTime();
+            this.scheduled.expire(now);
+            this.coarse.expire(now);
+
+            final Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                final SelectionKey key = iterator.next();
+                iterator.remove();
+
+                final ChannelHandler handler = (ChannelHandler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.handle(key);
+                    }
+                } catch (CancelledKeyException e) {
+                    handler.close();
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Closing connection on error: {}", e.getMessage());
+                    handler.close();
+                }
+            }
+        }
+
+        for (SelectionKey key : this.selector.keys()) {
+            ((ChannelHandler) key.attachment()).close();
+        }
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            LOG.error(e, "Cannot close selector");
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error(e, "Task failure in {}", this.thread.getName());
+            }
+        }
+    }
+
+    /**
+     * @return the select timeout in milliseconds until the next deadline, 0 to wait without timeout, -1 if a deadline is already reached
+     */
+    private long nextTimeout() {
+        final long next = Math.min(this.scheduled.nextExpiration(), this.coarse.nextExpiration());
+        if (next == Long.MAX_VALUE) {
+            return 0;
+        }
+        final long nanos = next - System.nanoTime();
+        // rounded up, waking up before the tick would be useless
+        return nanos > 0 ? TimeUnit.NANOSECONDS.toMillis(nanos + TICK - 1) : -1;
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        this.selector.wakeup();
+        if (!this.inEventLoop()) {
+            try {
+                this.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
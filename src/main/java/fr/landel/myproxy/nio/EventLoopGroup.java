@@ -0,0 +1,79 @@
+package fr.landel.myproxy.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of {@link EventLoop}, by default one per available core. Connections are spread across the loops in a round robin way.
+ */
+public class EventLoopGroup implements Closeable {
+
+    private final EventLoop[] loops;
+
+    private final AtomicInteger index = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @param count
+     *            the number of loops, if lower than 1, the number of available processors is used
+     * @param name
+     *            the loop thread name prefix
+     * @throws IOException
+     *             if a selector cannot be opened
+     * @category constructor
+     */
+    public EventLoopGroup(final int count, final String name) throws IOException {
+        final int size = count > 0 ? count : Runtime.getRuntime().availableProcessors();
+        this.loops = new EventLoop[size];
+        for (int i = 0; i < size; ++i) {
+            this.loops[i] = new EventLoop(name + "-" + i);
+        }
+    }
+
+    public void start() {
+        for (EventLoop loop : this.loops) {
+            loop.start();
+        }
+    }
+
+    public int size() {
+        return this.loops.length;
+    }
+
+    /**
+     * @param index
+     *            the index of the loop, modulo the size of the group
+     * @return the loop
+     */
+    public EventLoop get(final int index) {
+        return this.loops[Math.floorMod(index, this.loops.length)];
+    }
+
+    /**
+     * @return true, if the current thread is one of the loops
+     */
+    public boolean inEventLoop() {
+        for (EventLoop loop : this.loops) {
+            if (loop.inEventLoop()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the next loop
+     */
+    public EventLoop next() {
+        return this.loops[Math.floorMod(this.index.getAndIncrement(), this.loops.length)];
+    }
+
+    @Override
+    public void close() {
+        for (EventLoop loop : this.loops) {
+            loop.close();
+        }
+    }
+}
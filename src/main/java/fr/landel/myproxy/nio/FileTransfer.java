@@ -0,0 +1,45 @@
+package fr.landel.myproxy.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Transfers of files to channels without copy in the heap: {@link FileChannel#transferTo(long, long, WritableByteChannel)} uses sendfile(2)
+ * toward a socket channel on Linux, the bytes go from the page cache to the socket buffer in the kernel. Toward another channel, the JDK copies
+ * through a temporary direct buffer.
+ */
+public final class FileTransfer {
+
+    private FileTransfer() {
+        throw new UnsupportedOperationException("utility class, not implemented");
+    }
+
+    /**
+     * Writes a region of a file to a channel, the transfer is repeated until complete (a call may transfer less than requested)
+     *
+     * @param file
+     *            the file channel
+     * @param position
+     *            the position of the region in the file
+     * @param count
+     *            the length of the region
+     * @param target
+     *            the target channel, in blocking mode
+     * @throws IOException
+     *             on write failure, or if the file ends before the region
+     */
+    public static void transfer(final FileChannel file, final long position, final long count, final WritableByteChannel target)
+            throws IOException {
+        final long end = position + count;
+        long offset = position;
+        while (offset < end) {
+            final long sent = file.transferTo(offset, end - offset, target);
+            if (sent == 0 && offset >= file.size()) {
+                throw new EOFException("File truncated at " + offset + ", " + end + " bytes expected");
+            }
+            offset += sent;
+        }
+    }
+}
@@ -0,0 +1,1009 @@
+package fr.landel.myproxy.nio;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.landel.myproxy.Proxy;
+import fr.landel.myproxy.RequestHandler;
+import fr.landel.myproxy.http.BodyFramer;
+import fr.landel.myproxy.http.HttpHeaders;
+import fr.landel.myproxy.http.HttpRequestParser;
+import fr.landel.myproxy.http.ParentProxy;
+import fr.landel.myproxy.http.ParentRouter;
+import fr.landel.myproxy.limit.ClientLimiter;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.utils.Logger;
+
+/**
+ * State machine of a persistent client connection driven by an {@link EventLoop}. For each request, the head is read and parsed, the upstream
+ * connection is opened without blocking (or reused if the previous request targeted the same origin), the request body and the response are then
+ * relayed with their framing. Once the response is complete, the next request is read: pipelined requests wait in the input buffer until then. Each
+ * phase has a deadline in the timer wheel of the loop: an idle connection is closed after the keep-alive timeout, a started request head after
+ * the header timeout and a request after the request timeout. CONNECT tunnels are handed over to a {@link Tunnel} on the same loop. On the TLS
+ * listener, the client bytes go through a {@link TlsChannel}, the handshake is done by the first reads of the request head. With a client
+ * quota, a side exceeding its byte rate isn't read until its bucket is paid back and a request exceeding the request rate is answered by 429.
+ */
+public class NioConnection implements ChannelHandler {
+
+    private static final Logger LOG = new Logger(NioConnection.class);
+
+    private static final int BUFFER_SIZE = 16_384;
+    private static final int MAX_HEAD_SIZE = 65_536;
+
+    private static final String CRLF = "\r\n";
+
+    private static final byte[] CONNECTION_ESTABLISHED = ("HTTP/1.0 200 Connection established\r\n" + "Proxy-Agent: ProxyServer/1.0\r\n" + CRLF)
+            .getBytes(ISO_8859_1);
+    private static final byte[] CONNECTION_KEEP_ALIVE = ("Connection: keep-alive\r\n" + CRLF).getBytes(ISO_8859_1);
+    private static final byte[] BAD_REQUEST = ("HTTP/1.0 400 Bad Request\r\n" + "Proxy-agent: ProxyServer/1.0\r\n" + "Content-Length: 0\r\n" + CRLF)
+            .getBytes(ISO_8859_1);
+    private static final byte[] FORBIDDEN = ("HTTP/1.0 403 Access Forbidden\r\n" + "Proxy-agent: ProxyServer/1.0\r\n" + "Content-Length: 0\r\n" + CRLF)
+            .getBytes(ISO_8859_1);
+    private static final byte[] GATEWAY_TIMEOUT = ("HTTP/1.0 504 Gateway Timeout\r\n" + "Proxy-agent: ProxyServer/1.0\r\n" + "Content-Length: 0\r\n"
+            + CRLF).getBytes(ISO_8859_1);
+    private static final byte[] BAD_GATEWAY = ("HTTP/1.0 502 Bad Gateway\r\n" + "Proxy-agent: ProxyServer/1.0\r\n" + "Content-Length: 0\r\n" + CRLF)
+            .getBytes(ISO_8859_1);
+    private static final byte[] TOO_MANY_REQUESTS = ("HTTP/1.0 429 Too Many Requests\r\n" + "Proxy-agent: ProxyServer/1.0\r\n" + "Retry-After: 1\r\n"
+            + "Content-Length: 0\r\n" + CRLF).getBytes(ISO_8859_1);
+
+    private static final LongAdder KEEP_ALIVE_REQUESTS = Metrics.counter("client.keep-alive.requests");
+    private static final LongAdder UPSTREAM_REUSED = Metrics.counter("upstream.nio.reused");
+
+    private enum State {
+        READ_HEAD,
+        CONNECTING,
+        RELAY,
+        TUNNEL,
+        CLOSING,
+        CLOSED
+    }
+
+    private final EventLoop loop;
+
+    private final SocketChannel client;
+    private SelectionKey clientKey;
+    private boolean clientEof;
+
+    /**
+     * TLS layer of the client channel, null on the plain listener
+     */
+    private final TlsChannel tls;
+
+    /**
+     * The client channel or its TLS layer
+     */
+    private final ByteChannel clientIo;
+    private boolean readResumed;
+
+    /**
+     * Limits of the client address, null without limits
+     */
+    private final ClientLimiter.Quota quota;
+    private boolean uploadPaused;
+    private boolean downloadPaused;
+
+    private SocketChannel upstream;
+    private SelectionKey upstreamKey;
+    private String upstreamAuthority;
+    private String upstreamHost;
+    private int upstreamPort;
+    private ParentProxy upstreamParent;
+    private boolean upstreamReusable;
+    private boolean upstreamEof;
+
+    /**
+     * Bytes read from the client and not processed yet (request head, body or pipelined requests), in write mode
+     */
+    private ByteBuffer clientIn = BufferPool.HEAP.acquire(BUFFER_SIZE);
+
+    /**
+     * Bytes to send to the upstream (request head and body), in write mode
+     */
+    private ByteBuffer clientToUpstream = BufferPool.HEAP.acquire(BUFFER_SIZE);
+
+    /**
+     * Bytes read from the upstream while the response head isn't complete, in write mode
+     */
+    private ByteBuffer upstreamIn = BufferPool.HEAP.acquire(BUFFER_SIZE);
+
+    /**
+     * Bytes to send to the client (response head and body), in write mode
+     */
+    private ByteBuffer upstreamToClient = BufferPool.HEAP.acquire(BUFFER_SIZE);
+
+    private State state = State.READ_HEAD;
+
+    private final DeadlineTimer timeouts;
+    private final int maxRequests;
+    private final Connector connector;
+    private final ParentRouter router;
+    private TimerWheel.Timeout deadlineTask;
+    private DeadlineTimer.Phase deadlinePhase;
+
+    private final HttpRequestParser parser = new HttpRequestParser();
+    private int responseScanned;
+
+    private int requests;
+    private boolean keepAlive;
+    private BodyFramer requestBody;
+    private BodyFramer responseBody;
+    private byte[] requestHead;
+    /**
+     * Length of the scheme and authority of the request target in absolute form ("http://host:port"), 0 in origin form
+     */
+    private int requestOrigin;
+    private boolean retryable;
+    private boolean responseStarted;
+
+    private String method;
+    private String requestLine;
+    private long start = System.currentTimeMillis();
+
+    /**
+     * Constructor
+     *
+     * @param loop
+     *            the loop driving this connection
+     * @param client
+     *            the non blocking client channel
+     * @param timeouts
+     *            the timeouts of the phases
+     * @param maxRequests
+     *            the maximum number of requests served by the connection
+     * @param connector
+     *            the connector to the origin servers
+     * @param router
+     *            the router to the parent proxies
+     * @param tls
+     *            the TLS layer of the client channel (nullable)
+     * @param quota
+     *            the limits of the client address (nullable)
+     * @category constructor
+     */
+    public NioConnection(final EventLoop loop, final SocketChannel client, final DeadlineTimer timeouts, final int maxRequests,
+            final Connector connector, final ParentRouter router, final TlsChannel tls, final ClientLimiter.Quota quota) {
+        this.loop = loop;
+        this.client = client;
+        this.tls = tls;
+        this.quota = quota;
+        this.clientIo = tls != null ? tls : client;
+        this.timeouts = timeouts;
+        this.maxRequests = maxRequests;
+        this.connector = connector;
+        this.router = router;
+    }
+
+    /**
+     * Registers the client channel, must be called from the loop thread
+     */
+    public void start() {
+        try {
+            this.clientKey = this.loop.register(this.client, SelectionKey.OP_READ, this);
+            // the client connects to send a request
+            this.scheduleDeadline(DeadlineTimer.Phase.HEADER);
+        } catch (IOException e) {
+            LOG.error("Cannot register client channel: {}", e.getMessage());
+            this.close();
+        }
+    }
+
+    @Override
+    public void handle(final SelectionKey key) throws IOException {
+        if (key.channel() == this.client) {
+            if (this.tls != null && key.isWritable()) {
+                this.tls.flush();
+            }
+            if (key.isReadable()) {
+                this.readClient();
+            }
+        } else if (key.isReadable()) {
+            this.readUpstream();
+        }
+
+        this.flushAll();
+        this.updateInterests();
+    }
+
+    private void flushAll() throws IOException {
+        if (this.state == State.RELAY || this.state == State.CLOSING) {
+            flush(this.upstreamToClient, this.clientIo);
+        }
+        if (this.state == State.RELAY) {
+            flush(this.clientToUpstream, this.upstream);
+
+            if (this.responseBody != null && this.responseBody.isComplete() && this.upstreamToClient.position() == 0) {
+                this.onResponseComplete();
+            }
+        }
+    }
+
+    private void readClient() throws IOException {
+        if (!this.clientIn.hasRemaining() && !this.growClientIn()) {
+            return;
+        }
+        final int read = this.clientIo.read(this.clientIn);
+        if (read < 0) {
+            this.clientEof = true;
+            this.keepAlive = false;
+            if (this.state == State.READ_HEAD) {
+                this.close();
+                return;
+            }
+        } else if (this.deadlinePhase == DeadlineTimer.Phase.IDLE && this.clientIn.position() > 0) {
+            // the next request is started
+            this.scheduleDeadline(DeadlineTimer.Phase.HEADER);
+        }
+        if (read > 0 && this.quota != null) {
+            this.throttle(true, this.quota.upload(read));
+        }
+        this.processClientInput();
+    }
+
+    private boolean growClientIn() {
+        if (this.state != State.READ_HEAD) {
+            return false;
+        } else if (this.clientIn.capacity() >= MAX_HEAD_SIZE) {
+            this.fail(BAD_REQUEST);
+            return false;
+        }
+        this.clientIn = resize(this.clientIn.flip(), this.clientIn.capacity() * 2);
+        return true;
+    }
+
+    private void processClientInput() {
+        if (this.state == State.READ_HEAD) {
+            try {
+                if (this.parser.parse(this.clientIn, this.clientIn.position())) {
+                    this.onHead();
+                }
+            } catch (IOException e) {
+                LOG.error("Invalid request: {}", e.getMessage());
+                this.fail(BAD_REQUEST);
+                return;
+            }
+        }
+
+        if ((this.state == State.CONNECTING || this.state == State.RELAY) && !this.requestBody.isComplete()) {
+            // moves the body bytes only, the pipelined requests stay in the input buffer
+            this.clientIn.flip();
+            final int available = Math.min(this.clientIn.remaining(), this.clientToUpstream.remaining());
+            final int count;
+            try {
+                count = this.requestBody.advance(this.clientIn.array(), this.clientIn.position(), available);
+            } catch (BodyFramer.MalformedException e) {
+                LOG.error("Invalid request: {}", e.getMessage());
+                if (this.responseStarted) {
+                    this.close();
+                } else {
+                    this.fail(BAD_REQUEST);
+                }
+                return;
+            }
+            this.clientToUpstream.put(this.clientIn.array(), this.clientIn.position(), count);
+            this.clientIn.position(this.clientIn.position() + count);
+            this.clientIn.compact();
+        }
+    }
+
+    private static int findHeadEnd(final ByteBuffer buffer, final int scanned) {
+        final byte[] array = buffer.array();
+        final int limit = buffer.position();
+        for (int i = Math.max(scanned, 3); i < limit; ++i) {
+            if (array[i] == '\n' && array[i - 1] == '\r' && array[i - 2] == '\n' && array[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static HttpHeaders parseHeaders(final String[] lines) {
+        final HttpHeaders headers = new HttpHeaders();
+        for (int i = 1; i < lines.length; ++i) {
+            final int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private void onHead() {
+        final ByteBuffer head = this.clientIn;
+        final HttpRequestParser request = this.parser;
+
+        this.scheduleDeadline(DeadlineTimer.Phase.REQUEST);
+        this.start = System.currentTimeMillis();
+        if (++this.requests > 1) {
+            KEEP_ALIVE_REQUESTS.increment();
+        }
+
+        this.requestLine = HttpRequestParser.getString(head, request.getMethodStart(), request.getVersionEnd());
+        LOG.info("Request Received {}", this.requestLine);
+
+        this.method = HttpRequestParser.getString(head, request.getMethodStart(), request.getMethodEnd());
+        final String target = HttpRequestParser.getString(head, request.getTargetStart(), request.getTargetEnd());
+        final boolean connect = request.isMethod(head, "CONNECT");
+
+        String host = null;
+        int port = -1;
+        String urlString = null;
+        boolean valid = true;
+
+        if (connect) {
+            final int colon = target.lastIndexOf(':');
+            host = colon > -1 ? target.substring(0, colon) : target;
+            try {
+                port = colon > -1 ? Integer.parseInt(target.substring(colon + 1)) : 443;
+            } catch (NumberFormatException e) {
+                valid = false;
+            }
+            urlString = "http://" + target;
+
+            // the bytes received after the head are given to the tunnel
+            this.requestBody = BodyFramer.none();
+            this.requestOrigin = 0;
+            this.clientToUpstream.clear();
+
+        } else {
+            urlString = RequestHandler.rewrite(target);
+            try {
+                final URL url = new URL(urlString);
+                host = url.getHost();
+                port = url.getPort() > -1 ? url.getPort() : url.getDefaultPort();
+
+                this.keepAlive = request.isKeepAlive(head) && !this.clientEof && this.requests < this.maxRequests;
+                if (request.isChunked(head)) {
+                    this.requestBody = BodyFramer.chunked();
+                } else {
+                    final long length = request.getContentLength(head);
+                    this.requestBody = length > 0 ? BodyFramer.fixed(length) : BodyFramer.none();
+                }
+                final String file = url.getFile().isEmpty() ? "/" : url.getFile();
+                // a parent proxy receives the target in absolute form
+                final String origin = this.router.isDirect(host, false) ? "" : url.getProtocol() + "://" + url.getAuthority();
+                this.requestOrigin = origin.length();
+                this.requestHead = this.rewriteHead(head, origin + file);
+
+                this.clientToUpstream = ensureCapacity(this.clientToUpstream.clear(), this.requestHead.length);
+                this.clientToUpstream.put(this.requestHead);
+            } catch (IOException e) {
+                // malformed URL or invalid Content-Length
+                LOG.error("Invalid request: {}", e.getMessage());
+                valid = false;
+            }
+        }
+
+        // removes the head from the input buffer, the parsed ranges are no longer valid
+        this.clientIn.flip().position(request.getHeadEnd());
+        this.clientIn.compact();
+        this.parser.reset();
+
+        if (!valid) {
+            this.fail(BAD_REQUEST);
+            return;
+        }
+
+        if (Proxy.isBlocked(urlString)) {
+            LOG.info("Blocked site requested: {}", urlString);
+            this.fail(FORBIDDEN);
+            return;
+        } else if (this.quota != null && !this.quota.tryRequest()) {
+            LOG.info("Request rate exceeded: {}", this.requestLine);
+            this.fail(TOO_MANY_REQUESTS);
+            return;
+        }
+
+        this.responseBody = null;
+        this.responseStarted = false;
+        this.responseScanned = 0;
+        this.upstreamIn.clear();
+
+        final String authority = host.toLowerCase() + ':' + port;
+        // a connection to a parent is only reused by a request in absolute form
+        if (!connect && this.upstreamReusable && authority.equals(this.upstreamAuthority) && (this.upstreamParent == null || this.requestOrigin > 0)) {
+            UPSTREAM_REUSED.increment();
+            if (this.upstreamParent != null) {
+                this.authorize(this.upstreamParent);
+            } else if (this.requestOrigin > 0) {
+                this.toOriginForm();
+            }
+            this.retryable = this.requestBody.isComplete();
+            this.state = State.RELAY;
+            return;
+        }
+
+        this.closeUpstream();
+        this.upstreamAuthority = authority;
+        this.retryable = false;
+        this.connect(host, port);
+    }
+
+    private void connect(final String host, final int port) {
+        this.state = State.CONNECTING;
+        this.upstreamHost = host;
+        this.upstreamPort = port;
+
+        final boolean tunnel = "CONNECT".equals(this.method);
+        if (!this.router.isDirect(host, tunnel)) {
+            // the exchanges with the parents and the PAC evaluation are blocking, they are run outside of the loop
+            (tunnel ? this.router.openTunnelAsync(host, port) : this.router.connectAsync(host, port))
+                    .whenComplete((hop, e) -> this.loop.execute(() -> {
+                        if (e == null) {
+                            this.onParent(hop);
+                        } else {
+                            this.onConnectFailed(host, port, e);
+                        }
+                    }));
+            return;
+        }
+
+        this.connector.connect(this.loop, host, port, new Connector.Callback() {
+
+            @Override
+            public void connected(final SocketChannel channel) {
+                NioConnection.this.onUpstream(channel);
+            }
+
+            @Override
+            public void failed(final IOException e) {
+                NioConnection.this.onConnectFailed(host, port, e);
+            }
+        });
+    }
+
+    private void onConnectFailed(final String host, final int port, final Throwable e) {
+        if (this.state == State.CONNECTING) {
+            LOG.error("Cannot connect to {}:{}: {}", host, port, e.getMessage());
+            if (e instanceof ParentRouter.RefusedException && ((ParentRouter.RefusedException) e).getStatus() != 407) {
+                // refused by the parent, its status is given to the client (except the authentication request, addressed to this proxy)
+                final ParentRouter.RefusedException refused = (ParentRouter.RefusedException) e;
+                this.fail(("HTTP/1.0 " + refused.getStatus() + ' ' + refused.getReason() + CRLF + "Proxy-agent: ProxyServer/1.0\r\n"
+                        + "Content-Length: 0\r\n" + CRLF).getBytes(ISO_8859_1));
+            } else {
+                this.fail(BAD_GATEWAY);
+            }
+        }
+    }
+
+    private void onParent(final ParentRouter.Hop hop) {
+        if (this.state != State.CONNECTING) {
+            // closed while connecting
+            closeQuietly(hop.getChannel());
+            return;
+        }
+        try {
+            hop.getChannel().configureBlocking(false);
+        } catch (IOException e) {
+            closeQuietly(hop.getChannel());
+            this.onConnectFailed(this.upstreamHost, this.upstreamPort, e);
+            return;
+        }
+        this.upstreamParent = hop.getParent();
+        if (this.upstreamParent != null) {
+            this.authorize(this.upstreamParent);
+        } else if (this.requestOrigin > 0) {
+            // reached directly ("DIRECT" from the PAC script or after the parents)
+            this.toOriginForm();
+        }
+        this.onUpstream(hop.getChannel());
+    }
+
+    /**
+     * Removes the scheme and the authority of the request target queued in absolute form, for an origin server
+     */
+    private void toOriginForm() {
+        final int start = this.method.length() + 1;
+        final byte[] head = new byte[this.requestHead.length - this.requestOrigin];
+        System.arraycopy(this.requestHead, 0, head, 0, start);
+        System.arraycopy(this.requestHead, start + this.requestOrigin, head, start, head.length - start);
+        final ByteBuffer queued = this.clientToUpstream.flip().position(this.requestHead.length);
+        this.clientToUpstream = BufferPool.HEAP.acquire(Math.max(BUFFER_SIZE, head.length + queued.remaining())).put(head).put(queued);
+        BufferPool.HEAP.release(queued);
+        this.requestHead = head;
+        this.requestOrigin = 0;
+    }
+
+    /**
+     * Adds the credentials of the parent to the request head queued at the beginning of the upstream buffer (before its final "Connection" line),
+     * the body bytes already queued follow
+     */
+    private void authorize(final ParentProxy parent) {
+        final byte[] authorization = parent.getAuthorization();
+        if (authorization == null) {
+            return;
+        }
+        final int at = this.requestHead.length - CONNECTION_KEEP_ALIVE.length;
+        final ByteBuffer queued = this.clientToUpstream.flip().position(this.requestHead.length);
+        this.clientToUpstream = BufferPool.HEAP.acquire(Math.max(BUFFER_SIZE, this.requestHead.length + authorization.length + queued.remaining()))
+                .put(this.requestHead, 0, at).put(authorization).put(CONNECTION_KEEP_ALIVE).put(queued);
+        BufferPool.HEAP.release(queued);
+    }
+
+    /**
+     * Copies the request head for the origin or the parent proxy: the request line gets the given target and the hop-by-hop headers are replaced by
+     * "Connection: keep-alive", the other header fields are copied as received. The credentials of the client are addressed to this proxy, they are
+     * never forwarded.
+     */
+    private byte[] rewriteHead(final ByteBuffer head, final String target) {
+        final HttpRequestParser request = this.parser;
+        final byte[] line = (this.method + ' ' + target + ' ' + HttpRequestParser.getString(head, request.getVersionStart(), request.getVersionEnd())
+                + CRLF).getBytes(ISO_8859_1);
+
+        int length = line.length + CONNECTION_KEEP_ALIVE.length;
+        for (int i = 0; i < request.getHeaderCount(); ++i) {
+            if (!isHopByHop(head, request, i)) {
+                length += request.getNameEnd(i) - request.getNameStart(i) + request.getValueEnd(i) - request.getValueStart(i) + 4;
+            }
+        }
+
+        final ByteBuffer rewritten = ByteBuffer.allocate(length).put(line);
+        final byte[] array = head.array();
+        for (int i = 0; i < request.getHeaderCount(); ++i) {
+            if (!isHopByHop(head, request, i)) {
+                rewritten.put(array, request.getNameStart(i), request.getNameEnd(i) - request.getNameStart(i)).put((byte) ':').put((byte) ' ');
+                rewritten.put(array, request.getValueStart(i), request.getValueEnd(i) - request.getValueStart(i)).put((byte) '\r').put((byte) '\n');
+            }
+        }
+        return rewritten.put(CONNECTION_KEEP_ALIVE).array();
+    }
+
+    private static boolean isHopByHop(final ByteBuffer head, final HttpRequestParser request, final int index) {
+        final int start = request.getNameStart(index);
+        final int end = request.getNameEnd(index);
+        return HttpRequestParser.equalsIgnoreCase(head, start, end, "Connection") || HttpRequestParser.equalsIgnoreCase(head, start, end, "Keep-Alive")
+                || HttpRequestParser.equalsIgnoreCase(head, start, end, "Proxy-Connection")
+                || HttpRequestParser.equalsIgnoreCase(head, start, end, "Proxy-Authorization");
+    }
+
+    private void onUpstream(final SocketChannel channel) {
+        if (this.state != State.CONNECTING) {
+            // closed while connecting
+            closeQuietly(channel);
+            return;
+        }
+        this.upstream = channel;
+        try {
+            this.onConnected();
+            if (this.state != State.TUNNEL) {
+                this.flushAll();
+                this.updateInterests();
+            }
+        } catch (IOException e) {
+            LOG.error("Cannot relay to {}: {}", this.upstreamAuthority, e.getMessage());
+            this.fail(BAD_GATEWAY);
+        }
+    }
+
+    private void onConnected() throws IOException {
+        if ("CONNECT".equals(this.method)) {
+            // the tunnel takes over the keys of both channels
+            this.state = State.TUNNEL;
+            this.cancelDeadline();
+            // the bytes sent by the client after the head are copied, the buffers are given back
+            this.clientIn.flip();
+            final ByteBuffer pending = this.clientIn.hasRemaining() ? ByteBuffer.allocate(this.clientIn.remaining()).put(this.clientIn).flip() : null;
+            this.releaseBuffers();
+            new Tunnel(this.loop, this.client, this.tls, this.upstream, ByteBuffer.wrap(CONNECTION_ESTABLISHED), pending, this.requestLine, this.start,
+                    this.timeouts.getTimeout(DeadlineTimer.Phase.TUNNEL), this.quota).start();
+            return;
+        }
+        // the key of the connector is taken over
+        this.upstreamKey = this.loop.register(this.upstream, SelectionKey.OP_READ, this);
+        this.state = State.RELAY;
+    }
+
+    private void readUpstream() throws IOException {
+        if (this.responseBody == null) {
+            if (!this.upstreamIn.hasRemaining()) {
+                if (this.upstreamIn.capacity() >= MAX_HEAD_SIZE) {
+                    LOG.error("Response head too large from {}", this.upstreamAuthority);
+                    this.fail(BAD_GATEWAY);
+                    return;
+                }
+                this.upstreamIn = resize(this.upstreamIn.flip(), this.upstreamIn.capacity() * 2);
+            }
+            if (this.upstream.read(this.upstreamIn) < 0) {
+                this.onUpstreamEof();
+            } else {
+                this.processResponseHead();
+            }
+
+        } else if (this.upstreamIn.position() > 0) {
+            // body bytes received with the head
+            this.moveResponseBody();
+
+        } else if (!this.responseBody.isComplete()) {
+            final int position = this.upstreamToClient.position();
+            final int read = this.upstream.read(this.upstreamToClient);
+            if (read < 0) {
+                this.onUpstreamEof();
+            } else {
+                if (this.quota != null) {
+                    this.throttle(false, this.quota.download(read));
+                }
+                final int count;
+                try {
+                    count = this.responseBody.advance(this.upstreamToClient.array(), position, read);
+                } catch (BodyFramer.MalformedException e) {
+                    this.upstreamToClient.position(position);
+                    this.onMalformedResponse(e);
+                    return;
+                }
+                if (count < read) {
+                    // unexpected bytes after the response
+                    this.upstreamToClient.position(position + count);
+                    this.upstreamReusable = false;
+                }
+            }
+        }
+    }
+
+    private void processResponseHead() {
+        int end;
+        while (this.responseBody == null && (end = findHeadEnd(this.upstreamIn, this.responseScanned)) > -1) {
+            final String head = new String(this.upstreamIn.array(), 0, end, ISO_8859_1);
+            final String[] lines = head.split(CRLF);
+            final String[] status = lines[0].split(" ", 3);
+            final int code;
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                LOG.error("Invalid response from {}: {}", this.upstreamAuthority, lines[0]);
+                this.fail(BAD_GATEWAY);
+                return;
+            }
+
+            final byte[] clientHead;
+            if (code == 101) {
+                // protocol switch, both directions are then relayed until the end
+                this.responseBody = BodyFramer.untilClose();
+                this.requestBody = BodyFramer.untilClose();
+                this.keepAlive = false;
+                clientHead = head.getBytes(ISO_8859_1);
+
+            } else if (code >= 100 && code < 200) {
+                // interim response, forwarded as is
+                clientHead = head.getBytes(ISO_8859_1);
+
+            } else {
+                final HttpHeaders headers = parseHeaders(lines);
+                if ("HEAD".equals(this.method) || code == 204 || code == 304) {
+                    this.responseBody = BodyFramer.none();
+                } else {
+                    try {
+                        this.responseBody = BodyFramer.of(headers, true);
+                    } catch (BodyFramer.MalformedException e) {
+                        LOG.error("Invalid response from {}: {}", this.upstreamAuthority, e.getMessage());
+                        this.fail(BAD_GATEWAY);
+                        return;
+                    }
+                }
+                this.upstreamReusable = !this.responseBody.isUntilClose() && !headers.containsToken("Connection", "close")
+                        && ("HTTP/1.1".equals(status[0]) || headers.containsToken("Connection", "keep-alive"));
+                this.keepAlive &= !this.responseBody.isUntilClose();
+
+                headers.remove("Connection");
+                headers.remove("Keep-Alive");
+                headers.remove("Proxy-Connection");
+                headers.add("Connection", this.keepAlive ? "keep-alive" : "close");
+                clientHead = headers.appendTo(new StringBuilder(head.length() + 32).append(lines[0]).append(CRLF)).toString().getBytes(ISO_8859_1);
+            }
+
+            this.responseStarted = true;
+            this.upstreamToClient = ensureCapacity(this.upstreamToClient, clientHead.length);
+            this.upstreamToClient.put(clientHead);
+
+            this.upstreamIn.flip().position(end);
+            this.upstreamIn.compact();
+            this.responseScanned = 0;
+        }
+
+        if (this.responseBody == null) {
+            this.responseScanned = this.upstreamIn.position();
+        } else {
+            this.moveResponseBody();
+        }
+    }
+
+    private void moveResponseBody() {
+        this.upstreamIn.flip();
+        final int available = Math.min(this.upstreamIn.remaining(), this.upstreamToClient.remaining());
+        final int count;
+        try {
+            count = this.responseBody.advance(this.upstreamIn.array(), this.upstreamIn.position(), available);
+        } catch (BodyFramer.MalformedException e) {
+            this.upstreamIn.clear();
+            this.onMalformedResponse(e);
+            return;
+        }
+        this.upstreamToClient.put(this.upstreamIn.array(), this.upstreamIn.position(), count);
+        if (this.responseBody.isComplete() && this.upstreamIn.remaining() > count) {
+            // unexpected bytes after the response
+            this.upstreamIn.clear();
+            this.upstreamReusable = false;
+        } else {
+            this.upstreamIn.position(this.upstreamIn.position() + count);
+            this.upstreamIn.compact();
+        }
+    }
+
+    private void onMalformedResponse(final BodyFramer.MalformedException e) {
+        // the head is already sent, the client can only detect the truncated response by the end of the connection
+        LOG.error("Invalid response from {}: {}", this.upstreamAuthority, e.getMessage());
+        this.closeUpstream();
+        this.state = State.CLOSING;
+    }
+
+    private void onUpstreamEof() {
+        this.upstreamEof = true;
+        this.upstreamReusable = false;
+
+        if (this.responseBody == null) {
+            if (this.retryable && !this.responseStarted && this.upstreamIn.position() == 0) {
+                // the reused connection was closed by the server in the meantime, the request is sent on a new one
+                LOG.info("Upstream connection closed by {}, retrying", this.upstreamAuthority);
+                this.closeUpstream();
+                this.retryable = false;
+                this.clientToUpstream.clear().put(this.requestHead);
+                this.connect(this.upstreamHost, this.upstreamPort);
+            } else if (!this.responseStarted) {
+                this.fail(BAD_GATEWAY);
+            } else {
+                this.state = State.CLOSING;
+            }
+        } else if (!this.responseBody.endOfStream()) {
+            // truncated response, the client can only detect it by the end of the connection
+            this.state = State.CLOSING;
+        }
+    }
+
+    private void onResponseComplete() {
+        LOG.info("Request '{}' handled in: {}\n", this.requestLine, Proxy.getTime(System.currentTimeMillis() - this.start));
+        this.requestLine = null;
+
+        if (!this.upstreamReusable || !this.requestBody.isComplete()) {
+            this.closeUpstream();
+        }
+
+        if (this.keepAlive && this.requestBody.isComplete()) {
+            this.state = State.READ_HEAD;
+            this.requestBody = null;
+            this.responseBody = null;
+            this.scheduleDeadline(this.clientIn.position() > 0 ? DeadlineTimer.Phase.HEADER : DeadlineTimer.Phase.IDLE);
+
+            // pipelined request
+            this.processClientInput();
+        } else {
+            this.state = State.CLOSING;
+        }
+    }
+
+    /**
+     * Replaces the deadline of the previous phase
+     */
+    private void scheduleDeadline(final DeadlineTimer.Phase phase) {
+        this.cancelDeadline();
+        final long timeout = this.timeouts.getTimeout(phase);
+        if (timeout > 0) {
+            this.deadlinePhase = phase;
+            this.deadlineTask = this.loop.schedule(this::expire, timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelDeadline() {
+        if (this.deadlineTask != null) {
+            this.deadlineTask.cancel();
+            this.deadlineTask = null;
+            this.deadlinePhase = null;
+        }
+    }
+
+    private void expire() {
+        final DeadlineTimer.Phase phase = this.deadlinePhase;
+        this.deadlineTask = null;
+        this.deadlinePhase = null;
+        if (this.state == State.CLOSED || this.state == State.TUNNEL) {
+            return;
+        }
+        phase.expired();
+        LOG.info("{} timeout after {}ms, closing: {}", phase, this.timeouts.getTimeout(phase), this.requestLine != null ? this.requestLine
+                : phase == DeadlineTimer.Phase.HEADER ? "request head" : "idle client connection");
+        if (phase == DeadlineTimer.Phase.REQUEST && !this.responseStarted) {
+            this.keepAlive = false;
+            this.fail(GATEWAY_TIMEOUT);
+        } else {
+            this.close();
+        }
+    }
+
+    private void fail(final byte[] response) {
+        if (this.state == State.CLOSED) {
+            return;
+        }
+        this.closeUpstream();
+        this.upstreamToClient.clear();
+        this.upstreamToClient.put(response);
+        this.state = State.CLOSING;
+        try {
+            flush(this.upstreamToClient, this.clientIo);
+        } catch (IOException e) {
+            this.close();
+        }
+        this.updateInterests();
+    }
+
+    private void updateInterests() {
+        if (this.state == State.CLOSED || this.state == State.TUNNEL) {
+            return;
+        }
+
+        final boolean pendingToClient = this.upstreamToClient.position() > 0 || (this.tls != null && this.tls.hasPendingOutput());
+        if (this.state == State.CLOSING && !pendingToClient) {
+            this.close();
+            return;
+        }
+
+        int clientOps = 0;
+        if (!this.clientEof && !this.uploadPaused && (this.state == State.READ_HEAD
+                || ((this.state == State.CONNECTING || this.state == State.RELAY) && !this.requestBody.isComplete() && this.clientIn.hasRemaining()))) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        if (pendingToClient) {
+            clientOps |= SelectionKey.OP_WRITE;
+        }
+        if (this.tls != null) {
+            if ((clientOps & SelectionKey.OP_READ) != 0 && this.tls.hasBufferedInput()) {
+                this.resumeRead();
+            }
+            clientOps = this.tls.interestOps(clientOps);
+        }
+        this.clientKey.interestOps(clientOps);
+
+        if (this.upstreamKey != null && this.upstreamKey.isValid()) {
+            int upstreamOps = 0;
+            if (this.state == State.RELAY) {
+                if (!this.upstreamEof && !this.downloadPaused && (this.responseBody == null || (!this.responseBody.isComplete() && this.upstreamToClient.hasRemaining()))) {
+                    upstreamOps |= SelectionKey.OP_READ;
+                }
+                if (this.clientToUpstream.position() > 0) {
+                    upstreamOps |= SelectionKey.OP_WRITE;
+                }
+            }
+            this.upstreamKey.interestOps(upstreamOps);
+        }
+    }
+
+    /**
+     * Suspends the reads of a side until the debt of its bucket is paid back
+     *
+     * @param upload
+     *            true for the client side, false for the upstream side
+     * @param delay
+     *            the delay in nanoseconds, 0 to go on
+     */
+    private void throttle(final boolean upload, final long delay) {
+        if (delay <= 0) {
+            return;
+        } else if (upload) {
+            this.uploadPaused = true;
+        } else {
+            this.downloadPaused = true;
+        }
+        this.loop.schedule(() -> {
+            if (upload) {
+                this.uploadPaused = false;
+            } else {
+                this.downloadPaused = false;
+            }
+            this.updateInterests();
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Reads the bytes decrypted but not read yet, the selector won't select the client for them
+     */
+    private void resumeRead() {
+        if (this.readResumed) {
+            return;
+        }
+        this.readResumed = true;
+        this.loop.execute(() -> {
+            this.readResumed = false;
+            if (this.state == State.CLOSED || this.state == State.TUNNEL) {
+                return;
+            }
+            try {
+                this.readClient();
+                this.flushAll();
+                this.updateInterests();
+            } catch (IOException e) {
+                LOG.error("Closing connection on error: {}", e.getMessage());
+                this.close();
+            }
+        });
+    }
+
+    private static ByteBuffer ensureCapacity(final ByteBuffer buffer, final int length) {
+        if (buffer.remaining() >= length) {
+            return buffer;
+        }
+        buffer.flip();
+        return resize(buffer, Math.max(BUFFER_SIZE, buffer.remaining() + length));
+    }
+
+    /**
+     * Moves the bytes of a buffer (in read mode) to a larger pooled one, the buffer is released
+     */
+    private static ByteBuffer resize(final ByteBuffer buffer, final int capacity) {
+        final ByteBuffer resized = BufferPool.HEAP.acquire(capacity).put(buffer);
+        BufferPool.HEAP.release(buffer);
+        return resized;
+    }
+
+    /**
+     * Gives the buffers back to the pool, the connection is closed or became a tunnel
+     */
+    private void releaseBuffers() {
+        BufferPool.HEAP.release(this.clientIn);
+        BufferPool.HEAP.release(this.clientToUpstream);
+        BufferPool.HEAP.release(this.upstreamIn);
+        BufferPool.HEAP.release(this.upstreamToClient);
+        this.clientIn = null;
+        this.clientToUpstream = null;
+        this.upstreamIn = null;
+        this.upstreamToClient = null;
+    }
+
+    private static void flush(final ByteBuffer buffer, final ByteChannel channel) throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+            channel.write(buffer);
+            buffer.compact();
+        }
+    }
+
+    private void closeUpstream() {
+        if (this.upstream != null) {
+            closeQuietly(this.upstream);
+            this.upstream = null;
+            this.upstreamKey = null;
+        }
+        this.upstreamParent = null;
+        this.upstreamReusable = false;
+        this.upstreamEof = false;
+    }
+
+    private static void closeQuietly(final Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.error("Cannot close channel: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.state != State.CLOSED && this.state != State.TUNNEL) {
+            this.state = State.CLOSED;
+            this.cancelDeadline();
+            closeQuietly(this.clientIo);
+            this.closeUpstream();
+            this.releaseBuffers();
+            if (this.quota != null) {
+                this.quota.release();
+            }
+            if (this.requestLine != null) {
+                LOG.info("Request '{}' handled in: {}\n", this.requestLine, Proxy.getTime(System.currentTimeMillis() - this.start));
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package fr.landel.myproxy.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fr.landel.myproxy.http.ParentRouter;
+import fr.landel.myproxy.limit.ClientLimiter;
+import fr.landel.myproxy.utils.Logger;
+
+/**
+ * Non blocking front end of the proxy. The server channel is accepted by the first loop of the group, each accepted connection is then bound to
+ * the next loop of the group, which drives its whole life (request parsing, upstream connection and relay). Idle connections cost no thread.
+ * <p>
+ * With several acceptors, each listening port is bound by several channels with SO_REUSEPORT ({@link ServerChannels}), accepted by as many
+ * loops: the kernel spreads the connections across them. When every loop accepts, a connection stays on the loop which accepted it.
+ * </p>
+ * <p>
+ * A TLS listener can be added on another port ({@link #listenTls(int, TlsContext)}), its connections are served the same way once decrypted by a
+ * {@link TlsChannel}, in the same loops.
+ * </p>
+ * <p>
+ * A failure to set up an accepted connection only closes this connection. A failure to accept (ex: too many open files) pauses its acceptor, the
+ * connections wait in the backlog meanwhile.
+ * </p>
+ */
+public class NioServer implements Closeable {
+
+    private static final Logger LOG = new Logger(NioServer.class);
+
+    private static final int BACKLOG = 1_024;
+
+    /**
+     * Bounds of the pause of an acceptor after an accept failure (ex: too many open files), doubled at each consecutive failure
+     */
+    private static final long MIN_ACCEPT_BACKOFF = 10;
+    private static final long MAX_ACCEPT_BACKOFF = 1_000;
+
+    private final Listener listener;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final EventLoopGroup group;
+
+    private final int acceptors;
+
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private final DeadlineTimer timeouts;
+
+    private final int maxRequests;
+
+    private final Connector connector;
+    private final ParentRouter router;
+    private final ClientLimiter limiter;
+
+    /**
+     * Constructor
+     *
+     * @param port
+     *            the listening port
+     * @param loops
+     *            the number of event loops (lower than 1 for one per core)
+     * @param acceptors
+     *            the number of loops accepting the connections with SO_REUSEPORT (lower than 1 for all of them)
+     * @param timeouts
+     *            the timeouts of the connection phases (their deadlines are tracked by the event loops)
+     * @param maxRequests
+     *            the maximum number of requests served by a client connection
+     * @param connector
+     *            the connector to the origin servers
+     * @param router
+     *            the router to the parent proxies
+     * @param limiter
+     *            the limits of the clients (nullable)
+     * @throws IOException
+     *             if the port cannot be bound
+     * @category constructor
+     */
+    public NioServer(final int port, final int loops, final int acceptors, final DeadlineTimer timeouts, final int maxRequests, final Connector connector,
+            final ParentRouter router, final ClientLimiter limiter) throws IOException {
+        this.timeouts = timeouts;
+        this.maxRequests = maxRequests;
+        this.connector = connector;
+        this.router = router;
+        this.limiter = limiter;
+        this.group = new EventLoopGroup(loops, "myproxy-loop");
+        this.acceptors = Math.min(this.group.size(), acceptors > 0 ? acceptors : this.group.size());
+
+        this.listener = new Listener(port, null);
+        this.listeners.add(this.listener);
+    }
+
+    /**
+     * Adds a TLS listener, to call before {@link #start()}
+     *
+     * @param port
+     *            the listening port
+     * @param tls
+     *            the server TLS context
+     * @throws IOException
+     *             if the port cannot be bound
+     */
+    public void listenTls(final int port, final TlsContext tls) throws IOException {
+        this.listeners.add(new Listener(port, tls));
+    }
+
+    public int getLocalPort() {
+        return this.listener.getLocalPort();
+    }
+
+    /**
+     * @return the port of the TLS listener, -1 without TLS listener
+     */
+    public int getTlsPort() {
+        for (Listener current : this.listeners) {
+            if (current.tls != null) {
+                return current.getLocalPort();
+            }
+        }
+        return -1;
+    }
+
+    public void start() {
+        this.group.start();
+        for (Listener current : this.listeners) {
+            for (Acceptor acceptor : current.acceptors) {
+                acceptor.loop.execute(() -> {
+                    try {
+                        acceptor.loop.register(acceptor.serverChannel, SelectionKey.OP_ACCEPT, acceptor);
+                    } catch (IOException e) {
+                        LOG.error(e, "Cannot register server channel");
+                        this.close();
+                    }
+                });
+            }
+        }
+        LOG.info("Non blocking server started with {} event loops, {} accepting", this.group.size(), this.listener.acceptors.size());
+    }
+
+    /**
+     * Blocks until the server is closed
+     *
+     * @throws InterruptedException
+     *             if the current thread is interrupted
+     */
+    public void await() throws InterruptedException {
+        this.closed.await();
+    }
+
+    @Override
+    public void close() {
+        for (Listener current : this.listeners) {
+            for (Acceptor acceptor : current.acceptors) {
+                try {
+                    acceptor.serverChannel.close();
+                } catch (IOException e) {
+                    LOG.error(e, "Exception closing proxy's server channel");
+                }
+            }
+        }
+        if (!this.group.inEventLoop()) {
+            this.group.close();
+        }
+        this.closed.countDown();
+    }
+
+    /**
+     * Listening port, bound by the channels of its acceptors
+     */
+    private final class Listener {
+
+        private final List<Acceptor> acceptors = new ArrayList<>();
+
+        /**
+         * Context of the TLS listener, null for the plain one
+         */
+        private final TlsContext tls;
+
+        private Listener(final int port, final TlsContext tls) throws IOException {
+            final NioServer server = NioServer.this;
+            this.tls = tls;
+            final List<ServerSocketChannel> channels = ServerChannels.open(port, server.acceptors, BACKLOG);
+            for (int i = 0; i < channels.size(); ++i) {
+                channels.get(i).configureBlocking(false);
+                this.acceptors.add(new Acceptor(this, channels.get(i), server.group.get(i)));
+            }
+        }
+
+        private int getLocalPort() {
+            return this.acceptors.get(0).serverChannel.socket().getLocalPort();
+        }
+    }
+
+    /**
+     * Server channel accepting the connections, handled by its loop
+     */
+    private final class Acceptor implements ChannelHandler {
+
+        private final Listener listener;
+        private final ServerSocketChannel serverChannel;
+        private final EventLoop loop;
+
+        /**
+         * Pause after the next accept failure in milliseconds, only used by the loop
+         */
+        private long backoff = MIN_ACCEPT_BACKOFF;
+
+        private Acceptor(final Listener listener, final ServerSocketChannel serverChannel, final EventLoop loop) {
+            this.listener = listener;
+            this.serverChannel = serverChannel;
+            this.loop = loop;
+        }
+
+        @Override
+        public void handle(final SelectionKey key) throws IOException {
+            final NioServer server = NioServer.this;
+            final TlsContext tls = this.listener.tls;
+            // the kernel already spreads the connections when every loop accepts
+            final boolean local = this.listener.acceptors.size() == server.group.size() && this.listener.acceptors.size() > 1;
+            for (;;) {
+                final SocketChannel channel;
+                try {
+                    channel = this.serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    this.pause(key, e);
+                    return;
+                }
+                if (channel == null) {
+                    return;
+                }
+                this.backoff = MIN_ACCEPT_BACKOFF;
+
+                ClientLimiter.Quota quota = null;
+                try {
+                    channel.configureBlocking(false);
+                    if (tls != null) {
+                        // the handshake flights are written in several records
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    }
+
+                    final EventLoop loop = local ? this.loop : server.group.next();
+                    final TlsChannel tlsChannel = tls != null ? new TlsChannel(channel, tls) : null;
+                    quota = server.limiter != null ? server.limiter.quota(channel.socket().getInetAddress()) : null;
+                    final NioConnection connection = new NioConnection(loop, channel, server.timeouts, server.maxRequests, server.connector,
+                            server.router, tlsChannel, quota);
+                    loop.execute(connection::start);
+                } catch (IOException | RuntimeException e) {
+                    // ex: reset by the client before its set up, only this connection is lost
+                    LOG.error("Cannot set up the accepted connection: {}", String.valueOf(e));
+                    if (quota != null) {
+                        quota.release();
+                    }
+                    try {
+                        channel.close();
+                    } catch (IOException ce) {
+                        LOG.error(ce, "Cannot close the accepted connection");
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stops accepting for the backoff, doubled for the next failure
+         */
+        private void pause(final SelectionKey key, final IOException failure) {
+            LOG.error("Cannot accept, paused for {} ms: {}", this.backoff, failure.getMessage());
+            key.interestOps(0);
+            this.loop.schedule(() -> {
+                if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_ACCEPT);
+                }
+            }, this.backoff, TimeUnit.MILLISECONDS);
+            this.backoff = Math.min(this.backoff * 2, MAX_ACCEPT_BACKOFF);
+        }
+
+        /**
+         * Closes the server channel of this acceptor only (loop closed or unexpected failure), the other acceptors keep accepting
+         */
+        @Override
+        public void close() {
+            try {
+                this.serverChannel.close();
+            } catch (IOException e) {
+                LOG.error(e, "Exception closing proxy's server channel");
+            }
+        }
+    }
+}
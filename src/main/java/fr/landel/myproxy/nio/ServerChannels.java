@@ -0,0 +1,100 @@
+package fr.landel.myproxy.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.landel.myproxy.utils.Logger;
+
+/**
+ * Opens the listening channels of a port. Several channels are bound to the same port with SO_REUSEPORT (Linux 3.9+, BSD), the kernel then
+ * spreads the incoming connections across them by a hash of the client address and port, so each acceptor has its own accept queue instead of
+ * all of them contending on one. Where the option is unsupported, a single channel is opened.
+ */
+public final class ServerChannels {
+
+    private static final Logger LOG = new Logger(ServerChannels.class);
+
+    private ServerChannels() {
+        throw new UnsupportedOperationException("utility class, not implemented");
+    }
+
+    /**
+     * @param count
+     *            the number of acceptors requested, lower than 1 for one per core
+     * @return the number of acceptors
+     */
+    public static int acceptors(final int count) {
+        return count > 0 ? count : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Opens the listening channels, in blocking mode
+     *
+     * @param port
+     *            the port (0 for an ephemeral port, shared by all the channels)
+     * @param count
+     *            the number of channels
+     * @param backlog
+     *            the accept queue of each channel (0 for the default one)
+     * @return the channels bound to the port, a single one if SO_REUSEPORT is unsupported
+     * @throws IOException
+     *             if the port cannot be bound
+     */
+    public static List<ServerSocketChannel> open(final int port, final int count, final int backlog) throws IOException {
+        final List<ServerSocketChannel> channels = new ArrayList<>(count);
+        final ServerSocketChannel first = ServerSocketChannel.open();
+        channels.add(first);
+        try {
+            final boolean reusePort = count > 1 && reusePort(first);
+            first.bind(new InetSocketAddress(port), backlog);
+
+            if (reusePort) {
+                // an ephemeral port is shared once assigned to the first channel
+                final int boundPort = first.socket().getLocalPort();
+                for (int i = 1; i < count; ++i) {
+                    final ServerSocketChannel channel = ServerSocketChannel.open();
+                    channels.add(channel);
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    channel.bind(new InetSocketAddress(boundPort), backlog);
+                }
+            }
+            return channels;
+        } catch (IOException e) {
+            close(channels);
+            throw e;
+        }
+    }
+
+    private static boolean reusePort(final ServerSocketChannel channel) {
+        if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            try {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                LOG.error("SO_REUSEPORT cannot be set: {}", e.getMessage());
+            }
+        }
+        LOG.info("SO_REUSEPORT unsupported, a single acceptor is used");
+        return false;
+    }
+
+    /**
+     * Closes the channels, the connections still in their accept queues are reset
+     *
+     * @param channels
+     *            the channels
+     */
+    public static void close(final List<ServerSocketChannel> channels) {
+        for (ServerSocketChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.error(e, "Exception closing server channel");
+            }
+        }
+    }
+}
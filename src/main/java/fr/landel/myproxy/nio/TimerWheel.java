@@ -0,0 +1,203 @@
+package fr.landel.myproxy.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel: the deadlines are rounded up to ticks and hashed into a ring of buckets (linked lists), so scheduling and cancelling a
+ * timeout cost O(1) whatever the number of timeouts. A bucket holds the timeouts of all the ticks congruent to its index, those of the next
+ * revolutions stay in it until their tick is reached. A timeout never runs before its deadline, at most one tick after. The earliest tick is
+ * tracked, so the owner can sleep until the first real deadline (not the first bucket, which may only hold timeouts of next revolutions).
+ * <p>
+ * Not thread safe: the wheel belongs to a single thread (an {@link EventLoop} or the {@link DeadlineTimer} thread).
+ * </p>
+ */
+public class TimerWheel {
+
+    private final long tick;
+    private final long origin;
+    private final Timeout[] buckets;
+    private final int mask;
+
+    /**
+     * Next tick to expire
+     */
+    private long current;
+    private int size;
+
+    /**
+     * Earliest tick of the scheduled timeouts, searched again when stale (the earliest timeout was removed)
+     */
+    private long earliest = Long.MAX_VALUE;
+    private boolean earliestStale;
+
+    /**
+     * Timeout scheduled in a {@link TimerWheel}
+     */
+    public static final class Timeout {
+
+        private final Runnable task;
+        private final long tick;
+        private Timeout previous;
+        private Timeout next;
+        private TimerWheel wheel;
+        private boolean cancelled;
+
+        private Timeout(final Runnable task, final long tick) {
+            this.task = task;
+            this.tick = tick;
+        }
+
+        /**
+         * Cancels the timeout, must be called from the thread of the wheel
+         */
+        public void cancel() {
+            // an expired timeout may be cancelled by a task run before it in the same tick
+            this.cancelled = true;
+            if (this.wheel != null) {
+                this.wheel.unlink(this);
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param tickNanos
+     *            the tick duration in nanoseconds
+     * @param buckets
+     *            the number of buckets, rounded up to a power of 2
+     * @category constructor
+     */
+    public TimerWheel(final long tickNanos, final int buckets) {
+        this.tick = Math.max(1, tickNanos);
+        this.origin = System.nanoTime();
+        this.buckets = new Timeout[Integer.highestOneBit(Math.max(1, buckets) * 2 - 1)];
+        this.mask = this.buckets.length - 1;
+    }
+
+    /**
+     * Schedules the task
+     *
+     * @param task
+     *            the task to run
+     * @param deadline
+     *            the deadline ({@link System#nanoTime()} time base)
+     * @return the timeout, to cancel it
+     */
+    public Timeout schedule(final Runnable task, final long deadline) {
+        final long elapsed = deadline - this.origin;
+        // rounded up, a past deadline expires on the next tick
+        final Timeout timeout = new Timeout(task, Math.max(this.current, elapsed <= 0 ? 0 : (elapsed - 1) / this.tick + 1));
+        final int index = (int) (timeout.tick & this.mask);
+        timeout.next = this.buckets[index];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        this.buckets[index] = timeout;
+        timeout.wheel = this;
+        ++this.size;
+        if (timeout.tick < this.earliest) {
+            this.earliest = timeout.tick;
+        }
+        return timeout;
+    }
+
+    private void unlink(final Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            this.buckets[(int) (timeout.tick & this.mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.wheel = null;
+        --this.size;
+        if (this.size == 0) {
+            this.earliest = Long.MAX_VALUE;
+            this.earliestStale = false;
+        } else if (timeout.tick == this.earliest) {
+            this.earliestStale = true;
+        }
+    }
+
+    /**
+     * Runs the tasks of the ticks reached, a task may schedule new timeouts
+     *
+     * @param now
+     *            the current time ({@link System#nanoTime()} time base)
+     * @return the number of tasks run
+     */
+    public int expire(final long now) {
+        final long reached = (now - this.origin) / this.tick;
+        if (reached < this.current || this.size == 0) {
+            this.current = Math.max(this.current, reached + 1);
+            return 0;
+        }
+
+        // at most one revolution, all the buckets are then visited
+        final List<Timeout> expired = new ArrayList<>();
+        final long last = Math.min(reached, this.current + this.mask);
+        for (long tick = this.current; tick <= last; ++tick) {
+            Timeout timeout = this.buckets[(int) (tick & this.mask)];
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.tick <= reached) {
+                    this.unlink(timeout);
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        this.current = reached + 1;
+
+        int count = 0;
+        for (Timeout timeout : expired) {
+            if (!timeout.cancelled) {
+                timeout.task.run();
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the time of the earliest tick with a timeout ({@link System#nanoTime()} time base), {@link Long#MAX_VALUE} without timeout
+     */
+    public long nextExpiration() {
+        if (this.size == 0) {
+            return Long.MAX_VALUE;
+        } else if (this.earliestStale) {
+            this.earliest = this.findEarliest();
+            this.earliestStale = false;
+        }
+        return this.origin + this.earliest * this.tick;
+    }
+
+    /**
+     * Visits the buckets in the order of the ticks, the first timeout of its own tick is the earliest; without any in this revolution, the
+     * earliest is the minimum of the next revolutions
+     */
+    private long findEarliest() {
+        long min = Long.MAX_VALUE;
+        for (long tick = this.current; tick <= this.current + this.mask; ++tick) {
+            for (Timeout timeout = this.buckets[(int) (tick & this.mask)]; timeout != null; timeout = timeout.next) {
+                if (timeout.tick == tick) {
+                    return tick;
+                }
+                min = Math.min(min, timeout.tick);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @return the number of scheduled timeouts
+     */
+    public int size() {
+        return this.size;
+    }
+}
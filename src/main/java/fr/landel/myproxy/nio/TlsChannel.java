@@ -0,0 +1,338 @@
+package fr.landel.myproxy.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * Non blocking TLS layer of a client channel, driven by its {@link EventLoop}: reads return the decrypted bytes and writes encrypt, the handshake
+ * is done by the first reads. Neither call blocks, so the owner has to:
+ * <ul>
+ * <li>translate its interest operations with {@link #interestOps(int)}, the engine may need to read or write on its own,</li>
+ * <li>call {@link #flush()} when the channel is writable, to send the pending records,</li>
+ * <li>read again without waiting for the selector while {@link #hasBufferedInput()}: the decrypted bytes of a record are kept until read, the
+ * selector doesn't know about them.</li>
+ * </ul>
+ * The delegated tasks of the engine (key exchange and signature) are run by the loop thread.
+ */
+public class TlsChannel implements ByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final TlsContext context;
+
+    /**
+     * Received records, in write mode
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * Records to send, in write mode
+     */
+    private ByteBuffer netOut;
+
+    /**
+     * Decrypted bytes not read yet, in write mode
+     */
+    private ByteBuffer appIn;
+
+    private final long start = System.currentTimeMillis();
+    private boolean handshaken;
+
+    /**
+     * The received bytes don't contain a full record
+     */
+    private boolean underflow;
+    private boolean inputClosed;
+    private boolean outputShutdown;
+
+    /**
+     * Constructor
+     *
+     * @param channel
+     *            the non blocking client channel
+     * @param context
+     *            the server context, creating the engine
+     * @category constructor
+     */
+    public TlsChannel(final SocketChannel channel, final TlsContext context) {
+        this.channel = channel;
+        this.context = context;
+        this.engine = context.createEngine();
+        this.netIn = BufferPool.HEAP.acquire(this.engine.getSession().getPacketBufferSize());
+        this.netOut = BufferPool.HEAP.acquire(this.engine.getSession().getPacketBufferSize());
+        this.appIn = BufferPool.HEAP.acquire(this.engine.getSession().getApplicationBufferSize());
+    }
+
+    /**
+     * @return the underlying channel, to register
+     */
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        if (this.appIn.position() == 0) {
+            this.process();
+            if (this.appIn.position() == 0) {
+                return this.inputClosed ? -1 : 0;
+            }
+        }
+        this.appIn.flip();
+        final int count = Math.min(this.appIn.remaining(), dst.remaining());
+        final int limit = this.appIn.limit();
+        this.appIn.limit(this.appIn.position() + count);
+        dst.put(this.appIn);
+        this.appIn.limit(limit);
+        this.appIn.compact();
+        return count;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        if (!this.handshaken) {
+            this.process();
+            if (!this.handshaken) {
+                return 0;
+            }
+        }
+        int consumed = 0;
+        while (src.hasRemaining()) {
+            final SSLEngineResult result = this.wrap(src);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (!this.flushRecords()) {
+                    break;
+                }
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS output closed");
+            } else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                // the engine waits for the peer (post handshake message)
+                break;
+            }
+            consumed += result.bytesConsumed();
+        }
+        this.flushRecords();
+        return consumed;
+    }
+
+    /**
+     * Sends the pending records and goes on with the handshake, to call when the channel is writable
+     *
+     * @throws IOException
+     *             on failure
+     */
+    public void flush() throws IOException {
+        if (this.flushRecords() && this.engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
+            this.process();
+        }
+    }
+
+    /**
+     * @param ops
+     *            the interest operations of the owner
+     * @return the interest operations of the channel
+     */
+    public int interestOps(final int ops) {
+        int channelOps = this.netOut.position() > 0 ? SelectionKey.OP_WRITE : 0;
+        final HandshakeStatus status = this.engine.getHandshakeStatus();
+        if (!this.handshaken || status == HandshakeStatus.NEED_UNWRAP) {
+            // the writes of the owner wait for the end of the handshake
+            channelOps |= SelectionKey.OP_READ;
+        } else {
+            channelOps |= ops;
+        }
+        return channelOps;
+    }
+
+    /**
+     * @return true, if bytes can be read without any new network event
+     */
+    public boolean hasBufferedInput() {
+        return this.appIn.position() > 0 || (this.netIn.position() > 0 && !this.underflow);
+    }
+
+    /**
+     * @return true, if records are still to send
+     */
+    public boolean hasPendingOutput() {
+        return this.netOut.position() > 0;
+    }
+
+    /**
+     * Moves the engine forward until it needs a network event: sends the pending records, runs the handshake and decrypts the received records
+     */
+    private void process() throws IOException {
+        try {
+            while (true) {
+                switch (this.engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = this.engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                case NEED_WRAP:
+                    if (this.wrap(EMPTY).getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !this.flushRecords()) {
+                        return;
+                    }
+                    break;
+                default:
+                    this.flushRecords();
+                    if (!this.unwrap()) {
+                        return;
+                    }
+                }
+            }
+        } catch (SSLException e) {
+            if (!this.handshaken) {
+                this.handshaken = true;
+                this.context.failed();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return true, if the engine made progress
+     */
+    private boolean unwrap() throws IOException {
+        this.netIn.flip();
+        final SSLEngineResult result;
+        try {
+            result = this.engine.unwrap(this.netIn, this.appIn);
+        } finally {
+            this.netIn.compact();
+        }
+        this.checkHandshaken(result);
+
+        switch (result.getStatus()) {
+        case BUFFER_UNDERFLOW:
+            if (!this.netIn.hasRemaining()) {
+                this.netIn = grow(this.netIn, this.engine.getSession().getPacketBufferSize());
+            }
+            this.underflow = true;
+            if (this.inputClosed) {
+                return false;
+            }
+            final int read = this.channel.read(this.netIn);
+            if (read < 0) {
+                this.inputClosed = true;
+                try {
+                    this.engine.closeInbound();
+                } catch (SSLException e) {
+                    // no close_notify received, the end of the connection is still an end of stream
+                }
+            }
+            this.underflow = read <= 0;
+            return read > 0;
+        case BUFFER_OVERFLOW:
+            if (this.appIn.position() > 0) {
+                // waits for the owner to read
+                return false;
+            }
+            this.appIn = grow(this.appIn, this.engine.getSession().getApplicationBufferSize());
+            return true;
+        case CLOSED:
+            this.inputClosed = true;
+            // the close_notify reply
+            return this.engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+        default:
+            return result.bytesConsumed() > 0 || result.bytesProduced() > 0 || result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP
+                    || result.getHandshakeStatus() == HandshakeStatus.NEED_TASK;
+        }
+    }
+
+    private SSLEngineResult wrap(final ByteBuffer src) throws IOException {
+        final SSLEngineResult result = this.engine.wrap(src, this.netOut);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && this.netOut.position() == 0) {
+            this.netOut = grow(this.netOut, this.engine.getSession().getPacketBufferSize());
+        }
+        this.checkHandshaken(result);
+        return result;
+    }
+
+    private void checkHandshaken(final SSLEngineResult result) {
+        if (result.getHandshakeStatus() == HandshakeStatus.FINISHED && !this.handshaken) {
+            this.handshaken = true;
+            this.context.handshaken(this.engine.getSession(), this.start);
+        }
+    }
+
+    /**
+     * @return true, if all the records are sent
+     */
+    private boolean flushRecords() throws IOException {
+        if (this.netOut.position() > 0) {
+            this.netOut.flip();
+            this.channel.write(this.netOut);
+            this.netOut.compact();
+        }
+        if (this.netOut.position() > 0) {
+            return false;
+        } else if (this.outputShutdown && this.engine.isOutboundDone() && this.channel.isOpen()) {
+            this.channel.shutdownOutput();
+        }
+        return true;
+    }
+
+    private static ByteBuffer grow(final ByteBuffer buffer, final int size) {
+        buffer.flip();
+        final ByteBuffer grown = BufferPool.HEAP.acquire(Math.max(size, buffer.capacity() * 2)).put(buffer);
+        BufferPool.HEAP.release(buffer);
+        return grown;
+    }
+
+    /**
+     * Sends the close_notify alert, then shuts the output of the channel down once sent
+     *
+     * @throws IOException
+     *             on failure
+     */
+    public void shutdownOutput() throws IOException {
+        this.outputShutdown = true;
+        this.engine.closeOutbound();
+        this.wrap(EMPTY);
+        this.flushRecords();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    /**
+     * Sends the close_notify alert if the channel is writable, then closes it and gives the buffers back to the pool
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.handshaken && this.channel.isOpen() && !this.engine.isOutboundDone()) {
+                this.engine.closeOutbound();
+                this.wrap(EMPTY);
+                this.flushRecords();
+            }
+        } catch (IOException e) {
+            // the peer is gone
+        } finally {
+            this.channel.close();
+            if (this.netIn != null) {
+                BufferPool.HEAP.release(this.netIn);
+                BufferPool.HEAP.release(this.netOut);
+                BufferPool.HEAP.release(this.appIn);
+                this.netIn = null;
+                this.netOut = null;
+                this.appIn = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package fr.landel.myproxy.nio;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+
+/**
+ * Server side TLS context of the client listener ("proxy/ssl"): the key of the keystore and the session cache shared by all the engines. A
+ * returning client resumes its session (abbreviated handshake, without key exchange nor certificate) from the cache, or from a stateless session
+ * ticket it kept, which doesn't cost any server memory.
+ * <p>
+ * The handshakes are counted ("tls.handshakes", "tls.handshakes.resumed", "tls.handshakes.failed"), the ratio of resumed handshakes is the
+ * "tls.resumption.percent" gauge.
+ * </p>
+ */
+public class TlsContext {
+
+    /**
+     * Read by the JDK each time a session context is created
+     */
+    private static final String TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    private static final LongAdder HANDSHAKES = Metrics.counter("tls.handshakes");
+    private static final LongAdder RESUMED = Metrics.counter("tls.handshakes.resumed");
+    private static final LongAdder FAILED = Metrics.counter("tls.handshakes.failed");
+
+    static {
+        Metrics.gauge("tls.resumption.percent", () -> Metrics.percent(RESUMED.sum(), HANDSHAKES.sum()));
+    }
+
+    private final SSLContext context;
+
+    /**
+     * Constructor
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/ssl")
+     * @throws IOException
+     *             if the keystore cannot be loaded or doesn't contain the key
+     * @category constructor
+     */
+    public TlsContext(final Configuration configuration) throws IOException {
+        final String file = configuration.getString("proxy/ssl/keystore-file", "");
+        final char[] password = configuration.getString("proxy/ssl/keystore-pass", "").toCharArray();
+        final String alias = configuration.getString("proxy/ssl/key-alias", "");
+
+        try (InputStream is = new FileInputStream(file)) {
+            // PKCS12 or JKS
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(is, password);
+            if (!alias.isEmpty()) {
+                keyStore = selectKey(keyStore, alias, password);
+            }
+
+            final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+
+            // global property, read by the initialization of the context below
+            System.setProperty(TICKETS_PROPERTY, String.valueOf(configuration.getBoolean("proxy/ssl/session-tickets", true)));
+            this.context = SSLContext.getInstance(configuration.getString("proxy/ssl/protocol", "TLS"));
+            this.context.init(keyManagers.getKeyManagers(), null, null);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load the key of " + file + ": " + e.getMessage(), e);
+        }
+
+        final SSLSessionContext sessions = this.context.getServerSessionContext();
+        sessions.setSessionCacheSize(configuration.getInt("proxy/ssl/session-cache-size", 20_000));
+        sessions.setSessionTimeout((int) configuration.getDuration("proxy/ssl/session-timeout", Duration.ofHours(1)).getSeconds());
+    }
+
+    /**
+     * The key managers pick any key of the store, only the configured one is kept
+     */
+    private static KeyStore selectKey(final KeyStore keyStore, final String alias, final char[] password) throws GeneralSecurityException,
+            IOException {
+        if (!keyStore.isKeyEntry(alias)) {
+            throw new GeneralSecurityException("no key with alias " + alias);
+        }
+        final KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection(password);
+        final KeyStore selected = KeyStore.getInstance("PKCS12");
+        selected.load(null, password);
+        selected.setEntry(alias, keyStore.getEntry(alias, protection), protection);
+        return selected;
+    }
+
+    /**
+     * @return a new server engine, for one client connection
+     */
+    public SSLEngine createEngine() {
+        final SSLEngine engine = this.context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /**
+     * Counts a completed handshake
+     *
+     * @param session
+     *            the negotiated session
+     * @param start
+     *            the handshake start time in milliseconds
+     */
+    void handshaken(final SSLSession session, final long start) {
+        HANDSHAKES.increment();
+        // a resumed session was created by a previous handshake
+        if (session.getCreationTime() < start) {
+            RESUMED.increment();
+        }
+    }
+
+    /**
+     * Counts a failed handshake
+     */
+    void failed() {
+        HANDSHAKES.increment();
+        FAILED.increment();
+    }
+}
@@ -0,0 +1,341 @@
+package fr.landel.myproxy.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+
+import fr.landel.myproxy.Proxy;
+import fr.landel.myproxy.limit.ClientLimiter;
+import fr.landel.myproxy.utils.Logger;
+
+/**
+ * CONNECT tunnel relaying both directions on a single {@link EventLoop}. The bytes are moved through pooled direct buffers, which are only held
+ * while data is in flight: an idle tunnel holds no buffer and no thread. The end of stream of one side is propagated to the other one by a half
+ * close, the tunnel is closed once both directions are shut down, or once idle for the tunnel timeout. A client of the TLS listener is relayed
+ * through its {@link TlsChannel}. A direction exceeding the rate of the client quota stops reading until its bucket is paid back.
+ */
+public class Tunnel implements ChannelHandler {
+
+    private static final Logger LOG = new Logger(Tunnel.class);
+
+    private static final int BUFFER_SIZE = 16_384;
+
+    /**
+     * Maximum number of reads per event and direction, to be fair with the other channels of the loop
+     */
+    private static final int MAX_READS = 16;
+
+    private final EventLoop loop;
+
+    private final SocketChannel client;
+    private SelectionKey clientKey;
+
+    /**
+     * TLS layer of the client channel, null for a plain client
+     */
+    private final TlsChannel clientTls;
+    private boolean readResumed;
+
+    private final SocketChannel upstream;
+    private SelectionKey upstreamKey;
+
+    private final Direction clientToUpstream;
+    private final Direction upstreamToClient;
+
+    private final String name;
+    private final long start;
+
+    private final long idleTimeout;
+    private long lastActivity = System.nanoTime();
+    private TimerWheel.Timeout idleTask;
+
+    private final ClientLimiter.Quota quota;
+
+    private boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param loop
+     *            the loop driving this tunnel
+     * @param client
+     *            the non blocking client channel
+     * @param clientTls
+     *            the TLS layer of the client channel (nullable)
+     * @param upstream
+     *            the non blocking and connected upstream channel
+     * @param toClient
+     *            the bytes to send first to the client (nullable, in read mode)
+     * @param toUpstream
+     *            the bytes to send first to the upstream (nullable, in read mode)
+     * @param name
+     *            the tunnel name for the logs
+     * @param start
+     *            the request start time in milliseconds
+     * @param idleTimeout
+     *            the maximum time without any event in milliseconds, 0 for no limit
+     * @param quota
+     *            the limits of the client, held by the tunnel and released on close (nullable)
+     * @category constructor
+     */
+    public Tunnel(final EventLoop loop, final SocketChannel client, final TlsChannel clientTls, final SocketChannel upstream, final ByteBuffer toClient,
+            final ByteBuffer toUpstream, final String name, final long start, final long idleTimeout, final ClientLimiter.Quota quota) {
+        this.loop = loop;
+        this.client = client;
+        this.clientTls = clientTls;
+        this.upstream = upstream;
+        final ByteChannel clientIo = clientTls != null ? clientTls : client;
+        this.clientToUpstream = new Direction(clientIo, upstream, toUpstream, quota != null ? quota::upload : null);
+        this.upstreamToClient = new Direction(upstream, clientIo, toClient, quota != null ? quota::download : null);
+        this.name = name;
+        this.start = start;
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        this.quota = quota;
+    }
+
+    /**
+     * Registers the channels (or takes over their existing keys), must be called from the loop thread
+     */
+    public void start() {
+        try {
+            this.clientKey = this.loop.register(this.client, 0, this);
+            this.upstreamKey = this.loop.register(this.upstream, 0, this);
+
+            this.transfer(this.upstreamToClient);
+            this.transfer(this.clientToUpstream);
+            this.updateInterests();
+            if (this.idleTimeout > 0 && !this.closed) {
+                this.idleTask = this.loop.schedule(this::checkIdle, this.idleTimeout, TimeUnit.NANOSECONDS);
+            }
+        } catch (IOException e) {
+            LOG.error("Cannot start tunnel {}: {}", this.name, e.getMessage());
+            this.close();
+        }
+    }
+
+    /**
+     * The activity doesn't move the timeout, it's checked at expiration
+     */
+    private void checkIdle() {
+        this.idleTask = null;
+        if (this.closed) {
+            return;
+        }
+        final long remaining = this.lastActivity + this.idleTimeout - System.nanoTime();
+        if (remaining > 0) {
+            this.idleTask = this.loop.schedule(this::checkIdle, remaining, TimeUnit.NANOSECONDS);
+        } else {
+            DeadlineTimer.Phase.TUNNEL.expired();
+            LOG.info("{} timeout after {}ms, closing: {}", DeadlineTimer.Phase.TUNNEL, TimeUnit.NANOSECONDS.toMillis(this.idleTimeout), this.name);
+            this.close();
+        }
+    }
+
+    @Override
+    public void handle(final SelectionKey key) throws IOException {
+        this.lastActivity = System.nanoTime();
+        final boolean fromClient = key == this.clientKey;
+        if (fromClient && this.clientTls != null && key.isWritable()) {
+            this.clientTls.flush();
+        }
+        if (key.isReadable()) {
+            this.transfer(fromClient ? this.clientToUpstream : this.upstreamToClient);
+        }
+        if (key.isValid() && key.isWritable()) {
+            this.transfer(fromClient ? this.upstreamToClient : this.clientToUpstream);
+        }
+        this.updateInterests();
+    }
+
+    /**
+     * Transfers the bytes of a direction, its reads are suspended if it exceeds its rate
+     */
+    private void transfer(final Direction direction) throws IOException {
+        direction.transfer();
+        if (direction.delay > 0) {
+            final long delay = direction.delay;
+            direction.delay = 0;
+            direction.paused = true;
+            this.loop.schedule(() -> {
+                direction.paused = false;
+                this.updateInterests();
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void updateInterests() {
+        if (this.closed) {
+            return;
+        }
+        if (this.clientToUpstream.shutdown && this.upstreamToClient.shutdown) {
+            this.close();
+            return;
+        }
+        int clientOps = this.clientToUpstream.readOps() | this.upstreamToClient.writeOps();
+        if (this.clientTls != null) {
+            if ((clientOps & SelectionKey.OP_READ) != 0 && this.clientTls.hasBufferedInput()) {
+                this.resumeRead();
+            }
+            clientOps = this.clientTls.interestOps(clientOps);
+        }
+        this.clientKey.interestOps(clientOps);
+        this.upstreamKey.interestOps(this.upstreamToClient.readOps() | this.clientToUpstream.writeOps());
+    }
+
+    /**
+     * Relays the bytes decrypted but not read yet, the selector won't select the client for them
+     */
+    private void resumeRead() {
+        if (this.readResumed) {
+            return;
+        }
+        this.readResumed = true;
+        this.loop.execute(() -> {
+            this.readResumed = false;
+            if (this.closed) {
+                return;
+            }
+            try {
+                this.transfer(this.clientToUpstream);
+                this.updateInterests();
+            } catch (IOException e) {
+                LOG.error("Closing tunnel {} on error: {}", this.name, e.getMessage());
+                this.close();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        if (!this.closed) {
+            this.closed = true;
+            if (this.idleTask != null) {
+                this.idleTask.cancel();
+                this.idleTask = null;
+            }
+            this.clientToUpstream.release();
+            this.upstreamToClient.release();
+            closeQuietly(this.clientTls != null ? this.clientTls : this.client);
+            closeQuietly(this.upstream);
+            if (this.quota != null) {
+                this.quota.release();
+            }
+            LOG.info("Request '{}' handled in: {}\n", this.name, Proxy.getTime(System.currentTimeMillis() - this.start));
+        }
+    }
+
+    private static void closeQuietly(final Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.error("Cannot close channel: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * One way of the tunnel
+     */
+    private static final class Direction {
+
+        private final ByteChannel source;
+        private final ByteChannel sink;
+
+        /**
+         * Rate limit of the bytes read, gives the delay before the next read (nullable)
+         */
+        private final LongUnaryOperator limit;
+        private long delay;
+        private boolean paused;
+
+        /**
+         * Initial bytes, in read mode
+         */
+        private ByteBuffer pending;
+
+        /**
+         * Pooled buffer, in write mode, only held while bytes are in flight
+         */
+        private ByteBuffer buffer;
+
+        private boolean eof;
+        private boolean shutdown;
+
+        private Direction(final ByteChannel source, final ByteChannel sink, final ByteBuffer pending, final LongUnaryOperator limit) {
+            this.source = source;
+            this.sink = sink;
+            this.limit = limit;
+            this.pending = pending != null && pending.hasRemaining() ? pending : null;
+        }
+
+        private void transfer() throws IOException {
+            if (this.pending != null) {
+                this.sink.write(this.pending);
+                if (this.pending.hasRemaining()) {
+                    return;
+                }
+                this.pending = null;
+            }
+
+            int reads = 0;
+            while (true) {
+                if (this.buffer != null && this.buffer.position() > 0) {
+                    this.buffer.flip();
+                    this.sink.write(this.buffer);
+                    this.buffer.compact();
+                    if (this.buffer.position() > 0) {
+                        // the sink is full, waits for OP_WRITE
+                        return;
+                    }
+                }
+                if (this.eof || this.paused || this.delay > 0 || reads++ == MAX_READS) {
+                    break;
+                }
+                if (this.buffer == null) {
+                    this.buffer = BufferPool.DIRECT.acquire(BUFFER_SIZE);
+                }
+                final int read = this.source.read(this.buffer);
+                if (read < 0) {
+                    this.eof = true;
+                } else if (read == 0) {
+                    break;
+                } else if (this.limit != null) {
+                    this.delay = this.limit.applyAsLong(read);
+                }
+            }
+
+            if (this.buffer != null && this.buffer.position() == 0) {
+                this.release();
+            }
+            if (this.eof && this.buffer == null && !this.shutdown) {
+                // propagates the half close
+                this.shutdown = true;
+                if (this.sink instanceof TlsChannel) {
+                    ((TlsChannel) this.sink).shutdownOutput();
+                } else {
+                    ((SocketChannel) this.sink).shutdownOutput();
+                }
+            }
+        }
+
+        private int readOps() {
+            return !this.eof && !this.paused && this.pending == null && (this.buffer == null || this.buffer.hasRemaining()) ? SelectionKey.OP_READ
+                    : 0;
+        }
+
+        private int writeOps() {
+            return this.pending != null || (this.buffer != null && this.buffer.position() > 0) ? SelectionKey.OP_WRITE : 0;
+        }
+
+        private void release() {
+            if (this.buffer != null) {
+                BufferPool.DIRECT.release(this.buffer);
+                this.buffer = null;
+            }
+        }
+    }
+}
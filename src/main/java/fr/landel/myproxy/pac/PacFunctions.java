@@ -0,0 +1,300 @@
+package fr.landel.myproxy.pac;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import fr.landel.myproxy.dns.DnsCache;
+import fr.landel.myproxy.utils.Logger;
+
+/**
+ * Standard helper functions of the PAC files (isPlainHostName, dnsDomainIs, isInNet, shExpMatch, dnsResolve, weekdayRange...). The host
+ * resolutions go through the given {@link HostResolver}, the {@link DnsCache} of the proxy.
+ */
+public final class PacFunctions {
+
+    private static final Logger LOG = new Logger(PacFunctions.class);
+
+    private static final List<String> DAYS = List.of("SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT");
+    private static final List<String> MONTHS = List.of("JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC");
+
+    private static final String GMT = "GMT";
+
+    /**
+     * Resolver of the host names
+     */
+    @FunctionalInterface
+    public interface HostResolver {
+
+        /**
+         * @param host
+         *            the host name or IP literal
+         * @return all the addresses (at least one)
+         * @throws UnknownHostException
+         *             if the host cannot be resolved
+         */
+        InetAddress[] resolveAll(String host) throws UnknownHostException;
+    }
+
+    private final HostResolver resolver;
+
+    private volatile String myIpAddress;
+
+    /**
+     * Constructor
+     *
+     * @param resolver
+     *            the resolver of the host names (ex: {@code dnsCache::resolveAll})
+     * @category constructor
+     */
+    public PacFunctions(final HostResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @return the functions by name, to give to {@link PacScript#parse(String, Map)}
+     */
+    public Map<String, PacScript.Function> toMap() {
+        final Map<String, PacScript.Function> functions = new HashMap<>();
+        functions.put("isPlainHostName", args -> str(args, 0).indexOf('.') < 0);
+        functions.put("dnsDomainIs", args -> str(args, 0).toLowerCase(Locale.ROOT).endsWith(str(args, 1).toLowerCase(Locale.ROOT)));
+        functions.put("localHostOrDomainIs", args -> {
+            final String host = str(args, 0).toLowerCase(Locale.ROOT);
+            final String fqdn = str(args, 1).toLowerCase(Locale.ROOT);
+            return host.equals(fqdn) || (host.indexOf('.') < 0 && fqdn.startsWith(host + '.'));
+        });
+        functions.put("isResolvable", args -> this.resolve(str(args, 0)) != null);
+        functions.put("isResolvableEx", args -> this.resolve(str(args, 0)) != null);
+        functions.put("dnsResolve", args -> this.resolve(str(args, 0)));
+        functions.put("dnsResolveEx", args -> {
+            final String address = this.resolve(str(args, 0));
+            return address != null ? address : "";
+        });
+        functions.put("myIpAddress", args -> this.myIpAddress());
+        functions.put("myIpAddressEx", args -> this.myIpAddress());
+        functions.put("isInNet", args -> this.isInNet(str(args, 0), str(args, 1), str(args, 2)));
+        functions.put("dnsDomainLevels", args -> (double) count(str(args, 0), '.'));
+        functions.put("shExpMatch", args -> ShExpMatcher.compile(str(args, 1)).matches(str(args, 0)));
+        functions.put("convert_addr", args -> {
+            final long address = toLong(str(args, 0));
+            return address < 0 ? 0d : (double) address;
+        });
+        functions.put("weekdayRange", PacFunctions::weekdayRange);
+        functions.put("dateRange", PacFunctions::dateRange);
+        functions.put("timeRange", PacFunctions::timeRange);
+        functions.put("alert", args -> {
+            LOG.info("PAC: {}", str(args, 0));
+            return PacScript.UNDEFINED;
+        });
+        return Collections.unmodifiableMap(functions);
+    }
+
+    private static String str(final Object[] args, final int index) {
+        return index < args.length ? PacScript.toStr(args[index]) : "undefined";
+    }
+
+    private static int count(final String value, final char c) {
+        int count = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            if (value.charAt(i) == c) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the IPv4 address of the host (the first one), null if the host cannot be resolved
+     */
+    private String resolve(final String host) {
+        try {
+            InetAddress first = null;
+            for (InetAddress address : this.resolver.resolveAll(host)) {
+                if (address instanceof Inet4Address) {
+                    return address.getHostAddress();
+                } else if (first == null) {
+                    first = address;
+                }
+            }
+            return first != null ? first.getHostAddress() : null;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private boolean isInNet(final String host, final String pattern, final String mask) {
+        final long address = toLong(toLong(host) < 0 ? String.valueOf(this.resolve(host)) : host);
+        final long net = toLong(pattern);
+        final long bits = toLong(mask);
+        return address > -1 && net > -1 && bits > -1 && (address & bits) == (net & bits);
+    }
+
+    /**
+     * @return the IPv4 address as unsigned integer, -1 if invalid
+     */
+    static long toLong(final String address) {
+        final String[] parts = address.split("\\.", -1);
+        if (parts.length != 4) {
+            return -1;
+        }
+        long value = 0;
+        for (String part : parts) {
+            if (part.isEmpty() || part.length() > 3) {
+                return -1;
+            }
+            int octet = 0;
+            for (int i = 0; i < part.length(); ++i) {
+                final char c = part.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                octet = octet * 10 + c - '0';
+            }
+            if (octet > 255) {
+                return -1;
+            }
+            value = (value << 8) | octet;
+        }
+        return value;
+    }
+
+    /**
+     * @return the first IPv4 address of the site interfaces, computed once
+     */
+    private String myIpAddress() {
+        String address = this.myIpAddress;
+        if (address == null) {
+            address = "127.0.0.1";
+            try {
+                for (NetworkInterface network : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                    if (network.isUp() && !network.isLoopback()) {
+                        final String found = Collections.list(network.getInetAddresses()).stream().filter(Inet4Address.class::isInstance)
+                                .map(InetAddress::getHostAddress).findFirst().orElse(null);
+                        if (found != null) {
+                            address = found;
+                            break;
+                        }
+                    }
+                }
+            } catch (SocketException e) {
+                LOG.error(e, "Cannot list the network interfaces");
+            }
+            this.myIpAddress = address;
+        }
+        return address;
+    }
+
+    // --- time functions, the last argument "GMT" selects UTC instead of the local time ---
+
+    private static List<String> timeArgs(final Object[] args) {
+        final List<String> values = new ArrayList<>(args.length);
+        for (Object arg : args) {
+            if (arg != PacScript.UNDEFINED) {
+                values.add(PacScript.toStr(arg).toUpperCase(Locale.ROOT));
+            }
+        }
+        return values;
+    }
+
+    private static ZonedDateTime now(final List<String> values) {
+        if (!values.isEmpty() && GMT.equals(values.get(values.size() - 1))) {
+            values.remove(values.size() - 1);
+            return ZonedDateTime.now(ZoneOffset.UTC);
+        }
+        return ZonedDateTime.now();
+    }
+
+    private static boolean inRange(final int value, final int start, final int end) {
+        // the ranges can wrap ("FRI", "MON")
+        return start <= end ? value >= start && value <= end : value >= start || value <= end;
+    }
+
+    private static Object weekdayRange(final Object[] args) {
+        final List<String> values = timeArgs(args);
+        final int today = now(values).getDayOfWeek().getValue() % 7;
+        if (values.isEmpty()) {
+            return false;
+        }
+        final int start = DAYS.indexOf(values.get(0));
+        final int end = values.size() > 1 ? DAYS.indexOf(values.get(1)) : start;
+        return start > -1 && end > -1 && inRange(today, start, end);
+    }
+
+    private static Object timeRange(final Object[] args) {
+        final List<String> values = timeArgs(args);
+        final ZonedDateTime now = now(values);
+        final int[] numbers = new int[values.size()];
+        for (int i = 0; i < numbers.length; ++i) {
+            numbers[i] = (int) PacScript.toNumber(values.get(i));
+        }
+        final int seconds = now.getHour() * 3_600 + now.getMinute() * 60 + now.getSecond();
+        switch (numbers.length) {
+        case 1:
+            return now.getHour() == numbers[0];
+        case 2:
+            // the end hour is excluded
+            return inRange(now.getHour(), numbers[0], numbers[1] - 1);
+        case 4:
+            return inRange(seconds, numbers[0] * 3_600 + numbers[1] * 60, numbers[2] * 3_600 + numbers[3] * 60 + 59);
+        case 6:
+            return inRange(seconds, numbers[0] * 3_600 + numbers[1] * 60 + numbers[2], numbers[3] * 3_600 + numbers[4] * 60 + numbers[5]);
+        default:
+            return false;
+        }
+    }
+
+    private static Object dateRange(final Object[] args) {
+        final List<String> values = timeArgs(args);
+        final ZonedDateTime now = now(values);
+        if (values.isEmpty() || values.size() == 5 || values.size() > 6) {
+            return false;
+        }
+
+        // each argument is a day (1-31), a month (JAN-DEC) or a year (> 31), the start and the end have the same fields
+        final int half = values.size() == 1 ? 1 : values.size() / 2;
+        final int[] start = new int[3];
+        final int[] end = new int[3];
+        final boolean[] fields = new boolean[3];
+        for (int i = 0; i < values.size(); ++i) {
+            final String value = values.get(i);
+            final int field;
+            final int number;
+            if (MONTHS.contains(value)) {
+                field = 1;
+                number = MONTHS.indexOf(value);
+            } else {
+                number = (int) PacScript.toNumber(value);
+                field = number > 31 ? 0 : 2;
+            }
+            fields[field] = true;
+            (i < half ? start : end)[field] = number;
+            if (values.size() == 1) {
+                end[field] = number;
+            }
+        }
+
+        // the date and the bounds are compared as year, month, day, only on the given fields
+        final int[] today = {now.getYear(), now.getMonthValue() - 1, now.getDayOfMonth()};
+        long date = 0;
+        long from = 0;
+        long to = 0;
+        for (int field = 0; field < 3; ++field) {
+            if (fields[field]) {
+                date = date * 10_000 + today[field];
+                from = from * 10_000 + start[field];
+                to = to * 10_000 + end[field];
+            }
+        }
+        return fields[0] ? date >= from && date <= to : inRange((int) date, (int) from, (int) to);
+    }
+}
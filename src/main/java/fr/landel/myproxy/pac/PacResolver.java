@@ -0,0 +1,250 @@
+package fr.landel.myproxy.pac;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.dns.DnsCache;
+import fr.landel.myproxy.http.ParentProxy;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.utils.InternalException;
+import fr.landel.myproxy.utils.Logger;
+import fr.landel.myproxy.utils.ThreadUtils;
+
+/**
+ * Selects the parent proxies of the hosts with a PAC file ("proxy/pac/url": file, http(s) URL or path), reloaded every "refresh-rate" (the current
+ * script is kept if the reload fails). Evaluating the script is expensive (DNS lookups of isInNet, dnsResolve...), so the decisions are kept by
+ * scheme and host in a LRU of "cache-size" entries for "cache-ttl": as Chrome does, the script receives the URL without its path and query, so the
+ * decision of a host is the same for all its requests. The decisions are cleared after each reload.
+ * <p>
+ * The "PROXY" and "HTTP" entries of the result are the parent proxies, "DIRECT" a direct connection; the "SOCKS" and "HTTPS" entries are not
+ * supported and skipped. A script failing or returning nothing means direct.
+ * </p>
+ */
+public class PacResolver {
+
+    private static final Logger LOG = new Logger(PacResolver.class);
+
+    private static final String METRICS = "pac.";
+
+    private static final long RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+    private static final int LOAD_TIMEOUT = 10_000;
+
+    private final String url;
+    private final long refreshRate;
+    private final long cacheTtl;
+    private final int cacheSize;
+
+    private final Map<String, PacScript.Function> functions;
+    private final Function<String, ParentProxy> proxies;
+
+    private final Map<String, Decision> decisions;
+
+    private final ScheduledExecutorService reloader;
+
+    private volatile PacScript script;
+
+    private final LongAdder hits = Metrics.counter(METRICS + "hits");
+    private final LongAdder misses = Metrics.counter(METRICS + "misses");
+    private final LongAdder errors = Metrics.counter(METRICS + "errors");
+    private final LongAdder reloads = Metrics.counter(METRICS + "reloads");
+
+    private static final class Decision {
+
+        private final List<ParentProxy> parents;
+        private final long expires;
+
+        private Decision(final List<ParentProxy> parents, final long expires) {
+            this.parents = parents;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Constructor, loads the PAC file
+     *
+     * @param configuration
+     *            the proxy configuration ("proxy/pac")
+     * @param dnsCache
+     *            the resolver of the PAC functions
+     * @param proxies
+     *            gives the parent proxy of an authority ("host:port") returned by the script
+     * @category constructor
+     */
+    public PacResolver(final Configuration configuration, final DnsCache dnsCache, final Function<String, ParentProxy> proxies) {
+        this.url = configuration.getString("proxy/pac/url", "");
+        this.refreshRate = configuration.getDuration("proxy/pac/refresh-rate", Duration.ofDays(1)).toMillis();
+        this.cacheTtl = configuration.getDuration("proxy/pac/cache-ttl", Duration.ofMinutes(5)).toNanos();
+        this.cacheSize = Math.max(1, configuration.getInt("proxy/pac/cache-size", 1_000));
+        this.functions = new PacFunctions(dnsCache::resolveAll).toMap();
+        this.proxies = proxies;
+
+        this.decisions = new LinkedHashMap<>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 5207365934627016093L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Decision> eldest) {
+                return this.size() > PacResolver.this.cacheSize;
+            }
+        };
+
+        Metrics.gauge(METRICS + "decisions", this::size);
+
+        this.reloader = Executors.newSingleThreadScheduledExecutor(ThreadUtils.platformThreadFactory("myproxy-pac-", true));
+        this.reload();
+    }
+
+    /**
+     * Loads the PAC file and schedules the next load, sooner if no script could be loaded
+     */
+    private void reload() {
+        try {
+            final long start = System.currentTimeMillis();
+            this.script = PacScript.parse(this.load(), this.functions);
+            synchronized (this.decisions) {
+                this.decisions.clear();
+            }
+            this.reloads.increment();
+            LOG.info("PAC file loaded from {} in {} ms", this.url, System.currentTimeMillis() - start);
+        } catch (IOException | InternalException e) {
+            this.errors.increment();
+            LOG.error("Cannot load the PAC file {}{}: {}", this.url, this.script != null ? ", previous one kept" : "", e.getMessage());
+        }
+        try {
+            this.reloader.schedule(this::reload, this.script != null ? this.refreshRate : Math.min(RETRY_DELAY, this.refreshRate), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    private String load() throws IOException {
+        if (this.url.startsWith("http:") || this.url.startsWith("https:") || this.url.startsWith("file:")) {
+            final URLConnection connection = new URL(this.url).openConnection();
+            connection.setConnectTimeout(LOAD_TIMEOUT);
+            connection.setReadTimeout(LOAD_TIMEOUT);
+            try (InputStream is = connection.getInputStream()) {
+                return new String(is.readAllBytes(), UTF_8);
+            }
+        }
+        return Files.readString(Paths.get(this.url), UTF_8);
+    }
+
+    private static String key(final String host, final boolean secure) {
+        return (secure ? "https://" : "http://") + host.toLowerCase(Locale.ROOT) + '/';
+    }
+
+    /**
+     * Gives the decision already taken for the host, without evaluation
+     *
+     * @param host
+     *            the origin host
+     * @param secure
+     *            true for the HTTPS requests (tunnels)
+     * @return the parents, ({@link ParentProxy#DIRECT} for direct connections, empty list: direct), null if unknown
+     */
+    public List<ParentProxy> getCached(final String host, final boolean secure) {
+        final String key = key(host, secure);
+        final Decision decision;
+        synchronized (this.decisions) {
+            decision = this.decisions.get(key);
+        }
+        if (decision != null && System.nanoTime() - decision.expires < 0) {
+            this.hits.increment();
+            return decision.parents;
+        }
+        return null;
+    }
+
+    /**
+     * Gives the parents of the host, the script is evaluated if the decision isn't cached (may block on DNS lookups)
+     *
+     * @param host
+     *            the origin host
+     * @param secure
+     *            true for the HTTPS requests (tunnels)
+     * @return the parents, ({@link ParentProxy#DIRECT} for direct connections, empty list: direct)
+     */
+    public List<ParentProxy> resolve(final String host, final boolean secure) {
+        final List<ParentProxy> cached = this.getCached(host, secure);
+        if (cached != null) {
+            return cached;
+        }
+        this.misses.increment();
+
+        final String key = key(host, secure);
+        final PacScript current = this.script;
+        List<ParentProxy> parents = Collections.emptyList();
+        if (current != null) {
+            try {
+                parents = this.parse(current.findProxyForUrl(key, host.toLowerCase(Locale.ROOT)));
+            } catch (InternalException e) {
+                this.errors.increment();
+                LOG.error("PAC evaluation failed for {}: {}", host, e.getMessage());
+            }
+        }
+        synchronized (this.decisions) {
+            this.decisions.put(key, new Decision(parents, System.nanoTime() + this.cacheTtl));
+        }
+        return parents;
+    }
+
+    /**
+     * Parses the result of FindProxyForURL ("PROXY host:port; DIRECT")
+     *
+     * @param result
+     *            the result of the script
+     * @return the parents, empty if only direct
+     */
+    List<ParentProxy> parse(final String result) {
+        final List<ParentProxy> parents = new ArrayList<>(2);
+        for (String entry : result.split(";")) {
+            final String[] parts = entry.trim().split("\\s+", 2);
+            final String type = parts[0].toUpperCase(Locale.ROOT);
+            if ("DIRECT".equals(type)) {
+                parents.add(ParentProxy.DIRECT);
+            } else if (("PROXY".equals(type) || "HTTP".equals(type)) && parts.length > 1) {
+                final String authority = parts[1].trim().toLowerCase(Locale.ROOT);
+                parents.add(this.proxies.apply(authority.indexOf(':') > -1 ? authority : authority + ":80"));
+            } else if (!type.isEmpty()) {
+                LOG.info("PAC entry not supported, skipped: {}", entry.trim());
+            }
+        }
+        if (parents.isEmpty() || (parents.size() == 1 && parents.get(0) == ParentProxy.DIRECT)) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(parents);
+    }
+
+    private long size() {
+        synchronized (this.decisions) {
+            return this.decisions.size();
+        }
+    }
+
+    /**
+     * Stops the reloads
+     */
+    public void close() {
+        this.reloader.shutdownNow();
+    }
+}
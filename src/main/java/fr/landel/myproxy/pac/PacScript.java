@@ -0,0 +1,1451 @@
+package fr.landel.myproxy.pac;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import fr.landel.myproxy.utils.InternalException;
+
+/**
+ * Interpreter of the PAC (proxy auto-config) files: the subset of JavaScript used by these scripts is parsed once into a tree, which is then
+ * evaluated for each call of FindProxyForURL.
+ * <p>
+ * Supported: "var"/"let"/"const", top level functions, "if"/"else", "for(;;)", "while", "return", "break", "continue", strings, numbers,
+ * booleans, arrays, the arithmetic, comparison and logical operators, the assignments ("=", "+=", "-=", "++", "--"), the string methods
+ * (indexOf, substring, toLowerCase, split...), "length" and the native functions given at parse time. The calls of shExpMatch with a literal
+ * expression are compiled at parse time ({@link ShExpMatcher}).
+ * </p>
+ * <p>
+ * A parsed script is immutable and can be evaluated by several threads: the global variables assigned by an evaluation are only visible to
+ * that evaluation. An evaluation is aborted after {@value #MAX_STEPS} loop iterations or function calls.
+ * </p>
+ */
+public final class PacScript {
+
+    /**
+     * Main function of the PAC files
+     */
+    public static final String FIND_PROXY = "FindProxyForURL";
+
+    private static final int MAX_STEPS = 100_000;
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * JavaScript "undefined" (null is "null")
+     */
+    public static final Object UNDEFINED = new Object() {
+        @Override
+        public String toString() {
+            return "undefined";
+        }
+    };
+
+    private static final Object BREAK = new Object();
+    private static final Object CONTINUE = new Object();
+
+    /**
+     * Native function, receives the evaluated arguments
+     */
+    @FunctionalInterface
+    public interface Function {
+
+        /**
+         * @param args
+         *            the arguments (String, Double, Boolean, List, null or {@link PacScript#UNDEFINED})
+         * @return the result
+         * @throws InternalException
+         *             on evaluation error
+         */
+        Object call(Object[] args) throws InternalException;
+    }
+
+    /**
+     * Global variables and functions, frozen once the top level statements are executed
+     */
+    private final Scope globals;
+
+    private PacScript(final Scope globals) {
+        this.globals = globals;
+    }
+
+    /**
+     * Parses the script and executes its top level statements
+     *
+     * @param source
+     *            the PAC file content
+     * @param natives
+     *            the native functions (PAC helpers)
+     * @return the script
+     * @throws InternalException
+     *             on syntax error, if the top level execution fails or if FindProxyForURL isn't defined
+     */
+    public static PacScript parse(final String source, final Map<String, Function> natives) throws InternalException {
+        final List<Node> program = new Parser(new Lexer(source).tokenize()).program();
+
+        final Scope globals = new Scope(null);
+        globals.vars.putAll(natives);
+        final Context context = new Context(globals);
+        exec(program, context, globals);
+        globals.frozen = true;
+
+        if (!(globals.vars.get(FIND_PROXY) instanceof UserFunction)) {
+            throw new InternalException("PAC script without function {}", FIND_PROXY);
+        }
+        return new PacScript(globals);
+    }
+
+    /**
+     * Calls FindProxyForURL
+     *
+     * @param url
+     *            the requested URL
+     * @param host
+     *            the host of the URL
+     * @return the result ("DIRECT", "PROXY host:port; DIRECT"...)
+     * @throws InternalException
+     *             on evaluation error
+     */
+    public String findProxyForUrl(final String url, final String host) throws InternalException {
+        final Context context = new Context(new Scope(this.globals));
+        final Object result = call(this.globals.vars.get(FIND_PROXY), new Object[] {url, host}, context);
+        return result == null || result == UNDEFINED ? "" : toStr(result);
+    }
+
+    // --- values ---
+
+    private static final class UserFunction {
+
+        private final String name;
+        private final List<String> params;
+        private final List<Node> body;
+
+        private UserFunction(final String name, final List<String> params, final List<Node> body) {
+            this.name = name;
+            this.params = params;
+            this.body = body;
+        }
+    }
+
+    private static final class Return {
+
+        private final Object value;
+
+        private Return(final Object value) {
+            this.value = value;
+        }
+    }
+
+    static boolean toBoolean(final Object value) {
+        if (value == null || value == UNDEFINED) {
+            return false;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value instanceof Double) {
+            final double d = (Double) value;
+            return d != 0 && !Double.isNaN(d);
+        } else if (value instanceof String) {
+            return !((String) value).isEmpty();
+        }
+        return true;
+    }
+
+    static double toNumber(final Object value) {
+        if (value instanceof Double) {
+            return (Double) value;
+        } else if (value == null) {
+            return 0;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        } else if (value instanceof String) {
+            final String s = ((String) value).trim();
+            if (s.isEmpty()) {
+                return 0;
+            }
+            try {
+                return s.startsWith("0x") || s.startsWith("0X") ? Long.parseLong(s.substring(2), 16) : Double.parseDouble(s);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    static String toStr(final Object value) {
+        if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof Double) {
+            final double d = (Double) value;
+            if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15) {
+                return Long.toString((long) d);
+            }
+            return Double.isNaN(d) ? "NaN" : Double.toString(d);
+        } else if (value instanceof List) {
+            final StringBuilder builder = new StringBuilder();
+            for (Object item : (List<?>) value) {
+                if (builder.length() > 0) {
+                    builder.append(',');
+                }
+                builder.append(item == null || item == UNDEFINED ? "" : toStr(item));
+            }
+            return builder.toString();
+        }
+        return String.valueOf(value);
+    }
+
+    private static boolean strictEquals(final Object a, final Object b) {
+        if (a instanceof Double && b instanceof Double) {
+            return ((Double) a).doubleValue() == ((Double) b).doubleValue();
+        } else if (a instanceof String || a instanceof Boolean) {
+            return a.equals(b);
+        }
+        return a == b;
+    }
+
+    private static boolean looseEquals(final Object a, final Object b) {
+        if ((a == null || a == UNDEFINED) && (b == null || b == UNDEFINED)) {
+            return true;
+        } else if (a == null || a == UNDEFINED || b == null || b == UNDEFINED) {
+            return false;
+        } else if (a.getClass() == b.getClass()) {
+            return strictEquals(a, b);
+        } else if (a instanceof List || b instanceof List) {
+            return toStr(a).equals(toStr(b));
+        }
+        return toNumber(a) == toNumber(b);
+    }
+
+    // --- evaluation ---
+
+    /**
+     * State of an evaluation
+     */
+    private static final class Context {
+
+        /**
+         * Global variables of the evaluation, in front of the frozen globals
+         */
+        private final Scope global;
+        private int steps;
+        private int depth;
+
+        private Context(final Scope global) {
+            this.global = global;
+        }
+
+        private void step() throws InternalException {
+            if (++this.steps > MAX_STEPS) {
+                throw new InternalException("PAC evaluation aborted after {} steps", MAX_STEPS);
+            }
+        }
+    }
+
+    private static final class Scope {
+
+        private final Scope parent;
+        private final Map<String, Object> vars = new HashMap<>();
+        private boolean frozen;
+
+        private Scope(final Scope parent) {
+            this.parent = parent;
+        }
+
+        private Object get(final String name) throws InternalException {
+            for (Scope scope = this; scope != null; scope = scope.parent) {
+                final Object value = scope.vars.get(name);
+                if (value != null || scope.vars.containsKey(name)) {
+                    return value;
+                }
+            }
+            throw new InternalException("PAC variable not defined: {}", name);
+        }
+
+        private void set(final String name, final Object value, final Context context) {
+            for (Scope scope = this; scope != null && !scope.frozen; scope = scope.parent) {
+                if (scope.vars.containsKey(name)) {
+                    scope.vars.put(name, value);
+                    return;
+                }
+            }
+            // undeclared or frozen global
+            context.global.vars.put(name, value);
+        }
+    }
+
+    private static Object exec(final List<Node> statements, final Context context, final Scope scope) throws InternalException {
+        // function declarations are hoisted
+        for (Node statement : statements) {
+            if (statement instanceof FunctionDeclaration) {
+                final FunctionDeclaration declaration = (FunctionDeclaration) statement;
+                scope.vars.put(declaration.function.name, declaration.function);
+            }
+        }
+        for (Node statement : statements) {
+            final Object completion = statement.exec(context, scope);
+            if (completion != null) {
+                return completion;
+            }
+        }
+        return null;
+    }
+
+    private static Object call(final Object function, final Object[] args, final Context context) throws InternalException {
+        if (function instanceof Function) {
+            return ((Function) function).call(args);
+        } else if (!(function instanceof UserFunction)) {
+            throw new InternalException("PAC value is not a function: {}", function);
+        }
+        final UserFunction user = (UserFunction) function;
+        context.step();
+        if (++context.depth > MAX_DEPTH) {
+            throw new InternalException("PAC call stack too deep in {}", user.name);
+        }
+        try {
+            // the functions are declared at top level, they only see the globals
+            final Scope frame = new Scope(context.global);
+            for (int i = 0; i < user.params.size(); ++i) {
+                frame.vars.put(user.params.get(i), i < args.length ? args[i] : UNDEFINED);
+            }
+            final Object completion = exec(user.body, context, frame);
+            return completion instanceof Return ? ((Return) completion).value : UNDEFINED;
+        } finally {
+            --context.depth;
+        }
+    }
+
+    private static Object callMethod(final Object target, final String name, final Object[] args) throws InternalException {
+        if (target instanceof String) {
+            final String s = (String) target;
+            switch (name) {
+            case "toLowerCase":
+                return s.toLowerCase(Locale.ROOT);
+            case "toUpperCase":
+                return s.toUpperCase(Locale.ROOT);
+            case "trim":
+                return s.trim();
+            case "toString":
+                return s;
+            case "indexOf":
+                return (double) s.indexOf(toStr(arg(args, 0)), (int) Math.max(0, toNumber(arg(args, 1, 0d))));
+            case "lastIndexOf":
+                return (double) s.lastIndexOf(toStr(arg(args, 0)));
+            case "charAt": {
+                final int index = (int) toNumber(arg(args, 0, 0d));
+                return index >= 0 && index < s.length() ? String.valueOf(s.charAt(index)) : "";
+            }
+            case "substring": {
+                int start = clamp(toNumber(arg(args, 0, 0d)), s.length());
+                int end = args.length > 1 && args[1] != UNDEFINED ? clamp(toNumber(args[1]), s.length()) : s.length();
+                return start <= end ? s.substring(start, end) : s.substring(end, start);
+            }
+            case "substr": {
+                int start = (int) toNumber(arg(args, 0, 0d));
+                start = start < 0 ? Math.max(0, s.length() + start) : Math.min(start, s.length());
+                final int length = args.length > 1 && args[1] != UNDEFINED ? (int) toNumber(args[1]) : s.length() - start;
+                return s.substring(start, Math.max(start, Math.min(s.length(), start + length)));
+            }
+            case "slice": {
+                final int start = relative(toNumber(arg(args, 0, 0d)), s.length());
+                final int end = args.length > 1 && args[1] != UNDEFINED ? relative(toNumber(args[1]), s.length()) : s.length();
+                return start < end ? s.substring(start, end) : "";
+            }
+            case "split": {
+                final String separator = toStr(arg(args, 0));
+                final List<Object> parts = new ArrayList<>();
+                if (separator.isEmpty()) {
+                    for (int i = 0; i < s.length(); ++i) {
+                        parts.add(String.valueOf(s.charAt(i)));
+                    }
+                } else {
+                    int start = 0;
+                    int index;
+                    while ((index = s.indexOf(separator, start)) > -1) {
+                        parts.add(s.substring(start, index));
+                        start = index + separator.length();
+                    }
+                    parts.add(s.substring(start));
+                }
+                return parts;
+            }
+            case "replace": {
+                final String search = toStr(arg(args, 0));
+                final int index = s.indexOf(search);
+                return index < 0 ? s : s.substring(0, index) + toStr(arg(args, 1)) + s.substring(index + search.length());
+            }
+            case "startsWith":
+                return s.startsWith(toStr(arg(args, 0)));
+            case "endsWith":
+                return s.endsWith(toStr(arg(args, 0)));
+            case "includes":
+                return s.contains(toStr(arg(args, 0)));
+            default:
+                break;
+            }
+        } else if (target instanceof List) {
+            final List<?> list = (List<?>) target;
+            switch (name) {
+            case "indexOf":
+                for (int i = 0; i < list.size(); ++i) {
+                    if (strictEquals(list.get(i), arg(args, 0))) {
+                        return (double) i;
+                    }
+                }
+                return -1d;
+            case "join": {
+                final String separator = args.length > 0 && args[0] != UNDEFINED ? toStr(args[0]) : ",";
+                final StringBuilder builder = new StringBuilder();
+                for (int i = 0; i < list.size(); ++i) {
+                    builder.append(i > 0 ? separator : "").append(list.get(i) == null || list.get(i) == UNDEFINED ? "" : toStr(list.get(i)));
+                }
+                return builder.toString();
+            }
+            case "toString":
+                return toStr(list);
+            default:
+                break;
+            }
+        }
+        throw new InternalException("PAC method not supported: {}.{}", target, name);
+    }
+
+    private static Object arg(final Object[] args, final int index) {
+        return index < args.length ? args[index] : UNDEFINED;
+    }
+
+    private static Object arg(final Object[] args, final int index, final Object def) {
+        return index < args.length && args[index] != UNDEFINED ? args[index] : def;
+    }
+
+    private static int clamp(final double index, final int length) {
+        return Double.isNaN(index) ? 0 : (int) Math.max(0, Math.min(length, index));
+    }
+
+    private static int relative(final double index, final int length) {
+        return index < 0 ? (int) Math.max(0, length + index) : clamp(index, length);
+    }
+
+    // --- tree ---
+
+    private abstract static class Node {
+
+        /**
+         * @return the value of an expression
+         */
+        Object eval(final Context context, final Scope scope) throws InternalException {
+            throw new InternalException("PAC statement used as expression");
+        }
+
+        /**
+         * @return the completion of a statement: null, {@link PacScript#BREAK}, {@link PacScript#CONTINUE} or {@link Return}
+         */
+        Object exec(final Context context, final Scope scope) throws InternalException {
+            this.eval(context, scope);
+            return null;
+        }
+    }
+
+    private static final class Literal extends Node {
+
+        private final Object value;
+
+        private Literal(final Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object eval(final Context context, final Scope scope) {
+            return this.value;
+        }
+    }
+
+    private static final class Identifier extends Node {
+
+        private final String name;
+
+        private Identifier(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        Object eval(final Context context, final Scope scope) throws InternalException {
+            return scope.get(this.name);
+        }
+    }
+
+    private static final class ArrayLiteral extends Node {
+
+        private final List<Node> elements;
+
+        private ArrayLiteral(final List<Node> elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        Object eval(final Context context, final Scope scope) throws InternalException {
+            final List<Object> values = new ArrayList<>(this.elements.size());
+            for (Node element : this.elements) {
+                values.add(element.eval(context, scope));
+            }
+            return Collections.unmodifiableList(values);
+        }
+    }
+
+    private static final class Unary extends Node {
+
+        private final String operator;
+        private final Node operand;
+
+        private Unary(final String operator, final Node operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        Object eval(final Context context, final Scope scope) throws InternalException {
+            if ("typeof".equals(this.operator)) {
+                final Object value;
+                try {
+                    value = this.operand.eval(context, scope);
+                } catch (InternalException e) {
+                    return "undefined";
+                }
+                return typeOf(value);
+            }
+            final Object value = this.operand.eval(context, scope);
+            switch (this.operator) {
+            case "!":
+                return !toBoolean(value);
+            case "-":
+                return -toNumber(value);
+            default:
+                return toNumber(value);
+            }
+        }
+
+        private static String typeOf(final Object value) {
+            if (value == UNDEFINED) {
+                return "undefined";
+            } else if (value instanceof String) {
+                return "string";
+            } else if (value instanceof Double) {
+                return "number";
+            } else if (value instanceof Boolean) {
+                return "boolean";
+            } else if (value instanceof Function || value instanceof UserFunction) {
+                return "function";
+            }
+            return "object";
+        }
+    }
+
+    private static final class Binary extends Node {
+
+        private final String operator;
+        private final Node left;
+        private final Node right;
+
+        private Binary(final String operator, final Node left, final Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(final Context context, final Scope scope) throws InternalException {
+            final Object a = this.left.eval(context, scope);
+            switch (this.operator) {
+            case "&&":
+                return toBoolean(a) ? this.right.eval(context, scope) : a;
+            case "||":
+                return toBoolean(a) ? a : this.right.eval(context, scope);
+            default:
+                return apply(this.operator, a, this.right.eval(context, scope));
+            }
+        }
+
+        private static Object apply(final String operator, final Object a, final Object b) throws InternalException {
+            switch (operator) {
+            case "+":
+                if (a instanceof String || b instanceof String || a instanceof List || b instanceof List) {
+                    return toStr(a).concat(toStr(b));
+                }
+                return toNumber(a) + toNumber(b);
+            case "-":
+                return toNumber(a) - toNumber(b);
+            case "*":
+                return toNumber(a) * toNumber(b);
+            case "/":
+                return toNumber(a) / toNumber(b);
+            case "%":
+                return toNumber(a) % toNumber(b);
+            case "==":
+                return looseEquals(a, b);
+            case "!=":
+                return !looseEquals(a, b);
+            case "===":
+                return strictEquals(a, b);
+            case "!==":
+                return !strictEquals(a, b);
+            case "<":
+            case ">":
+            case "<=":
+            case ">=":
+                return compare(operator, a, b);
+            default:
+                throw new InternalException("PAC operator not supported: {}", operator);
+            }
+        }
+
+        private static boolean compare(final String operator, final Object a, final Object b) {
+            final int comparison;
+            if (a instanceof String && b instanceof String) {
+                comparison = ((String) a).compareTo((String) b);
+            } else {
+                final double x = toNumber(a);
+                final double y = toNumber(b);
+                if (Double.isNaN(x) || Double.isNaN(y)) {
+                    return false;
+                }
+                comparison = Double.compare(x, y);
+            }
+            switch (operator) {
+            case "<":
+                return comparison < 0;
+            case ">":
+                return comparison > 0;
+            case "<=":
+                return comparison <= 0;
+            default:
+                return comparison >= 0;
+            }
+        }
+    }
+
+    private static final class Conditional extends Node {
+
+        private final Node test;
+        private final Node then;
+        private final Node otherwise;
+
+        private Conditional(final Node test, final Node then, final Node otherwise) {
+            this.test = test;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        Object eval(final Context context, final Scope scope) throws InternalException {
+            return toBoolean(this.test.eval(context, scope)) ? this.then.eval(context, scope) : this.otherwise.eval(context, scope);
+        }
+    }
+
+    private static final class Assignment extends Node {
+
+        private final String name;
+        private final String operator;
+        private final Node value;
+        private final boolean prefix;
+
+        /**
+         * @param operator
+         *            "=", "+=", "-=", "++" or "--"
+         * @param prefix
+         *            for "++" and "--", true if the new value is returned
+         */
+        private Assignment(final String name, final String operator, final Node value, final boolean prefix) {
+            this.name = name;
+            this.operator = operator;
+            this.value = value;
+            this.prefix = prefix;
+        }
+
+        @Override
+        Object eval(final Context context, final Scope scope) throws InternalException {
+            final Object result;
+            Object returned = null;
+            switch (this.operator) {
+            case "=":
+                result = this.value.eval(context, scope);
+                break;
+            case "++":
+            case "--": {
+                final double old = toNumber(scope.get(this.name));
+                result = "++".equals(this.operator) ? old + 1 : old - 1;
+                returned = this.prefix ? result : (Object) old;
+                break;
+            }
+            default:
+                result = Binary.apply(this.operator.substring(0, 1), scope.get(this.name), this.value.eval(context, scope));
+                break;
+            }
+            scope.set(this.name, result, context);
+            return returned != null ? returned : result;
+        }
+    }
+
+    private static final class Member extends Node {
+
+        private final Node target;
+        private final String name;
+
+        private Member(final Node target, final String name) {
+            this.target = target;
+            this.name = name;
+        }
+
+        @Override
+        Object eval(final Context context, final Scope scope) throws InternalException {
+            final Object value = this.target.eval(context, scope);
+            if ("length".equals(this.name)) {
+                if (value instanceof String) {
+                    return (double) ((String) value).length();
+                } else if (value instanceof List) {
+                    return (double) ((List<?>) value).size();
+                }
+            }
+            throw new InternalException("PAC property not supported: {}.{}", value, this.name);
+        }
+    }
+
+    private static final class Index extends Node {
+
+        private final Node target;
+        private final Node index;
+
+        private Index(final Node target, final Node index) {
+            this.target = target;
+            this.index = index;
+        }
+
+        @Override
+        Object eval(final Context context, final Scope scope) throws InternalException {
+            final Object value = this.target.eval(context, scope);
+            final double i = toNumber(this.index.eval(context, scope));
+            if (value instanceof List) {
+                final List<?> list = (List<?>) value;
+                return i >= 0 && i < list.size() ? list.get((int) i) : UNDEFINED;
+            } else if (value instanceof String) {
+                final String s = (String) value;
+                return i >= 0 && i < s.length() ? String.valueOf(s.charAt((int) i)) : UNDEFINED;
+            }
+            throw new InternalException("PAC value cannot be indexed: {}", value);
+        }
+    }
+
+    private static final class Call extends Node {
+
+        private final Node callee;
+        private final List<Node> args;
+
+        private Call(final Node callee, final List<Node> args) {
+            this.callee = callee;
+            this.args = args;
+        }
+
+        @Override
+        Object eval(final Context context, final Scope scope) throws InternalException {
+            if (this.callee instanceof Member) {
+                final Member member = (Member) this.callee;
+                return callMethod(member.target.eval(context, scope), member.name, this.evalArgs(context, scope));
+            }
+            final Object function = this.callee.eval(context, scope);
+            return call(function, this.evalArgs(context, scope), context);
+        }
+
+        private Object[] evalArgs(final Context context, final Scope scope) throws InternalException {
+            final Object[] values = new Object[this.args.size()];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = this.args.get(i).eval(context, scope);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Call of shExpMatch with a literal expression, compiled at parse time
+     */
+    private static final class ShExpMatch extends Node {
+
+        private final Node input;
+        private final ShExpMatcher matcher;
+
+        private ShExpMatch(final Node input, final ShExpMatcher matcher) {
+            this.input = input;
+            this.matcher = matcher;
+        }
+
+        @Override
+        Object eval(final Context context, final Scope scope) throws InternalException {
+            return this.matcher.matches(toStr(this.input.eval(context, scope)));
+        }
+    }
+
+    private static final class VarDeclaration extends Node {
+
+        private final List<String> names;
+        private final List<Node> values;
+
+        private VarDeclaration(final List<String> names, final List<Node> values) {
+            this.names = names;
+            this.values = values;
+        }
+
+        @Override
+        Object exec(final Context context, final Scope scope) throws InternalException {
+            for (int i = 0; i < this.names.size(); ++i) {
+                final Node value = this.values.get(i);
+                if (value != null) {
+                    scope.vars.put(this.names.get(i), value.eval(context, scope));
+                } else {
+                    scope.vars.putIfAbsent(this.names.get(i), UNDEFINED);
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class FunctionDeclaration extends Node {
+
+        private final UserFunction function;
+
+        private FunctionDeclaration(final UserFunction function) {
+            this.function = function;
+        }
+
+        @Override
+        Object exec(final Context context, final Scope scope) {
+            // hoisted
+            return null;
+        }
+    }
+
+    private static final class ExpressionStatement extends Node {
+
+        private final Node expression;
+
+        private ExpressionStatement(final Node expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Object exec(final Context context, final Scope scope) throws InternalException {
+            this.expression.eval(context, scope);
+            return null;
+        }
+    }
+
+    private static final class Block extends Node {
+
+        private final List<Node> statements;
+
+        private Block(final List<Node> statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        Object exec(final Context context, final Scope scope) throws InternalException {
+            for (Node statement : this.statements) {
+                final Object completion = statement.exec(context, scope);
+                if (completion != null) {
+                    return completion;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class If extends Node {
+
+        private final Node test;
+        private final Node then;
+        private final Node otherwise;
+
+        private If(final Node test, final Node then, final Node otherwise) {
+            this.test = test;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        Object exec(final Context context, final Scope scope) throws InternalException {
+            if (toBoolean(this.test.eval(context, scope))) {
+                return this.then.exec(context, scope);
+            } else if (this.otherwise != null) {
+                return this.otherwise.exec(context, scope);
+            }
+            return null;
+        }
+    }
+
+    private static final class Loop extends Node {
+
+        private final Node init;
+        private final Node test;
+        private final Node update;
+        private final Node body;
+
+        private Loop(final Node init, final Node test, final Node update, final Node body) {
+            this.init = init;
+            this.test = test;
+            this.update = update;
+            this.body = body;
+        }
+
+        @Override
+        Object exec(final Context context, final Scope scope) throws InternalException {
+            if (this.init != null) {
+                this.init.exec(context, scope);
+            }
+            while (this.test == null || toBoolean(this.test.eval(context, scope))) {
+                context.step();
+                final Object completion = this.body.exec(context, scope);
+                if (completion == BREAK) {
+                    break;
+                } else if (completion instanceof Return) {
+                    return completion;
+                }
+                if (this.update != null) {
+                    this.update.eval(context, scope);
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Jump extends Node {
+
+        private final Object completion;
+
+        private Jump(final Object completion) {
+            this.completion = completion;
+        }
+
+        @Override
+        Object exec(final Context context, final Scope scope) {
+            return this.completion;
+        }
+    }
+
+    private static final class ReturnStatement extends Node {
+
+        private final Node value;
+
+        private ReturnStatement(final Node value) {
+            this.value = value;
+        }
+
+        @Override
+        Object exec(final Context context, final Scope scope) throws InternalException {
+            return new Return(this.value != null ? this.value.eval(context, scope) : UNDEFINED);
+        }
+    }
+
+    // --- parsing ---
+
+    private enum TokenType {
+        IDENTIFIER,
+        NUMBER,
+        STRING,
+        PUNCTUATOR,
+        END
+    }
+
+    private static final class Token {
+
+        private final TokenType type;
+        private final String text;
+        private final Object value;
+        private final int line;
+
+        private Token(final TokenType type, final String text, final Object value, final int line) {
+            this.type = type;
+            this.text = text;
+            this.value = value;
+            this.line = line;
+        }
+
+        private boolean is(final String punctuator) {
+            return this.type == TokenType.PUNCTUATOR && this.text.equals(punctuator);
+        }
+
+        private boolean isKeyword(final String keyword) {
+            return this.type == TokenType.IDENTIFIER && this.text.equals(keyword);
+        }
+    }
+
+    private static final class Lexer {
+
+        /**
+         * Punctuators, the longest first
+         */
+        private static final String[] PUNCTUATORS = {"===", "!==", "==", "!=", "<=", ">=", "&&", "||", "++", "--", "+=", "-=", "{", "}", "(", ")",
+                "[", "]", ";", ",", ".", "?", ":", "!", "=", "<", ">", "+", "-", "*", "/", "%"};
+
+        private final String source;
+        private int position;
+        private int line = 1;
+
+        private Lexer(final String source) {
+            this.source = source;
+        }
+
+        private List<Token> tokenize() throws InternalException {
+            final List<Token> tokens = new ArrayList<>();
+            Token token;
+            do {
+                token = this.next();
+                tokens.add(token);
+            } while (token.type != TokenType.END);
+            return tokens;
+        }
+
+        private Token next() throws InternalException {
+            this.skipSpacesAndComments();
+            if (this.position >= this.source.length()) {
+                return new Token(TokenType.END, "", null, this.line);
+            }
+
+            final char c = this.source.charAt(this.position);
+            final int start = this.position;
+            if (Character.isJavaIdentifierStart(c)) {
+                while (this.position < this.source.length() && Character.isJavaIdentifierPart(this.source.charAt(this.position))) {
+                    ++this.position;
+                }
+                return new Token(TokenType.IDENTIFIER, this.source.substring(start, this.position), null, this.line);
+            } else if (c >= '0' && c <= '9' || (c == '.' && this.position + 1 < this.source.length() && isDigit(this.source.charAt(this.position + 1)))) {
+                return this.number();
+            } else if (c == '"' || c == '\'') {
+                return this.string(c);
+            }
+            for (String punctuator : PUNCTUATORS) {
+                if (this.source.startsWith(punctuator, this.position)) {
+                    this.position += punctuator.length();
+                    return new Token(TokenType.PUNCTUATOR, punctuator, null, this.line);
+                }
+            }
+            throw new InternalException("PAC syntax error, unexpected character '{}' at line {}", c, this.line);
+        }
+
+        private void skipSpacesAndComments() throws InternalException {
+            while (this.position < this.source.length()) {
+                final char c = this.source.charAt(this.position);
+                if (c == '\n') {
+                    ++this.line;
+                    ++this.position;
+                } else if (Character.isWhitespace(c) || c == '\uFEFF') {
+                    ++this.position;
+                } else if (this.source.startsWith("//", this.position)) {
+                    while (this.position < this.source.length() && this.source.charAt(this.position) != '\n') {
+                        ++this.position;
+                    }
+                } else if (this.source.startsWith("/*", this.position)) {
+                    final int end = this.source.indexOf("*/", this.position + 2);
+                    if (end < 0) {
+                        throw new InternalException("PAC syntax error, unterminated comment at line {}", this.line);
+                    }
+                    for (int i = this.position; i < end; ++i) {
+                        if (this.source.charAt(i) == '\n') {
+                            ++this.line;
+                        }
+                    }
+                    this.position = end + 2;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private Token number() throws InternalException {
+            final int start = this.position;
+            if (this.source.startsWith("0x", start) || this.source.startsWith("0X", start)) {
+                this.position += 2;
+                while (this.position < this.source.length() && Character.digit(this.source.charAt(this.position), 16) > -1) {
+                    ++this.position;
+                }
+                return new Token(TokenType.NUMBER, this.source.substring(start, this.position),
+                        (double) Long.parseLong(this.source.substring(start + 2, this.position), 16), this.line);
+            }
+            while (this.position < this.source.length() && (isDigit(this.source.charAt(this.position)) || this.source.charAt(this.position) == '.')) {
+                ++this.position;
+            }
+            final String text = this.source.substring(start, this.position);
+            try {
+                return new Token(TokenType.NUMBER, text, Double.parseDouble(text), this.line);
+            } catch (NumberFormatException e) {
+                throw new InternalException("PAC syntax error, invalid number '{}' at line {}", text, this.line);
+            }
+        }
+
+        private Token string(final char quote) throws InternalException {
+            final StringBuilder builder = new StringBuilder();
+            ++this.position;
+            while (this.position < this.source.length()) {
+                char c = this.source.charAt(this.position++);
+                if (c == quote) {
+                    return new Token(TokenType.STRING, builder.toString(), builder.toString(), this.line);
+                } else if (c == '\n') {
+                    break;
+                } else if (c == '\\' && this.position < this.source.length()) {
+                    c = this.source.charAt(this.position++);
+                    switch (c) {
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 'u':
+                        if (this.position + 4 <= this.source.length()) {
+                            try {
+                                c = (char) Integer.parseInt(this.source.substring(this.position, this.position + 4), 16);
+                                this.position += 4;
+                            } catch (NumberFormatException e) {
+                                throw new InternalException("PAC syntax error, invalid escape at line {}", this.line);
+                            }
+                        }
+                        break;
+                    default:
+                        // \\, \', \" and the others are the character itself
+                        break;
+                    }
+                }
+                builder.append(c);
+            }
+            throw new InternalException("PAC syntax error, unterminated string at line {}", this.line);
+        }
+
+        private static boolean isDigit(final char c) {
+            return c >= '0' && c <= '9';
+        }
+    }
+
+    private static final class Parser {
+
+        private final List<Token> tokens;
+        private int position;
+
+        private Parser(final List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        private Token peek() {
+            return this.tokens.get(this.position);
+        }
+
+        private Token next() {
+            final Token token = this.tokens.get(this.position);
+            if (token.type != TokenType.END) {
+                ++this.position;
+            }
+            return token;
+        }
+
+        private boolean accept(final String punctuator) {
+            if (this.peek().is(punctuator)) {
+                ++this.position;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(final String punctuator) throws InternalException {
+            if (!this.accept(punctuator)) {
+                throw this.error("'" + punctuator + "' expected");
+            }
+        }
+
+        private String identifier() throws InternalException {
+            final Token token = this.next();
+            if (token.type != TokenType.IDENTIFIER) {
+                throw new InternalException("PAC syntax error, identifier expected at line {}, found '{}'", token.line, token.text);
+            }
+            return token.text;
+        }
+
+        private InternalException error(final String message) {
+            final Token token = this.peek();
+            return new InternalException("PAC syntax error, {} at line {}, found '{}'", message, token.line, token.text);
+        }
+
+        private List<Node> program() throws InternalException {
+            final List<Node> statements = new ArrayList<>();
+            while (this.peek().type != TokenType.END) {
+                statements.add(this.statement());
+            }
+            return statements;
+        }
+
+        private Node statement() throws InternalException {
+            final Token token = this.peek();
+            if (token.is("{")) {
+                return new Block(this.block());
+            } else if (token.is(";")) {
+                this.next();
+                return new Block(Collections.emptyList());
+            } else if (token.type == TokenType.IDENTIFIER) {
+                switch (token.text) {
+                case "var":
+                case "let":
+                case "const": {
+                    final Node declaration = this.varDeclaration();
+                    this.accept(";");
+                    return declaration;
+                }
+                case "function":
+                    return this.function();
+                case "if":
+                    return this.ifStatement();
+                case "for":
+                    return this.forStatement();
+                case "while": {
+                    this.next();
+                    this.expect("(");
+                    final Node test = this.expression();
+                    this.expect(")");
+                    return new Loop(null, test, null, this.statement());
+                }
+                case "return": {
+                    this.next();
+                    final Node value = this.peek().is(";") || this.peek().is("}") || this.peek().type == TokenType.END ? null : this.expression();
+                    this.accept(";");
+                    return new ReturnStatement(value);
+                }
+                case "break":
+                    this.next();
+                    this.accept(";");
+                    return new Jump(BREAK);
+                case "continue":
+                    this.next();
+                    this.accept(";");
+                    return new Jump(CONTINUE);
+                default:
+                    break;
+                }
+            }
+            final Node expression = this.expression();
+            this.accept(";");
+            return new ExpressionStatement(expression);
+        }
+
+        private List<Node> block() throws InternalException {
+            this.expect("{");
+            final List<Node> statements = new ArrayList<>();
+            while (!this.accept("}")) {
+                if (this.peek().type == TokenType.END) {
+                    throw this.error("'}' expected");
+                }
+                statements.add(this.statement());
+            }
+            return statements;
+        }
+
+        private Node varDeclaration() throws InternalException {
+            this.next();
+            final List<String> names = new ArrayList<>();
+            final List<Node> values = new ArrayList<>();
+            do {
+                names.add(this.identifier());
+                values.add(this.accept("=") ? this.assignment() : null);
+            } while (this.accept(","));
+            return new VarDeclaration(names, values);
+        }
+
+        private Node function() throws InternalException {
+            this.next();
+            final String name = this.identifier();
+            this.expect("(");
+            final List<String> params = new ArrayList<>();
+            if (!this.accept(")")) {
+                do {
+                    params.add(this.identifier());
+                } while (this.accept(","));
+                this.expect(")");
+            }
+            return new FunctionDeclaration(new UserFunction(name, params, this.block()));
+        }
+
+        private Node ifStatement() throws InternalException {
+            this.next();
+            this.expect("(");
+            final Node test = this.expression();
+            this.expect(")");
+            final Node then = this.statement();
+            Node otherwise = null;
+            if (this.peek().isKeyword("else")) {
+                this.next();
+                otherwise = this.statement();
+            }
+            return new If(test, then, otherwise);
+        }
+
+        private Node forStatement() throws InternalException {
+            this.next();
+            this.expect("(");
+            Node init = null;
+            if (this.peek().isKeyword("var") || this.peek().isKeyword("let")) {
+                init = this.varDeclaration();
+            } else if (!this.peek().is(";")) {
+                init = new ExpressionStatement(this.expression());
+            }
+            this.expect(";");
+            final Node test = this.peek().is(";") ? null : this.expression();
+            this.expect(";");
+            final Node update = this.peek().is(")") ? null : this.expression();
+            this.expect(")");
+            return new Loop(init, test, update, this.statement());
+        }
+
+        private Node expression() throws InternalException {
+            return this.assignment();
+        }
+
+        private Node assignment() throws InternalException {
+            final Node left = this.conditional();
+            final Token token = this.peek();
+            if (token.is("=") || token.is("+=") || token.is("-=")) {
+                if (!(left instanceof Identifier)) {
+                    throw this.error("invalid assignment target");
+                }
+                this.next();
+                return new Assignment(((Identifier) left).name, token.text, this.assignment(), false);
+            }
+            return left;
+        }
+
+        private Node conditional() throws InternalException {
+            final Node test = this.binary(0);
+            if (this.accept("?")) {
+                final Node then = this.assignment();
+                this.expect(":");
+                return new Conditional(test, then, this.assignment());
+            }
+            return test;
+        }
+
+        /**
+         * Binary operators by increasing precedence
+         */
+        private static final String[][] LEVELS = {{"||"}, {"&&"}, {"==", "!=", "===", "!=="}, {"<", ">", "<=", ">="}, {"+", "-"}, {"*", "/", "%"}};
+
+        private Node binary(final int level) throws InternalException {
+            if (level == LEVELS.length) {
+                return this.unary();
+            }
+            Node left = this.binary(level + 1);
+            String operator;
+            while ((operator = this.operator(LEVELS[level])) != null) {
+                left = new Binary(operator, left, this.binary(level + 1));
+            }
+            return left;
+        }
+
+        private String operator(final String[] operators) {
+            final Token token = this.peek();
+            if (token.type == TokenType.PUNCTUATOR) {
+                for (String operator : operators) {
+                    if (token.text.equals(operator)) {
+                        ++this.position;
+                        return operator;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private Node unary() throws InternalException {
+            final Token token = this.peek();
+            if (token.is("!") || token.is("-") || token.is("+") || token.isKeyword("typeof")) {
+                this.next();
+                return new Unary(token.text, this.unary());
+            } else if (token.is("++") || token.is("--")) {
+                this.next();
+                final Node target = this.unary();
+                if (!(target instanceof Identifier)) {
+                    throw this.error("invalid increment target");
+                }
+                return new Assignment(((Identifier) target).name, token.text, null, true);
+            }
+            final Node expression = this.postfix();
+            if ((this.peek().is("++") || this.peek().is("--")) && expression instanceof Identifier) {
+                return new Assignment(((Identifier) expression).name, this.next().text, null, false);
+            }
+            return expression;
+        }
+
+        private Node postfix() throws InternalException {
+            Node expression = this.primary();
+            while (true) {
+                if (this.accept(".")) {
+                    expression = new Member(expression, this.identifier());
+                } else if (this.accept("[")) {
+                    final Node index = this.expression();
+                    this.expect("]");
+                    expression = new Index(expression, index);
+                } else if (this.accept("(")) {
+                    expression = this.call(expression, this.arguments(")"));
+                } else {
+                    return expression;
+                }
+            }
+        }
+
+        private Node call(final Node callee, final List<Node> args) {
+            if (callee instanceof Identifier && "shExpMatch".equals(((Identifier) callee).name) && args.size() == 2
+                    && args.get(1) instanceof Literal && ((Literal) args.get(1)).value instanceof String) {
+                return new ShExpMatch(args.get(0), ShExpMatcher.compile((String) ((Literal) args.get(1)).value));
+            }
+            return new Call(callee, args);
+        }
+
+        private List<Node> arguments(final String end) throws InternalException {
+            final List<Node> args = new ArrayList<>();
+            if (!this.accept(end)) {
+                do {
+                    args.add(this.assignment());
+                } while (this.accept(","));
+                this.expect(end);
+            }
+            return args;
+        }
+
+        private Node primary() throws InternalException {
+            final Token token = this.next();
+            switch (token.type) {
+            case NUMBER:
+            case STRING:
+                return new Literal(token.value);
+            case IDENTIFIER:
+                switch (token.text) {
+                case "true":
+                    return new Literal(Boolean.TRUE);
+                case "false":
+                    return new Literal(Boolean.FALSE);
+                case "null":
+                    return new Literal(null);
+                case "undefined":
+                    return new Literal(UNDEFINED);
+                default:
+                    return new Identifier(token.text);
+                }
+            case PUNCTUATOR:
+                if (token.is("(")) {
+                    final Node expression = this.expression();
+                    this.expect(")");
+                    return expression;
+                } else if (token.is("[")) {
+                    return new ArrayLiteral(this.arguments("]"));
+                }
+                break;
+            default:
+                break;
+            }
+            --this.position;
+            throw this.error("expression expected");
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package fr.landel.myproxy.pac;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiled shell expression of the PAC function shExpMatch ("*" any sequence, "?" any character, case sensitive). The usual shapes ("*.domain",
+ * "prefix*", "*part*", exact) are matched with a single string comparison, the others with a linear scan backtracking to the last star, without
+ * regular expression.
+ */
+public final class ShExpMatcher {
+
+    private static final int MAX_CACHED = 1_024;
+
+    private static final Map<String, ShExpMatcher> CACHE = new ConcurrentHashMap<>();
+
+    private enum Kind {
+        ANY,
+        EXACT,
+        PREFIX,
+        SUFFIX,
+        CONTAINS,
+        GLOB
+    }
+
+    private final Kind kind;
+    private final String literal;
+    private final String pattern;
+
+    private ShExpMatcher(final String pattern) {
+        this.pattern = pattern;
+
+        final int length = pattern.length();
+        final boolean question = pattern.indexOf('?') > -1;
+        final int stars = count(pattern, '*');
+
+        if (question || stars > 2) {
+            this.kind = Kind.GLOB;
+            this.literal = null;
+        } else if (stars == 0) {
+            this.kind = Kind.EXACT;
+            this.literal = pattern;
+        } else if (length == stars) {
+            this.kind = Kind.ANY;
+            this.literal = null;
+        } else if (stars == 1 && pattern.charAt(0) == '*') {
+            this.kind = Kind.SUFFIX;
+            this.literal = pattern.substring(1);
+        } else if (stars == 1 && pattern.charAt(length - 1) == '*') {
+            this.kind = Kind.PREFIX;
+            this.literal = pattern.substring(0, length - 1);
+        } else if (stars == 2 && pattern.charAt(0) == '*' && pattern.charAt(length - 1) == '*') {
+            this.kind = Kind.CONTAINS;
+            this.literal = pattern.substring(1, length - 1);
+        } else {
+            this.kind = Kind.GLOB;
+            this.literal = null;
+        }
+    }
+
+    /**
+     * Compiles a shell expression, the compiled expressions are shared
+     *
+     * @param pattern
+     *            the shell expression
+     * @return the matcher
+     */
+    public static ShExpMatcher compile(final String pattern) {
+        ShExpMatcher matcher = CACHE.get(pattern);
+        if (matcher == null) {
+            matcher = new ShExpMatcher(pattern);
+            if (CACHE.size() >= MAX_CACHED) {
+                // patterns built at runtime, the cache is restarted instead of growing
+                CACHE.clear();
+            }
+            CACHE.put(pattern, matcher);
+        }
+        return matcher;
+    }
+
+    /**
+     * @param input
+     *            the string to check
+     * @return true, if the whole input matches the expression
+     */
+    public boolean matches(final String input) {
+        switch (this.kind) {
+        case ANY:
+            return true;
+        case EXACT:
+            return this.literal.equals(input);
+        case PREFIX:
+            return input.startsWith(this.literal);
+        case SUFFIX:
+            return input.endsWith(this.literal);
+        case CONTAINS:
+            return input.contains(this.literal);
+        default:
+            return glob(this.pattern, input);
+        }
+    }
+
+    private static boolean glob(final String pattern, final String input) {
+        int p = 0;
+        int i = 0;
+        int star = -1;
+        int resume = 0;
+        while (i < input.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == input.charAt(i))) {
+                ++p;
+                ++i;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                resume = i;
+            } else if (star > -1) {
+                // the last star absorbs one more character
+                p = star + 1;
+                i = ++resume;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            ++p;
+        }
+        return p == pattern.length();
+    }
+
+    private static int count(final String pattern, final char c) {
+        int count = 0;
+        for (int i = 0; i < pattern.length(); ++i) {
+            if (pattern.charAt(i) == c) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return this.pattern;
+    }
+}
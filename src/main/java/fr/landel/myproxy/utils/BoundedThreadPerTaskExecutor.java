@@ -0,0 +1,109 @@
+package fr.landel.myproxy.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Executor starting a new thread per task (designed for virtual threads, which must not be pooled), the number of running tasks is bounded and the
+ * tasks beyond are given to the rejection callback.
+ */
+public class BoundedThreadPerTaskExecutor extends AbstractExecutorService {
+
+    private final ThreadFactory factory;
+
+    private final Semaphore permits;
+
+    private final Consumer<Runnable> rejection;
+
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    private final Object lock = new Object();
+
+    private volatile boolean shutdown;
+
+    /**
+     * Constructor
+     *
+     * @param factory
+     *            the thread factory
+     * @param maxTasks
+     *            the maximum number of running tasks
+     * @param rejection
+     *            the callback of the rejected tasks
+     * @category constructor
+     */
+    public BoundedThreadPerTaskExecutor(final ThreadFactory factory, final int maxTasks, final Consumer<Runnable> rejection) {
+        this.factory = factory;
+        this.permits = new Semaphore(maxTasks);
+        this.rejection = rejection;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (this.shutdown || !this.permits.tryAcquire()) {
+            this.rejection.accept(command);
+            return;
+        }
+
+        final Thread thread = this.factory.newThread(() -> {
+            try {
+                command.run();
+            } finally {
+                this.threads.remove(Thread.currentThread());
+                this.permits.release();
+                synchronized (this.lock) {
+                    this.lock.notifyAll();
+                }
+            }
+        });
+        this.threads.add(thread);
+        thread.start();
+    }
+
+    @Override
+    public void shutdown() {
+        this.shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        this.shutdown = true;
+        for (Thread thread : this.threads) {
+            thread.interrupt();
+        }
+        return new ArrayList<>();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return this.shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return this.shutdown && this.threads.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this.lock) {
+            long remaining;
+            while (!this.isTerminated()) {
+                remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                this.lock.wait(remaining);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,103 @@
+package fr.landel.myproxy.utils;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class ThreadUtils {
+
+    private static final Logger LOG = new Logger(ThreadUtils.class);
+
+    private static final String PARALLELISM_PROPERTY = "jdk.virtualThreadScheduler.parallelism";
+    private static final String MAX_POOL_SIZE_PROPERTY = "jdk.virtualThreadScheduler.maxPoolSize";
+
+    /**
+     * Thread.isVirtual(), null before Java 21
+     */
+    private static final Method IS_VIRTUAL = isVirtualMethod();
+
+    private ThreadUtils() {
+        throw new UnsupportedOperationException("utility class, not implemented");
+    }
+
+    /**
+     * Creates a factory of named platform threads.
+     * 
+     * @param prefix
+     *            The thread name prefix, an index is appended
+     * @param daemon
+     *            If threads are daemon
+     * @return The thread factory
+     */
+    public static ThreadFactory platformThreadFactory(final String prefix, final boolean daemon) {
+        final AtomicInteger index = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, prefix + index.incrementAndGet());
+            thread.setDaemon(daemon);
+            return thread;
+        };
+    }
+
+    /**
+     * Creates a factory of named virtual threads. The project is compiled for Java 11, so the virtual thread builder is reached by reflection, it's
+     * only available on Java 21+.
+     * 
+     * @param prefix
+     *            The thread name prefix, an index is appended
+     * @return The thread factory, empty if virtual threads aren't supported by the running JVM
+     */
+    public static Optional<ThreadFactory> virtualThreadFactory(final String prefix) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+
+            return Optional.of((ThreadFactory) builderClass.getMethod("factory").invoke(builder));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.error("Virtual threads aren't supported by this JVM: {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks if a thread is virtual, without requiring Java 21 at compile time
+     * 
+     * @param thread
+     *            The thread
+     * @return true, if the thread is virtual (never before Java 21)
+     */
+    public static boolean isVirtual(final Thread thread) {
+        try {
+            return IS_VIRTUAL != null && (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Defines the number of carrier threads of the virtual thread scheduler, must be called before the first virtual thread is started. Values
+     * already defined on the command line are kept.
+     * 
+     * @param carriers
+     *            The number of carrier threads, ignored if lower than 1
+     */
+    public static void setCarrierThreads(final int carriers) {
+        if (carriers > 0 && System.getProperty(PARALLELISM_PROPERTY) == null) {
+            System.setProperty(PARALLELISM_PROPERTY, String.valueOf(carriers));
+            if (System.getProperty(MAX_POOL_SIZE_PROPERTY) == null) {
+                System.setProperty(MAX_POOL_SIZE_PROPERTY, String.valueOf(Math.max(carriers, 256)));
+            }
+        }
+    }
+}
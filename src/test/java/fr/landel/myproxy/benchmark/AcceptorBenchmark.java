@@ -0,0 +1,82 @@
+package fr.landel.myproxy.benchmark;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.landel.myproxy.Proxy;
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+/**
+ * Connections per second accepted by a single acceptor (the baseline) and by several acceptors bound with SO_REUSEPORT, in both I/O modes (in
+ * nio mode, the acceptors are event loops: with 0, every loop accepts). Each operation is a storm connection: it opens a connection, a CONNECT
+ * tunnel to a local echo origin, exchanges a few bytes and closes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@Threads(32)
+public class AcceptorBenchmark {
+
+    private static final byte[] PAYLOAD = "0123456789abcdef".getBytes(UTF_8);
+
+    @Param({"blocking", "nio"})
+    public String ioMode;
+
+    @Param({"1", "0"})
+    public int acceptors;
+
+    private EchoOrigin origin;
+    private Proxy proxy;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.origin = new EchoOrigin();
+
+        final String json = "{\"proxy\": {\"port\": 0, \"io-mode\": \"" + this.ioMode + "\", \"acceptors\": " + this.acceptors
+                + ", \"max-threads\": 1024, \"accept-queue\": 4096, \"concurrency\": {\"enabled\": false}}}";
+        this.proxy = new Proxy(new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null)));
+
+        final Thread listener = new Thread(this.proxy::listen, "benchmark-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.proxy.closeServer();
+        this.origin.close();
+    }
+
+    @Benchmark
+    public byte[] connection() throws IOException {
+        try (Socket socket = ProxyClient.connect(this.proxy.getLocalPort(), this.origin.getPort())) {
+            socket.getOutputStream().write(PAYLOAD);
+
+            final byte[] echo = new byte[PAYLOAD.length];
+            ProxyClient.readFully(socket.getInputStream(), echo);
+            return echo;
+        }
+    }
+}
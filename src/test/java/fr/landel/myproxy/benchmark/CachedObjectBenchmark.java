@@ -0,0 +1,136 @@
+package fr.landel.myproxy.benchmark;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.landel.myproxy.nio.BufferPool;
+import fr.landel.myproxy.nio.FileTransfer;
+
+/**
+ * Cached objects sent per second to a client on the loopback, as the cache hits are: through the heap (the file is read into a buffer and
+ * written to the buffered stream of the socket, the former path) or with {@link FileTransfer} (sendfile, the bytes stay in the kernel). Each
+ * operation sends the whole file, the client acknowledges once it has read all of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class CachedObjectBenchmark {
+
+    private static final int BUFFER_SIZE = 16_384;
+
+    @Param({"copy", "transferTo"})
+    public String mode;
+
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    private Path file;
+    private SocketChannel client;
+    private SocketChannel server;
+    private BufferPool.PooledOutputStream serverOs;
+    private Thread reader;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer ack = ByteBuffer.allocate(1);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final byte[] bytes = new byte[this.size];
+        new Random(0).nextBytes(bytes);
+        this.file = Files.createTempFile("cached-object-", ".bin");
+        Files.write(this.file, bytes);
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+            this.client = SocketChannel.open(serverChannel.getLocalAddress());
+            this.server = serverChannel.accept();
+            this.server.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        this.serverOs = BufferPool.bufferedOutput(this.server.socket().getOutputStream(), 8_192);
+
+        this.reader = new Thread(this::read, "cached-object-client");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Reads the objects sent and acknowledges each one
+     */
+    private void read() {
+        final ByteBuffer received = ByteBuffer.allocateDirect(65_536);
+        try {
+            long remaining = this.size;
+            while (this.client.read(received.clear()) > -1) {
+                remaining -= received.position();
+                if (remaining <= 0) {
+                    remaining += this.size;
+                    this.client.write(ByteBuffer.wrap(new byte[] {1}));
+                }
+            }
+        } catch (IOException e) {
+            // closed by the tear down
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.serverOs.release();
+        this.server.close();
+        this.client.close();
+        Files.deleteIfExists(this.file);
+    }
+
+    @Benchmark
+    public int send() throws IOException {
+        if ("copy".equals(this.mode)) {
+            try (InputStream fileIs = new FileInputStream(this.file.toFile())) {
+                int read;
+                while ((read = fileIs.read(this.buffer)) > -1) {
+                    this.serverOs.write(this.buffer, 0, read);
+                }
+            }
+            this.serverOs.flush();
+        } else {
+            try (FileChannel fileChannel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+                FileTransfer.transfer(fileChannel, 0, fileChannel.size(), this.server);
+            }
+        }
+
+        this.ack.clear();
+        while (this.ack.hasRemaining()) {
+            if (this.server.read(this.ack) < 0) {
+                throw new IOException("Client closed");
+            }
+        }
+        return this.ack.get(0);
+    }
+}
@@ -0,0 +1,63 @@
+package fr.landel.myproxy.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import fr.landel.myproxy.utils.ThreadUtils;
+
+/**
+ * Local TCP origin echoing everything it receives, used as CONNECT target by the benchmarks
+ */
+public class EchoOrigin implements Closeable {
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(ThreadUtils.platformThreadFactory("echo-origin-", true));
+
+    public EchoOrigin() throws IOException {
+        this.serverSocket = new ServerSocket(0, 4_096);
+        this.executor.execute(this::accept);
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        try {
+            while (!this.serverSocket.isClosed()) {
+                final Socket socket = this.serverSocket.accept();
+                this.executor.execute(() -> echo(socket));
+            }
+        } catch (SocketException e) {
+            // closed
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void echo(final Socket socket) {
+        try (Socket s = socket; InputStream is = s.getInputStream(); OutputStream os = s.getOutputStream()) {
+            final byte[] buffer = new byte[8_192];
+            int read;
+            while ((read = is.read(buffer)) > -1) {
+                os.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // connection reset by the proxy
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.serverSocket.close();
+        this.executor.shutdownNow();
+    }
+}
@@ -0,0 +1,95 @@
+package fr.landel.myproxy.benchmark;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fr.landel.myproxy.http.HttpHeaders;
+import fr.landel.myproxy.http.HttpRequestParser;
+import fr.landel.myproxy.http.HttpUtils;
+
+/**
+ * Compares the parsing of a browser-like request head by the byte parser ({@link HttpRequestParser}, ranges only) and by lines decoded as strings
+ * and split with indexOf/substring. The allocation rate is reported with the GC profiler:
+ * <code>mvn -Pbenchmark test-compile exec:exec -Dbenchmark="HttpRequestParser -prof gc"</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpRequestParserBenchmark {
+
+    private static final String HEAD = "GET http://www.example.com/images/logo.png?size=large HTTP/1.1\r\n" + "Host: www.example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:125.0) Gecko/20100101 Firefox/125.0\r\n"
+            + "Accept: image/avif,image/webp,*/*\r\n" + "Accept-Language: fr-FR,fr;q=0.8,en-US;q=0.5,en;q=0.3\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n" + "Referer: http://www.example.com/index.html\r\n"
+            + "Cookie: session=0123456789abcdef; theme=dark\r\n" + "Proxy-Connection: keep-alive\r\n";
+
+    /**
+     * Number of bytes given per parse call (0: the whole head at once), to measure the resumption on partial reads
+     */
+    @Param({"0", "64"})
+    public int chunk;
+
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    private final HttpRequestParser parser = new HttpRequestParser();
+
+    @Setup
+    public void setup() {
+        this.bytes = (HEAD + "\r\n").getBytes(ISO_8859_1);
+        this.buffer = ByteBuffer.wrap(this.bytes);
+    }
+
+    @Benchmark
+    public void parser(final Blackhole blackhole) throws IOException {
+        final HttpRequestParser request = this.parser.reset();
+        final int step = this.chunk > 0 ? this.chunk : this.bytes.length;
+        int limit = 0;
+        do {
+            limit = Math.min(limit + step, this.bytes.length);
+        } while (!request.parse(this.buffer, limit));
+
+        blackhole.consume(request.isMethod(this.buffer, "CONNECT"));
+        blackhole.consume(request.getTargetEnd());
+        blackhole.consume(request.isKeepAlive(this.buffer));
+        blackhole.consume(request.isChunked(this.buffer));
+        blackhole.consume(request.getContentLength(this.buffer));
+    }
+
+    @Benchmark
+    public void lines(final Blackhole blackhole) throws IOException {
+        final ByteArrayInputStream is = new ByteArrayInputStream(this.bytes);
+        final String line = HttpUtils.readLine(is);
+        final int first = line.indexOf(' ');
+        final int second = line.indexOf(' ', first + 1);
+        final String method = line.substring(0, first);
+        final String target = line.substring(first + 1, second);
+        final String version = line.substring(second + 1);
+        final HttpHeaders headers = HttpHeaders.read(is);
+
+        blackhole.consume("CONNECT".equals(method));
+        blackhole.consume(target);
+        blackhole.consume("HTTP/1.1".equals(version) && !headers.containsToken("Connection", "close"));
+        blackhole.consume(headers.containsToken("Transfer-Encoding", "chunked"));
+        blackhole.consume(headers.get("Content-Length"));
+    }
+}
@@ -0,0 +1,77 @@
+package fr.landel.myproxy.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Self-signed keystores generated by the keytool of the running JDK, used by the TLS benchmarks and tests
+ */
+public final class KeyStores {
+
+    public static final String PASSWORD = "changeit";
+
+    public static final String ALIAS = "myproxy";
+
+    private KeyStores() {
+        throw new UnsupportedOperationException("utility class, not implemented");
+    }
+
+    /**
+     * Generates a PKCS12 keystore with a self-signed EC key ({@link #ALIAS}, protected by {@link #PASSWORD})
+     *
+     * @param directory
+     *            The directory of the keystore
+     * @return The keystore file
+     * @throws IOException
+     *             If keytool fails
+     */
+    public static Path generate(final Path directory) throws IOException {
+        final Path keyStore = directory.resolve("myproxy.p12");
+        final String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        final Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", ALIAS, "-keyalg", "EC", "-groupname", "secp256r1", "-dname",
+                "CN=localhost", "-validity", "2", "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", PASSWORD)
+                        .redirectErrorStream(true).start();
+        try {
+            final String output = new String(process.getInputStream().readAllBytes());
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed: " + output);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("keytool interrupted", e);
+        }
+        return keyStore;
+    }
+
+    /**
+     * Creates a client context trusting the key of the keystore, its sessions are cached and resumed
+     *
+     * @param keyStore
+     *            The keystore file
+     * @return The client context
+     * @throws IOException
+     *             If the keystore cannot be loaded
+     */
+    public static SSLContext clientContext(final Path keyStore) throws IOException {
+        try (InputStream is = Files.newInputStream(keyStore)) {
+            final KeyStore trusted = KeyStore.getInstance("PKCS12");
+            trusted.load(is, PASSWORD.toCharArray());
+
+            final TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(trusted);
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot create the client context", e);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fr.landel.myproxy.benchmark;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.file.Path;
+
+import fr.landel.myproxy.Proxy;
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+/**
+ * Proxy listening on a free local port, with its cache files in a given directory, used by the tests
+ */
+public final class LocalProxy {
+
+    private LocalProxy() {
+        throw new UnsupportedOperationException("utility class, not implemented");
+    }
+
+    /**
+     * Escapes a path to be written in a JSON string
+     *
+     * @param path
+     *            The path
+     * @return The escaped path
+     */
+    public static String escape(final Path path) {
+        return path.toString().replace("\\", "\\\\");
+    }
+
+    /**
+     * Starts a proxy, its listener is a daemon thread. The proxy has to be closed by {@link Proxy#closeServer()}.
+     *
+     * @param directory
+     *            The directory of the cache, of its index and of the blocked sites, not shared between the runs
+     * @param members
+     *            The extra members of the "proxy" configuration block, in JSON (as {@code "\"io-mode\": \"nio\""})
+     * @return The proxy, listening
+     */
+    public static Proxy start(final Path directory, final String... members) {
+        final StringBuilder json = new StringBuilder("{\"proxy\": {\"port\": 0, ");
+        for (String member : members) {
+            json.append(member).append(", ");
+        }
+        json.append("\"cache\": {\"directory\": \"").append(escape(directory.resolve("cached"))).append("\", \"index\": \"")
+                .append(escape(directory.resolve("index"))).append("\"}, \"blocked-sites\": \"").append(escape(directory.resolve("blocked")))
+                .append("\"}}");
+
+        final Proxy proxy = new Proxy(new Configuration(JsonParser.load(json.toString().getBytes(UTF_8)).orElse(null)));
+        final Thread listener = new Thread(proxy::listen, "test-listener");
+        listener.setDaemon(true);
+        listener.start();
+        return proxy;
+    }
+}
@@ -0,0 +1,103 @@
+package fr.landel.myproxy.benchmark;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+/**
+ * Minimal client of the proxy used by the benchmarks
+ */
+public final class ProxyClient {
+
+    private ProxyClient() {
+        throw new UnsupportedOperationException("utility class, not implemented");
+    }
+
+    /**
+     * Opens a CONNECT tunnel through the proxy
+     * 
+     * @param proxyPort
+     *            The local proxy port
+     * @param targetPort
+     *            The local target port
+     * @return The socket, the tunnel is established
+     * @throws IOException
+     *             If the tunnel cannot be established
+     */
+    public static Socket connect(final int proxyPort, final int targetPort) throws IOException {
+        final Socket socket = new Socket("127.0.0.1", proxyPort);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(30_000);
+        return connect(socket, targetPort);
+    }
+
+    /**
+     * Opens a CONNECT tunnel through a connection to the proxy (TLS connection to the TLS listener)
+     * 
+     * @param socket
+     *            The connection to the proxy
+     * @param targetPort
+     *            The local target port
+     * @return The socket, the tunnel is established
+     * @throws IOException
+     *             If the tunnel cannot be established
+     */
+    public static Socket connect(final Socket socket, final int targetPort) throws IOException {
+        final String request = "CONNECT 127.0.0.1:" + targetPort + " HTTP/1.1\r\n" + "Host: 127.0.0.1:" + targetPort + "\r\n"
+                + "User-Agent: benchmark\r\n" + "Proxy-Connection: keep-alive\r\n" + "Accept: */*\r\n" + "\r\n";
+        socket.getOutputStream().write(request.getBytes(ISO_8859_1));
+
+        final String head = readHead(socket.getInputStream());
+        if (!head.contains(" 200 ")) {
+            socket.close();
+            throw new IOException("Tunnel refused: " + head);
+        }
+        return socket;
+    }
+
+    /**
+     * Reads a response head byte per byte (to not consume the body)
+     * 
+     * @param is
+     *            The input stream
+     * @return The head
+     * @throws IOException
+     *             On read failure
+     */
+    public static String readHead(final InputStream is) throws IOException {
+        final StringBuilder builder = new StringBuilder(128);
+        int b;
+        while ((b = is.read()) > -1) {
+            builder.append((char) b);
+            final int len = builder.length();
+            if (len > 3 && builder.charAt(len - 1) == '\n' && builder.charAt(len - 2) == '\r' && builder.charAt(len - 3) == '\n'
+                    && builder.charAt(len - 4) == '\r') {
+                return builder.toString();
+            }
+        }
+        throw new IOException("Connection closed before the end of the head: " + builder);
+    }
+
+    /**
+     * Reads exactly the length of the buffer
+     * 
+     * @param is
+     *            The input stream
+     * @param buffer
+     *            The buffer to fill
+     * @throws IOException
+     *             On read failure or if the stream ends before
+     */
+    public static void readFully(final InputStream is, final byte[] buffer) throws IOException {
+        int offset = 0;
+        int read;
+        while (offset < buffer.length) {
+            if ((read = is.read(buffer, offset, buffer.length - offset)) < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            offset += read;
+        }
+    }
+}
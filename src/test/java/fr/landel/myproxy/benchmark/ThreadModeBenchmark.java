@@ -0,0 +1,90 @@
+package fr.landel.myproxy.benchmark;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.landel.myproxy.Proxy;
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+/**
+ * Compares the blocking handlers on platform threads and on virtual threads (Java 21+, falls back on platform threads otherwise). Each operation
+ * opens a CONNECT tunnel to a local echo origin and exchanges a small payload, while a number of idle tunnels are kept open.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@Threads(32)
+public class ThreadModeBenchmark {
+
+    private static final byte[] PAYLOAD = "0123456789abcdef".repeat(64).getBytes(UTF_8);
+
+    @Param({"platform", "virtual"})
+    public String threadMode;
+
+    @Param({"0", "1000"})
+    public int idleTunnels;
+
+    private EchoOrigin origin;
+    private Proxy proxy;
+    private final List<Socket> idle = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.origin = new EchoOrigin();
+
+        final String json = "{\"proxy\": {\"port\": 0, \"thread-mode\": \"" + this.threadMode + "\", \"max-threads\": 4096, \"accept-queue\": 4096}}";
+        this.proxy = new Proxy(new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null)));
+
+        final Thread listener = new Thread(this.proxy::listen, "benchmark-listener");
+        listener.setDaemon(true);
+        listener.start();
+
+        for (int i = 0; i < this.idleTunnels; ++i) {
+            this.idle.add(ProxyClient.connect(this.proxy.getLocalPort(), this.origin.getPort()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Socket socket : this.idle) {
+            socket.close();
+        }
+        this.proxy.closeServer();
+        this.origin.close();
+    }
+
+    @Benchmark
+    public byte[] tunnel() throws IOException {
+        try (Socket socket = ProxyClient.connect(this.proxy.getLocalPort(), this.origin.getPort())) {
+            socket.getOutputStream().write(PAYLOAD);
+
+            final byte[] echo = new byte[PAYLOAD.length];
+            ProxyClient.readFully(socket.getInputStream(), echo);
+            return echo;
+        }
+    }
+}
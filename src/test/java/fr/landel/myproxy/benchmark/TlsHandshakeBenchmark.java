@@ -0,0 +1,123 @@
+package fr.landel.myproxy.benchmark;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.landel.myproxy.Proxy;
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+/**
+ * Handshakes per second of the TLS listener, with a keystore generated at setup. Each operation opens a TLS connection, a CONNECT tunnel to a
+ * local echo origin and exchanges a small payload (the TLS 1.3 session tickets are received after the handshake). Each thread is a client with
+ * its own session cache, it either resumes its session (from the server cache or from its ticket) or invalidates it to force full handshakes;
+ * the resumption ratio measured by the server is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@Threads(8)
+public class TlsHandshakeBenchmark {
+
+    private static final byte[] PAYLOAD = "0123456789abcdef".getBytes(UTF_8);
+
+    @Param({"true", "false"})
+    public boolean resume;
+
+    @Param({"true", "false"})
+    public boolean sessionTickets;
+
+    private Path directory;
+    private EchoOrigin origin;
+    private Path keyStore;
+    private Proxy proxy;
+
+    /**
+     * Client of a benchmark thread: the JDK clients use a TLS 1.3 ticket once, a shared client would only resume the session of one thread
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        private SSLContext context;
+
+        @Setup(Level.Trial)
+        public void setup(final TlsHandshakeBenchmark benchmark) throws IOException {
+            this.context = KeyStores.clientContext(benchmark.keyStore);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("myproxy-tls");
+        this.keyStore = KeyStores.generate(this.directory);
+        this.origin = new EchoOrigin();
+
+        final String json = "{\"proxy\": {\"port\": 0, \"io-mode\": \"nio\", \"ssl\": {\"port\": 0, \"keystore-file\": \""
+                + this.keyStore.toString().replace("\\", "\\\\") + "\", \"keystore-pass\": \"" + KeyStores.PASSWORD + "\", \"key-alias\": \""
+                + KeyStores.ALIAS + "\", \"session-tickets\": " + this.sessionTickets + "}}}";
+        this.proxy = new Proxy(new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null)));
+
+        final Thread listener = new Thread(this.proxy::listen, "benchmark-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        final long handshakes = Metrics.counter("tls.handshakes").sum();
+        final long resumed = Metrics.counter("tls.handshakes.resumed").sum();
+        System.out.println("\nTLS handshakes: " + handshakes + ", resumed: " + resumed + " (" + Metrics.percent(resumed, handshakes) + "%), failed: "
+                + Metrics.counter("tls.handshakes.failed").sum());
+
+        this.proxy.closeServer();
+        this.origin.close();
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public byte[] handshake(final Client client) throws IOException {
+        try (SSLSocket socket = (SSLSocket) client.context.getSocketFactory().createSocket("127.0.0.1", this.proxy.getTlsPort())) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(30_000);
+            ProxyClient.connect(socket, this.origin.getPort());
+            socket.getOutputStream().write(PAYLOAD);
+
+            final byte[] echo = new byte[PAYLOAD.length];
+            ProxyClient.readFully(socket.getInputStream(), echo);
+            if (!this.resume) {
+                socket.getSession().invalidate();
+            }
+            return echo;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package fr.landel.myproxy.dns;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+public class DnsCacheTest {
+
+    private DnsCache cache;
+
+    @BeforeEach
+    public void setup() {
+        final String json = "{\"proxy\": {\"dns\": {\"ttl\": \"PT60S\", \"negative-ttl\": \"PT0.2S\"}}}";
+        this.cache = new DnsCache(new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null)));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.cache.close();
+    }
+
+    @Test
+    public void testResolve() throws Exception {
+        final CompletableFuture<InetAddress[]> first = this.cache.resolveAsync("localhost");
+        // pending or cached, the same resolution is shared
+        assertSame(first, this.cache.resolveAsync("LOCALHOST"));
+        assertTrue(first.get()[0].isLoopbackAddress());
+        assertSame(first, this.cache.resolveAsync("localhost"));
+        assertTrue(this.cache.resolve("localhost").isLoopbackAddress());
+
+        assertEquals(InetAddress.getByName("127.0.0.2"), this.cache.resolve("127.0.0.2"));
+        assertTrue(this.cache.resolve("::1").isLoopbackAddress());
+    }
+
+    @Test
+    public void testNegative() throws Exception {
+        assertThrows(UnknownHostException.class, () -> this.cache.resolve("unknown.invalid"));
+        final CompletableFuture<InetAddress[]> failed = this.cache.resolveAsync("unknown.invalid");
+        assertTrue(failed.isCompletedExceptionally());
+        assertSame(failed, this.cache.resolveAsync("unknown.invalid"));
+
+        Thread.sleep(300);
+        assertNotSame(failed, this.cache.resolveAsync("unknown.invalid"));
+    }
+}
@@ -0,0 +1,111 @@
+package fr.landel.myproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class BodyFramerTest {
+
+    private static byte[] bytes(final String content) {
+        return content.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void testFixed() throws IOException {
+        final BodyFramer framer = BodyFramer.fixed(5);
+        final byte[] data = bytes("helloGET");
+        assertEquals(3, framer.advance(data, 0, 3));
+        assertFalse(framer.isComplete());
+        assertEquals(2, framer.advance(data, 3, 5));
+        assertTrue(framer.isComplete());
+        assertEquals(0, framer.advance(data, 5, 3));
+
+        assertTrue(BodyFramer.fixed(0).isComplete());
+    }
+
+    @Test
+    public void testChunked() throws IOException {
+        final byte[] data = bytes("5;ext=1\r\nhello\r\nA\r\n0123456789\r\n0\r\nTrailer: x\r\n\r\nGET");
+        final int body = data.length - 3;
+
+        // byte per byte, as split reads
+        BodyFramer framer = BodyFramer.chunked();
+        int consumed = 0;
+        for (int i = 0; i < data.length; ++i) {
+            consumed += framer.advance(data, i, 1);
+        }
+        assertEquals(body, consumed);
+        assertTrue(framer.isComplete());
+
+        framer = BodyFramer.chunked();
+        assertEquals(body, framer.advance(data, 0, data.length));
+        assertTrue(framer.isComplete());
+
+        framer = BodyFramer.chunked();
+        assertEquals(5, framer.advance(bytes("0\r\n\r\nX"), 0, 6));
+        assertTrue(framer.isComplete());
+    }
+
+    @Test
+    public void testUntilClose() throws IOException {
+        final BodyFramer framer = BodyFramer.untilClose();
+        assertEquals(4, framer.advance(bytes("data"), 0, 4));
+        assertTrue(framer.isUntilClose());
+        assertFalse(framer.isComplete());
+        assertTrue(framer.endOfStream());
+
+        assertFalse(BodyFramer.chunked().endOfStream());
+    }
+
+    @Test
+    public void testOf() throws IOException {
+        final HttpHeaders headers = new HttpHeaders().add("Content-Length", "10");
+        assertFalse(BodyFramer.of(headers, false).isComplete());
+        assertTrue(BodyFramer.of(new HttpHeaders(), false).isComplete());
+        assertTrue(BodyFramer.of(new HttpHeaders(), true).isUntilClose());
+        assertEquals(3, BodyFramer.of(new HttpHeaders().add("Transfer-Encoding", "gzip, chunked"), true).advance(bytes("1\r\n"), 0, 3));
+    }
+
+    @Test
+    public void testContentLength() throws IOException {
+        assertEquals(-1, BodyFramer.contentLength(new HttpHeaders()));
+        assertEquals(5, BodyFramer.contentLength(new HttpHeaders().add("Content-Length", " 5 ")));
+        assertEquals(5, BodyFramer.contentLength(new HttpHeaders().add("Content-Length", "5, 5").add("content-length", "5")));
+
+        for (String length : new String[] {"-5", "+5", "", "5x", "0x10", "1234567890123456789"}) {
+            final HttpHeaders headers = new HttpHeaders().add("Content-Length", length);
+            assertThrows(BodyFramer.MalformedException.class, () -> BodyFramer.of(headers, true), length);
+        }
+        assertThrows(BodyFramer.MalformedException.class, () -> BodyFramer.of(new HttpHeaders().add("Content-Length", "5, 6"), true));
+        assertThrows(BodyFramer.MalformedException.class,
+                () -> BodyFramer.of(new HttpHeaders().add("Content-Length", "5").add("Content-Length", "6"), true));
+
+        // the chunked coding overrides the length
+        assertFalse(BodyFramer.of(new HttpHeaders().add("Transfer-Encoding", "chunked").add("Content-Length", "-1"), true).isUntilClose());
+
+        assertEquals(-1, new HttpResponseHead("HTTP/1.1", 200, "OK", new HttpHeaders().add("Content-Length", "-5")).getContentLength());
+    }
+
+    @Test
+    public void testChunkSizeTooLarge() throws IOException {
+        // 15 digits are accepted
+        final BodyFramer framer = BodyFramer.chunked();
+        assertEquals(17, framer.advance(bytes("00000000000000A\r\n"), 0, 17));
+        assertFalse(framer.isComplete());
+
+        // 16 digits would overflow the size into a negative count
+        final byte[] data = bytes("FFFFFFFFFFFFFFFF\r\n");
+        assertThrows(BodyFramer.MalformedException.class, () -> BodyFramer.chunked().advance(data, 0, data.length));
+
+        // also split across reads, and through the sink
+        final BodyFramer split = BodyFramer.chunked();
+        assertEquals(8, split.advance(data, 0, 8));
+        assertThrows(BodyFramer.MalformedException.class, () -> split.advance(data, 8, 8, (b, o, l) -> { }));
+    }
+}
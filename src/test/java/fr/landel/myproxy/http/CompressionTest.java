@@ -0,0 +1,91 @@
+package fr.landel.myproxy.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+public class CompressionTest {
+
+    private final Compression compression = new Compression(
+            new Configuration(JsonParser.load("{\"proxy\": {\"compression\": {\"min-size\": 100, \"max-load\": 1000}}}".getBytes(UTF_8)).orElse(null)));
+
+    private String negotiate(final String accept) {
+        return this.compression.negotiate(new HttpHeaders().add("Accept-Encoding", accept));
+    }
+
+    private static HttpResponseHead head(final String... headers) {
+        final HttpHeaders httpHeaders = new HttpHeaders();
+        for (int i = 0; i < headers.length; i += 2) {
+            httpHeaders.add(headers[i], headers[i + 1]);
+        }
+        return new HttpResponseHead("HTTP/1.1", 200, "OK", httpHeaders);
+    }
+
+    @Test
+    public void testNegotiate() {
+        assertNull(this.compression.negotiate(new HttpHeaders()));
+        assertEquals("gzip", this.negotiate("gzip, deflate, br"));
+        assertEquals("gzip", this.negotiate("deflate, gzip"));
+        assertEquals("deflate", this.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate", this.negotiate("gzip;q=0, *"));
+        assertEquals("gzip", this.negotiate("*"));
+        assertNull(this.negotiate("br, identity"));
+        assertNull(this.negotiate("gzip;q=0"));
+    }
+
+    @Test
+    public void testCandidate() {
+        assertTrue(this.compression.isCandidate(head("Content-Type", "text/html; charset=UTF-8", "Content-Length", "5000")));
+        assertTrue(this.compression.isCandidate(head("Content-Type", "application/json", "Transfer-Encoding", "chunked")));
+        assertFalse(this.compression.isCandidate(head("Content-Type", "image/png", "Content-Length", "5000")));
+        assertFalse(this.compression.isCandidate(head("Content-Type", "text/html", "Content-Length", "50")));
+        assertFalse(this.compression.isCandidate(head("Content-Type", "text/html", "Content-Encoding", "br", "Content-Length", "5000")));
+        assertFalse(this.compression.isCandidate(head("Content-Type", "text/html", "Cache-Control", "public, no-transform")));
+        assertFalse(this.compression.isCandidate(head("Content-Length", "5000")));
+    }
+
+    @Test
+    public void testWorth() {
+        final byte[] text = "<p>compressible text</p>\n".repeat(200).getBytes(UTF_8);
+        assertTrue(this.compression.isWorth(text, false));
+        assertFalse(this.compression.isWorth("<p>short</p>".getBytes(UTF_8), true));
+
+        final byte[] random = new byte[4_096];
+        new Random(0).nextBytes(random);
+        assertFalse(this.compression.isWorth(random, false));
+    }
+
+    @Test
+    public void testEncode() throws IOException {
+        final byte[] body = "{\"key\": \"value\"}\n".repeat(1_000).getBytes(UTF_8);
+
+        final ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        try (OutputStream os = this.compression.encode(Compression.GZIP, gzip)) {
+            os.write(body);
+        }
+        assertTrue(gzip.size() < body.length / 10);
+        assertArrayEquals(body, new GZIPInputStream(new ByteArrayInputStream(gzip.toByteArray())).readAllBytes());
+
+        final ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+        try (OutputStream os = this.compression.encode(Compression.DEFLATE, deflate)) {
+            os.write(body);
+        }
+        assertArrayEquals(body, new InflaterInputStream(new ByteArrayInputStream(deflate.toByteArray())).readAllBytes());
+    }
+}
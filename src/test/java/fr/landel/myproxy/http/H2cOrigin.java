@@ -0,0 +1,179 @@
+package fr.landel.myproxy.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal origin upgrading its connections to HTTP/2 in cleartext (h2c), enough for the JDK client: the first request is answered on the stream 1
+ * after the "101 Switching Protocols", the next ones on the HEADERS frames of the client. The request headers aren't decoded (HPACK), each body is
+ * "h2 stream N". Without an "Upgrade: h2c" header or in HTTP/1.1 only mode, the requests are answered in HTTP/1.1 ("h1 target").
+ */
+public class H2cOrigin implements Closeable {
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private static final int PREFACE_LENGTH = 24;
+
+    private final boolean http2;
+    private final boolean contentLength;
+    private final ServerSocket server;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Queue<String> upgrades = new ConcurrentLinkedQueue<>();
+    private final Queue<Socket> sockets = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor, starts the origin on a loopback port
+     *
+     * @param http2
+     *            true to upgrade the connections, false to answer in HTTP/1.1 only
+     * @param contentLength
+     *            true to send a content-length with the HTTP/2 responses
+     * @throws IOException
+     *             if the port cannot be bound
+     * @category constructor
+     */
+    public H2cOrigin(final boolean http2, final boolean contentLength) throws IOException {
+        this.http2 = http2;
+        this.contentLength = contentLength;
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread acceptor = new Thread(() -> {
+            while (!this.server.isClosed()) {
+                try {
+                    final Socket socket = this.server.accept();
+                    this.connections.incrementAndGet();
+                    this.sockets.add(socket);
+                    final Thread handler = new Thread(() -> this.serve(socket), "h2c-origin-connection");
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "h2c-origin");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return this.server.getLocalPort();
+    }
+
+    /**
+     * @return the number of accepted connections
+     */
+    public int getConnections() {
+        return this.connections.get();
+    }
+
+    /**
+     * @return the "Upgrade" header of each HTTP/1.1 request, an empty string if absent
+     */
+    public Queue<String> getUpgrades() {
+        return this.upgrades;
+    }
+
+    private void serve(final Socket socket) {
+        try (socket) {
+            final DataInputStream is = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final OutputStream os = socket.getOutputStream();
+            HttpRequestHead request;
+            while ((request = HttpRequestHead.read(is)) != null) {
+                final String upgrade = request.getHeaders().get("Upgrade");
+                this.upgrades.add(upgrade != null ? upgrade : "");
+                if (this.http2 && "h2c".equalsIgnoreCase(upgrade)) {
+                    os.write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(ISO_8859_1));
+                    frame(os, SETTINGS, 0, 0, new byte[0]);
+                    is.readNBytes(PREFACE_LENGTH);
+                    this.respond(os, 1);
+                    this.frames(is, os);
+                    return;
+                }
+                final String body = "h1 " + request.getTarget();
+                os.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes(ISO_8859_1));
+                os.flush();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void frames(final DataInputStream is, final OutputStream os) throws IOException {
+        final byte[] header = new byte[9];
+        while (true) {
+            is.readFully(header);
+            final int length = (header[0] & 0xFF) << 16 | (header[1] & 0xFF) << 8 | header[2] & 0xFF;
+            final int type = header[3];
+            final int flags = header[4];
+            final int stream = (header[5] & 0x7F) << 24 | (header[6] & 0xFF) << 16 | (header[7] & 0xFF) << 8 | header[8] & 0xFF;
+            final byte[] payload = is.readNBytes(length);
+
+            if ((type == HEADERS || type == CONTINUATION) && (flags & END_HEADERS) != 0) {
+                this.respond(os, stream);
+            } else if (type == SETTINGS && (flags & ACK) == 0) {
+                frame(os, SETTINGS, ACK, 0, new byte[0]);
+            } else if (type == PING && (flags & ACK) == 0) {
+                frame(os, PING, ACK, 0, payload);
+            } else if (type == GOAWAY) {
+                return;
+            }
+        }
+    }
+
+    private void respond(final OutputStream os, final int stream) throws IOException {
+        final byte[] body = ("h2 stream " + stream).getBytes(ISO_8859_1);
+        final StringBuilder block = new StringBuilder();
+        // indexed ":status: 200"
+        block.append((char) 0x88);
+        literal(block, "content-type", "text/plain");
+        if (this.contentLength) {
+            literal(block, "content-length", String.valueOf(body.length));
+        }
+        frame(os, HEADERS, END_HEADERS, stream, block.toString().getBytes(ISO_8859_1));
+        frame(os, DATA, END_STREAM, stream, body);
+        os.flush();
+    }
+
+    /**
+     * Literal header field without indexing, new name, no Huffman coding
+     */
+    private static void literal(final StringBuilder block, final String name, final String value) {
+        block.append((char) 0x00).append((char) name.length()).append(name).append((char) value.length()).append(value);
+    }
+
+    private static void frame(final OutputStream os, final int type, final int flags, final int stream, final byte[] payload) throws IOException {
+        final int length = payload.length;
+        os.write(new byte[] {(byte) (length >>> 16), (byte) (length >>> 8), (byte) length, (byte) type, (byte) flags, (byte) (stream >>> 24),
+                (byte) (stream >>> 16), (byte) (stream >>> 8), (byte) stream});
+        os.write(payload);
+        os.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.server.close();
+        for (Socket socket : this.sockets) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package fr.landel.myproxy.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.dns.DnsCache;
+import fr.landel.myproxy.monitor.Metrics;
+import fr.landel.myproxy.nio.Connector;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+public class Http2TransportTest {
+
+    private DnsCache dnsCache;
+    private ParentRouter router;
+    private UpstreamPool pool;
+    private Http2Transport transport;
+    private UpstreamFetcher fetcher;
+    private H2cOrigin origin;
+
+    private void start(final boolean http2, final boolean contentLength) throws IOException {
+        final String json = "{\"proxy\": {\"retry\": 0, \"http2\": {\"cleartext\": true}}}";
+        final Configuration configuration = new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null));
+        this.dnsCache = new DnsCache(configuration);
+        final Connector connector = new Connector(configuration, this.dnsCache);
+        this.router = new ParentRouter(configuration, connector);
+        this.pool = new UpstreamPool(configuration, connector, this.router);
+        this.transport = new Http2Transport(configuration, this.router);
+        this.fetcher = new UpstreamFetcher(configuration, this.pool, this.transport);
+        this.origin = new H2cOrigin(http2, contentLength);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if (this.fetcher == null) {
+            return;
+        }
+        this.fetcher.close();
+        this.transport.close();
+        this.pool.close();
+        this.router.close();
+        this.dnsCache.close();
+        this.origin.close();
+    }
+
+    private URL url(final String path) throws IOException {
+        return new URL("http://127.0.0.1:" + this.origin.getPort() + path);
+    }
+
+    private String fetch(final String path) throws IOException {
+        final UpstreamFetcher.Exchange exchange = this.fetcher.fetch(this.url(path));
+        boolean reusable = false;
+        try {
+            assertEquals(200, exchange.getHead().getStatus());
+            final InputStream body = HttpBodyInputStream.of(exchange.getHead(), "GET", exchange.getBody());
+            final String content = new String(body.readAllBytes(), ISO_8859_1);
+            reusable = true;
+            return content;
+        } finally {
+            exchange.release(reusable);
+        }
+    }
+
+    @Test
+    public void testMultiplexing() throws Exception {
+        this.start(true, true);
+
+        // the upgrade opens the connection, the next requests are streams on it
+        assertEquals("h2 stream 1", this.fetch("/first"));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            final List<Callable<String>> tasks = new ArrayList<>();
+            for (int i = 0; i < 10; ++i) {
+                final String path = "/concurrent/" + i;
+                tasks.add(() -> this.fetch(path));
+            }
+            for (Future<String> response : executor.invokeAll(tasks)) {
+                assertTrue(response.get().startsWith("h2 stream "), response.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, this.origin.getConnections());
+    }
+
+    @Test
+    public void testChunkedWithoutLength() throws Exception {
+        this.start(true, false);
+
+        final UpstreamFetcher.Exchange exchange = this.fetcher.fetch(this.url("/chunked"));
+        try {
+            assertTrue(exchange.getHead().isChunked());
+            assertNull(exchange.getConnection());
+            assertEquals("b\r\nh2 stream 1\r\n0\r\n\r\n", new String(exchange.getBody().readAllBytes(), ISO_8859_1));
+        } finally {
+            exchange.release(true);
+        }
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        this.start(false, true);
+        final long fallbacks = Metrics.counter("upstream.http2.fallbacks").sum();
+
+        // the JDK client gets an HTTP/1.1 response to its upgrade, the origin then uses the pool
+        assertEquals("h1 /first", this.fetch("/first"));
+        assertEquals("h1 /second", this.fetch("/second"));
+
+        assertEquals(fallbacks + 1, Metrics.counter("upstream.http2.fallbacks").sum());
+        assertEquals(List.of("h2c", ""), new ArrayList<>(this.origin.getUpgrades()));
+    }
+}
@@ -0,0 +1,70 @@
+package fr.landel.myproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class HttpBodyInputStreamTest {
+
+    private static InputStream stream(final String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String readAll(final InputStream is) throws IOException {
+        return new String(is.readAllBytes(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void testContentLength() throws IOException {
+        final InputStream is = stream("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhelloHTTP/1.1");
+        final HttpResponseHead head = HttpResponseHead.read(is);
+        assertEquals(200, head.getStatus());
+        assertTrue(head.isKeepAlive());
+
+        final HttpBodyInputStream body = HttpBodyInputStream.of(head, "GET", is);
+        assertEquals("hello", readAll(body));
+        assertTrue(body.isComplete());
+
+        // the next message is untouched
+        assertEquals("HTTP/1.1", readAll(is));
+    }
+
+    @Test
+    public void testChunked() throws IOException {
+        final InputStream is = stream(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\nTrailer: x\r\n\r\nnext");
+        final HttpResponseHead head = HttpResponseHead.read(is);
+
+        final HttpBodyInputStream body = HttpBodyInputStream.of(head, "GET", is);
+        assertEquals("hello world", readAll(body));
+        assertTrue(body.isComplete());
+        assertEquals("next", readAll(is));
+    }
+
+    @Test
+    public void testUntilClose() throws IOException {
+        final InputStream is = stream("HTTP/1.0 200 OK\r\n\r\nhello");
+        final HttpResponseHead head = HttpResponseHead.read(is);
+        assertFalse(head.isKeepAlive());
+
+        final HttpBodyInputStream body = HttpBodyInputStream.of(head, "GET", is);
+        assertEquals("hello", readAll(body));
+        assertFalse(body.isComplete());
+    }
+
+    @Test
+    public void testNoBody() throws IOException {
+        final InputStream is = stream("HTTP/1.1 304 Not Modified\r\nContent-Length: 10\r\n\r\n");
+        final HttpResponseHead head = HttpResponseHead.read(is);
+        final HttpBodyInputStream body = HttpBodyInputStream.of(head, "GET", is);
+        assertEquals("", readAll(body));
+        assertTrue(body.isComplete());
+    }
+}
@@ -0,0 +1,326 @@
+package fr.landel.myproxy.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.landel.myproxy.Proxy;
+import fr.landel.myproxy.benchmark.LocalProxy;
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+public class HttpCacheTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    private HttpCache cache() {
+        return this.cache(1L << 30);
+    }
+
+    private HttpCache cache(final long maxSize) {
+        final String json = "{\"proxy\": {\"cache\": {\"heuristic-fraction\": 0.1, \"heuristic-max\": \"PT1H\", \"max-size\": " + maxSize + "}}}";
+        return new HttpCache(new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null)), this.dir.toFile());
+    }
+
+    private static String date(final long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    private static HttpHeaders headers(final String... namesAndValues) {
+        final HttpHeaders headers = new HttpHeaders();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.add(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return headers;
+    }
+
+    private static HttpResponseHead response(final String... namesAndValues) {
+        return new HttpResponseHead("HTTP/1.1", 200, "OK", headers(namesAndValues));
+    }
+
+    private static HttpRequestHead request(final String... namesAndValues) {
+        return new HttpRequestHead("GET", "http://host/page", "HTTP/1.1", headers(namesAndValues));
+    }
+
+    @Test
+    public void testLifetime() {
+        final HttpCache cache = this.cache();
+        assertEquals(60_000, cache.lifetime(headers("Cache-Control", "public, max-age=60"), NOW));
+        // shared cache
+        assertEquals(10_000, cache.lifetime(headers("Cache-Control", "max-age=60, s-maxage=10"), NOW));
+        assertEquals(0, cache.lifetime(headers("Cache-Control", "no-cache, max-age=60"), NOW));
+        assertEquals(120_000, cache.lifetime(headers("Expires", date(NOW + 120_000)), NOW));
+        assertEquals(0, cache.lifetime(headers("Expires", "0"), NOW));
+
+        // heuristic: 10% of the time since the last modification, at most 1 hour
+        assertEquals(360_000, cache.lifetime(headers("Last-Modified", date(NOW - 3_600_000)), NOW));
+        assertEquals(3_600_000, cache.lifetime(headers("Last-Modified", date(NOW - 360_000_000)), NOW));
+        assertEquals(0, cache.lifetime(headers(), NOW));
+    }
+
+    @Test
+    public void testDirectives() {
+        final Map<String, String> directives = HttpCache
+                .directives(headers("Cache-Control", "Max-Age=\"30\", no-cache=\"Set-Cookie, Date\"", "Cache-Control", "private"));
+        assertEquals("30", directives.get("max-age"));
+        assertEquals("Set-Cookie, Date", directives.get("no-cache"));
+        assertEquals("", directives.get("private"));
+        assertEquals(3, directives.size());
+    }
+
+    @Test
+    public void testFreshness() throws IOException {
+        final HttpCache cache = this.cache();
+        final File file = cache.newFile("http://host/page");
+        Files.write(file.toPath(), "body".getBytes(UTF_8));
+
+        // 20 seconds old when received (Age), 1 second in transit
+        final HttpCache.Entry entry = cache.put("http://host/page", file, null,
+                response("Date", date(NOW - 1_000), "Age", "20", "Cache-Control", "max-age=60", "Content-Length", "4"), NOW - 1_000, NOW);
+        assertEquals(21_000, entry.getAge(NOW));
+        assertTrue(entry.isFresh(NOW + 38_000));
+        assertFalse(entry.isFresh(NOW + 40_000));
+
+        assertTrue(cache.isFresh(entry, request(), NOW));
+        assertFalse(cache.isFresh(entry, request("Cache-Control", "no-cache"), NOW));
+        assertFalse(cache.isFresh(entry, request("Pragma", "no-cache"), NOW));
+        assertFalse(cache.isFresh(entry, request("Cache-Control", "max-age=10"), NOW));
+        assertTrue(cache.isFresh(entry, request("Cache-Control", "max-age=30"), NOW));
+        assertFalse(cache.isFresh(entry, request("Cache-Control", "min-fresh=40"), NOW));
+
+        // the framing isn't stored
+        assertNull(entry.getHead().getHeaders().get("Content-Length"));
+    }
+
+    @Test
+    public void testStorable() {
+        assertTrue(HttpCache.isStorable(request(), response("Vary", "Accept-Encoding")));
+        assertFalse(HttpCache.isStorable(request(), new HttpResponseHead("HTTP/1.1", 404, "Not Found", headers())));
+        assertFalse(HttpCache.isStorable(request(), response("Cache-Control", "no-store")));
+        assertFalse(HttpCache.isStorable(request(), response("Cache-Control", "private, max-age=60")));
+        assertFalse(HttpCache.isStorable(request("Cache-Control", "no-store"), response()));
+        assertFalse(HttpCache.isStorable(request(), response("Vary", "Accept-Encoding, Cookie")));
+        assertFalse(HttpCache.isStorable(request(), response("Vary", "*")));
+
+        assertFalse(HttpCache.isStorable(request("Authorization", "Basic eDp5"), response("Cache-Control", "max-age=60")));
+        assertTrue(HttpCache.isStorable(request("Authorization", "Basic eDp5"), response("Cache-Control", "public, max-age=60")));
+        assertFalse(HttpCache.isStorable(request("Cookie", "session=1"), response("Cache-Control", "max-age=60")));
+        assertTrue(HttpCache.isStorable(request("Cookie", "session=1"), response("Cache-Control", "s-maxage=60")));
+
+        assertTrue(HttpCache.isPersonal(request("Cookie", "session=1")));
+        assertFalse(HttpCache.isPersonal(request("Accept-Language", "fr")));
+    }
+
+    @Test
+    public void testRevalidate() throws IOException {
+        final HttpCache cache = this.cache();
+        final File file = cache.newFile("http://host/page");
+        Files.write(file.toPath(), "body".getBytes(UTF_8));
+
+        final HttpCache.Entry entry = cache.put("http://host/page", file, null,
+                response("Content-Type", "text/plain", "ETag", "\"v1\"", "Last-Modified", date(NOW - 60_000), "Cache-Control", "max-age=0"), NOW,
+                NOW);
+        assertFalse(entry.isFresh(NOW));
+        assertEquals("\"v1\"", entry.getConditions().get("If-None-Match"));
+        assertEquals(date(NOW - 60_000), entry.getConditions().get("If-Modified-Since"));
+
+        final HttpResponseHead notModified = new HttpResponseHead("HTTP/1.1", 304, "Not Modified",
+                headers("Cache-Control", "max-age=30", "Connection", "keep-alive"));
+        final HttpCache.Entry refreshed = cache.revalidate("http://host/page", entry, notModified, NOW + 1_000, NOW + 1_000);
+        assertTrue(refreshed.isFresh(NOW + 20_000));
+        assertEquals(file, cache.get("http://host/page").getFile());
+
+        final HttpResponseHead head = cache.get("http://host/page").getHead();
+        assertEquals(200, head.getStatus());
+        assertEquals("text/plain", head.getHeaders().get("Content-Type"));
+        assertEquals("max-age=30", head.getHeaders().get("Cache-Control"));
+        assertNull(head.getHeaders().get("Connection"));
+
+        cache.remove("http://host/page");
+        assertNull(cache.get("http://host/page"));
+        // kept for the hits in progress, until the delay or the close
+        assertTrue(file.exists());
+        cache.save(this.dir.resolve("index").toFile());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testReplace() throws IOException {
+        final HttpCache cache = this.cache();
+        final File first = cache.newFile("http://host/page");
+        Files.write(first.toPath(), "first".getBytes(UTF_8));
+        final HttpCache.Entry former = cache.put("http://host/page", first, null, response("ETag", "\"v1\"", "Cache-Control", "max-age=60"),
+                NOW, NOW);
+
+        // a new response never rewrites the file of the cached one
+        final File second = cache.newFile("http://host/page");
+        assertNotEquals(first, second);
+        Files.write(second.toPath(), "second".getBytes(UTF_8));
+        final HttpCache.Entry entry = cache.put("http://host/page", second, null, response("ETag", "\"v2\"", "Cache-Control", "max-age=60"),
+                NOW, NOW);
+        assertEquals(second, cache.get("http://host/page").getFile());
+        assertEquals("\"v2\"", entry.getHead().getHeaders().get("ETag"));
+
+        // a hit which got the former entry still reads its body with its head
+        assertEquals("first", Files.readString(former.getFile().toPath()));
+        assertEquals("\"v1\"", former.getHead().getHeaders().get("ETag"));
+
+        // a revalidation of the former entry doesn't override the new one
+        cache.revalidate("http://host/page", former, new HttpResponseHead("HTTP/1.1", 304, "Not Modified", headers()), NOW, NOW);
+        assertEquals(second, cache.get("http://host/page").getFile());
+    }
+
+    @Test
+    public void testEviction() throws IOException, InterruptedException {
+        final HttpCache cache = this.cache(250);
+        final byte[] body = new byte[100];
+        for (int i = 0; i < 3; ++i) {
+            final String url = "http://host/page" + i;
+            final File file = cache.newFile(url);
+            Files.write(file.toPath(), body);
+            cache.put(url, file, null, response("Cache-Control", "max-age=60"), NOW, NOW);
+            if (i == 1) {
+                // the first page becomes more recently used than the second one
+                TimeUnit.MILLISECONDS.sleep(5);
+                assertTrue(cache.get("http://host/page0").getFile().isFile());
+            }
+        }
+        // 300 bytes, the least recently used page is removed
+        assertEquals(Set.of("http://host/page0", "http://host/page2"), cache.getUrls());
+    }
+
+    @Test
+    public void testFileAndIndex() throws IOException, ClassNotFoundException {
+        final HttpCache cache = this.cache();
+        // without extension nor dot
+        final File file = cache.newFile("http://localhost:8080/");
+        assertTrue(file.getName().startsWith("localhost_8080_-"), file.getName());
+        final File other = cache.newFile("http://localhost:8080/?a");
+        assertNotEquals(file.getName().substring(0, file.getName().lastIndexOf('-')), other.getName().substring(0, other.getName().lastIndexOf('-')));
+
+        Files.write(file.toPath(), "body".getBytes(UTF_8));
+        cache.put("http://localhost:8080/", file, null, response("Cache-Control", "max-age=60"), NOW, NOW);
+        final File index = this.dir.resolve("index").toFile();
+        cache.save(index);
+
+        final HttpCache loaded = this.cache();
+        loaded.load(index);
+        assertEquals(60_000, loaded.get("http://localhost:8080/").getLifetime());
+
+        // former index, without freshness
+        try (ObjectOutputStream os = new ObjectOutputStream(Files.newOutputStream(index.toPath()))) {
+            os.writeObject(Map.of("http://localhost:8080/", file));
+        }
+        final HttpCache former = this.cache();
+        former.load(index);
+        assertTrue(former.getUrls().isEmpty());
+    }
+
+    @Test
+    public void testProxyRevalidation() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger notModified = new AtomicInteger();
+        final AtomicInteger cookies = new AtomicInteger();
+        try (ServerSocket origin = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            final Thread acceptor = new Thread(() -> {
+                while (!origin.isClosed()) {
+                    try (Socket socket = origin.accept()) {
+                        final InputStream is = socket.getInputStream();
+                        final OutputStream os = socket.getOutputStream();
+                        HttpRequestHead request;
+                        while ((request = HttpRequestHead.read(is)) != null) {
+                            requests.incrementAndGet();
+                            if ("session=1".equals(request.getHeaders().get("Cookie"))) {
+                                cookies.incrementAndGet();
+                            }
+                            final String cacheControl = request.getTarget().endsWith("/fresh") ? "max-age=60" : "max-age=0";
+                            if ("\"v1\"".equals(request.getHeaders().get("If-None-Match"))) {
+                                notModified.incrementAndGet();
+                                os.write(("HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\nCache-Control: " + cacheControl + "\r\n\r\n")
+                                        .getBytes(ISO_8859_1));
+                            } else {
+                                os.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nETag: \"v1\"\r\nCache-Control: " + cacheControl
+                                        + "\r\nContent-Length: 5\r\n\r\nhello").getBytes(ISO_8859_1));
+                            }
+                            os.flush();
+                        }
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }, "origin-test");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            // the cache files of the proxy in the test directory, not shared between the runs
+            final Proxy proxy = LocalProxy.start(this.dir, "\"http2\": {\"enabled\": false}", "\"upstream-pool\": {\"max-per-host\": 1}");
+            try {
+                final String base = "http://127.0.0.1:" + origin.getLocalPort();
+
+                // revalidated at each request: the second one gets a 304, the body is served from the cache
+                assertTrue(get(proxy, base + "/revalidated").endsWith("\r\n\r\nhello"));
+                final String revalidated = get(proxy, base + "/revalidated");
+                assertTrue(revalidated.startsWith("HTTP/1.1 200 OK\r\n"), revalidated);
+                assertTrue(revalidated.contains("Content-Type: text/plain\r\n"), revalidated);
+                assertTrue(revalidated.endsWith("\r\n\r\nhello"), revalidated);
+                assertEquals(2, requests.get());
+                assertEquals(1, notModified.get());
+
+                // fresh: the origin isn't requested again
+                assertTrue(get(proxy, base + "/fresh").endsWith("\r\n\r\nhello"));
+                final String fresh = get(proxy, base + "/fresh");
+                assertTrue(fresh.contains("Age: "), fresh);
+                assertTrue(fresh.endsWith("\r\n\r\nhello"), fresh);
+                assertEquals(3, requests.get());
+
+                // personal: forwarded with its cookie, not served from the cache
+                assertTrue(get(proxy, base + "/fresh", "Cookie: session=1\r\n").endsWith("\r\n\r\nhello"));
+                assertEquals(4, requests.get());
+                assertEquals(1, cookies.get());
+            } finally {
+                proxy.closeServer();
+            }
+        }
+    }
+
+    private static String get(final Proxy proxy, final String url) throws IOException {
+        return get(proxy, url, "");
+    }
+
+    private static String get(final Proxy proxy, final String url, final String headers) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxy.getLocalPort())) {
+            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+            socket.getOutputStream()
+                    .write(("GET " + url + " HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n" + headers + "\r\n").getBytes(ISO_8859_1));
+            return new String(socket.getInputStream().readAllBytes(), ISO_8859_1);
+        }
+    }
+}
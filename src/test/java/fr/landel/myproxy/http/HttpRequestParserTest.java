@@ -0,0 +1,121 @@
+package fr.landel.myproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class HttpRequestParserTest {
+
+    private static final String REQUEST = "\r\nGET http://localhost/index.html HTTP/1.1\r\nHost: localhost\r\nAccept:  text/html , */* \t\r\n"
+            + "X-Empty:\r\nConnection: Keep-Alive, close\r\nContent-Length: 12\r\n\r\nhello world!";
+
+    private static ByteBuffer buffer(final String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String string(final ByteBuffer buffer, final int start, final int end) {
+        return HttpRequestParser.getString(buffer, start, end);
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        final ByteBuffer buffer = buffer(REQUEST);
+        final HttpRequestParser parser = new HttpRequestParser();
+
+        assertTrue(parser.parse(buffer, buffer.limit()));
+        assertEquals(REQUEST.length() - 12, parser.getHeadEnd());
+
+        assertEquals("GET", string(buffer, parser.getMethodStart(), parser.getMethodEnd()));
+        assertTrue(parser.isMethod(buffer, "GET"));
+        assertFalse(parser.isMethod(buffer, "GE"));
+        assertEquals("http://localhost/index.html", string(buffer, parser.getTargetStart(), parser.getTargetEnd()));
+        assertEquals("HTTP/1.1", string(buffer, parser.getVersionStart(), parser.getVersionEnd()));
+        assertEquals(1, parser.getMajorVersion());
+        assertEquals(1, parser.getMinorVersion());
+
+        assertEquals(5, parser.getHeaderCount());
+        assertEquals("Host", string(buffer, parser.getNameStart(0), parser.getNameEnd(0)));
+        assertEquals("localhost", string(buffer, parser.getValueStart(0), parser.getValueEnd(0)));
+        assertEquals("text/html , */*", string(buffer, parser.getValueStart(1), parser.getValueEnd(1)));
+        assertEquals("", string(buffer, parser.getValueStart(2), parser.getValueEnd(2)));
+
+        assertEquals(1, parser.indexOf(buffer, "accept", 0));
+        assertEquals(-1, parser.indexOf(buffer, "accept", 2));
+        assertTrue(parser.containsToken(buffer, "Accept", "*/*"));
+        assertTrue(parser.containsToken(buffer, "connection", "CLOSE"));
+        assertFalse(parser.isKeepAlive(buffer));
+        assertFalse(parser.isChunked(buffer));
+        assertEquals(12, parser.getContentLength(buffer));
+    }
+
+    @Test
+    public void testPartialReads() throws IOException {
+        final ByteBuffer buffer = buffer(REQUEST);
+        final HttpRequestParser parser = new HttpRequestParser();
+
+        // byte per byte, as split reads
+        int limit = 0;
+        while (!parser.parse(buffer, ++limit)) {
+            assertFalse(parser.isComplete());
+        }
+        assertEquals(REQUEST.length() - 12, limit);
+        assertEquals(5, parser.getHeaderCount());
+        assertEquals("localhost", string(buffer, parser.getValueStart(0), parser.getValueEnd(0)));
+
+        // reuse, bare LF and many headers
+        final StringBuilder builder = new StringBuilder("CONNECT localhost:443 HTTP/1.0\n");
+        for (int i = 0; i < 100; ++i) {
+            builder.append("X-Header-").append(i).append(": ").append(i).append('\n');
+        }
+        final ByteBuffer connect = buffer(builder.append('\n').toString());
+        assertTrue(parser.reset().parse(connect, connect.limit()));
+        assertTrue(parser.isMethod(connect, "CONNECT"));
+        assertEquals(0, parser.getMinorVersion());
+        assertEquals(100, parser.getHeaderCount());
+        assertEquals("99", string(connect, parser.getValueStart(99), parser.getValueEnd(99)));
+        assertEquals(-1, parser.getContentLength(connect));
+    }
+
+    @Test
+    public void testInvalid() {
+        final HttpRequestParser parser = new HttpRequestParser();
+        for (String request : new String[] {"GET  / HTTP/1.1\r\n\r\n", "GET / HTTP/1.1 \r\n\r\n", "GET / HTTX/1.1\r\n\r\n", "G(T / HTTP/1.1\r\n\r\n",
+                "GET / HTTP/1.1\r\nHost : localhost\r\n\r\n", "GET / HTTP/1.1\r\nHost: localhost\r\n folded\r\n\r\n", "GET / HTTP/1.1\rX\r\n\r\n"}) {
+            final ByteBuffer buffer = buffer(request);
+            assertThrows(IOException.class, () -> parser.reset().parse(buffer, buffer.limit()), request);
+        }
+
+        final ByteBuffer buffer = buffer("POST / HTTP/1.1\r\nContent-Length: 1x\r\n\r\n");
+        assertDoesNotThrow(() -> parser.reset().parse(buffer, buffer.limit()));
+        assertThrows(IOException.class, () -> parser.getContentLength(buffer));
+
+        final ByteBuffer repeated = buffer("POST / HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 3\r\n\r\n");
+        assertDoesNotThrow(() -> parser.reset().parse(repeated, repeated.limit()));
+        assertDoesNotThrow(() -> assertEquals(3, parser.getContentLength(repeated)));
+
+        final ByteBuffer conflicting = buffer("POST / HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 30\r\n\r\n");
+        assertDoesNotThrow(() -> parser.reset().parse(conflicting, conflicting.limit()));
+        assertThrows(IOException.class, () -> parser.getContentLength(conflicting));
+    }
+
+    @Test
+    public void testRequestHead() throws IOException {
+        final ByteArrayInputStream is = new ByteArrayInputStream(REQUEST.getBytes(StandardCharsets.ISO_8859_1));
+        final HttpRequestHead head = HttpRequestHead.read(is);
+        assertEquals("GET http://localhost/index.html HTTP/1.1", head.getRequestLine());
+        assertEquals("text/html , */*", head.getHeaders().get("accept"));
+        assertEquals(12, is.available());
+
+        assertEquals(null, HttpRequestHead.read(new ByteArrayInputStream("\r\n".getBytes(StandardCharsets.ISO_8859_1))));
+        assertThrows(IOException.class, () -> HttpRequestHead.read(new ByteArrayInputStream("GET / HTTP/1.1\r\nHost".getBytes(StandardCharsets.ISO_8859_1))));
+    }
+}
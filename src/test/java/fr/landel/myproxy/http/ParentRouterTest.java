@@ -0,0 +1,184 @@
+package fr.landel.myproxy.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.dns.DnsCache;
+import fr.landel.myproxy.nio.Connector;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+public class ParentRouterTest {
+
+    private DnsCache dnsCache;
+    private ParentRouter router;
+
+    // parent answering the CONNECT requests with the status, then echoing the tunnel bytes
+    private ServerSocket parent;
+    private volatile String status = "200 Connection established";
+    private final BlockingQueue<String> requests = new LinkedBlockingQueue<>();
+
+    // closed port, refuses the connections
+    private int deadPort;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        this.parent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        try (ServerSocket dead = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            this.deadPort = dead.getLocalPort();
+        }
+        final Thread acceptor = new Thread(this::accept, "parent-test");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        final String json = "{\"proxy\": {\"parents\": {\"proxies\": {" + "\"dead\": {\"host\": \"127.0.0.1\", \"port\": " + this.deadPort + "}, "
+                + "\"corp\": {\"host\": \"127.0.0.1\", \"port\": " + this.parent.getLocalPort() + ", \"username\": \"user\", \"password\": \"secret\"}}, "
+                + "\"routes\": {\"*\": \"dead, corp\", \"*.intranet\": \"DIRECT\", \"secure.intranet\": \"corp\"}, "
+                + "\"connect-timeout\": \"PT1S\", \"retry-after\": \"PT60S\", \"warm-connections\": 0}}}";
+        final Configuration configuration = new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null));
+        this.dnsCache = new DnsCache(configuration);
+        this.router = new ParentRouter(configuration, new Connector(configuration, this.dnsCache));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        this.router.close();
+        this.dnsCache.close();
+        this.parent.close();
+    }
+
+    private void accept() {
+        while (!this.parent.isClosed()) {
+            try (Socket socket = this.parent.accept()) {
+                final InputStream is = socket.getInputStream();
+                final StringBuilder head = new StringBuilder();
+                String line;
+                while ((line = HttpUtils.readLine(is)) != null && !line.isEmpty()) {
+                    head.append(line).append('\n');
+                }
+                this.requests.add(head.toString());
+                final OutputStream os = socket.getOutputStream();
+                os.write(("HTTP/1.1 " + this.status + "\r\n\r\n").getBytes(ISO_8859_1));
+                os.flush();
+                is.transferTo(os);
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    @Test
+    public void testSelect() {
+        assertTrue(this.router.isDirect("www.intranet", false));
+        assertTrue(this.router.select("WWW.intranet", false).isEmpty());
+        assertEquals("corp", this.router.select("secure.intranet", false).get(0).getId());
+
+        final List<ParentProxy> parents = this.router.select("www.example.com", false);
+        assertEquals(2, parents.size());
+        assertEquals("dead", parents.get(0).getId());
+        assertEquals("corp", parents.get(1).getId());
+    }
+
+    @Test
+    public void testTunnel() throws Exception {
+        final ParentRouter.Hop hop = this.router.openTunnel("www.example.com", 443);
+        try (SocketChannel channel = hop.getChannel()) {
+            // the tunnel is transparent
+            assertNull(hop.getParent());
+
+            final String request = this.requests.poll(2, TimeUnit.SECONDS);
+            assertTrue(request.startsWith("CONNECT www.example.com:443 HTTP/1.1\n"));
+            assertTrue(request.contains("Proxy-Authorization: Basic dXNlcjpzZWNyZXQ=\n"));
+
+            channel.socket().getOutputStream().write("ping".getBytes(ISO_8859_1));
+            assertEquals("ping", new String(channel.socket().getInputStream().readNBytes(4), ISO_8859_1));
+        }
+
+        // failover: the dead parent is now tried last
+        final List<ParentProxy> parents = this.router.select("www.example.com", false);
+        assertEquals("corp", parents.get(0).getId());
+        assertTrue(parents.get(1).isDown());
+    }
+
+    @Test
+    public void testConnect() throws Exception {
+        final ParentRouter.Hop hop = this.router.connectAsync("www.example.com", 80).get(2, TimeUnit.SECONDS);
+        try (SocketChannel channel = hop.getChannel()) {
+            assertEquals("corp", hop.getParent().getId());
+            assertTrue(channel.isBlocking());
+        }
+    }
+
+    @Test
+    public void testRefused() throws Exception {
+        this.status = "403 Forbidden";
+        final ParentRouter.RefusedException e = assertThrows(ParentRouter.RefusedException.class,
+                () -> this.router.openTunnel("secure.intranet", 443));
+        assertEquals(403, e.getStatus());
+        // the parent answered, it's still available
+        final ParentProxy corp = this.router.select("secure.intranet", false).get(0);
+        assertSame(corp, this.router.select("www.example.com", false).get(1));
+        assertTrue(!corp.isDown());
+    }
+
+    @Test
+    public void testPac() throws Exception {
+        final Path pac = Files.createTempFile("proxy", ".pac");
+        Files.writeString(pac, "function FindProxyForURL(url, host) {\n" //
+                + "    if (dnsDomainIs(host, '.direct')) return 'DIRECT';\n" //
+                + "    if (shExpMatch(url, 'https:*')) return 'PROXY 127.0.0.1:" + this.parent.getLocalPort() + "; DIRECT';\n" //
+                + "    return 'PROXY 127.0.0.1:" + this.deadPort + "; DIRECT';\n" //
+                + "}");
+
+        final String json = "{\"proxy\": {\"parents\": {\"proxies\": {" + "\"corp\": {\"host\": \"127.0.0.1\", \"port\": " + this.parent.getLocalPort()
+                + ", \"username\": \"user\", \"password\": \"secret\"}}, \"connect-timeout\": \"PT1S\", \"warm-connections\": 0}, "
+                + "\"pac\": {\"url\": \"" + pac.toUri() + "\"}}}";
+        final Configuration configuration = new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null));
+        final ParentRouter pacRouter = new ParentRouter(configuration, new Connector(configuration, this.dnsCache));
+        try {
+            // not evaluated yet
+            assertTrue(!pacRouter.isDirect("www.direct", false));
+            assertTrue(pacRouter.select("www.direct", false).isEmpty());
+            assertTrue(pacRouter.isDirect("www.direct", false));
+
+            // the configured parent with the same address is used, with its credentials
+            final List<ParentProxy> parents = pacRouter.select("www.example.com", true);
+            assertEquals("corp", parents.get(0).getId());
+            assertSame(ParentProxy.DIRECT, parents.get(1));
+            pacRouter.openTunnel("www.example.com", 443).getChannel().close();
+            assertTrue(this.requests.poll(2, TimeUnit.SECONDS).contains("Proxy-Authorization: Basic dXNlcjpzZWNyZXQ=\n"));
+
+            // the parent of the script is down, direct connection
+            final ParentRouter.Hop hop = pacRouter.connect("127.0.0.1", this.parent.getLocalPort());
+            hop.getChannel().close();
+            assertNull(hop.getParent());
+            assertTrue(pacRouter.select("127.0.0.1", false).get(1).isDown());
+        } finally {
+            pacRouter.close();
+            Files.delete(pac);
+        }
+    }
+}
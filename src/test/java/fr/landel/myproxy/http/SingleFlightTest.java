@@ -0,0 +1,124 @@
+package fr.landel.myproxy.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SingleFlightTest {
+
+    private static final String URL = "http://www.example.com/index.html";
+
+    @TempDir
+    Path directory;
+
+    private static HttpResponseHead head() {
+        return new HttpResponseHead("HTTP/1.1", 200, "OK", new HttpHeaders().add("Content-Length", "10"));
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        final SingleFlight singleFlight = new SingleFlight();
+        final File cacheFile = this.directory.resolve("index.html").toFile();
+
+        final SingleFlight.Flight leader = singleFlight.join(URL);
+        final SingleFlight.Flight follower = singleFlight.join(URL);
+        assertTrue(leader.isLeader());
+        assertFalse(follower.isLeader());
+
+        final CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() -> {
+            try (InputStream is = follower.openBody(5_000)) {
+                assertEquals(200, follower.awaitHead(5_000).getStatus());
+                return is.readAllBytes();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                follower.close();
+            }
+        });
+
+        final OutputStream os = leader.publish(head(), cacheFile);
+        os.write("01234".getBytes(ISO_8859_1));
+        // the follower doesn't wait for the end of the body
+        Thread.sleep(50);
+        assertFalse(received.isDone());
+        os.write("56789".getBytes(ISO_8859_1));
+        leader.complete(cacheFile);
+        leader.close();
+
+        assertArrayEquals("0123456789".getBytes(ISO_8859_1), received.get());
+        assertArrayEquals("0123456789".getBytes(ISO_8859_1), Files.readAllBytes(cacheFile.toPath()));
+
+        // the next request starts a new flight, without any temporary file left
+        final SingleFlight.Flight next = singleFlight.join(URL);
+        assertTrue(next.isLeader());
+        next.close();
+        try (var files = Files.list(this.directory)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void testAbandonedAndFailed() throws IOException {
+        final SingleFlight singleFlight = new SingleFlight();
+        final File cacheFile = this.directory.resolve("index.html").toFile();
+
+        // not cacheable, the follower fetches on its own
+        SingleFlight.Flight leader = singleFlight.join(URL);
+        SingleFlight.Flight follower = singleFlight.join(URL);
+        leader.close();
+        assertNull(follower.awaitHead(1_000));
+        follower.close();
+
+        // failure in the middle of the body
+        leader = singleFlight.join(URL);
+        follower = singleFlight.join(URL);
+        assertTrue(leader.isLeader());
+        leader.publish(head(), cacheFile).write('0');
+        leader.close();
+
+        final InputStream is = follower.openBody(1_000);
+        assertThrows(IOException.class, () -> is.read(new byte[10]));
+        follower.close();
+        assertFalse(cacheFile.exists());
+        try (var files = Files.list(this.directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testFollow() throws IOException {
+        final SingleFlight singleFlight = new SingleFlight();
+        final File cacheFile = this.directory.resolve("index.html").toFile();
+
+        // the client of the leader reads the body after the close of the leader
+        final SingleFlight.Flight leader = singleFlight.join(URL);
+        final SingleFlight.Flight own = leader.follow();
+        assertFalse(own.isLeader());
+        leader.publish(head(), cacheFile).write("0123456789".getBytes(ISO_8859_1));
+        leader.complete(cacheFile);
+        leader.close();
+
+        try (InputStream is = own.openBody(1_000)) {
+            assertArrayEquals("0123456789".getBytes(ISO_8859_1), is.readAllBytes());
+        }
+        own.close();
+        try (var files = Files.list(this.directory)) {
+            assertEquals(1, files.count());
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package fr.landel.myproxy.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.dns.DnsCache;
+import fr.landel.myproxy.nio.Connector;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+public class UpstreamFetcherTest {
+
+    private DnsCache dnsCache;
+    private ParentRouter router;
+    private UpstreamPool pool;
+    private UpstreamFetcher fetcher;
+
+    // origin answering each request (numbered from 1) with the status given by the test, after its delay in milliseconds (status * 1000 +
+    // delay); the requests other than GET get their method and body back
+    private ServerSocket origin;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private void start(final String json, final IntFunction<Integer> behavior) throws IOException {
+        final Configuration configuration = new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null));
+        this.dnsCache = new DnsCache(configuration);
+        final Connector connector = new Connector(configuration, this.dnsCache);
+        this.router = new ParentRouter(configuration, connector);
+        this.pool = new UpstreamPool(configuration, connector, this.router);
+        this.fetcher = new UpstreamFetcher(configuration, this.pool, null);
+
+        this.origin = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread acceptor = new Thread(() -> {
+            while (!this.origin.isClosed()) {
+                try {
+                    final Socket socket = this.origin.accept();
+                    final Thread handler = new Thread(() -> this.serve(socket, behavior));
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "origin-test");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(final Socket socket, final IntFunction<Integer> behavior) {
+        try (socket) {
+            final InputStream is = socket.getInputStream();
+            final OutputStream os = socket.getOutputStream();
+            HttpRequestHead head;
+            while ((head = HttpRequestHead.read(is)) != null) {
+                final String received = new String(head.getBody(is).readAllBytes(), ISO_8859_1);
+                final int request = this.requests.incrementAndGet();
+                final int action = behavior.apply(request);
+                Thread.sleep(action % 1_000);
+                final String body = "GET".equals(head.getMethod()) ? "response " + request : head.getMethod() + " " + received;
+                os.write(("HTTP/1.1 " + action / 1_000 + " Test\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes(ISO_8859_1));
+                os.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // closed
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if (this.fetcher == null) {
+            return;
+        }
+        this.fetcher.close();
+        this.pool.close();
+        this.router.close();
+        this.dnsCache.close();
+        this.origin.close();
+    }
+
+    private URL url() throws IOException {
+        return new URL("http://127.0.0.1:" + this.origin.getLocalPort() + "/test");
+    }
+
+    private String read(final UpstreamFetcher.Exchange exchange) throws IOException {
+        try {
+            final int length = (int) exchange.getHead().getContentLength();
+            return new String(exchange.getBody().readNBytes(length), ISO_8859_1);
+        } finally {
+            exchange.release(true);
+        }
+    }
+
+    @Test
+    public void testRetry() throws IOException {
+        this.start("{\"proxy\": {\"retry\": 2, \"retry-backoff\": \"PT0.01S\"}}", request -> request < 3 ? 503_000 : 200_000);
+
+        final UpstreamFetcher.Exchange exchange = this.fetcher.fetch(this.url());
+        assertEquals(200, exchange.getHead().getStatus());
+        assertEquals("response 3", this.read(exchange));
+    }
+
+    @Test
+    public void testRetryExhausted() throws IOException {
+        // no budget: the first response is given
+        this.start("{\"proxy\": {\"retry\": 2, \"retry-budget\": {\"ratio\": 0, \"min-per-second\": 0, \"burst\": 1}}}", request -> 502_000);
+
+        final UpstreamFetcher.Exchange exchange = this.fetcher.fetch(this.url());
+        assertEquals(502, exchange.getHead().getStatus());
+        assertEquals("response 1", this.read(exchange));
+    }
+
+    @Test
+    public void testHedge() throws IOException {
+        // the second request is slow, its hedged copy answers first
+        this.start("{\"proxy\": {\"hedge\": {\"enabled\": true, \"min-samples\": 1, \"min-delay\": \"PT0.05S\"}}}",
+                request -> request == 2 ? 200_900 : 200_000);
+
+        assertEquals("response 1", this.read(this.fetcher.fetch(this.url())));
+
+        final long start = System.nanoTime();
+        final UpstreamFetcher.Exchange exchange = this.fetcher.fetch(this.url());
+        assertTrue(System.nanoTime() - start < 800_000_000L);
+        assertEquals("response 3", this.read(exchange));
+    }
+
+    @Test
+    public void testForward() throws IOException {
+        this.start("{\"proxy\": {\"retry\": 2, \"retry-backoff\": \"PT0.01S\"}}", request -> request == 1 ? 503_000 : 200_000);
+
+        // not retried, the body is chunked
+        final String body = "a=1&b=2";
+        UpstreamFetcher.Exchange exchange = this.fetcher.forward(this.url(), "POST", new HttpHeaders().add("Content-Type", "text/plain"),
+                new ByteArrayInputStream(body.getBytes(ISO_8859_1)), -1);
+        assertEquals(503, exchange.getHead().getStatus());
+        assertEquals("POST a=1&b=2", this.read(exchange));
+        assertEquals(1, this.requests.get());
+
+        // with its length
+        exchange = this.fetcher.forward(this.url(), "PUT", new HttpHeaders(), new ByteArrayInputStream(body.getBytes(ISO_8859_1)), body.length());
+        assertEquals(200, exchange.getHead().getStatus());
+        assertEquals("PUT a=1&b=2", this.read(exchange));
+
+        exchange = this.fetcher.forward(this.url(), "DELETE", new HttpHeaders(), InputStream.nullInputStream(), 0);
+        assertEquals("DELETE ", this.read(exchange));
+        assertEquals(3, this.requests.get());
+    }
+
+    @Test
+    public void testIdleOriginRemoved() throws IOException, InterruptedException {
+        this.start("{\"proxy\": {\"upstream-pool\": {\"idle-timeout\": \"PT0.05S\"}}}", request -> 200_000);
+
+        final UpstreamFetcher.Exchange exchange = this.fetcher.fetch(this.url());
+        Thread.sleep(100);
+        // leased
+        this.pool.evict();
+        assertEquals(1, this.pool.getHostCount());
+
+        assertEquals("response 1", this.read(exchange));
+        // idle connection
+        this.pool.evict();
+        assertEquals(1, this.pool.getHostCount());
+
+        Thread.sleep(100);
+        this.pool.evict();
+        assertEquals(0, this.pool.getHostCount());
+
+        // created again
+        assertEquals("response 2", this.read(this.fetcher.fetch(this.url())));
+        assertEquals(1, this.pool.getHostCount());
+    }
+
+    @Test
+    public void testBudget() {
+        final RetryBudget budget = new RetryBudget(0.5, 0, 10);
+        assertFalse(budget.tryWithdraw());
+        budget.deposit();
+        budget.deposit();
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+    }
+}
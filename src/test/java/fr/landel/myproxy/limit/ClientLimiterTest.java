@@ -0,0 +1,45 @@
+package fr.landel.myproxy.limit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.jupiter.api.Test;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+public class ClientLimiterTest {
+
+    @Test
+    public void testSweepHeld() throws UnknownHostException {
+        final String json = "{\"proxy\": {\"client-limits\": {\"upload-rate\": 1000, \"bytes-burst\": 1000}}}";
+        final ClientLimiter limiter = new ClientLimiter(new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null)));
+        final InetAddress address = InetAddress.getByName("192.0.2.1");
+
+        // held by two connections, the idle buckets are kept
+        final ClientLimiter.Quota first = limiter.quota(address);
+        final ClientLimiter.Quota second = limiter.quota(address);
+        assertSame(first, second);
+        limiter.sweep();
+        assertEquals(1, limiter.size());
+
+        // the connections of the address keep sharing the buckets
+        first.release();
+        limiter.sweep();
+        final ClientLimiter.Quota third = limiter.quota(address);
+        assertSame(second, third);
+
+        second.release();
+        third.release();
+        limiter.sweep();
+        assertEquals(0, limiter.size());
+        final ClientLimiter.Quota fourth = limiter.quota(address);
+        assertNotSame(first, fourth);
+        fourth.release();
+    }
+}
@@ -0,0 +1,80 @@
+package fr.landel.myproxy.limit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class ConcurrencyLimiterTest {
+
+    private static final long FLAT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Runs a round of requests filling the limit, all with the same latency
+     */
+    private static void round(final ConcurrencyLimiter limiter, final long rtt) {
+        int admitted = 0;
+        while (limiter.tryAcquire()) {
+            ++admitted;
+        }
+        for (int i = 0; i < admitted; ++i) {
+            limiter.release(rtt);
+        }
+    }
+
+    @Test
+    public void testShed() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10, 1.5, 0.2, 10, 100);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+
+        limiter.release(0);
+        assertTrue(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void testGrowWhileFlat() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 5, 200, 1.5, 0.2, 10, 100);
+        for (int i = 0; i < 20; ++i) {
+            round(limiter, FLAT);
+        }
+        assertTrue(limiter.getLimit() > 50, String.valueOf(limiter.getLimit()));
+
+        // bounded
+        for (int i = 0; i < 100; ++i) {
+            round(limiter, FLAT);
+        }
+        assertEquals(200, limiter.getLimit());
+    }
+
+    @Test
+    public void testShrinkOnQueueing() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(100, 5, 200, 1.5, 0.2, 10, 600);
+        for (int i = 0; i < 5; ++i) {
+            round(limiter, FLAT);
+        }
+        final int healthy = limiter.getLimit();
+
+        // the latency rises fivefold: the queueing delay shrinks the limit
+        for (int i = 0; i < 5; ++i) {
+            round(limiter, FLAT * 5);
+        }
+        assertTrue(limiter.getLimit() < healthy / 2, healthy + " -> " + limiter.getLimit());
+    }
+
+    @Test
+    public void testIdleDoesntGrow() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 5, 200, 1.5, 0.2, 10, 100);
+        for (int i = 0; i < 1_000; ++i) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(FLAT);
+        }
+        assertEquals(20, limiter.getLimit());
+    }
+}
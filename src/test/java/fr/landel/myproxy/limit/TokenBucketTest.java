@@ -0,0 +1,88 @@
+package fr.landel.myproxy.limit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testTryAcquire() {
+        final TokenBucket bucket = new TokenBucket(1, 3);
+        assertTrue(bucket.isFull());
+        assertTrue(bucket.tryAcquire(2));
+        assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(1));
+        assertFalse(bucket.isFull());
+    }
+
+    @Test
+    public void testConsume() throws InterruptedException {
+        // 1MB per second, 64KB of burst
+        final TokenBucket bucket = new TokenBucket(1_048_576, 65_536);
+        assertEquals(0, bucket.consume(65_536));
+
+        // in debt: about 0.25s to pay back 256KB
+        final long delay = bucket.consume(262_144);
+        assertTrue(delay > TimeUnit.MILLISECONDS.toNanos(200) && delay <= TimeUnit.MILLISECONDS.toNanos(250), String.valueOf(delay));
+        assertTrue(bucket.getAvailable() < -200_000);
+
+        TimeUnit.NANOSECONDS.sleep(delay);
+        assertTrue(bucket.getAvailable() >= 0);
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        // no refill during the test: exactly the burst is granted
+        final TokenBucket bucket = new TokenBucket(1, 1_000);
+        final AtomicInteger granted = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 4; ++i) {
+            executor.execute(() -> {
+                for (int j = 0; j < 1_000; ++j) {
+                    if (bucket.tryAcquire(1)) {
+                        granted.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1_000, granted.get());
+    }
+
+    @Test
+    public void testQuota() throws Exception {
+        final ClientLimiter limiter = new ClientLimiter(new Configuration(JsonParser
+                .load("{\"proxy\": {\"client-limits\": {\"requests-rate\": 1, \"requests-burst\": 2}}}".getBytes(UTF_8)).orElse(null)));
+        assertTrue(limiter.isEnabled());
+
+        final InetAddress first = InetAddress.getByName("127.0.0.1");
+        final ClientLimiter.Quota quota = limiter.quota(first);
+        assertSame(quota, limiter.quota(first));
+        assertNotSame(quota, limiter.quota(InetAddress.getByName("127.0.0.2")));
+
+        assertTrue(quota.tryRequest());
+        assertTrue(quota.tryRequest());
+        assertFalse(quota.tryRequest());
+        assertTrue(limiter.quota(InetAddress.getByName("127.0.0.2")).tryRequest());
+
+        // no byte limit
+        assertEquals(0, quota.download(10_000_000));
+        assertEquals(0, quota.upload(10_000_000));
+    }
+}
@@ -0,0 +1,226 @@
+package fr.landel.myproxy.nio;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.landel.myproxy.Proxy;
+import fr.landel.myproxy.benchmark.EchoOrigin;
+import fr.landel.myproxy.benchmark.LocalProxy;
+import fr.landel.myproxy.benchmark.ProxyClient;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        final BufferPool pool = new BufferPool("test-classes", false, 16);
+        final ByteBuffer small = pool.acquire(100);
+        assertEquals(4_096, small.capacity());
+        assertEquals(0, small.arrayOffset());
+        final ByteBuffer medium = pool.acquire(16_385);
+        assertEquals(32_768, medium.capacity());
+        final ByteBuffer large = pool.acquire(100_000);
+        assertEquals(100_000, large.capacity());
+        assertEquals(3, pool.getInUse());
+
+        pool.release(small);
+        pool.release(medium);
+        pool.release(large);
+        assertEquals(0, pool.getInUse());
+        // the oversized buffer isn't kept
+        assertEquals(2, pool.getPooled());
+    }
+
+    @Test
+    public void testReuse() throws InterruptedException {
+        final BufferPool pool = new BufferPool("test-reuse", true, 16);
+        final ByteBuffer buffer = pool.acquire(16_384);
+        assertTrue(buffer.isDirect());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+
+        // from the shared queue, cleared
+        final ByteBuffer reused = pool.acquire(10_000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+
+        // released by another thread, then shared
+        final Thread other = new Thread(() -> pool.release(reused));
+        other.start();
+        other.join();
+        assertEquals(1, pool.getPooled());
+    }
+
+    @Test
+    public void testThreadCache() throws InterruptedException {
+        final BufferPool pool = new BufferPool("test-thread-cache", false, 16);
+        final AtomicReference<ByteBuffer> released = new AtomicReference<>();
+        final AtomicBoolean cached = new AtomicBoolean();
+        final Thread thread = new Thread(pool.withThreadCache(() -> {
+            final ByteBuffer buffer = pool.acquire(4_096);
+            pool.release(buffer);
+            // kept by the thread
+            cached.set(pool.acquire(4_096) == buffer);
+            pool.release(buffer);
+            released.set(buffer);
+        }));
+        thread.start();
+        thread.join();
+        assertTrue(cached.get());
+
+        // given to the shared queue when the thread ended
+        assertEquals(1, pool.getPooled());
+        assertSame(released.get(), pool.acquire(4_096));
+        assertEquals(0, pool.getPooled());
+    }
+
+    @Test
+    public void testLeakDetection() {
+        // enabled by the surefire configuration
+        assertTrue(Boolean.getBoolean(BufferPool.LEAK_DETECTION_PROPERTY));
+
+        final BufferPool pool = new BufferPool("test-leaks", false, 16);
+        final ByteBuffer buffer = pool.acquire(1_000);
+        pool.acquire(1_000);
+        assertEquals(2, pool.getLeaks().size());
+
+        pool.release(buffer);
+        assertEquals(1, pool.getLeaks().size());
+        assertTrue(pool.getLeaks().get(0).getMessage().contains(Thread.currentThread().getName()));
+
+        assertThrows(IllegalStateException.class, () -> pool.release(buffer));
+        assertThrows(IllegalStateException.class, () -> pool.release(ByteBuffer.allocate(4_096)));
+    }
+
+    @Test
+    public void testStreams() throws IOException {
+        final long inUse = BufferPool.HEAP.getInUse();
+        final byte[] data = "0123456789".repeat(2_000).getBytes(UTF_8);
+
+        final BufferPool.PooledInputStream is = BufferPool.bufferedInput(new ByteArrayInputStream(data), 8_192);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BufferPool.PooledOutputStream os = BufferPool.bufferedOutput(bytes, 8_192)) {
+            is.transferTo(os);
+        }
+        assertArrayEquals(data, bytes.toByteArray());
+        assertEquals(inUse + 1, BufferPool.HEAP.getInUse());
+
+        // released without closing, the stream is then closed
+        is.release();
+        is.release();
+        assertEquals(inUse, BufferPool.HEAP.getInUse());
+        assertThrows(IOException.class, is::read);
+    }
+
+    @Test
+    public void testStreamMark() throws IOException {
+        final byte[] data = "0123456789".repeat(2_000).getBytes(UTF_8);
+        try (BufferPool.PooledInputStream is = BufferPool.bufferedInput(new ByteArrayInputStream(data), 4_096)) {
+            assertEquals('0', is.read());
+            is.mark(1);
+            assertEquals('1', is.read());
+            is.reset();
+            assertEquals(19_999, is.available());
+
+            // the marked bytes are kept across a refill of the buffer
+            assertEquals(4_095, is.skip(10_000));
+            is.mark(10);
+            assertEquals('6', is.read());
+            assertEquals(9, is.readNBytes(9).length);
+            is.reset();
+            assertEquals('6', is.read());
+
+            // a large read bypasses the buffer once it's empty
+            assertEquals(20_000 - 4_097, is.readAllBytes().length);
+            assertEquals(-1, is.read());
+        }
+    }
+
+    @Test
+    public void testStreamReleaseAwaitsRead() throws Exception {
+        final long inUse = BufferPool.HEAP.getInUse();
+        final PipedOutputStream source = new PipedOutputStream();
+        final BufferPool.PooledInputStream is = BufferPool.bufferedInput(new PipedInputStream(source), 4_096);
+
+        final CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+            try {
+                return is.read();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        final CompletableFuture<Void> released = CompletableFuture.runAsync(() -> {
+            try {
+                // lets the read block first
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            is.release();
+        });
+        Thread.sleep(200);
+        assertFalse(released.isDone());
+
+        source.write('x');
+        source.flush();
+        assertEquals('x', read.get(5, TimeUnit.SECONDS));
+        released.get(5, TimeUnit.SECONDS);
+        assertEquals(inUse, BufferPool.HEAP.getInUse());
+        source.close();
+    }
+
+    @Test
+    public void testTunnelsRelease(@TempDir final Path dir) throws Exception {
+        for (String ioMode : new String[] {"blocking", "nio"}) {
+            final long heap = BufferPool.HEAP.getInUse();
+            final long direct = BufferPool.DIRECT.getInUse();
+
+            final Proxy proxy = LocalProxy.start(dir, "\"io-mode\": \"" + ioMode + "\"", "\"event-loops\": 1");
+
+            try (EchoOrigin origin = new EchoOrigin()) {
+                for (int i = 0; i < 3; ++i) {
+                    try (Socket socket = ProxyClient.connect(proxy.getLocalPort(), origin.getPort())) {
+                        final byte[] payload = ("payload " + i).getBytes(UTF_8);
+                        socket.getOutputStream().write(payload);
+                        final byte[] echo = new byte[payload.length];
+                        ProxyClient.readFully(socket.getInputStream(), echo);
+                        assertArrayEquals(payload, echo);
+                    }
+                }
+
+                // the connections are closed asynchronously
+                final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while ((BufferPool.HEAP.getInUse() != heap || BufferPool.DIRECT.getInUse() != direct) && System.nanoTime() < deadline) {
+                    Thread.sleep(20);
+                }
+                assertEquals(heap, BufferPool.HEAP.getInUse(), ioMode);
+                assertEquals(direct, BufferPool.DIRECT.getInUse(), ioMode);
+                assertFalse(BufferPool.HEAP.getPooled() == 0 && BufferPool.DIRECT.getPooled() == 0, ioMode);
+            } finally {
+                proxy.closeServer();
+            }
+        }
+    }
+}
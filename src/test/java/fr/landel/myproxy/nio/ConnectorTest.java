@@ -0,0 +1,131 @@
+package fr.landel.myproxy.nio;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.dns.DnsCache;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+public class ConnectorTest {
+
+    private DnsCache dnsCache;
+    private Connector connector;
+
+    // listens on 127.0.0.2 but never accepts: once the backlog is full, the next connections hang
+    private ServerSocket stalled;
+    private final List<Socket> backlog = new ArrayList<>();
+
+    private ServerSocket server;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        final String json = "{\"proxy\": {\"connector\": {\"timeout\": \"PT2S\", \"attempt-delay\": \"PT0.1S\"}}}";
+        final Configuration configuration = new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null));
+        this.dnsCache = new DnsCache(configuration);
+        this.connector = new Connector(configuration, this.dnsCache);
+
+        this.stalled = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.2"));
+        for (int i = 0; i < 4; ++i) {
+            final Socket socket = new Socket();
+            try {
+                socket.connect(this.stalled.getLocalSocketAddress(), 100);
+                this.backlog.add(socket);
+            } catch (SocketTimeoutException e) {
+                socket.close();
+                break;
+            }
+        }
+        this.server = new ServerSocket(this.stalled.getLocalPort(), 50, InetAddress.getByName("127.0.0.3"));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        for (Socket socket : this.backlog) {
+            socket.close();
+        }
+        this.stalled.close();
+        this.server.close();
+        this.dnsCache.close();
+    }
+
+    private InetAddress[] addresses(final String... addresses) throws IOException {
+        final InetAddress[] result = new InetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; ++i) {
+            result[i] = InetAddress.getByName(addresses[i]);
+        }
+        return result;
+    }
+
+    @Test
+    public void testBlocking() throws IOException {
+        final int port = this.server.getLocalPort();
+
+        long start = System.nanoTime();
+        try (SocketChannel channel = this.connector.connect(this.addresses("127.0.0.2", "127.0.0.3"), port, 2_000)) {
+            assertTrue(channel.isBlocking());
+            assertEquals(new InetSocketAddress("127.0.0.3", port), channel.getRemoteAddress());
+        }
+        // won by the second attempt, started after the attempt delay
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1_000));
+
+        // refused at once, the next address is tried without waiting
+        final ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final int closedPort = closed.getLocalPort();
+        closed.close();
+        assertThrows(ConnectException.class, () -> this.connector.connect(this.addresses("127.0.0.1", "127.0.0.4"), closedPort, 2_000));
+
+        start = System.nanoTime();
+        assertThrows(SocketTimeoutException.class, () -> this.connector.connect(this.addresses("127.0.0.2"), port, 300));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1_000));
+    }
+
+    @Test
+    public void testLoop() throws Exception {
+        try (EventLoop loop = new EventLoop("connector-test")) {
+            loop.start();
+            final CompletableFuture<SocketChannel> result = new CompletableFuture<>();
+            this.connector.connect(loop, "127.0.0.3", this.server.getLocalPort(), new Connector.Callback() {
+
+                @Override
+                public void connected(final SocketChannel channel) {
+                    result.complete(channel);
+                }
+
+                @Override
+                public void failed(final IOException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            try (SocketChannel channel = result.get(2, TimeUnit.SECONDS)) {
+                assertTrue(channel.isConnected());
+            }
+        }
+    }
+
+    @Test
+    public void testInterleave() throws IOException {
+        final InetAddress[] addresses = this.addresses("::1", "::2", "::3", "127.0.0.1", "127.0.0.2");
+        assertArrayEquals(this.addresses("::1", "127.0.0.1", "::2", "127.0.0.2", "::3"), Connector.interleave(addresses));
+    }
+}
@@ -0,0 +1,45 @@
+package fr.landel.myproxy.nio;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileTransferTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testTransfer() throws IOException {
+        final byte[] data = new byte[300_000];
+        new Random(0).nextBytes(data);
+        final Path file = Files.write(this.dir.resolve("object"), data);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            FileTransfer.transfer(channel, 0, data.length, Channels.newChannel(bytes));
+            assertArrayEquals(data, bytes.toByteArray());
+
+            // a region
+            bytes.reset();
+            FileTransfer.transfer(channel, 1_000, 100_000, Channels.newChannel(bytes));
+            assertArrayEquals(Arrays.copyOfRange(data, 1_000, 101_000), bytes.toByteArray());
+
+            // the file is shorter than expected
+            assertThrows(EOFException.class, () -> FileTransfer.transfer(channel, 0, data.length + 1, Channels.newChannel(bytes)));
+        }
+    }
+}
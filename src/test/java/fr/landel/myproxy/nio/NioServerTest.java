@@ -0,0 +1,80 @@
+package fr.landel.myproxy.nio;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.dns.DnsCache;
+import fr.landel.myproxy.http.ParentRouter;
+import fr.landel.myproxy.limit.ClientLimiter;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+public class NioServerTest {
+
+    @Test
+    public void testSetupFailure() throws IOException {
+        this.setupFailure(1, 1);
+    }
+
+    @Test
+    public void testSetupFailureAcceptors() throws IOException {
+        // each acceptor survives the failures of its connections
+        this.setupFailure(2, 2);
+    }
+
+    private void setupFailure(final int loops, final int acceptors) throws IOException {
+        final Configuration configuration = new Configuration(JsonParser.load("{\"proxy\": {}}".getBytes(UTF_8)).orElse(null));
+        final DnsCache dnsCache = new DnsCache(configuration);
+        final Connector connector = new Connector(configuration, dnsCache);
+        final ParentRouter router = new ParentRouter(configuration, connector);
+        final DeadlineTimer deadlines = new DeadlineTimer(configuration);
+
+        // the set up of the first connection fails
+        final AtomicInteger connections = new AtomicInteger();
+        final ClientLimiter limiter = new ClientLimiter(configuration) {
+            @Override
+            public Quota quota(final InetAddress address) {
+                if (connections.incrementAndGet() == 1) {
+                    throw new IllegalStateException("set up failure");
+                }
+                return super.quota(address);
+            }
+        };
+
+        final NioServer server = new NioServer(0, loops, acceptors, deadlines, 10, connector, router, limiter);
+        server.start();
+        try {
+            try (Socket first = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+                first.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+                // closed by the proxy
+                assertEquals(-1, first.getInputStream().read());
+            }
+
+            // the server still accepts
+            try (Socket second = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+                second.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+                second.getOutputStream().write("INVALID\r\n\r\n".getBytes(ISO_8859_1));
+                final InputStream is = second.getInputStream();
+                final String response = new String(is.readNBytes(12), ISO_8859_1);
+                assertTrue(response.startsWith("HTTP/1.0 400"), response);
+            }
+            assertEquals(2, connections.get());
+        } finally {
+            server.close();
+            deadlines.close();
+            router.close();
+            dnsCache.close();
+        }
+    }
+}
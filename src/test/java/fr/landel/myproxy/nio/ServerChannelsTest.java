@@ -0,0 +1,63 @@
+package fr.landel.myproxy.nio;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ServerChannelsTest {
+
+    @Test
+    public void testOpen() throws IOException {
+        final List<ServerSocketChannel> channels = ServerChannels.open(0, 4, 0);
+        try {
+            final boolean reusePort = channels.get(0).supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            assertEquals(reusePort ? 4 : 1, channels.size());
+
+            final int port = channels.get(0).socket().getLocalPort();
+            assertTrue(port > 0);
+            for (ServerSocketChannel channel : channels) {
+                assertEquals(port, channel.socket().getLocalPort());
+            }
+
+            // every connection is accepted by one of the channels
+            int accepted = 0;
+            for (ServerSocketChannel channel : channels) {
+                channel.configureBlocking(false);
+            }
+            for (int i = 0; i < 20; ++i) {
+                try (Socket client = new Socket("127.0.0.1", port)) {
+                    SocketChannel channel = null;
+                    for (int j = 0; channel == null && j < 1_000; ++j) {
+                        channel = channels.get(j % channels.size()).accept();
+                    }
+                    if (channel != null) {
+                        assertEquals(client.getLocalPort(), channel.socket().getPort());
+                        channel.close();
+                        ++accepted;
+                    }
+                }
+            }
+            assertEquals(20, accepted);
+        } finally {
+            ServerChannels.close(channels);
+        }
+    }
+
+    @Test
+    public void testSingle() throws IOException {
+        final List<ServerSocketChannel> channels = ServerChannels.open(0, 1, 0);
+        try {
+            assertEquals(1, channels.size());
+        } finally {
+            ServerChannels.close(channels);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package fr.landel.myproxy.nio;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import fr.landel.myproxy.conf.Configuration;
+import fr.landel.myproxy.utils.json.JsonParser;
+
+public class TimerWheelTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testExpire() {
+        final TimerWheel wheel = new TimerWheel(MS, 8);
+        final long now = System.nanoTime();
+        final List<Integer> expired = new ArrayList<>();
+
+        wheel.schedule(() -> expired.add(1), now + 3 * MS);
+        wheel.schedule(() -> expired.add(2), now + 5 * MS);
+        // next revolutions, in the same buckets
+        wheel.schedule(() -> expired.add(3), now + 11 * MS);
+        wheel.schedule(() -> expired.add(4), now + 100 * MS);
+        final TimerWheel.Timeout cancelled = wheel.schedule(() -> expired.add(5), now + 4 * MS);
+        assertEquals(5, wheel.size());
+
+        cancelled.cancel();
+        assertEquals(4, wheel.size());
+
+        // never before the deadline
+        assertEquals(0, wheel.expire(now + 2 * MS));
+        assertEquals(1, wheel.expire(now + 4 * MS));
+        assertEquals(1, wheel.expire(now + 6 * MS));
+        assertEquals(List.of(1, 2), expired);
+        assertTrue(wheel.nextExpiration() <= now + 12 * MS);
+
+        // a late expiration visits the whole wheel once
+        assertEquals(2, wheel.expire(now + 200 * MS));
+        assertEquals(List.of(1, 2, 3, 4), expired);
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiration());
+
+        // a past deadline expires at the next tick
+        wheel.schedule(() -> expired.add(6), now);
+        assertEquals(1, wheel.expire(now + 202 * MS));
+    }
+
+    @Test
+    public void testNextExpiration() {
+        final TimerWheel wheel = new TimerWheel(MS, 8);
+        final long now = System.nanoTime();
+
+        // next revolutions only: the real deadline, not the first bucket
+        final TimerWheel.Timeout later = wheel.schedule(() -> {
+        }, now + 100 * MS);
+        wheel.schedule(() -> {
+        }, now + 203 * MS);
+        assertTrue(wheel.nextExpiration() >= now + 100 * MS);
+        assertTrue(wheel.nextExpiration() <= now + 101 * MS);
+
+        final TimerWheel.Timeout sooner = wheel.schedule(() -> {
+        }, now + 50 * MS);
+        assertTrue(wheel.nextExpiration() >= now + 50 * MS);
+        assertTrue(wheel.nextExpiration() <= now + 51 * MS);
+
+        // the earliest removed, the next one is searched
+        sooner.cancel();
+        later.cancel();
+        assertTrue(wheel.nextExpiration() >= now + 203 * MS);
+        assertTrue(wheel.nextExpiration() <= now + 204 * MS);
+
+        assertEquals(1, wheel.expire(now + 205 * MS));
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiration());
+    }
+
+    @Test
+    public void testCancelInSameTick() {
+        final TimerWheel wheel = new TimerWheel(MS, 8);
+        final long now = System.nanoTime();
+        final AtomicInteger runs = new AtomicInteger();
+
+        // whatever the order, the first task run cancels the other one
+        final TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[2];
+        timeouts[0] = wheel.schedule(() -> {
+            runs.incrementAndGet();
+            timeouts[1].cancel();
+        }, now + MS);
+        timeouts[1] = wheel.schedule(() -> {
+            runs.incrementAndGet();
+            timeouts[0].cancel();
+        }, now + MS);
+
+        assertEquals(1, wheel.expire(now + 2 * MS));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testDeadlineTimer() throws InterruptedException {
+        final String json = "{\"proxy\": {\"keep-alive-timeout\": \"PT0.1S\", \"timeouts\": {\"tick\": \"PT0.01S\", \"header\": \"PT0.1S\"}}}";
+        final DeadlineTimer timer = new DeadlineTimer(new Configuration(JsonParser.load(json.getBytes(UTF_8)).orElse(null)));
+        try {
+            final CountDownLatch closed = new CountDownLatch(1);
+            final DeadlineTimer.Deadline expiring = timer.start(DeadlineTimer.Phase.IDLE, closed::countDown, "expiring");
+            final DeadlineTimer.Deadline cancelled = timer.start(DeadlineTimer.Phase.HEADER, () -> {
+                throw new IllegalStateException("cancelled");
+            }, "cancelled");
+            final DeadlineTimer.Deadline touched = timer.start(DeadlineTimer.Phase.HEADER, () -> {
+            }, "touched");
+
+            assertTrue(cancelled.cancel());
+            for (int i = 0; i < 6; ++i) {
+                Thread.sleep(40);
+                touched.touch();
+            }
+
+            assertTrue(closed.await(1, TimeUnit.SECONDS));
+            assertTrue(expiring.isExpired());
+            assertFalse(expiring.cancel());
+            assertFalse(cancelled.isExpired());
+            assertFalse(touched.isExpired());
+            assertTrue(touched.cancel());
+        } finally {
+            timer.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package fr.landel.myproxy.nio;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.landel.myproxy.Proxy;
+import fr.landel.myproxy.benchmark.EchoOrigin;
+import fr.landel.myproxy.benchmark.KeyStores;
+import fr.landel.myproxy.benchmark.LocalProxy;
+import fr.landel.myproxy.benchmark.ProxyClient;
+import fr.landel.myproxy.monitor.Metrics;
+
+public class TlsChannelTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testTunnelAndResumption() throws Exception {
+        final Path keyStore = KeyStores.generate(this.directory);
+        final Proxy proxy = LocalProxy.start(this.directory, "\"io-mode\": \"nio\"", "\"event-loops\": 1",
+                "\"ssl\": {\"port\": 0, \"keystore-file\": \"" + LocalProxy.escape(keyStore) + "\", \"keystore-pass\": \""
+                        + KeyStores.PASSWORD + "\", \"key-alias\": \"" + KeyStores.ALIAS + "\"}");
+
+        final SSLContext client = KeyStores.clientContext(keyStore);
+        final long handshakes = Metrics.counter("tls.handshakes").sum();
+        final long resumed = Metrics.counter("tls.handshakes.resumed").sum();
+
+        try (EchoOrigin origin = new EchoOrigin()) {
+            // larger than the records and the buffers, the relay waits for the client in both directions
+            final byte[] payload = new byte[1_000_000];
+            new Random(0).nextBytes(payload);
+            assertArrayEquals(payload, this.echo(client, proxy.getTlsPort(), origin.getPort(), payload));
+
+            // the second connection resumes the session of the first one
+            final byte[] small = "0123456789".getBytes(UTF_8);
+            assertArrayEquals(small, this.echo(client, proxy.getTlsPort(), origin.getPort(), small));
+        } finally {
+            proxy.closeServer();
+        }
+
+        assertEquals(2, Metrics.counter("tls.handshakes").sum() - handshakes);
+        assertTrue(Metrics.counter("tls.handshakes.resumed").sum() - resumed >= 1);
+    }
+
+    private byte[] echo(final SSLContext client, final int proxyPort, final int originPort, final byte[] payload) throws Exception {
+        try (SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("127.0.0.1", proxyPort)) {
+            socket.setSoTimeout(10_000);
+            ProxyClient.connect(socket, originPort);
+
+            final CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+                try {
+                    final OutputStream os = socket.getOutputStream();
+                    os.write(payload);
+                    os.flush();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            final byte[] received = new byte[payload.length];
+            ProxyClient.readFully(socket.getInputStream(), received);
+            sent.get();
+            return received;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package fr.landel.myproxy.pac;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fr.landel.myproxy.utils.InternalException;
+
+public class PacScriptTest {
+
+    private static final String PAC = "/* corporate rules */\n" //
+            + "var direct = 'DIRECT';\n" //
+            + "var bypass = ['localhost', 'intranet.corp'];\n" //
+            + "function isBypassed(host) {\n" //
+            + "    for (var i = 0; i < bypass.length; i++) {\n" //
+            + "        if (dnsDomainIs(host, bypass[i])) return true;\n" //
+            + "    }\n" //
+            + "    return false;\n" //
+            + "}\n" //
+            + "function FindProxyForURL(url, host) {\n" //
+            + "    host = host.toLowerCase();\n" //
+            + "    if (isPlainHostName(host) || isBypassed(host)) { return direct; }\n" //
+            + "    if (isInNet(host, \"10.0.0.0\", \"255.0.0.0\")) return direct; // private network\n" //
+            + "    if (shExpMatch(url, 'https:*') && shExpMatch(host, '*.secure.*')) return 'PROXY tls.corp:3128';\n" //
+            + "    if (host.substring(0, 4) == 'www.' && dnsDomainLevels(host) > 1) return \"PROXY web.corp:8080; DIRECT\";\n" //
+            + "    return url.indexOf('ftp') === 0 ? 'SOCKS socks.corp:1080' : 'PROXY main.corp:8080';\n" //
+            + "}\n";
+
+    private static final Map<String, byte[]> HOSTS = Map.of("localhost", new byte[] {127, 0, 0, 1}, "db.example.com", new byte[] {10, 0, 0, 5},
+            "www.example.com", new byte[] {(byte) 192, 0, 2, 10});
+
+    private Map<String, PacScript.Function> functions;
+
+    /**
+     * Resolves the hosts of {@link #HOSTS} only, without network
+     */
+    private static InetAddress[] resolveAll(final String host) throws UnknownHostException {
+        final byte[] address = HOSTS.get(host);
+        if (address == null) {
+            throw new UnknownHostException(host);
+        }
+        return new InetAddress[] {InetAddress.getByAddress(host, address)};
+    }
+
+    @BeforeEach
+    public void setup() {
+        this.functions = new PacFunctions(PacScriptTest::resolveAll).toMap();
+    }
+
+    @Test
+    public void testFindProxy() throws InternalException {
+        final PacScript script = PacScript.parse(PAC, this.functions);
+
+        assertEquals("DIRECT", script.findProxyForUrl("http://server/", "server"));
+        assertEquals("DIRECT", script.findProxyForUrl("http://app.intranet.corp/", "App.Intranet.corp"));
+        assertEquals("DIRECT", script.findProxyForUrl("http://10.1.2.3/", "10.1.2.3"));
+        // resolved in the private network
+        assertEquals("DIRECT", script.findProxyForUrl("http://db.example.com/", "db.example.com"));
+        assertEquals("PROXY tls.corp:3128", script.findProxyForUrl("https://www.secure.example.com/", "www.secure.example.com"));
+        assertEquals("PROXY web.corp:8080; DIRECT", script.findProxyForUrl("http://www.example.com/", "www.example.com"));
+        assertEquals("PROXY main.corp:8080", script.findProxyForUrl("http://example.com/", "example.com"));
+        assertEquals("SOCKS socks.corp:1080", script.findProxyForUrl("ftp://example.com/", "example.com"));
+    }
+
+    @Test
+    public void testExpressions() throws InternalException {
+        final PacScript script = PacScript.parse("var n = 0;\n" //
+                + "function FindProxyForURL(url, host) {\n" //
+                + "    var parts = host.split('.'), s = '';\n" //
+                + "    while (true) { if (++n > 3) break; }\n" //
+                + "    n += 2; n -= 1;\n" //
+                + "    s += parts.join('-') + ':' + parts.length + ':' + n + ':' + (7 % 4) + ':' + (1 / 2) + ':' + typeof missing;\n" //
+                + "    s += ':' + ('10' == 10) + ':' + ('10' === 10) + ':' + !(0 || null) + ':' + (null && 1) + ':' + ('b' > 'a');\n" //
+                + "    return s + ':' + host.charAt(0) + host.slice(-3) + host.substr(1, 2) + host.replace('.', '_');\n" //
+                + "}", this.functions);
+
+        assertEquals("a-b-com:3:5:3:0.5:undefined:true:false:true:null:true:acom.ba_b.com", script.findProxyForUrl("http://a.b.com/", "a.b.com"));
+        // the global variables assigned by an evaluation are not shared
+        assertEquals("a-b-com:3:5:3:0.5:undefined:true:false:true:null:true:acom.ba_b.com", script.findProxyForUrl("http://a.b.com/", "a.b.com"));
+    }
+
+    @Test
+    public void testErrors() {
+        assertThrows(InternalException.class, () -> PacScript.parse("function FindProxyForURL(url, host) { return 'DIRECT'", this.functions));
+        assertThrows(InternalException.class, () -> PacScript.parse("function other() {}", this.functions));
+        assertThrows(InternalException.class,
+                () -> PacScript.parse("function FindProxyForURL(url, host) { while (true) {} }", this.functions).findProxyForUrl("http://a/", "a"));
+        assertThrows(InternalException.class,
+                () -> PacScript.parse("function FindProxyForURL(url, host) { return unknown(host); }", this.functions).findProxyForUrl("http://a/", "a"));
+    }
+
+    @Test
+    public void testShExpMatcher() {
+        assertTrue(ShExpMatcher.compile("*").matches("anything"));
+        assertTrue(ShExpMatcher.compile("*.example.com").matches("www.example.com"));
+        assertFalse(ShExpMatcher.compile("*.example.com").matches("example.com"));
+        assertTrue(ShExpMatcher.compile("http://*").matches("http://host/"));
+        assertTrue(ShExpMatcher.compile("*internal*").matches("www.internal.corp"));
+        assertTrue(ShExpMatcher.compile("10.*.*.1?").matches("10.2.3.15"));
+        assertFalse(ShExpMatcher.compile("10.*.*.1?").matches("10.2.3.150"));
+        assertTrue(ShExpMatcher.compile("*a*b*c").matches("xxaybbzc"));
+        assertFalse(ShExpMatcher.compile("*a*b*c").matches("xxaybbzcd"));
+        assertTrue(ShExpMatcher.compile("exact").matches("exact"));
+    }
+
+    @Test
+    public void testFunctions() throws InternalException {
+        final PacScript script = PacScript.parse("function FindProxyForURL(url, host) {\n" //
+                + "    return [localHostOrDomainIs(host, 'www.corp.com'), isInNet(dnsResolve('localhost'), '127.0.0.0', '255.0.0.0'),\n" //
+                + "        isResolvable('localhost'), convert_addr('1.0.0.2'), weekdayRange('SUN', 'SAT'), timeRange(0, 24),\n" //
+                + "        dateRange('JAN', 'DEC'), dateRange(1, 31, 'GMT'), dnsResolve('www.example.com'), isResolvable('unknown'),\n" //
+                + "        dnsResolveEx('unknown') === ''].join(' ');\n" //
+                + "}", this.functions);
+
+        assertEquals("true true true 16777218 true true true true 192.0.2.10 false true", script.findProxyForUrl("http://www/", "www"));
+    }
+}